@@ -14,26 +14,82 @@
  * @author Anish Kunduru
  * 
  *         This program is our handler for BrowseLogsScreen.fxml.
+ * 
+ *         A log is shown a page of PAGE_LINES lines at a time, and only the page that is shown is held. With follow checked, the last page is shown and the lines that the server pushes as they are logged are added to it, dropping the oldest once the page holds more than MAX_FOLLOW_CHARS.
+ *         Servers from before MessageCodecs.LOG_RANGE_VERSION can only send a whole log.
+ * 
+ *         The search bar searches every log on the server at once, and shows up to LogSearchMessage.MAX_RESULTS matching lines in place of the page.
  */
 
 package browseLogs;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import framework.AbstractNetworkedScreenController;
+import framework.IDestroyable;
 import framework.IMessageReceivable;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.DatePicker;
+import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import networking.LogMessage;
+import networking.LogRangeMessage;
+import networking.LogSearchMessage;
+import networking.MessageCodecs;
 import networking.StringMessage;
+import utils.MapProperties;
+
+public class BrowseLogsScreenController extends AbstractNetworkedScreenController implements IMessageReceivable, IDestroyable {
+	public static final int PAGE_LINES = 500;
+	public static final int MAX_FOLLOW_CHARS = 2 * LogRangeMessage.MAX_RANGE_BYTES;
+	private static final DateTimeFormatter HIT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-public class BrowseLogsScreenController extends AbstractNetworkedScreenController implements IMessageReceivable {
 	@FXML
 	private TextArea messageTextArea;
 	@FXML
 	private ListView<String> selectLogsListView;
 	@FXML
 	private Button backBtn;
+	@FXML
+	private Button firstPageBtn;
+	@FXML
+	private Button previousPageBtn;
+	@FXML
+	private Button nextPageBtn;
+	@FXML
+	private Button lastPageBtn;
+	@FXML
+	private CheckBox followCheckBox;
+	@FXML
+	private Label pageLabel;
+	@FXML
+	private TextField searchTextField;
+	@FXML
+	private TextField searchMapTextField;
+	@FXML
+	private DatePicker searchFromDatePicker;
+	@FXML
+	private DatePicker searchToDatePicker;
+	@FXML
+	private Button searchBtn;
+
+	// Only used on the JavaFX thread.
+	private String log;
+	private long firstLine;
+	private int lineCount;
+	private long totalLines;
+	private long followedTo = -1; // Where the lines shown end, while following; -1 otherwise.
 
 	/**
 	 * Initializes the controller class. Automatically called after the FXML file has been loaded.
@@ -48,23 +104,267 @@ public class BrowseLogsScreenController extends AbstractNetworkedScreenControlle
 		}
 
 		selectLogsListView.getSelectionModel().selectedItemProperty().addListener((event, oldValue, newValue) -> {
-			try {
-				sendMessageToServer(new LogMessage(LogMessage.Type.LOG_REQUEST, newValue));
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
+			if (newValue == null)
+				return;
+
+			unfollow();
+			log = newValue;
+			messageTextArea.clear();
+			pageLabel.setText("");
+
+			if (getServerProtocolVersion() < MessageCodecs.LOG_RANGE_VERSION)
+				try {
+					sendMessageToServer(new LogMessage(LogMessage.Type.LOG_REQUEST, newValue));
+				} catch (IllegalAccessException e) {
+					e.printStackTrace();
+				}
+			else
+				showPage(followCheckBox.isSelected() ? LogRangeMessage.LAST_PAGE : 0);
+		});
+
+		firstPageBtn.setOnAction(event -> showPage(0));
+		previousPageBtn.setOnAction(event -> showPage(Math.max(0, firstLine - PAGE_LINES)));
+		nextPageBtn.setOnAction(event -> showPage(firstLine + lineCount < totalLines ? firstLine + lineCount : firstLine));
+		lastPageBtn.setOnAction(event -> showPage(LogRangeMessage.LAST_PAGE));
+
+		followCheckBox.setOnAction(event -> {
+			if (followCheckBox.isSelected())
+				showPage(LogRangeMessage.LAST_PAGE); // Starts following once the last page arrives.
+			else {
+				unfollow();
+				showPage(LogRangeMessage.LAST_PAGE); // So the page is numbered again.
 			}
+			updateButtons();
 		});
 
+		searchBtn.setOnAction(event -> search());
+
+		updateButtons();
+
 		backBtn.setOnAction(event -> {
 			parentController.goToUploadAsciiScreen();
 		});
 	}
 
+	/**
+	 * Stops following the log, since the server would otherwise keep sending its lines after the screen is gone.
+	 */
+	@Override
+	public void onDestroy() {
+		unfollow();
+	}
+
+	/**
+	 * Helper to ask for a page of the log that is selected.
+	 * 
+	 * @param line
+	 *           The first line of the page, or LogRangeMessage.LAST_PAGE.
+	 */
+	private void showPage(long line) {
+		if (log == null || getServerProtocolVersion() < MessageCodecs.LOG_RANGE_VERSION)
+			return;
+
+		String requested = log;
+		try {
+			requestFromServer(LogRangeMessage.lines(requested, line, PAGE_LINES)).whenComplete((response, error) -> Platform.runLater(() -> pageAnswered(requested, response, error)));
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Shows a page once the server answers, unless another log has been selected since.
+	 */
+	private void pageAnswered(String requested, Object response, Throwable error) {
+		if (!requested.equals(log))
+			return;
+
+		if (error != null)
+			errorAlert("Networking Error", "The log couldn't be read.", error.getMessage());
+		else if (response instanceof LogRangeMessage && ((LogRangeMessage) response).getType() == LogRangeMessage.Type.RANGE) {
+			LogRangeMessage lrm = (LogRangeMessage) response;
+			messageTextArea.setText(lrm.getText());
+			firstLine = lrm.getFirstLine();
+			lineCount = lrm.getLineCount();
+			totalLines = lrm.getTotalLines();
+
+			if (followCheckBox.isSelected() && followedTo < 0) {
+				messageTextArea.positionCaret(messageTextArea.getLength());
+				follow(lrm.getOffset() + lrm.getData().length);
+			}
+		} else if (response instanceof LogRangeMessage)
+			errorAlert("Server Error", "The log couldn't be read.", ((LogRangeMessage) response).getError());
+		else
+			outputMessage(response);
+
+		updateButtons();
+	}
+
+	/**
+	 * Helper to search every log with what is in the search bar. Text in slashes is a regular expression; anything else is keywords that must all be in a line.
+	 */
+	private void search() {
+		if (getServerProtocolVersion() < MessageCodecs.LOG_SEARCH_VERSION) {
+			warningAlert("Search Unavailable", "The server is too old to search its logs.", "Please update the server, or browse the logs a page at a time.");
+			return;
+		}
+
+		String text = searchTextField.getText().trim();
+		String pattern = null;
+		ArrayList<String> keywords = new ArrayList<String>();
+		if (text.length() > 1 && text.startsWith("/") && text.endsWith("/"))
+			pattern = text.substring(1, text.length() - 1);
+		else if (!text.isEmpty())
+			keywords.addAll(Arrays.asList(text.split("\\s+")));
+
+		MapProperties map = null;
+		if (!searchMapTextField.getText().trim().isEmpty()) {
+			map = MapProperties.fromString(searchMapTextField.getText().trim());
+			if (map == null) {
+				warningAlert("Invalid Map", "\"" + searchMapTextField.getText().trim() + "\" isn't the name of a map.", "Maps are named like GLOBALN2Oy1980m-1 or MISSISSIPPI_RIVER_BASINCH4y2000m11.");
+				return;
+			}
+		}
+
+		LocalDate fromDate = searchFromDatePicker.getValue();
+		LocalDate toDate = searchToDatePicker.getValue();
+		long from = fromDate == null ? Long.MIN_VALUE : fromDate.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		long to = toDate == null ? Long.MAX_VALUE : toDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+
+		LogSearchMessage request;
+		try {
+			request = LogSearchMessage.search(null, pattern, keywords, map, from, to, LogSearchMessage.MAX_RESULTS);
+		} catch (IllegalArgumentException iae) {
+			warningAlert("Invalid Search", "The search can't be run.", iae.getMessage());
+			return;
+		}
+
+		unfollow();
+		followCheckBox.setSelected(false);
+		searchBtn.setDisable(true);
+		requestFromServer(request).whenComplete((response, error) -> Platform.runLater(() -> searchAnswered(response, error)));
+	}
+
+	/**
+	 * Shows the lines that matched a search in place of the page.
+	 */
+	private void searchAnswered(Object response, Throwable error) {
+		searchBtn.setDisable(false);
+
+		if (error != null)
+			errorAlert("Networking Error", "The logs couldn't be searched.", error.getMessage());
+		else if (response instanceof LogSearchMessage && ((LogSearchMessage) response).getType() == LogSearchMessage.Type.RESULTS) {
+			LogSearchMessage lsm = (LogSearchMessage) response;
+
+			StringBuilder sb = new StringBuilder();
+			for (LogSearchMessage.Hit hit : lsm.getHits()) {
+				sb.append('[').append(hit.getLogName()).append("] ");
+				if (hit.getTimestamp() != Long.MIN_VALUE)
+					sb.append(HIT_TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(hit.getTimestamp()), ZoneId.systemDefault()))).append("  ");
+				sb.append(hit.getLine()).append('\n');
+			}
+
+			log = null; // The page buttons go back to a log once one is selected again.
+			selectLogsListView.getSelectionModel().clearSelection();
+			messageTextArea.setText(sb.toString());
+			updateButtons();
+			pageLabel.setText(lsm.getHits().size() + (lsm.isTruncated() ? "+ matches (only the first " + lsm.getHits().size() + " are shown)" : " matches"));
+		} else if (response instanceof LogSearchMessage)
+			errorAlert("Server Error", "The logs couldn't be searched.", ((LogSearchMessage) response).getError());
+		else
+			outputMessage(response);
+	}
+
+	/**
+	 * Helper to start following the log that is shown.
+	 * 
+	 * @param offset
+	 *           Where the lines shown end.
+	 */
+	private void follow(long offset) {
+		String requested = log;
+		followedTo = offset;
+
+		try {
+			requestFromServer(LogRangeMessage.follow(requested, offset)).whenComplete((response, error) -> Platform.runLater(() -> {
+				if (!requested.equals(log) || followedTo < 0)
+					return;
+
+				if (error != null || !(response instanceof LogRangeMessage) || ((LogRangeMessage) response).getType() != LogRangeMessage.Type.APPENDED) {
+					followedTo = -1;
+					followCheckBox.setSelected(false);
+					updateButtons();
+					errorAlert("Server Error", "The log can't be followed.", error != null ? error.getMessage() : response instanceof LogRangeMessage ? ((LogRangeMessage) response).getError() : null);
+				}
+			}));
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper to stop following the log that is shown, if it is.
+	 */
+	private void unfollow() {
+		if (followedTo < 0)
+			return;
+
+		followedTo = -1;
+		try {
+			sendMessageToServer(LogRangeMessage.unfollow(log));
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper to add the lines that the server pushed for the log that is followed.
+	 */
+	private void appended(LogRangeMessage lrm) {
+		if (followedTo < 0 || !lrm.getLogName().equals(log) || lrm.getData().length == 0)
+			return;
+
+		if (lrm.getOffset() == followedTo)
+			messageTextArea.appendText(lrm.getText());
+		else if (lrm.getOffset() == 0)
+			messageTextArea.setText(lrm.getText()); // Rolled over.
+		else
+			return; // Already shown.
+
+		followedTo = lrm.getOffset() + lrm.getData().length;
+
+		// Only the newest lines are kept.
+		int excess = messageTextArea.getLength() - MAX_FOLLOW_CHARS;
+		if (excess > 0) {
+			int lineEnd = messageTextArea.getText().indexOf('\n', excess);
+			messageTextArea.deleteText(0, lineEnd < 0 ? excess : lineEnd + 1);
+		}
+	}
+
+	/**
+	 * Helper to enable the page buttons that make sense for the page that is shown.
+	 */
+	private void updateButtons() {
+		boolean paged = log != null && followedTo < 0 && !followCheckBox.isSelected() && getServerProtocolVersion() >= MessageCodecs.LOG_RANGE_VERSION;
+		firstPageBtn.setDisable(!paged || firstLine == 0);
+		previousPageBtn.setDisable(!paged || firstLine == 0);
+		nextPageBtn.setDisable(!paged || firstLine + lineCount >= totalLines);
+		lastPageBtn.setDisable(!paged || firstLine + lineCount >= totalLines);
+		followCheckBox.setDisable(getServerProtocolVersion() < MessageCodecs.LOG_RANGE_VERSION);
+
+		if (log == null || totalLines == 0)
+			pageLabel.setText("");
+		else if (followedTo >= 0)
+			pageLabel.setText("Following " + log);
+		else
+			pageLabel.setText("Lines " + (firstLine + 1) + " - " + (firstLine + lineCount) + " of " + totalLines);
+	}
+
 	/**
 	 * Designed to output log information from the server to the user via a text area.
 	 * 
 	 * @param msg
-	 *           A LogMessage of type response containing the information that the client requested.
+	 *           A LogMessage of type response containing the information that the client requested, or a LogRangeMessage of lines added to the log that is followed.
 	 */
 	@Override
 	public void outputMessage(Object msg) {
@@ -75,8 +375,10 @@ public class BrowseLogsScreenController extends AbstractNetworkedScreenControlle
 			if (lm.isListOfLogsResponse())
 				selectLogsListView.getItems().setAll(lm.getListOfLogsResponse());
 			else if (lm.isLogResponse())
-				messageTextArea.appendText(lm.getLogResponse());
-		} else if (msg instanceof StringMessage)// DEBUG notifications, shouldn't display this alert.
+				messageTextArea.setText(lm.getLogResponse());
+		} else if (msg instanceof LogRangeMessage && ((LogRangeMessage) msg).getType() == LogRangeMessage.Type.APPENDED)
+			appended((LogRangeMessage) msg);
+		else if (msg instanceof StringMessage)// DEBUG notifications, shouldn't display this alert.
 		{
 			StringMessage sm = (StringMessage) msg;
 			informationAlert("Server Message", sm.getMsgHeader(), sm.getMsgContent());
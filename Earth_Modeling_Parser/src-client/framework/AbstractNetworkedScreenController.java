@@ -20,15 +20,20 @@
 package framework;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javafx.scene.Node;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.ButtonType;
 import javafx.scene.layout.Region;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
+import networking.MapCatalog;
 import singleton.MainModel;
+import utils.MapProperties;
 import view.MainController;
 
 public abstract class AbstractNetworkedScreenController implements IControlledScreen {
@@ -77,6 +82,27 @@ public abstract class AbstractNetworkedScreenController implements IControlledSc
 		generateAlert(title, header, content, AlertType.WARNING);
 	}
 
+	/**
+	 * Asks the user to choose what to do. Basically acts as a wrapper for Alert.
+	 * 
+	 * @param title
+	 *           The text to be displayed in the title bar.
+	 * @param header
+	 *           The text to be displayed in the Alert's window.
+	 * @param content
+	 *           The text to be displayed in the Alert's content box.
+	 * @param choices
+	 *           The buttons to choose from; OK and Cancel if none are passed.
+	 * @return The button that the user pressed; ButtonType.CANCEL if they closed the Alert without pressing one.
+	 */
+	public ButtonType confirmationAlert(String title, String header, String content, ButtonType... choices) {
+		Alert alert = new Alert(AlertType.CONFIRMATION, content, choices);
+		alert.setTitle(title);
+		alert.setHeaderText(header);
+		alert.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+		return alert.showAndWait().orElse(ButtonType.CANCEL);
+	}
+
 	/**
 	 * Helper method to generate basic alerts.
 	 * 
@@ -185,6 +211,50 @@ public abstract class AbstractNetworkedScreenController implements IControlledSc
 		return ret;
 	}
 
+	/**
+	 * Sends a request whose answer comes back to the caller instead of to outputMessage() or an alert. Any number of requests can be in flight at once.
+	 * 
+	 * @param o
+	 *           The message object (defined in src-shared.networking) that you wish to send to the server.
+	 * @return A future completed with the server's answer, on the thread that reads from the server (so use Platform.runLater() to update the screen), or completed exceptionally with an IOException if no answer is coming.
+	 */
+	protected CompletableFuture<Object> requestFromServer(Object o) {
+		return MainModel.getModel().getNetworkData().getHandler().request(o);
+	}
+
+	/**
+	 * @return The protocol version that the server agreed on at login (see MessageCodecs), for screens that have to work with older servers.
+	 */
+	protected int getServerProtocolVersion() {
+		return MainModel.getModel().getNetworkData().getHandler().getProtocolVersion();
+	}
+
+	/**
+	 * @return The client's copy of the server's catalog of converted maps, for screens that want to know if a map exists before they send anything. Check isKnown() before trusting that a map isn't there, as older servers don't send their catalog.
+	 */
+	protected MapCatalog getServerCatalog() {
+		return MainModel.getModel().getNetworkData().getHandler().getCatalog();
+	}
+
+	/**
+	 * Uploads an ASCII file to the server in chunks. Blocks until every chunk has been acknowledged, so it must not be called on the JavaFX thread; several files can be uploaded at once from different threads.
+	 * 
+	 * @param file
+	 *           The ASCII file.
+	 * @param properties
+	 *           The properties of the map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 * @return A future completed with the server's answer to the upload, as for requestFromServer(): a JobMessage of JobMessage.Type.JOB_ACCEPTED, or a StringMessage if the map couldn't be queued.
+	 * @throws IOException
+	 *            The upload failed. Uploading the same file again resumes it.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for the server.
+	 */
+	protected CompletableFuture<Object> uploadFileToServer(File file, MapProperties properties, boolean overwriteExisting) throws IOException, InterruptedException {
+		return MainModel.getModel().getNetworkData().getHandler().uploadFile(file, properties, overwriteExisting);
+	}
+
 	/**
 	 * This method will allow for the injection of each screen's parent.
 	 */
@@ -0,0 +1,231 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Sends an ASCII file to the server with the chunked upload messages defined in UploadMessage. The file is read a chunk at a time, and no more than WINDOW_CHUNKS chunks are waiting to be acknowledged at once, so the memory used doesn't depend on the size of the file.
+ * 
+ *         If the server already has part of the file (because an earlier upload of it was cut off), only the rest is sent. If it already holds the whole file's content (see UploadMessage.DIGEST_ALGORITHM), nothing is sent.
+ */
+
+package networking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import utils.MapProperties;
+
+public class ChunkedUpload {
+
+	public static final int WINDOW_CHUNKS = 4; // Enough to keep the connection busy while the server writes a chunk.
+	public static final int MAX_REFUSED_CHUNKS = 5;
+	public static final long RESPONSE_TIMEOUT_IN_SECONDS = 60L;
+
+	private final NetworkHandler handler;
+	private final long transferId;
+	private final File file;
+	private final MapProperties properties;
+	private final boolean overwriteExisting;
+	private final BlockingQueue<UploadMessage> responses = new LinkedBlockingQueue<UploadMessage>();
+
+	/**
+	 * Constructor for an upload that hasn't started yet.
+	 * 
+	 * @param handler
+	 *           The handler that the upload is sent through.
+	 * @param transferId
+	 *           A number that no other upload through the handler is using.
+	 * @param file
+	 *           The ASCII file.
+	 * @param properties
+	 *           The properties of the map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 */
+	ChunkedUpload(NetworkHandler handler, long transferId, File file, MapProperties properties, boolean overwriteExisting) {
+		this.handler = handler;
+		this.transferId = transferId;
+		this.file = file;
+		this.properties = properties;
+		this.overwriteExisting = overwriteExisting;
+	}
+
+	/**
+	 * Called by the NetworkListener with each response to this upload.
+	 * 
+	 * @param um
+	 *           The response.
+	 */
+	void received(UploadMessage um) {
+		responses.add(um);
+	}
+
+	/**
+	 * Sends the file, and then the COMMIT as a request (see NetworkHandler.request()). Servers that understand MessageCodecs.DIGEST_VERSION are sent the BEGIN as a request too, with the file's digest, so they can answer it instead of the COMMIT if they already hold the content.
+	 * 
+	 * @return A future completed with the server's answer to the COMMIT (or the BEGIN, if nothing had to be sent): a JobMessage or StringMessage.
+	 * @throws IOException
+	 *            The file couldn't be read, or the server refused or stopped answering the upload.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for the server.
+	 */
+	CompletableFuture<Object> send() throws IOException, InterruptedException {
+		long totalBytes = file.length();
+
+		try {
+			UploadMessage ready;
+			if (handler.getProtocolVersion() >= MessageCodecs.DIGEST_VERSION) {
+				MessageDigest digest = newDigest();
+				long crc = checksum(file, digest);
+
+				Object answer = awaitAnswer(handler.request(UploadMessage.begin(transferId, properties, overwriteExisting, totalBytes, crc, digest.digest())));
+				if (!(answer instanceof UploadMessage))
+					return CompletableFuture.completedFuture(answer); // The server already holds the content.
+
+				ready = (UploadMessage) answer;
+				if (ready.getType() == UploadMessage.Type.FAILED)
+					throw new IOException(ready.getError());
+			} else {
+				send(UploadMessage.begin(transferId, properties, overwriteExisting, totalBytes, checksum(file, null)));
+				ready = await();
+			}
+			String uploadId = ready.getUploadId();
+
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long acknowledged = ready.getOffset();
+				long sent = acknowledged;
+				Queue<Long> chunkEnds = new ArrayDeque<Long>(); // Acknowledgements come back in the order the chunks were sent.
+				boolean refused = false;
+				int refusals = 0;
+
+				while (acknowledged < totalBytes) {
+					while (!refused && chunkEnds.size() < WINDOW_CHUNKS && sent < totalBytes) {
+						ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(UploadMessage.CHUNK_BYTES, totalBytes - sent));
+						while (chunk.hasRemaining())
+							if (channel.read(chunk, sent + chunk.position()) < 0)
+								throw new IOException(file.getName() + " changed while it was being uploaded.");
+
+						CRC32 crc = new CRC32();
+						crc.update(chunk.array());
+						send(UploadMessage.chunk(transferId, uploadId, sent, chunk.array(), crc.getValue()));
+
+						sent += chunk.capacity();
+						chunkEnds.add(sent);
+					}
+
+					UploadMessage ack = await();
+					long expected = chunkEnds.remove();
+					acknowledged = Math.max(acknowledged, ack.getOffset());
+
+					if (ack.getOffset() < expected && !refused) {
+						// Let the chunks already sent be refused too, and then start again from where the server is.
+						refused = true;
+						if (++refusals > MAX_REFUSED_CHUNKS)
+							throw new IOException("The server refused too many chunks of " + file.getName() + ": " + ack.getError());
+					}
+
+					if (refused && chunkEnds.isEmpty()) {
+						refused = false;
+						sent = acknowledged;
+					}
+				}
+			}
+
+			return handler.request(UploadMessage.commit(transferId, uploadId));
+		} catch (IllegalAccessException iae) {
+			throw new IOException("An invalid UploadMessage was created.", iae);
+		}
+	}
+
+	/**
+	 * Helper to send a message, failing the upload if it can't be.
+	 */
+	private void send(UploadMessage um) throws IOException {
+		if (!handler.bufferObject(um))
+			throw new IOException("The connection to the server was lost.");
+	}
+
+	/**
+	 * Helper to wait for the server's next response, failing the upload if it is FAILED or doesn't come.
+	 */
+	private UploadMessage await() throws IOException, InterruptedException {
+		UploadMessage um = responses.poll(RESPONSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+
+		if (um == null)
+			throw new IOException("The server stopped answering the upload of " + file.getName() + ".");
+		if (um.getType() == UploadMessage.Type.FAILED)
+			throw new IOException(um.getError());
+
+		return um;
+	}
+
+	/**
+	 * Helper to wait for the server's answer to a request, failing the upload if it doesn't come.
+	 */
+	private Object awaitAnswer(CompletableFuture<Object> answer) throws IOException, InterruptedException {
+		try {
+			return answer.get(RESPONSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException ee) {
+			throw ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+		} catch (TimeoutException te) {
+			throw new IOException("The server stopped answering the upload of " + file.getName() + ".");
+		}
+	}
+
+	/**
+	 * Helper to create a MessageDigest for UploadMessage.DIGEST_ALGORITHM, which every Java platform has.
+	 */
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(UploadMessage.DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(nsae);
+		}
+	}
+
+	/**
+	 * Helper to compute the CRC32 of the whole file, a buffer at a time, updating digest (unless it is null) with the same pass.
+	 */
+	private static long checksum(File f, MessageDigest digest) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+
+		try (InputStream in = new FileInputStream(f)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				if (digest != null)
+					digest.update(buffer, 0, read);
+			}
+		}
+
+		return crc.getValue();
+	}
+}
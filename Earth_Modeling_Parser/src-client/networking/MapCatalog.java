@@ -0,0 +1,128 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         The client's copy of the server's catalog of converted maps, kept up to date by the CatalogMessages that the server pushes (see CatalogMessage). Lets a screen tell whether a map already exists without asking the server.
+ * 
+ *         Only the NetworkListener changes the catalog; any thread can query it. Each change replaces the catalog's State, so a query never sees half of a change.
+ */
+
+package networking;
+
+import java.util.Arrays;
+
+import utils.MapProperties;
+
+public class MapCatalog {
+
+	private static final State UNKNOWN = new State(-1, new int[0]);
+
+	private volatile State state = UNKNOWN;
+	private boolean resyncRequested; // Only used by the NetworkListener.
+
+	/**
+	 * @return true if the server has sent a snapshot of its catalog; false if it hasn't yet (or is too old to), in which case contains() is always false.
+	 */
+	public boolean isKnown() {
+		return state != UNKNOWN;
+	}
+
+	/**
+	 * @param properties
+	 *           The MapProperties of the map to check for.
+	 * @return true if the map is in the catalog; false otherwise.
+	 */
+	public boolean contains(MapProperties properties) {
+		return Arrays.binarySearch(state.keys, properties.toPackedKey()) >= 0;
+	}
+
+	/**
+	 * @return The number of maps in the catalog.
+	 */
+	public int size() {
+		return state.keys.length;
+	}
+
+	/**
+	 * Applies a CatalogMessage from the server. Called by the NetworkListener.
+	 * 
+	 * @param cm
+	 *           The message.
+	 * @return true if a change was missed and the catalog should be sent again (with CatalogMessage.subscribe()); false otherwise, including while an earlier request to send it again hasn't been answered.
+	 */
+	boolean received(CatalogMessage cm) {
+		State current = state;
+
+		if (cm.getType() == CatalogMessage.Type.SNAPSHOT) {
+			if (cm.getVersion() >= current.version)
+				state = new State(cm.getVersion(), cm.getKeys());
+			resyncRequested = false;
+			return false;
+		}
+
+		// Deltas that arrive before the first snapshot, or that it already holds, are ignored.
+		if (cm.getType() != CatalogMessage.Type.DELTA || current == UNKNOWN || cm.getVersion() <= current.version)
+			return false;
+		if (cm.getVersion() != current.version + 1) {
+			boolean resync = !resyncRequested;
+			resyncRequested = true;
+			return resync;
+		}
+
+		state = new State(cm.getVersion(), apply(current.keys, cm.getAdded(), cm.getRemoved()));
+		return false;
+	}
+
+	/**
+	 * Helper to merge the sorted keys of a delta into a sorted copy of the catalog's keys.
+	 */
+	private static int[] apply(int[] keys, int[] added, int[] removed) {
+		int[] next = new int[keys.length + added.length];
+		int i = 0, a = 0, r = 0, n = 0;
+
+		while (i < keys.length || a < added.length) {
+			int key;
+			if (a == added.length || (i < keys.length && keys[i] <= added[a])) {
+				key = keys[i++];
+				if (a < added.length && added[a] == key)
+					a++; // Already in the catalog.
+			} else
+				key = added[a++];
+
+			while (r < removed.length && removed[r] < key)
+				r++;
+			if (r < removed.length && removed[r] == key)
+				continue;
+
+			next[n++] = key;
+		}
+
+		return Arrays.copyOf(next, n);
+	}
+
+	/**
+	 * The catalog's keys, sorted in ascending order, at one version.
+	 */
+	private static final class State {
+
+		private final long version;
+		private final int[] keys;
+
+		private State(long version, int[] keys) {
+			this.version = version;
+			this.keys = keys;
+		}
+	}
+}
@@ -15,21 +15,30 @@
  * @author Anish Kunduru
  * 
  *         This program is the client-side class that initializes a connection with the server. It will be called by a screen.
+ * 
+ *         Messages sent with bufferObject() are answered like they always were: the NetworkListener hands the answer to whichever screen is current. Messages sent with request() are wrapped in a CorrelatedMessage, and their answer completes the future that request() returned instead, so
+ *         any number of them can be in flight at once.
  */
 
 package networking;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -39,6 +48,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import networking.ConnectionMessage.Type;
+import utils.MapProperties;
 
 public class NetworkHandler {
 
@@ -47,13 +57,19 @@ public class NetworkHandler {
 	public final int SERVER_PORT = ServerInformation.SERVER_PORT;
 
 	private SSLSocket socket;
-	private ObjectInputStream input;
-	private ObjectOutputStream output;
+	private DataInputStream input;
+	private DataOutputStream output;
 	private String username;
 	private String password;
 	private boolean login;
+	private volatile FrameFormat format = FrameFormat.LOGIN; // Agreed on at login.
 
 	private NetworkListener listener;
+	private final Map<Long, ChunkedUpload> uploads = new ConcurrentHashMap<Long, ChunkedUpload>();
+	private final AtomicLong nextTransferId = new AtomicLong();
+	private final Map<Long, CompletableFuture<Object>> requests = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+	private final AtomicLong nextCorrelationId = new AtomicLong(CorrelatedMessage.UNCORRELATED);
+	private final MapCatalog catalog = new MapCatalog();
 
 	/**
 	 * Starts the network manager and initializes a connection to the server.
@@ -100,15 +116,15 @@ public class NetworkHandler {
 		socket = (SSLSocket) ssf.createSocket(SERVER_ADDRESS, SERVER_PORT);
 		socket.startHandshake();
 
-		// Grab output after handshake, before input.
-		output = new ObjectOutputStream(socket.getOutputStream());
-		input = new ObjectInputStream(socket.getInputStream());
+		// Messages are sent as frames (see MessageFrames), which the server reads without blocking a thread per client.
+		output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 		listener = new NetworkListener(input, this);
 		listener.start();
 
 		try {
-			output.writeObject(new ConnectionMessage(Type.CONNECT, username, password));
+			bufferObject(new ConnectionMessage(Type.CONNECT, username, password, new Compression[] { Compression.DEFLATE_FAST, Compression.DEFLATE }, MessageCodecs.PROTOCOL_VERSION));
 		} catch (IllegalAccessException e) {
 			System.out.println("An invalid ConnectionMessage was created.");
 			e.printStackTrace();
@@ -128,23 +144,24 @@ public class NetworkHandler {
 		}
 
 		listener.end();
+		failRequests(new IOException("The connection to the server was closed."));
 	}
 
 	/**
-	 * Writes an Object to the buffer (socket stream). Should be of a message type listed in src-shared.networking.
+	 * Writes an Object to the buffer (socket stream). Should be of a message type listed in src-shared.networking. Synchronized, so that frames sent from different threads can't be interleaved.
 	 * 
 	 * @param o
 	 *           The Object that you wish to send through the buffer.
 	 * @return true if the message was successfully sent; false if something failed.
 	 */
-	public boolean bufferObject(Object o) {
+	public synchronized boolean bufferObject(Object o) {
 		if (!socket.isConnected() || socket.isClosed() || socket.isOutputShutdown()) {
 			close();
 			return false;
 		}
 
 		try {
-			output.writeObject(o);
+			MessageFrames.write(output, o, format);
 		} catch (IOException ioe) {
 			System.out.println("I/O error while attempting to write to the buffer.");
 			ioe.printStackTrace();
@@ -154,6 +171,122 @@ public class NetworkHandler {
 		return true;
 	}
 
+	/**
+	 * Sends a request whose answer should come back to the caller rather than go to the current screen. Can be called from any thread, and any number of requests can be in flight.
+	 * 
+	 * @param message
+	 *           The request, formatted as a src-shared.networking.
+	 * @return A future completed with the server's first answer to the request, or completed exceptionally with an IOException if the request couldn't be sent or the connection is lost first. Any later answers (like a bulk delete's results) go to the current screen.
+	 */
+	public CompletableFuture<Object> request(Object message) {
+		CompletableFuture<Object> response = new CompletableFuture<Object>();
+		if (format.getProtocolVersion() < MessageCodecs.CORRELATION_VERSION) {
+			response.completeExceptionally(new IOException("The server is too old to answer requests out of order; please update it."));
+			return response;
+		}
+
+		long correlationId = nextCorrelationId.incrementAndGet();
+		requests.put(correlationId, response);
+
+		try {
+			if (!bufferObject(new CorrelatedMessage(correlationId, message)))
+				throw new IOException("The connection to the server was lost.");
+		} catch (IllegalAccessException | IOException e) {
+			requests.remove(correlationId);
+			response.completeExceptionally(e instanceof IOException ? e : new IOException("An invalid request was created.", e));
+		}
+
+		return response;
+	}
+
+	/**
+	 * Hands an answer from the server to the request that it is for. Called by the NetworkListener.
+	 * 
+	 * @param cm
+	 *           The answer.
+	 * @return true if a request was waiting for the answer; false if it should go to the current screen.
+	 */
+	boolean responseReceived(CorrelatedMessage cm) {
+		CompletableFuture<Object> response = requests.remove(cm.getCorrelationId());
+		if (response == null)
+			return false;
+
+		response.complete(cm.getMessage());
+		return true;
+	}
+
+	/**
+	 * Fails every request that is still waiting for an answer. Called when the connection is lost.
+	 * 
+	 * @param cause
+	 *           Why no answer is coming.
+	 */
+	void failRequests(IOException cause) {
+		for (Long correlationId : requests.keySet()) {
+			CompletableFuture<Object> response = requests.remove(correlationId);
+			if (response != null)
+				response.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Uploads an ASCII file in chunks (see ChunkedUpload), instead of reading it all into an AsciiFileMessage. Blocks until the whole file has been acknowledged, and then commits it with request(). Several files can be uploaded at once from different threads.
+	 * 
+	 * @param file
+	 *           The ASCII file.
+	 * @param properties
+	 *           The properties of the map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 * @return A future completed with the server's answer to the commit: a JobMessage of JobMessage.Type.JOB_ACCEPTED, or a StringMessage if the map couldn't be queued. If the server already held the file's content, nothing was sent, and the answer is either a JobMessage or a StringMessage
+	 *         of StringMessage.Type.INFORMATION_MESSAGE if the map is already up to date.
+	 * @throws IOException
+	 *            The file couldn't be read, or the server refused or stopped answering the upload. Uploading the same file again resumes where the server left off.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for the server.
+	 */
+	public CompletableFuture<Object> uploadFile(File file, MapProperties properties, boolean overwriteExisting) throws IOException, InterruptedException {
+		long transferId = nextTransferId.incrementAndGet();
+		ChunkedUpload upload = new ChunkedUpload(this, transferId, file, properties, overwriteExisting);
+
+		uploads.put(transferId, upload);
+		try {
+			return upload.send();
+		} finally {
+			uploads.remove(transferId);
+		}
+	}
+
+	/**
+	 * Hands a response from the server to the upload that it is for. Called by the NetworkListener.
+	 * 
+	 * @param um
+	 *           The response.
+	 */
+	void uploadMessageReceived(UploadMessage um) {
+		ChunkedUpload upload = uploads.get(um.getTransferId());
+		if (upload != null)
+			upload.received(um);
+	}
+
+	/**
+	 * Applies a change to the catalog that the server pushed. Called by the NetworkListener.
+	 * 
+	 * @param cm
+	 *           The SNAPSHOT or DELTA.
+	 */
+	void catalogMessageReceived(CatalogMessage cm) {
+		if (catalog.received(cm))
+			bufferObject(CatalogMessage.subscribe());
+	}
+
+	/**
+	 * @return The client's copy of the server's catalog of converted maps. Never known if the server logged in with a protocol version before MessageCodecs.CATALOG_VERSION.
+	 */
+	public MapCatalog getCatalog() {
+		return catalog;
+	}
+
 	/**
 	 * Send a disconnect type message to the buffer, close out the streams, and end the listener thread.
 	 */
@@ -161,8 +294,9 @@ public class NetworkHandler {
 
 		try {
 			ConnectionMessage cm = new ConnectionMessage(Type.DISCONNECT, username, password);
-			output.writeObject(cm);
-			output.flush();
+			synchronized (this) {
+				MessageFrames.write(output, cm, format);
+			}
 		} catch (Exception e) {
 			System.out.println("Error sending the disconnect request to the server.");
 			e.printStackTrace();
@@ -181,6 +315,23 @@ public class NetworkHandler {
 		this.login = login;
 	}
 
+	/**
+	 * Sets how frames are written, as the server agreed on at login. Messages sent before this is called are written as FrameFormat.LOGIN.
+	 * 
+	 * @param format
+	 *           The FrameFormat from the server's SUCCESSFUL_CONNECTION.
+	 */
+	void setFrameFormat(FrameFormat format) {
+		this.format = format;
+	}
+
+	/**
+	 * @return The protocol version agreed on at login (see MessageCodecs), so a screen can tell what the server understands; MessageCodecs.SERIALIZED_VERSION until then.
+	 */
+	public int getProtocolVersion() {
+		return format.getProtocolVersion();
+	}
+
 	/**
 	 * Returns the login variable that tells the client if valid login parameters were passed.
 	 * 
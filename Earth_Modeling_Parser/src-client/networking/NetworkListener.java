@@ -19,19 +19,20 @@
 
 package networking;
 
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 
 import framework.AbstractNetworkedScreenController;
 import framework.IMessageReceivable;
 import javafx.application.Platform;
 import networking.StringMessage.Type;
 import singleton.MainModel;
+import utils.JobStatus;
 
 public class NetworkListener extends Thread {
 
 	private boolean run;
-	private ObjectInputStream input;
+	private DataInputStream input;
 	private NetworkHandler handler;
 
 	/**
@@ -40,7 +41,7 @@ public class NetworkListener extends Thread {
 	 * @param input
 	 *           The input stream of the socket that the server is connected to.
 	 */
-	public NetworkListener(ObjectInputStream input, NetworkHandler handler) {
+	public NetworkListener(DataInputStream input, NetworkHandler handler) {
 		this.input = input;
 		this.handler = handler;
 	}
@@ -53,12 +54,14 @@ public class NetworkListener extends Thread {
 		run = false;
 		// Check if login was successful.
 		try {
-			ConnectionMessage cm = (ConnectionMessage) input.readObject();
+			ConnectionMessage cm = (ConnectionMessage) MessageFrames.read(input);
 
 			if (cm.getMessageType() == ConnectionMessage.Type.UNSUCCESSFUL_CONNECTION)
 				handler.setLogin(false);
-			else if (cm.getMessageType() == ConnectionMessage.Type.SUCCESSFUL_CONNECTION)
+			else if (cm.getMessageType() == ConnectionMessage.Type.SUCCESSFUL_CONNECTION) {
+				handler.setFrameFormat(cm.getFrameFormat());
 				handler.setLogin(true);
+			}
 
 		} catch (ClassNotFoundException | IOException e) {
 			System.out.println("Initial login failure.");
@@ -68,10 +71,21 @@ public class NetworkListener extends Thread {
 
 		while (run)
 			try {
-				Object msg = input.readObject();
-
+				Object read = MessageFrames.read(input);
+
+				// Answers to requests go to the request that is waiting for them. Later answers to the same request go to the screen.
+				if (read instanceof CorrelatedMessage && handler.responseReceived((CorrelatedMessage) read))
+					continue;
+				Object msg = read instanceof CorrelatedMessage ? ((CorrelatedMessage) read).getMessage() : read;
+
+				// Responses to chunked uploads go to the upload that is waiting for them, not the screen.
+				if (msg instanceof UploadMessage)
+					handler.uploadMessageReceived((UploadMessage) msg);
+				// So do changes to the catalog.
+				else if (msg instanceof CatalogMessage)
+					handler.catalogMessageReceived((CatalogMessage) msg);
 				// Check to see if it is an alive ping from the server, as those are always ints (Integer with autoboxing).
-				if (!(msg instanceof Integer)) {
+				else if (!(msg instanceof Integer)) {
 
 					AbstractNetworkedScreenController controller = MainModel.getModel().getControllerData().getCurrentController();
 
@@ -85,7 +99,19 @@ public class NetworkListener extends Thread {
 						Platform.runLater(() -> {
 							smController.outputMessage(msg);
 						});
-					} else {
+					} else if (msg instanceof JobMessage) {
+						// Screens that don't handle messages themselves only hear about jobs once they finish.
+						JobStatus js = ((JobMessage) msg).getStatus();
+
+						if (js != null && js.getState() == JobStatus.State.FAILED)
+							Platform.runLater(() -> {
+								controller.errorAlert("Server Error", "There was an issue with job " + js.getJobId() + " for map: " + js.getMapProperties().toString() + ".", js.getMessage());
+							});
+						else if (js != null && js.getState() == JobStatus.State.DONE)
+							Platform.runLater(() -> {
+								controller.informationAlert("Server Message", "Success!", js.getMessage());
+							});
+					} else if (msg instanceof StringMessage) {
 						StringMessage sm = (StringMessage) msg;
 
 						if (sm.getMessageType() == Type.ERROR_MESSAGE)
@@ -105,6 +131,7 @@ public class NetworkListener extends Thread {
 			} catch (IOException ioe) {
 				System.out.println("The connection to the server has been terminated.");
 				ioe.printStackTrace();
+				handler.failRequests(ioe);
 			} catch (ClassNotFoundException cnfe) {
 				System.out.println("The object sent could not be parsed, because the class doesn't exist.");
 				cnfe.printStackTrace();
@@ -20,19 +20,22 @@
 package uploadAscii;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
 
 import framework.AbstractNetworkedScreenController;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.stage.FileChooser.ExtensionFilter;
-import networking.AsciiFileMessage;
 import networking.DeleteMapMessage;
+import networking.JobMessage;
+import networking.StringMessage;
 import utils.MapCompoundType;
 import utils.MapProperties;
 import utils.MapRegionType;
@@ -115,12 +118,20 @@ public class UploadAsciiScreenController extends AbstractNetworkedScreenControll
 						sendMessageToServer(dmm);
 						message.setText("Waiting for server response...");
 					} else if (selectedFile != null) {
-						byte[] fileAsBytes = Files.readAllBytes(selectedFile.toPath());
-						AsciiFileMessage afm = new AsciiFileMessage(mp, fileAsBytes, overwriteCheckBox.isSelected());
+						boolean overwrite = overwriteCheckBox.isSelected();
+
+						// Catch a map that is already on the server before any of the file is sent, rather than after.
+						if (!overwrite && getServerCatalog().contains(mp)) {
+							if (confirmationAlert("Map Exists", mp.toString() + " is already on the server.", "Press OK to overwrite it, or Cancel to keep the map that is there.") != ButtonType.OK) {
+								message.setText("Didn't send " + mp.toString() + ", which is already on the server.");
+								return;
+							}
+
+							overwrite = true;
+						}
 
 						message.setText("Sending map to server: " + mp.toString());
-						sendMessageToServer(afm);
-						message.setText("Waiting for server response...");
+						sendFileToServer(selectedFile, mp, overwrite);
 					} else // Delete map option unselected && selectedFile == null.
 						errorAlert("Unselected ASCII", "You must select an ASCII file.", "Please select an ASCII file to upload, and try again.");
 			} catch (Exception e) {
@@ -141,6 +152,54 @@ public class UploadAsciiScreenController extends AbstractNetworkedScreenControll
 		});
 	}
 
+	/**
+	 * Helper that uploads a file in its own thread, since the upload blocks until the server has the whole file. The server's answer comes back to this screen, whichever screen is current by then.
+	 * 
+	 * @param file
+	 *           The ASCII file.
+	 * @param mp
+	 *           The properties of the map that the file is for.
+	 * @param overwrite
+	 *           true if an existing map should be overwritten; false otherwise.
+	 */
+	private void sendFileToServer(File file, MapProperties mp, boolean overwrite) {
+		Thread thread = new Thread(() -> {
+			try {
+				CompletableFuture<Object> answer = uploadFileToServer(file, mp, overwrite);
+				Platform.runLater(() -> {
+					message.setText("Waiting for server response...");
+				});
+
+				answer.whenComplete((response, e) -> Platform.runLater(() -> {
+					if (e != null) {
+						message.setText("The upload of " + mp.toString() + " failed.");
+						errorAlert("Upload Failed", "The server didn't answer the upload of " + mp.toString() + ".", e.getMessage());
+					} else if (response instanceof JobMessage)
+						message.setText("Queued " + mp.toString() + " as job " + ((JobMessage) response).getJobId() + ".");
+					else if (response instanceof StringMessage) {
+						StringMessage sm = (StringMessage) response;
+						if (sm.getMessageType() == StringMessage.Type.INFORMATION_MESSAGE) {
+							// The server already held the map's content, so nothing was sent.
+							message.setText(sm.getMsgHeader());
+							informationAlert("Nothing to Upload", sm.getMsgHeader(), sm.getMsgContent());
+						} else {
+							message.setText("The server didn't queue " + mp.toString() + ".");
+							errorAlert("Server Error", sm.getMsgHeader(), sm.getMsgContent());
+						}
+					}
+				}));
+			} catch (Exception e) {
+				Platform.runLater(() -> {
+					message.setText("The upload of " + mp.toString() + " failed.");
+					errorAlert("Upload Failed", "The map couldn't be sent to the server. Sending it again will pick up where it left off.", e.getMessage());
+				});
+			}
+		});
+
+		thread.setDaemon(true); // In case it gets stuck and the user terminates the application.
+		thread.start();
+	}
+
 	/**
 	 * Helper method to flip visibility of selectFilesBtn, overwriteCheckBox, and selectedFilesTextArea.
 	 * 
@@ -19,25 +19,34 @@
 package uploadAscii;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import framework.AbstractNetworkedScreenController;
 import framework.IMessageReceivable;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextArea;
 import javafx.scene.text.Text;
 import javafx.stage.FileChooser.ExtensionFilter;
-import networking.AsciiFileMessage;
+import networking.JobMessage;
+import networking.MapCatalog;
 import networking.StringMessage;
-import utils.MapCompoundType;
+import utils.JobStatus;
 import utils.MapProperties;
-import utils.MapRegionType;
 
 public class UploadMultipleAsciiScreenController extends AbstractNetworkedScreenController implements IMessageReceivable {
+
+	private static final int MAX_UPLOADS_IN_FLIGHT = 3; // Enough to keep the connection busy while the server commits a map, without one map's chunks starving the rest.
+	private static final int MAX_LISTED_MAPS = 20; // The most existing maps to name when asking whether to overwrite them.
+
 	@FXML
 	private TextArea messageTextArea;
 	@FXML
@@ -52,8 +61,8 @@ public class UploadMultipleAsciiScreenController extends AbstractNetworkedScreen
 	private Button sendToServerBtn;
 
 	private List<File> selectedFiles;
-	private int numMapsProcessed = 0; // We assume the server only sends one message per map.
-	private final Semaphore readyForMap = new Semaphore(1);
+	private int numMapsProcessed = 0; // Each map finishes with either a failed upload, a StringMessage (rejected upload), or a finished job update.
+	private final Set<Long> finishedJobs = new HashSet<Long>();
 
 	/**
 	 * Initializes the controller class. Automatically called after the FXML file has been loaded.
@@ -78,9 +87,28 @@ public class UploadMultipleAsciiScreenController extends AbstractNetworkedScreen
 
 		sendToServerBtn.setOnAction(event -> {
 
-			if (selectedFiles != null)
-				sendToServer();
-			else
+			if (selectedFiles != null) {
+				Set<MapProperties> existing = findExistingMaps(selectedFiles);
+				if (existing.isEmpty()) {
+					sendToServer(existing, false);
+					return;
+				}
+
+				StringBuilder listed = new StringBuilder();
+				int count = 0;
+				for (MapProperties mp : existing)
+					if (count++ < MAX_LISTED_MAPS)
+						listed.append(mp.toString()).append("\n");
+				if (count > MAX_LISTED_MAPS)
+					listed.append("...and ").append(count - MAX_LISTED_MAPS).append(" more.\n");
+
+				ButtonType overwrite = new ButtonType("Overwrite");
+				ButtonType skip = new ButtonType("Skip");
+				ButtonType choice = confirmationAlert("Maps Exist", existing.size() + " of the selected maps are already on the server.", listed + "\nOverwrite them, skip them, or cancel the upload?", overwrite, skip, ButtonType.CANCEL);
+
+				if (choice == overwrite || choice == skip)
+					sendToServer(existing, choice == overwrite);
+			} else
 				errorAlert("Unselected ASCII Files", "You must select at least one ASCII file", "Please select the ASCII file(s), and try again.");
 
 		});
@@ -91,65 +119,145 @@ public class UploadMultipleAsciiScreenController extends AbstractNetworkedScreen
 	}
 
 	/**
-	 * Designed to output descriptive messages from the server to the user via a text area.
+	 * Designed to output descriptive messages from the server to the user via a text area. The answers to the uploads themselves come back to uploadAnswered() instead, so only job updates and messages that the server sends on its own arrive here.
 	 * 
 	 * @param msg
-	 *           A StringMessage containing the message you wish to output.
+	 *           A StringMessage or JobMessage containing the message you wish to output.
 	 */
 	@Override
 	public void outputMessage(Object msg) {
 
 		if (msg instanceof StringMessage) {
-			readyForMap.release(); // mutex release.
-
 			StringMessage sm = (StringMessage) msg;
 
 			messageTextArea.appendText("\n" + sm.getMessageType().name() + ": " + sm.getMsgHeader() + "\n");
 			messageTextArea.appendText("\tDetailed information: " + sm.getMsgContent() + "\n");
+		} else if (msg instanceof JobMessage) {
+			JobMessage jm = (JobMessage) msg;
+			JobStatus js = jm.getStatus();
+			if (js == null)
+				return;
 
-			numMapsProcessed++;
-			double progress = numMapsProcessed / (double) selectedFiles.size();
-			progressBar.setProgress(progress);
+			if (js.getState().isFinished() && finishedJobs.add(js.getJobId())) {
+				messageTextArea.appendText("\n" + js.getState().name() + ": " + js.getMapProperties().toString() + " (job " + js.getJobId() + ")\n");
+				messageTextArea.appendText("\tDetailed information: " + js.getMessage() + "\n");
 
-			if (progress >= 1) {
-				selectFilesBtn.setVisible(true);
-				sendToServerBtn.setVisible(true);
-				backBtn.setVisible(true);
-				selectedFiles = null;
+				mapProcessed();
 			}
 		} else
 			errorAlert("Communication Error", "Server is sending a message of an unexpected type.", "Check the server logs for additional information.");
 	}
 
 	/**
-	 * Helper that sends all the selected files to the server. Intended to be run in its own thread.
+	 * Helper to output the server's answer to an upload: either the job that the map was queued as, or why it wasn't.
+	 * 
+	 * @param f
+	 *           The file that was uploaded.
+	 * @param response
+	 *           The answer; null if the upload failed.
+	 * @param error
+	 *           Why the upload failed; null if it didn't.
+	 */
+	private void uploadAnswered(File f, Object response, Throwable error) {
+		if (error != null) {
+			messageTextArea.appendText("---ERROR: Cannot Upload " + f.getName() + ": " + error.getMessage() + " Sending it again will pick up where it left off.-----\n");
+			mapProcessed();
+		} else if (response instanceof JobMessage && ((JobMessage) response).getStatus() != null) {
+			JobStatus js = ((JobMessage) response).getStatus();
+			messageTextArea.appendText("\nQUEUED: " + js.getMapProperties().toString() + " as job " + js.getJobId() + "\n");
+		} else if (response instanceof StringMessage) {
+			StringMessage sm = (StringMessage) response;
+
+			messageTextArea.appendText("\n" + sm.getMessageType().name() + ": " + f.getName() + ": " + sm.getMsgHeader() + "\n");
+			messageTextArea.appendText("\tDetailed information: " + sm.getMsgContent() + "\n");
+			mapProcessed();
+		}
+	}
+
+	/**
+	 * Helper to advance the progress bar once a map has finished, and to reset the screen once every map has.
+	 */
+	private void mapProcessed() {
+		numMapsProcessed++;
+		double progress = numMapsProcessed / (double) selectedFiles.size();
+		progressBar.setProgress(progress);
+
+		if (progress >= 1) {
+			selectFilesBtn.setVisible(true);
+			sendToServerBtn.setVisible(true);
+			backBtn.setVisible(true);
+			selectedFiles = null;
+		}
+	}
+
+	/**
+	 * Helper to find which of the selected files are for maps that the server's catalog already holds, so the user can decide what to do with them before any bytes are sent.
+	 * 
+	 * @param files
+	 *           The selected files.
+	 * @return The properties of the maps that already exist, in the order they were selected; empty if there are none, or if the server doesn't send its catalog.
 	 */
-	private void sendToServer() {
+	private Set<MapProperties> findExistingMaps(List<File> files) {
+		Set<MapProperties> existing = new LinkedHashSet<MapProperties>();
+		MapCatalog catalog = getServerCatalog();
+
+		for (File f : files) {
+			MapProperties mp = parseMapProperties(f);
+			if (mp != null && catalog.contains(mp))
+				existing.add(mp);
+		}
+
+		return existing;
+	}
+
+	/**
+	 * Helper that sends all the selected files to the server, up to MAX_UPLOADS_IN_FLIGHT at a time. Intended to be run in its own thread.
+	 * 
+	 * @param existing
+	 *           The maps that are already on the server (see findExistingMaps()).
+	 * @param overwriteExisting
+	 *           true to overwrite the existing maps; false to skip them.
+	 */
+	private void sendToServer(Set<MapProperties> existing, boolean overwriteExisting) {
 		Thread thread = new Thread(() -> {
 			selectFilesBtn.setVisible(false);
 			sendToServerBtn.setVisible(false);
 			backBtn.setVisible(false);
 
 			numMapsProcessed = 0;
+			finishedJobs.clear();
 			progressText.setVisible(true);
 			progressBar.setVisible(true);
 			progressBar.setProgress(0.0);
 
+			ExecutorService uploads = Executors.newFixedThreadPool(MAX_UPLOADS_IN_FLIGHT, r -> {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			});
+
 			for (File f : selectedFiles) {
 				MapProperties mp = parseMapProperties(f);
-				if (mp != null)
-					try {
-						readyForMap.acquire(); // mutex lock.
-
-						byte[] fileAsBytes = Files.readAllBytes(f.toPath());
-						AsciiFileMessage afm = new AsciiFileMessage(mp, fileAsBytes, false);
-						sendMessageToServer(afm);
-					} catch (Exception e) {
-						messageTextArea.appendText("---ERROR: Cannot Construct Server Message. Something is wrong with file: " + f.getName() + ". Please verify that the file and its contents are valid and try again.-----\n");
-					}
+				boolean exists = mp != null && existing.contains(mp);
+
+				if (exists && !overwriteExisting)
+					Platform.runLater(() -> {
+						messageTextArea.appendText("\nSKIPPED: " + mp.toString() + " is already on the server.\n");
+						mapProcessed();
+					});
+				else if (mp != null)
+					uploads.execute(() -> {
+						try {
+							uploadFileToServer(f, mp, exists).whenComplete((response, e) -> Platform.runLater(() -> uploadAnswered(f, response, e)));
+						} catch (Exception e) {
+							Platform.runLater(() -> uploadAnswered(f, null, e));
+						}
+					});
 				else
 					messageTextArea.appendText("----ERROR PROCESSING MAP PROPERTIES for: " + f.getName() + " -----\n");
 			}
+
+			uploads.shutdown(); // The uploads already handed to it still run.
 		});
 
 		thread.setDaemon(true); // In case it gets stuck and the user terminates the application.
@@ -169,39 +277,6 @@ public class UploadMultipleAsciiScreenController extends AbstractNetworkedScreen
 		 * be formatted: GLOBALN2Oy1980m-1.txt
 		 */
 
-		String filename = f.getName().replace(".txt", "");
-
-		int indexOfM = filename.lastIndexOf('m');
-		int indexOfY = filename.lastIndexOf('y');
-		if (indexOfM == -1 || indexOfY == -1)
-			return null;
-
-		int month = Integer.parseInt(filename.substring(indexOfM + 1, filename.length()));
-		int year = Integer.parseInt(filename.substring(indexOfY + 1, indexOfM));
-
-		MapCompoundType mc = null;
-		MapRegionType mr = null;
-		String compound = "";
-		for (int i = indexOfY - 1; i > 0; i--) {
-			compound = filename.charAt(i) + compound;
-
-			for (MapCompoundType c : MapCompoundType.values())
-				if (c.name().equals(compound)) {
-					mc = c;
-
-					String region = filename.substring(0, i);
-					for (MapRegionType r : MapRegionType.values())
-						if (r.name().equals(region))
-							mr = r;
-
-					break;
-				}
-		}
-
-		try {
-			return month != -1 ? new MapProperties(mr, mc, year, month) : new MapProperties(mr, mc, year);
-		} catch (IllegalAccessException e) {
-			return null;
-		}
+		return MapProperties.fromString(f.getName().replace(".txt", ""));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+# Copyright (C) 2017 Anish Kunduru
+# This file is part the Visual Earth Modeling System (VEMS).
+# VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+# VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+# You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+#
+# author Anish Kunduru
+#
+# A long-lived worker that runs the VEMS publishing scripts for the daemon's PythonWorkerPool. arcpy is imported once when
+# the worker starts, instead of once per script, which saves several seconds per map.
+#
+# The protocol is one JSON object per line. The worker writes {"ready": true} once it has started, then reads requests
+# from stdin and writes exactly one response line to stdout for each request:
+#
+#   {"id": 1, "op": "ping"}                                      -> {"id": 1, "ok": true, "output": []}
+#   {"id": 2, "op": "run", "script": "C:\\...\\x.py", "args": []} -> {"id": 2, "ok": true, "output": ["line", ...]}
+#   {"id": 3, "op": "exit"}                                      -> {"id": 3, "ok": true, "output": []}, then the worker exits.
+#
+# A script that raises has "ok": false and the traceback in "error". Anything a script (or arcpy's native code) prints
+# goes to the response's output, or to stderr, never to the protocol stream.
+#
+# Usage: python arcpy_worker.py [--stub] [--stub-delay SECONDS]
+#
+# --stub doesn't import arcpy or run the scripts; it answers every "run" with a canned success (or a failure, if one of
+# the arguments is "stub-fail"), so the Java side can be tested on a machine without ArcGIS.
+
+from __future__ import print_function
+
+import json
+import os
+import runpy
+import sys
+import time
+import traceback
+
+try:
+    from StringIO import StringIO  # Python 2 (ArcGIS): accepts both str and unicode.
+except ImportError:
+    from io import StringIO
+
+
+def open_protocol_stream():
+    # Keep a private copy of the real stdout for responses, and point file descriptor 1 at stderr so that output from
+    # native code (which bypasses sys.stdout) can't corrupt the protocol.
+    protocol = os.fdopen(os.dup(sys.stdout.fileno()), "w")
+    sys.stdout.flush()
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+    return protocol
+
+
+def respond(protocol, response):
+    protocol.write(json.dumps(response) + "\n")
+    protocol.flush()
+
+
+def run_script(script, args):
+    # Returns the lines the script printed, and the traceback if it failed (None if it didn't).
+    saved_argv = sys.argv
+    saved_stdout = sys.stdout
+    saved_path = list(sys.path)
+    captured = StringIO()
+    sys.argv = [script] + list(args)
+    # Like "python script.py", let the script import the modules next to it.
+    sys.path.insert(0, os.path.dirname(os.path.abspath(script)))
+    sys.stdout = captured
+    error = None
+    try:
+        runpy.run_path(script, run_name="__main__")
+    except SystemExit as e:
+        if e.code not in (None, 0):
+            error = "Script exited with status " + str(e.code)
+    except Exception:
+        error = traceback.format_exc()
+    finally:
+        sys.stdout = saved_stdout
+        sys.argv = saved_argv
+        sys.path[:] = saved_path
+
+    return captured.getvalue().splitlines(), error
+
+
+def run_stub(script, args, delay):
+    if delay > 0:
+        time.sleep(delay)
+    output = ["VEMS SUCCESS: stub ran " + os.path.basename(script) + " with " + str(len(args)) + " arguments"]
+    if "stub-fail" in args:
+        return output, "Stub failure requested for " + os.path.basename(script)
+    return output, None
+
+
+def main(argv):
+    stub = "--stub" in argv
+    delay = 0.0
+    if "--stub-delay" in argv:
+        delay = float(argv[argv.index("--stub-delay") + 1])
+
+    protocol = open_protocol_stream()
+    # Lets scripts keep what they can reuse for later requests, like publish_map.py's connection file.
+    os.environ["VEMS_ARCPY_WORKER"] = "1"
+
+    if not stub:
+        # The expensive part. Scripts run later find arcpy already in sys.modules.
+        import arcpy  # noqa: F401
+
+    respond(protocol, {"ready": True, "pid": os.getpid()})
+
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            return 0
+        line = line.strip()
+        if not line:
+            continue
+
+        request_id = None
+        try:
+            request = json.loads(line)
+            request_id = request.get("id")
+            op = request.get("op")
+
+            if op == "ping":
+                respond(protocol, {"id": request_id, "ok": True, "output": []})
+            elif op == "exit":
+                respond(protocol, {"id": request_id, "ok": True, "output": []})
+                return 0
+            elif op == "run":
+                script = request["script"]
+                args = request.get("args", [])
+                if stub:
+                    output, error = run_stub(script, args, delay)
+                else:
+                    output, error = run_script(script, args)
+                if error is None:
+                    respond(protocol, {"id": request_id, "ok": True, "output": output})
+                else:
+                    respond(protocol, {"id": request_id, "ok": False, "output": output, "error": error})
+            else:
+                respond(protocol, {"id": request_id, "ok": False, "output": [], "error": "Unknown op: " + str(op)})
+        except Exception:
+            respond(protocol, {"id": request_id, "ok": False, "output": [], "error": traceback.format_exc()})
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))
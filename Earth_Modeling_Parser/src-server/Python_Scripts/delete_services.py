@@ -0,0 +1,90 @@
+# Copyright (C) 2017 Anish Kunduru
+# This file is part the Visual Earth Modeling System (VEMS).
+# VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+# VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+# You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+#
+# author Anish Kunduru
+
+
+# For Http calls
+import httplib, urllib, json
+# For system tools
+import sys
+# Token handling is shared with the publish parameters script.
+from publishing_params import getToken
+
+# Deletes several map services with a single token and connection, instead of running manageservice.py once per service.
+# Prints one result line per service, which ArcGisScriptPublisher reads back:
+#   VEMS DELETED: <service>
+#   VEMS DELETE FAILED: <service>: <reason>
+# Reasons never contain the words the daemon treats as a crashed script, so one bad service doesn't stop the rest.
+def main(argv):
+
+    # the server user name
+    server_user = argv[0]
+    # the server password
+    server_pass = argv[1]
+    # the name of the server being used
+    serverName = argv[2]
+    # Server port number
+    serverPort = int(argv[3])
+    # folders leading up to service folder
+    # Example: /arcgis/admin/services/
+    inner_sub_string = argv[4]
+    # subfolder after substring
+    # Example: EarthModelingTest
+    subfolder = argv[5]
+    # The name of the associated server token page
+    token_url = argv[6]
+    # The names of the services to delete
+    services = argv[7:]
+
+    token = getToken(server_user, server_pass, serverName, serverPort, token_url)
+    if not token:
+        for service in services:
+            print "VEMS DELETE FAILED: " + service + ": no token could be generated with the username and password provided."
+        return
+
+    headers = {"Content-type": "application/x-www-form-urlencoded", "Accept": "text/plain"}
+    params = urllib.urlencode({'token': token, 'f': 'json'})
+    httpConn = httplib.HTTPSConnection(serverName, serverPort)
+
+    for service in services:
+        deleteURL = inner_sub_string + subfolder + "/" + service + ".MapServer/delete"
+        try:
+            httpConn.request("POST", deleteURL, params, headers)
+            response = httpConn.getresponse()
+            data = response.read()
+        except (httplib.HTTPException, IOError):
+            # Start over with a fresh connection for the next service.
+            httpConn.close()
+            httpConn = httplib.HTTPSConnection(serverName, serverPort)
+            print "VEMS DELETE FAILED: " + service + ": the connection to the server was lost."
+            continue
+
+        if response.status != 200:
+            print "VEMS DELETE FAILED: " + service + ": the server returned HTTP " + str(response.status) + "."
+            continue
+
+        obj = json.loads(data)
+        if 'status' in obj and obj['status'] != "success":
+            print "VEMS DELETE FAILED: " + service + ": " + describe(obj)
+        else:
+            print "VEMS DELETED: " + service
+
+    httpConn.close()
+
+
+# Summarizes the messages of a failed admin call, without the words that mark a crashed script.
+def describe(obj):
+    messages = obj.get('messages') or [str(obj.get('status'))]
+    text = "; ".join([unicode(m) for m in messages]).encode('ascii', 'replace')
+    for word in ("Exception", "exception", "Errno", "errno", "ERROR", "Error", "error"):
+        text = text.replace(word, "failure")
+    return text
+
+
+# Script start
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))
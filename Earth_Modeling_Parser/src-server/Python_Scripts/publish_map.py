@@ -12,6 +12,8 @@
 
 
 import arcpy
+import os
+import sys
 
 
 
@@ -71,6 +73,9 @@ def main(argv):
   con = argv[14]
   sub_folder = argv[15]
 
+  # Optional: publish the MXD saved by an earlier run that failed while publishing, instead of building it again.
+  use_saved_mxd = len(argv) > 16 and argv[16] == "use_saved_mxd"
+
   successful = "VEMS SUCCESS: "
 
   flag = 0
@@ -86,61 +91,64 @@ def main(argv):
   spref = "Coordinate Systems\Geographic Coordinate Systems\World\WGS 1984.prj"
   
 
-  # Get the Map File to Use as a Template
-  template_mxd = arcpy.mapping.MapDocument(map_templates_dir + template_map_name + ".mxd")
-  # Also access the layer to be used as a template
-  template_lyr = arcpy.mapping.ListLayers(template_mxd)[0]
-  # Access the data frame of the template layer (for reference scale)
-  template_df = arcpy.mapping.ListDataFrames(template_mxd)[0]
-  print successful + "Accessed Template Map for Reference: " + template_map_name
-
-  # Open an instance of a blank Map
-  mxd_new = arcpy.mapping.MapDocument(blank_map)
-  # Access the empty data frame inside of the map
-  df_new = arcpy.mapping.ListDataFrames(mxd_new)[0]
-  print successful + "Accessed Blank Map for Creating new Map"
-
-  # Create Table from Input file for creating Feature Layer
-  arcpy.TableToTable_conversion(parsed_csv_dir + input_csv_file + ".csv", tables_dir, input_csv_file + ".gdb")
-  print successful + "CSV to table completed. Table created is   " + input_csv_file + ".dbf"
-
-  # Create the name of the Feature Layer to be created
-  outLayer = input_csv_file + ".lyr"
-  # Create an XY Event Layer using the created table and the constant spatial reference
-  arcpy.MakeXYEventLayer_management(tables_dir + input_csv_file + ".dbf", x, y, outLayer, spref, None)
-  print successful + "Created XY Event Layer to be placed into gdb: " + outLayer
-
-  # Create empty GDB to house Feature Layer Data
-  arcpy.CreateFileGDB_management(auto_gdb_dir, input_csv_file + ".gdb", "10.0")
-  print successful + "Created empty GDB for XY Layer: " + input_csv_file + ".gdb"
-
-  # Create Feature Layer Data Source using XY Event Layer data and placing into gdb
-  arcpy.FeatureClassToFeatureClass_conversion(outLayer, auto_gdb_dir + input_csv_file + ".gdb", input_csv_file)
-  print successful + "Created Feature Class"
-  # Replace Data Source of the template layer
-  template_lyr.replaceDataSource(auto_gdb_dir + input_csv_file + ".gdb", "FILEGDB_WORKSPACE", input_csv_file, False)
-  print successful + "Data Source Successfully Replaced"
-  # Save a COPY of the template layer to be imported into the empty data frame of the blank map
-  template_lyr.saveACopy(created_layers_dir + input_csv_file + ".lyr")
-  print successful + "Creeated a copy of Layer"
-  # Acsses the Copied Layer
-  addLayer = arcpy.mapping.Layer(created_layers_dir + input_csv_file + ".lyr")
-  # Change the actual name of the inner layer (can be funky Unicode if you'd like)
-  addLayer.name = template_lyr.name
-  print successful + "Referenced Layer to be added"
-  # Apply symbology from Reference Layer to the Layer to be added
-  arcpy.ApplySymbologyFromLayer_management(addLayer, template_lyr)
-  print successful + "Applied Symbology"
-  # Add the copied layer to the empty map document into the empty Data frame
-  arcpy.mapping.AddLayer(df_new, addLayer, "BOTTOM")
-  print successful + "Successfully Added Layer"
-  # Set the reference scale of the data frame (won't pixelate on zoom-in at this level)
-  #df_new.referenceScale = template_df.referenceScale
-  df_new.referenceScale = scale
-  print successful + "Reference Scale of Data Frame Set"
-  # Save a COPY of the map (the map to now be published)
-  mxd_new.saveACopy(map_publishing_dir + input_csv_file + ".mxd")
-  print successful + "Copy of Map Service Saved"
+  if use_saved_mxd:
+      print successful + "Using the MXD saved by an earlier run: " + input_csv_file + ".mxd"
+  else:
+      # Get the Map File to Use as a Template
+      template_mxd = arcpy.mapping.MapDocument(map_templates_dir + template_map_name + ".mxd")
+      # Also access the layer to be used as a template
+      template_lyr = arcpy.mapping.ListLayers(template_mxd)[0]
+      # Access the data frame of the template layer (for reference scale)
+      template_df = arcpy.mapping.ListDataFrames(template_mxd)[0]
+      print successful + "Accessed Template Map for Reference: " + template_map_name
+
+      # Open an instance of a blank Map
+      mxd_new = arcpy.mapping.MapDocument(blank_map)
+      # Access the empty data frame inside of the map
+      df_new = arcpy.mapping.ListDataFrames(mxd_new)[0]
+      print successful + "Accessed Blank Map for Creating new Map"
+
+      # Create Table from Input file for creating Feature Layer
+      arcpy.TableToTable_conversion(parsed_csv_dir + input_csv_file + ".csv", tables_dir, input_csv_file + ".gdb")
+      print successful + "CSV to table completed. Table created is   " + input_csv_file + ".dbf"
+
+      # Create the name of the Feature Layer to be created
+      outLayer = input_csv_file + ".lyr"
+      # Create an XY Event Layer using the created table and the constant spatial reference
+      arcpy.MakeXYEventLayer_management(tables_dir + input_csv_file + ".dbf", x, y, outLayer, spref, None)
+      print successful + "Created XY Event Layer to be placed into gdb: " + outLayer
+
+      # Create empty GDB to house Feature Layer Data
+      arcpy.CreateFileGDB_management(auto_gdb_dir, input_csv_file + ".gdb", "10.0")
+      print successful + "Created empty GDB for XY Layer: " + input_csv_file + ".gdb"
+
+      # Create Feature Layer Data Source using XY Event Layer data and placing into gdb
+      arcpy.FeatureClassToFeatureClass_conversion(outLayer, auto_gdb_dir + input_csv_file + ".gdb", input_csv_file)
+      print successful + "Created Feature Class"
+      # Replace Data Source of the template layer
+      template_lyr.replaceDataSource(auto_gdb_dir + input_csv_file + ".gdb", "FILEGDB_WORKSPACE", input_csv_file, False)
+      print successful + "Data Source Successfully Replaced"
+      # Save a COPY of the template layer to be imported into the empty data frame of the blank map
+      template_lyr.saveACopy(created_layers_dir + input_csv_file + ".lyr")
+      print successful + "Creeated a copy of Layer"
+      # Acsses the Copied Layer
+      addLayer = arcpy.mapping.Layer(created_layers_dir + input_csv_file + ".lyr")
+      # Change the actual name of the inner layer (can be funky Unicode if you'd like)
+      addLayer.name = template_lyr.name
+      print successful + "Referenced Layer to be added"
+      # Apply symbology from Reference Layer to the Layer to be added
+      arcpy.ApplySymbologyFromLayer_management(addLayer, template_lyr)
+      print successful + "Applied Symbology"
+      # Add the copied layer to the empty map document into the empty Data frame
+      arcpy.mapping.AddLayer(df_new, addLayer, "BOTTOM")
+      print successful + "Successfully Added Layer"
+      # Set the reference scale of the data frame (won't pixelate on zoom-in at this level)
+      #df_new.referenceScale = template_df.referenceScale
+      df_new.referenceScale = scale
+      print successful + "Reference Scale of Data Frame Set"
+      # Save a COPY of the map (the map to now be published)
+      mxd_new.saveACopy(map_publishing_dir + input_csv_file + ".mxd")
+      print successful + "Copy of Map Service Saved"
 
   # Code attributions from:
   # https://server.arcgis.com/en/server/10.4/administer/windows/example-publish-a-map-service-from-a-map-document-mxd-.htm
@@ -170,11 +178,17 @@ def main(argv):
   # Tags, not Needed
   tags = 'Test'
 
-  # Create connection file for Publishing
-  arcpy.mapping.CreateGISServerConnectionFile ('PUBLISH_GIS_SERVICES', wrkspc, 'CONNECTION.ags', con, 'ARCGIS_SERVER', {True}, {None}, server_user, server_pass, {True})
+  # Create connection file for Publishing. Each process has its own, since maps are published two at a time and one could
+  # read the file while the other is still writing it. A worker reuses it for later maps; the daemon deletes them all on
+  # startup in case the credentials changed.
+  connection_name = 'CONNECTION_' + str(os.getpid()) + '.ags'
+  connection_file = wrkspc + connection_name
+  if not os.path.exists(connection_file):
+      arcpy.mapping.CreateGISServerConnectionFile ('PUBLISH_GIS_SERVICES', wrkspc, connection_name, con, 'ARCGIS_SERVER', {True}, {None}, server_user, server_pass, {True})
+      print successful + "Created connection file for publishing"
 
   # Create service definition draft (sddraft)
-  arcpy.mapping.CreateMapSDDraft(mapDoc, sddraft, service, 'FROM_CONNECTION_FILE', wrkspc + '\CONNECTION.ags', True, sub_folder, None, None)
+  arcpy.mapping.CreateMapSDDraft(mapDoc, sddraft, service, 'FROM_CONNECTION_FILE', connection_file, True, sub_folder, None, None)
 
   # Analyze the service definition draft (required for publication services)
   analysis = arcpy.mapping.AnalyzeForSD(sddraft)
@@ -194,12 +208,16 @@ def main(argv):
       arcpy.StageService_server(sddraft, sd)
 
       # Execute UploadServiceDefinition. This uploads the service definition and publishes the service.
-      arcpy.UploadServiceDefinition_server(sd, wrkspc + '\CONNECTION.ags')
+      arcpy.UploadServiceDefinition_server(sd, connection_file)
       print successful + "Service successfully published"
   else: 
       print "Service could not be published because errors were found during analysis."
 
   print successful + arcpy.GetMessages()
 
+  # A script run in its own python.exe (when the workers aren't available) won't be back for its connection file.
+  if os.environ.get('VEMS_ARCPY_WORKER') != '1':
+      os.remove(connection_file)
+
 if __name__ == "__main__":
    main(sys.argv[1:])
@@ -0,0 +1,188 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru and Kellen Johnson
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Publishes maps to the ArcGIS server by running the VEMS Python scripts (and ArcGIS's manageservice.py) on a PythonWorkerPool. If the workers can't be started, each script is run in a new python.exe instead.
+ */
+
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.pmw.tinylog.Logger;
+
+import networking.ServerInformation;
+import utils.FileLocations;
+import utils.MapProperties;
+
+public class ArcGisScriptPublisher implements MapPublisher {
+
+	public static final int MAX_JOBS_PER_PYTHON_WORKER = 25; // Python workers are replaced after this many scripts, in case arcpy leaks.
+	private static final String DELETED_PREFIX = "VEMS DELETED: ";
+	private static final String DELETE_FAILED_PREFIX = "VEMS DELETE FAILED: ";
+
+	private final String arcgisServerUsername;
+	private final String arcgisServerPassword;
+	private final String[] workerArguments;
+	private volatile PythonWorkerPool pythonWorkers;
+
+	/**
+	 * @param arcgisServerUsername
+	 *           The username to publish to the ArcGIS server with.
+	 * @param arcgisServerPassword
+	 *           The password to publish to the ArcGIS server with.
+	 * @param workerArguments
+	 *           Extra arguments for arcpy_worker.py, such as --stub; may be null.
+	 */
+	public ArcGisScriptPublisher(String arcgisServerUsername, String arcgisServerPassword, String[] workerArguments) {
+		this.arcgisServerUsername = arcgisServerUsername;
+		this.arcgisServerPassword = arcgisServerPassword;
+		this.workerArguments = workerArguments;
+	}
+
+	/**
+	 * Starts the pool of Python workers that run the ArcGIS scripts.
+	 */
+	@Override
+	public void start() {
+		// Each Python process that publishes reuses its own server connection file; make fresh ones in case the credentials changed.
+		File[] connectionFiles = new File(FileLocations.TEMP_PUBLISHING_FILES_DIRECTORY_LOCATION).listFiles((dir, name) -> name.startsWith("CONNECTION") && name.endsWith(".ags"));
+		if (connectionFiles != null)
+			for (File f : connectionFiles)
+				if (!f.delete())
+					Logger.warn("Couldn't delete the old ArcGIS connection file {}.", f);
+
+		// Publishes and admin calls both run on the workers, so there's one for every thread that could need one.
+		PythonWorkerPool workers = new PythonWorkerPool(FileLocations.PYTHON_EXECUTABLE_BINARY_LOCATION, FileLocations.ARCPY_WORKER_PYTHON_SCRIPT_LOCATION, workerArguments, MapProcessingPipeline.MAX_CONCURRENT_PUBLISHES + MapProcessingPipeline.MAX_CONCURRENT_ADMIN_CALLS, MAX_JOBS_PER_PYTHON_WORKER);
+		try {
+			workers.start(MapProcessingPipeline.MAX_CONCURRENT_PUBLISHES);
+			pythonWorkers = workers;
+		} catch (IOException | InterruptedException | TimeoutException e) {
+			Logger.error("Couldn't start the Python workers; ArcGIS scripts will be run in a new process each time.", e);
+			workers.shutdown();
+		}
+	}
+
+	@Override
+	public String publish(MapProperties properties, int referenceScale, boolean useSavedMapDocument) throws IOException, InterruptedException, TimeoutException {
+		String template = properties.getMapRegion().toString() + properties.getMapCompoundType().toString();
+		String[] arguments = { FileLocations.ABS_CSV_OUTPUT_DIRECTORY_LOCATION, properties.toString(), FileLocations.CURRENT_WORKING_DIRECTORY_LOCATION, FileLocations.MAP_TEMPLATES_DIRECTORY_LOCATION, FileLocations.MAPS_PUBLISHING_DIRECTORY_LOCATION, FileLocations.TEMP_PUBLISHING_FILES_DIRECTORY_LOCATION, template, FileLocations.BLANK_MAP_FILE_LOCATION,
+				FileLocations.CSV_TABLES_OUTPUT_DIRECTORY_LOCATION, FileLocations.CREATED_GDBS_OUTPUT_DIRECTORY_LOCATION, FileLocations.CREATED_LAYERS_DIRECTORY_LOCATION, arcgisServerUsername, arcgisServerPassword, "" + referenceScale, ServerInformation.ARCGIS_PUBLISH_ADMIN_FOLDER, ServerInformation.ARCGIS_PUBLISHING_SERVICES_SUBFOLDER };
+		if (useSavedMapDocument) {
+			arguments = Arrays.copyOf(arguments, arguments.length + 1);
+			arguments[arguments.length - 1] = "use_saved_mxd";
+		}
+
+		if (EarthModellingDaemon.logExceptions(runScript(FileLocations.PUBLISH_MAP_PYTHON_SCRIPT_LOCATION, arguments)) != null)
+			return "Error running map generation script for " + properties.toString() + ".";
+
+		return null;
+	}
+
+	/**
+	 * publish_map.py saves the MXD to Maps_Publishing just before it starts publishing the service.
+	 */
+	@Override
+	public boolean hasSavedMapDocument(MapProperties properties) {
+		// For ESRI, since some of their functions don't accept negative values as file arguments.
+		return new File(FileLocations.ABS_MAPS_PUBLISHING_DIRECTORY_LOCATION + properties.toString().replace("-1", "_1") + ".mxd").isFile();
+	}
+
+	@Override
+	public String setParams(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+		String[] arguments = { properties.toString(), arcgisServerUsername, arcgisServerPassword, ServerInformation.ARCGIS_SERVER_NAME, "" + ServerInformation.ARCGIS_SERVER_PORT, ServerInformation.ARCGIS_INNER_SUBSTRING, ServerInformation.ARCGIS_PUBLISHING_SERVICES_SUBFOLDER, ServerInformation.ARCGIS_HTTPS_TOKEN_URL };
+
+		if (EarthModellingDaemon.logExceptions(runScript(FileLocations.PUBLISHING_PARAMS_PYTHON_SCRIPT_LOCATION, arguments)) != null)
+			return "Error running publish parameters script for " + properties.toString() + ".";
+
+		return null;
+	}
+
+	@Override
+	public String delete(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+		// required arguments for the delete from server command using executable python script
+		// python.exe "C:\Program Files\ArcGIS\Server\tools\admin\manageservice.py" -u username -p password -s https://proj-se491.iastate.edu:6443 -n EarthModelingTest/service_name -o delete
+		String arguments[] = { "-u", arcgisServerUsername, "-p", arcgisServerPassword, "-s", "https://clu-vems.eeob.iastate.edu:6443", "-n", "EarthModelingTest/" + properties.toString(), "-o", "delete" };
+
+		if (EarthModellingDaemon.logExceptions(runScript(FileLocations.ARCSERVER_MANAGE_SERVICE_FILE_LOCATION, arguments)) != null)
+			return "Error running the remove Python script for map: " + properties.toString();
+
+		return null;
+	}
+
+	/**
+	 * Deletes every service with one run of delete_services.py, which reuses a single admin token and connection rather than starting manageservice.py for each service.
+	 */
+	@Override
+	public Map<MapProperties, String> deleteAll(List<MapProperties> maps) throws IOException, InterruptedException, TimeoutException {
+		Map<String, MapProperties> byServiceName = new HashMap<String, MapProperties>();
+		List<String> arguments = new ArrayList<String>(Arrays.asList(arcgisServerUsername, arcgisServerPassword, ServerInformation.ARCGIS_SERVER_NAME, "" + ServerInformation.ARCGIS_SERVER_PORT, ServerInformation.ARCGIS_INNER_SUBSTRING, ServerInformation.ARCGIS_PUBLISHING_SERVICES_SUBFOLDER, ServerInformation.ARCGIS_HTTPS_TOKEN_URL));
+		for (MapProperties properties : maps) {
+			byServiceName.put(properties.toString(), properties);
+			arguments.add(properties.toString());
+		}
+
+		Map<MapProperties, String> results = new HashMap<MapProperties, String>();
+		ArrayList<String> otherOutput = new ArrayList<String>();
+		for (String line : runScript(FileLocations.DELETE_SERVICES_PYTHON_SCRIPT_LOCATION, arguments.toArray(new String[arguments.size()]))) {
+			if (line.startsWith(DELETED_PREFIX)) {
+				MapProperties properties = byServiceName.get(line.substring(DELETED_PREFIX.length()).trim());
+				if (properties != null)
+					results.put(properties, null);
+			} else if (line.startsWith(DELETE_FAILED_PREFIX)) {
+				String rest = line.substring(DELETE_FAILED_PREFIX.length());
+				int colon = rest.indexOf(": ");
+				MapProperties properties = byServiceName.get(colon == -1 ? rest.trim() : rest.substring(0, colon));
+				if (properties != null)
+					results.put(properties, "Error removing the service of " + properties.toString() + " from the server: " + (colon == -1 ? "unknown reason." : rest.substring(colon + 2)));
+			} else
+				otherOutput.add(line);
+		}
+
+		// A service the script never got to (because it crashed, say) wasn't deleted.
+		boolean crashed = EarthModellingDaemon.logExceptions(otherOutput) != null;
+		for (MapProperties properties : maps)
+			if (!results.containsKey(properties))
+				results.put(properties, "Error running the batch delete Python script for map: " + properties.toString() + (crashed ? " The script failed; see the server log." : ""));
+
+		return results;
+	}
+
+	@Override
+	public void shutdown() {
+		PythonWorkerPool workers = pythonWorkers;
+		if (workers != null)
+			workers.shutdown();
+	}
+
+	/**
+	 * Runs a script on a Python worker, or in a new python.exe if the workers aren't available.
+	 */
+	private ArrayList<String> runScript(String scriptLocation, String[] arguments) throws IOException, InterruptedException, TimeoutException {
+		PythonWorkerPool workers = pythonWorkers;
+		if (workers == null)
+			return EarthModellingDaemon.runPythonScript(scriptLocation, arguments);
+
+		return workers.runScript(scriptLocation, arguments, EarthModellingDaemon.MAX_EXECUTABLE_RUNTIME_IN_MINUTES, TimeUnit.MINUTES);
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Compares the ConvertedSet against the map files that publish_map.py leaves on the disk, and repairs or reports the differences. Meant to be run once at startup, before clients can connect, so that a map whose conversion finished right before a bad shutdown isn't converted a second time.
+ * 
+ *         Maps with a checkpoint in MapCheckpoints are in the middle of being created (their publish parameters may have failed, say), so they are left for a retry to finish rather than added to the set.
+ * 
+ *         A map counts as present on the disk when all of its artifacts exist: the MXD in Maps_Publishing, the table in CSV_Tables, the GDB in Auto_GDB, and the layer in Created_Layers. Each directory is listed on its own thread, and file names are parsed with MapProperties.fromString().
+ */
+
+package main;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.IntHashSet;
+import utils.MapProperties;
+
+public class CatalogReconciler {
+
+	public static final int MAX_LOGGED_MAPS_PER_ISSUE = 50; // So a badly damaged server doesn't flood the log.
+
+	/**
+	 * The files that a successful run of publish_map.py leaves behind for each map.
+	 */
+	public enum Artifact {
+		MXD(FileLocations.ABS_MAPS_PUBLISHING_DIRECTORY_LOCATION, ".mxd"), TABLE(FileLocations.ABS_CSV_TABLES_OUTPUT_DIRECTORY_LOCATION, ".dbf"), GDB(FileLocations.ABS_AUTO_GDBS_OUTPUT_DIRECTORY_LOCATION, ".gdb"), LAYER(FileLocations.ABS_CREATED_LAYERS_DIRECTORY_LOCATION, ".lyr");
+
+		private final String directory;
+		private final String extension;
+
+		private Artifact(String directory, String extension) {
+			this.directory = directory;
+			this.extension = extension;
+		}
+	}
+
+	private ConvertedSet convertedSet;
+	private MapCheckpoints checkpoints;
+
+	/**
+	 * Creates a reconciler for the given set.
+	 * 
+	 * @param convertedSet
+	 *           The ConvertedSet that should be compared against (and repaired from) the disk.
+	 * @param checkpoints
+	 *           The checkpoints of maps whose creation hasn't finished.
+	 */
+	public CatalogReconciler(ConvertedSet convertedSet, MapCheckpoints checkpoints) {
+		this.convertedSet = convertedSet;
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * Lists all artifact directories in parallel and compares them against the ConvertedSet. Maps with every artifact on the disk that are missing from the set are added back to it. Everything else is only reported in the log, as a map in the set may still be published on the ArcGIS server even if its local files are gone.
+	 * 
+	 * @return The number of maps that were added to the ConvertedSet.
+	 * @throws InterruptedException
+	 *            Interrupt was encountered before the directories could be listed.
+	 */
+	public int reconcile() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Artifact[] artifacts = Artifact.values();
+
+		ExecutorService pool = Executors.newFixedThreadPool(artifacts.length);
+		IntHashSet[] found = new IntHashSet[artifacts.length];
+		try {
+			List<Future<IntHashSet>> futures = new ArrayList<Future<IntHashSet>>();
+			for (Artifact a : artifacts)
+				futures.add(pool.submit(() -> listArtifacts(a)));
+
+			for (int i = 0; i < artifacts.length; i++)
+				try {
+					found[i] = futures.get(i).get();
+				} catch (Exception e) {
+					Logger.error("Couldn't list the {} directory; skipping reconciliation. {}", artifacts[i].name(), e);
+					return 0;
+				}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		IntHashSet onDisk = new IntHashSet();
+		for (IntHashSet s : found)
+			s.forEach(key -> onDisk.add(key));
+
+		ConvertedSet.Snapshot snapshot = convertedSet.snapshot();
+		List<MapProperties> recovered = new ArrayList<MapProperties>();
+		List<String> incomplete = new ArrayList<String>();
+		List<String> missing = new ArrayList<String>();
+		List<MapProperties> unfinished = new ArrayList<MapProperties>();
+
+		for (int key : onDisk.toSortedArray()) {
+			MapProperties properties = MapProperties.fromPackedKey(key);
+			String absent = absentArtifacts(key, artifacts, found);
+
+			if (checkpoints.contains(key) && !snapshot.contains(properties))
+				unfinished.add(properties);
+			else if (absent.isEmpty()) {
+				if (!snapshot.contains(properties))
+					recovered.add(properties);
+			} else
+				incomplete.add(properties.toString() + (snapshot.contains(properties) ? " (in the ConvertedSet)" : "") + " is missing: " + absent);
+		}
+
+		for (int key : snapshot.getPackedKeys())
+			if (!onDisk.contains(key))
+				missing.add(MapProperties.fromPackedKey(key).toString());
+
+		int added = convertedSet.addAll(recovered);
+
+		logIssue("Added to the ConvertedSet, as all of their files are on the disk", recovered);
+		logIssue("Have only some of their files on the disk (likely a failed conversion)", incomplete);
+		logIssue("Are in the ConvertedSet but have no files on the disk", missing);
+		logIssue("Have a checkpoint from an unfinished creation, and will be resumed if uploaded again", unfinished);
+		Logger.info("Reconciled the ConvertedSet against {} maps on the disk in {} ms: {} added, {} incomplete, {} without files, {} unfinished.", onDisk.size(), System.currentTimeMillis() - start, added, incomplete.size(), missing.size(), unfinished.size());
+
+		return added;
+	}
+
+	/**
+	 * Helper to list one artifact directory.
+	 * 
+	 * @param artifact
+	 *           The type of artifact to look for.
+	 * @return The packed keys of every map that has this artifact on the disk. An empty set is returned if the directory doesn't exist.
+	 * @throws IOException
+	 *            The directory couldn't be read.
+	 */
+	private static IntHashSet listArtifacts(Artifact artifact) throws IOException {
+		IntHashSet keys = new IntHashSet();
+		Path dir = Paths.get(artifact.directory);
+		if (!Files.isDirectory(dir))
+			return keys;
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + artifact.extension)) {
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				MapProperties properties = MapProperties.fromString(name.substring(0, name.length() - artifact.extension.length()));
+
+				if (properties != null)
+					keys.add(properties.toPackedKey());
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Helper to name the artifacts that a map is missing.
+	 * 
+	 * @param key
+	 *           The packed key of the map.
+	 * @param artifacts
+	 *           All artifact types.
+	 * @param found
+	 *           The keys found for each artifact type, in the same order as artifacts.
+	 * @return A comma separated list of the missing artifacts; an empty String if none are missing.
+	 */
+	private static String absentArtifacts(int key, Artifact[] artifacts, IntHashSet[] found) {
+		StringBuilder strBuff = new StringBuilder();
+		for (int i = 0; i < artifacts.length; i++)
+			if (!found[i].contains(key)) {
+				if (strBuff.length() > 0)
+					strBuff.append(", ");
+				strBuff.append(artifacts[i].name());
+			}
+
+		return strBuff.toString();
+	}
+
+	/**
+	 * Helper to log the maps affected by one type of difference, up to MAX_LOGGED_MAPS_PER_ISSUE.
+	 * 
+	 * @param issue
+	 *           A description of the difference.
+	 * @param maps
+	 *           The affected maps.
+	 */
+	private static void logIssue(String issue, List<?> maps) {
+		if (maps.isEmpty())
+			return;
+
+		Logger.warn("{} map(s): {}", maps.size(), issue);
+		for (int i = 0; i < maps.size() && i < MAX_LOGGED_MAPS_PER_ISSUE; i++)
+			Logger.warn("\t{}", maps.get(i));
+
+		if (maps.size() > MAX_LOGGED_MAPS_PER_ISSUE)
+			Logger.warn("\t...and {} more.", maps.size() - MAX_LOGGED_MAPS_PER_ISSUE);
+	}
+}
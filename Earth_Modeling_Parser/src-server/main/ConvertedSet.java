@@ -14,37 +14,51 @@
 /**
  * @author Anish Kunduru
  * 
- *         Keeps track of all the ASCII files that have been converted by the daemon. An object of this class is used in key daemon operations, so it is important to carefully consider implementation changes on this object. Making a change that requires an increase in the serialVersionUID nature of this object will cause inconsistencies and/or failures in
- *         server operations unless all previously stored values are converted to the new Serializable.
+ *         Keeps track of all the ASCII files that have been converted by the daemon. An object of this class is used in key daemon operations, so it is important to carefully consider implementation changes on this object. A change to the format of converted.ser will cause inconsistencies
+ *         and/or failures in server operations unless the files written before it are still read.
+ * 
+ *         Maps are held as packed keys (see MapProperties.toPackedKey()) and persisted as a flat list of ints. A converted.ser written as a serialized Set of MapProperties (the old format) is read once and rewritten in the packed format.
+ * 
+ *         This class is safe for concurrent use without locking. The set's contents live in an immutable Snapshot published through an AtomicReference: readers take a snapshot and query it, and writers copy the current snapshot, apply their change, and publish it with compareAndSet (retrying if another writer got there first).
+ * 
+ *         Listeners are told about every committed Change, on the thread that made it. Writers race to tell them, so listeners may hear about changes out of order; a listener that needs them in order should compare each Change's version with the last one it saw.
  */
 
 package main;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.pmw.tinylog.Logger;
 
 import utils.FileLocations;
+import utils.IntHashSet;
 import utils.MapCompoundType;
 import utils.MapProperties;
 import utils.MapRegionType;
 
-public class ConvertedSet implements Serializable {
+public class ConvertedSet {
 
-	private static final long serialVersionUID = 4L;
+	private static final int FILE_MAGIC = 0x56454D53; // "VEMS"
+	private static final int FILE_VERSION = 1;
+	private static final int JAVA_SERIALIZATION_MAGIC = 0xACED0005;
+	private static final int[] NONE = new int[0];
 
-	private Set<MapProperties> set;
+	private final AtomicReference<Snapshot> current;
+	private final Object fileLock = new Object();
+	private long persistedVersion;
+	private final CopyOnWriteArrayList<Consumer<Change>> listeners = new CopyOnWriteArrayList<Consumer<Change>>();
 
 	/**
 	 * Constructor for ConvertedSet creates a set by checking against the serialized object.
@@ -53,38 +67,152 @@ public class ConvertedSet implements Serializable {
 	 *            Can't add to the existing converted.ser file!
 	 */
 	public ConvertedSet() throws IOException {
-		set = new HashSet<MapProperties>();
+		current = new AtomicReference<Snapshot>(new Snapshot(new IntHashSet(), 0L));
 
 		addFromConverted();
 	}
 
 	/**
-	 * Scans the converted.ser file and sets it to the HashSet reference.
+	 * Scans the converted.ser file and adds its maps to the set. Old serialized sets are converted to the packed format.
 	 * 
 	 * @throws IOException
 	 *            Can't read from the existing converted.ser file!
 	 */
 	protected void addFromConverted() throws IOException {
-		try {
-			ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(FileLocations.CONVERTED_FILE_LOCATION)));
+		File convertedFile = new File(FileLocations.CONVERTED_FILE_LOCATION);
+		if (!convertedFile.exists() || convertedFile.length() == 0) {
+			Logger.warn("The converted set at: {} is missing or empty. Starting with an empty set.", FileLocations.CONVERTED_FILE_LOCATION);
+			return;
+		}
+
+		IntHashSet loaded = new IntHashSet();
+		int magic;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(convertedFile)))) {
+			magic = dis.readInt();
+			if (magic == FILE_MAGIC) {
+				int version = dis.readInt();
+				if (version != FILE_VERSION)
+					throw new IOException("The converted set at: " + FileLocations.CONVERTED_FILE_LOCATION + " has unknown version " + version + ".");
+
+				int count = dis.readInt();
+				loaded = new IntHashSet(count);
+				for (int i = 0; i < count; i++)
+					loaded.add(dis.readInt());
+			}
+		} catch (EOFException eofe) {
+			Logger.error("The converted set at: {} is truncated. Only {} maps could be read.", FileLocations.CONVERTED_FILE_LOCATION, loaded.size());
+			current.set(new Snapshot(loaded, 1L));
+			return;
+		}
 
+		if (magic == FILE_MAGIC)
+			current.set(new Snapshot(loaded, 1L));
+		else if (magic == JAVA_SERIALIZATION_MAGIC)
+			addFromSerializedSet(convertedFile);
+		else
+			Logger.error("The converted set at: " + FileLocations.CONVERTED_FILE_LOCATION + " does not appear to actually be a set.");
+	}
+
+	/**
+	 * Helper to read a converted.ser that was written as a serialized Set of MapProperties and rewrite it in the packed format.
+	 * 
+	 * @param convertedFile
+	 *           The converted.ser file.
+	 * @throws IOException
+	 *            Can't read from the existing converted.ser file!
+	 */
+	private void addFromSerializedSet(File convertedFile) throws IOException {
+		IntHashSet loaded = new IntHashSet();
+		try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(convertedFile)))) {
 			Object o = ois.readObject();
-			if (!(o instanceof Set))
+			if (!(o instanceof Set)) {
 				Logger.error("The converted set at: " + FileLocations.CONVERTED_FILE_LOCATION + " does not appear to actually be a set.");
+				return;
+			}
+
+			for (Object p : (Set<?>) o)
+				if (p instanceof MapProperties)
+					loaded.add(((MapProperties) p).toPackedKey());
+		} catch (ClassNotFoundException cnfe) {
+			Logger.error(cnfe);
+			return;
+		}
 
-			@SuppressWarnings("unchecked")
-			Set<MapProperties> inSet = (Set<MapProperties>) o;
-			set = inSet;
+		current.set(new Snapshot(loaded, 1L));
+		Logger.info("Converted {} maps from the serialized set at: {} to the packed format.", loaded.size(), FileLocations.CONVERTED_FILE_LOCATION);
+		writeToConverted();
+	}
+
+	/**
+	 * Helper to write the newest snapshot to the converted.ser file in the packed format. The file is written to a temp file and moved into place, so a crash never leaves a half-written set. Writers that lose the race to a newer snapshot skip their write, as the newer one already contains their change.
+	 */
+	private void writeToConverted() {
+		synchronized (fileLock) {
+			Snapshot snapshot = current.get();
+			if (snapshot.version <= persistedVersion)
+				return;
 
-			ois.close();
-		} catch (IOException ioe) {
-			if (!(ioe instanceof EOFException))
-				throw ioe;
-		} catch (Exception e) {
-			Logger.error(e);
+			try {
+				DataFiles.replace(new File(FileLocations.CONVERTED_FILE_LOCATION), dos -> {
+					dos.writeInt(FILE_MAGIC);
+					dos.writeInt(FILE_VERSION);
+					dos.writeInt(snapshot.sortedKeys.length);
+
+					for (int key : snapshot.sortedKeys)
+						dos.writeInt(key);
+				});
+
+				persistedVersion = snapshot.version;
+			} catch (Exception e) {
+				Logger.error(e);
+			}
 		}
 	}
 
+	/**
+	 * Returns the current contents of the set. The returned snapshot never changes, so a caller that needs several answers to agree with each other (such as the JavaScriptGenerator) should query one snapshot rather than this set.
+	 * 
+	 * @return The most recently committed Snapshot.
+	 */
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Adds a listener that will be told about every change to the set from now on.
+	 * 
+	 * @param listener
+	 *           Called with each committed Change, on the thread that made it. Must not block.
+	 */
+	public void addListener(Consumer<Change> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener added with addListener().
+	 * 
+	 * @param listener
+	 *           The listener to remove.
+	 */
+	public void removeListener(Consumer<Change> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Helper to persist a change that was just committed and tell the listeners about it.
+	 */
+	private void committed(long version, int[] added, int[] removed) {
+		writeToConverted();
+
+		Change change = new Change(version, added, removed);
+		for (Consumer<Change> listener : listeners)
+			try {
+				listener.accept(change);
+			} catch (RuntimeException re) {
+				Logger.error(re, "A listener failed to handle change {} to the converted set.", version);
+			}
+	}
+
 	/**
 	 * Adds a given map's properties to the set.
 	 * 
@@ -93,18 +221,48 @@ public class ConvertedSet implements Serializable {
 	 * @return true if it doesn't exist in the set and was added; false otherwise.
 	 */
 	public boolean add(MapProperties properties) {
-		if (set.add(properties)) {
-			try {
-				ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(FileLocations.CONVERTED_FILE_LOCATION, false)));
-				oos.writeObject(set);
-				oos.close();
-			} catch (Exception e) {
-				Logger.error(e);
+		int key = properties.toPackedKey();
+
+		while (true) {
+			Snapshot snapshot = current.get();
+			if (snapshot.keys.contains(key))
+				return false;
+
+			IntHashSet next = new IntHashSet(snapshot.keys);
+			next.add(key);
+			if (current.compareAndSet(snapshot, new Snapshot(next, snapshot.version + 1))) {
+				committed(snapshot.version + 1, new int[] { key }, NONE);
+				return true;
 			}
-			return true;
 		}
+	}
 
-		return false;
+	/**
+	 * Adds several maps to the set as a single change, so readers see either none or all of them and converted.ser is only written once.
+	 * 
+	 * @param properties
+	 *           The MapProperties of the maps that you wish to add.
+	 * @return The number of maps that didn't exist in the set and were added.
+	 */
+	public int addAll(Collection<MapProperties> properties) {
+		while (true) {
+			Snapshot snapshot = current.get();
+			IntHashSet next = new IntHashSet(snapshot.keys);
+
+			int[] keys = new int[properties.size()];
+			int added = 0;
+			for (MapProperties p : properties)
+				if (next.add(p.toPackedKey()))
+					keys[added++] = p.toPackedKey();
+
+			if (added == 0)
+				return 0;
+
+			if (current.compareAndSet(snapshot, new Snapshot(next, snapshot.version + 1))) {
+				committed(snapshot.version + 1, Arrays.copyOf(keys, added), NONE);
+				return added;
+			}
+		}
 	}
 
 	/**
@@ -115,18 +273,48 @@ public class ConvertedSet implements Serializable {
 	 * @return true if it exists in the set and was removed; false otherwise.
 	 */
 	public boolean remove(MapProperties properties) {
-		if (set.remove(properties)) {
-			try {
-				ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(FileLocations.CONVERTED_FILE_LOCATION, false)));
-				oos.writeObject(set);
-				oos.close();
-			} catch (Exception e) {
-				Logger.error(e);
+		int key = properties.toPackedKey();
+
+		while (true) {
+			Snapshot snapshot = current.get();
+			if (!snapshot.keys.contains(key))
+				return false;
+
+			IntHashSet next = new IntHashSet(snapshot.keys);
+			next.remove(key);
+			if (current.compareAndSet(snapshot, new Snapshot(next, snapshot.version + 1))) {
+				committed(snapshot.version + 1, NONE, new int[] { key });
+				return true;
 			}
-			return true;
 		}
+	}
 
-		return false;
+	/**
+	 * Removes several maps from the set as a single change, so readers see either all or none of them removed and converted.ser is only written once.
+	 * 
+	 * @param properties
+	 *           The MapProperties of the maps that you wish to remove.
+	 * @return The number of maps that existed in the set and were removed.
+	 */
+	public int removeAll(Collection<MapProperties> properties) {
+		while (true) {
+			Snapshot snapshot = current.get();
+			IntHashSet next = new IntHashSet(snapshot.keys);
+
+			int[] keys = new int[properties.size()];
+			int removed = 0;
+			for (MapProperties p : properties)
+				if (next.remove(p.toPackedKey()))
+					keys[removed++] = p.toPackedKey();
+
+			if (removed == 0)
+				return 0;
+
+			if (current.compareAndSet(snapshot, new Snapshot(next, snapshot.version + 1))) {
+				committed(snapshot.version + 1, NONE, Arrays.copyOf(keys, removed));
+				return removed;
+			}
+		}
 	}
 
 	/**
@@ -137,8 +325,7 @@ public class ConvertedSet implements Serializable {
 	 * @return true if contained within the set; false otherwise.
 	 */
 	public boolean contains(MapProperties properties) {
-		return set.contains(properties);
-
+		return snapshot().contains(properties);
 	}
 
 	/**
@@ -149,15 +336,7 @@ public class ConvertedSet implements Serializable {
 	 * @return All sorted array (sorted based on enum values) of all valid MapCompoundTypes that exist given a particular region. An empty array will be passed if no valid MapCompoundTypes exist.
 	 */
 	public MapCompoundType[] getPossibleMapCompounds(MapRegionType region) {
-		Set<MapCompoundType> types = new HashSet<MapCompoundType>();
-
-		for (MapProperties p : set)
-			if (p.getMapRegion() == region)
-				types.add(p.getMapCompoundType());
-
-		MapCompoundType[] typeArr = types.toArray(new MapCompoundType[types.size()]);
-		Arrays.sort(typeArr);
-		return typeArr;
+		return snapshot().getPossibleMapCompounds(region);
 	}
 
 	/**
@@ -170,19 +349,7 @@ public class ConvertedSet implements Serializable {
 	 * @return A sorted array of all valid years that exist given a particular region and compound. An empty array will be passed if no valid years exist.
 	 */
 	public int[] getPossibleYears(MapRegionType region, MapCompoundType compound) {
-		Set<Integer> years = new HashSet<Integer>();
-
-		for (MapProperties p : set)
-			if (p.getMapRegion() == region && p.getMapCompoundType() == compound)
-				years.add(p.getYear());
-
-		int[] ret = new int[years.size()];
-		int index = 0;
-		for (int y : years)
-			ret[index++] = y;
-
-		Arrays.sort(ret);
-		return ret;
+		return snapshot().getPossibleYears(region, compound);
 	}
 
 	/**
@@ -197,21 +364,181 @@ public class ConvertedSet implements Serializable {
 	 * @return A sorted array of all valid months that exist given a particular region and compound. An empty array will be passed if no valid months exist.
 	 */
 	public int[] getPossibleMonths(MapRegionType region, MapCompoundType compound, int year) {
-		Set<Integer> months = new HashSet<Integer>();
+		return snapshot().getPossibleMonths(region, compound, year);
+	}
+
+	/**
+	 * One committed change to the set.
+	 */
+	public static final class Change {
+
+		private final long version;
+		private final int[] added;
+		private final int[] removed;
+
+		/**
+		 * Helper for committed().
+		 */
+		private Change(long version, int[] added, int[] removed) {
+			this.version = version;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		/**
+		 * @return The version of the set after this change (see Snapshot.getVersion()).
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return A copy of the packed keys of the maps that this change added.
+		 */
+		public int[] getAddedKeys() {
+			return added.clone();
+		}
+
+		/**
+		 * @return A copy of the packed keys of the maps that this change removed.
+		 */
+		public int[] getRemovedKeys() {
+			return removed.clone();
+		}
+	}
+
+	/**
+	 * An immutable view of the set at one point in time. Keys are kept both hashed (for lookups) and sorted (for range queries); as packed keys sort by region, compound, year, and then month, every query below is a binary search followed by a scan of just the matching range.
+	 */
+	public static final class Snapshot {
+
+		private final IntHashSet keys;
+		private final int[] sortedKeys;
+		private final long version;
+
+		/**
+		 * Creates a snapshot that takes ownership of the given keys. The IntHashSet must not be modified afterwards.
+		 * 
+		 * @param keys
+		 *           The packed keys of all maps in this snapshot.
+		 * @param version
+		 *           A number that increases with every committed change.
+		 */
+		private Snapshot(IntHashSet keys, long version) {
+			this.keys = keys;
+			this.sortedKeys = keys.toSortedArray();
+			this.version = version;
+		}
+
+		/**
+		 * @return The version of this snapshot. Increases by one with every committed change to the set.
+		 */
+		public long getVersion() {
+			return version;
+		}
 
-		for (MapProperties p : set)
-			if (p.getMapRegion() == region && p.getMapCompoundType() == compound && p.getYear() == year)
-				months.add(p.getMonth());
+		/**
+		 * @return The number of maps in this snapshot.
+		 */
+		public int size() {
+			return sortedKeys.length;
+		}
 
-		if (months.contains(-1))
-			return new int[0];
+		/**
+		 * @return A copy of the packed keys of all maps in this snapshot, sorted in ascending order.
+		 */
+		public int[] getPackedKeys() {
+			return sortedKeys.clone();
+		}
 
-		int[] ret = new int[months.size()];
-		int index = 0;
-		for (int y : months)
-			ret[index++] = y;
+		/**
+		 * @param properties
+		 *           The MapProperties that defines the map you wish to check for.
+		 * @return true if contained within this snapshot; false otherwise.
+		 */
+		public boolean contains(MapProperties properties) {
+			return keys.contains(properties.toPackedKey());
+		}
 
-		Arrays.sort(ret);
-		return ret;
+		/**
+		 * Finds all the possible map compounds given a map region.
+		 * 
+		 * @param region
+		 *           The region that you wish to check for valid compounds.
+		 * @return All sorted array (sorted based on enum values) of all valid MapCompoundTypes that exist given a particular region. An empty array will be passed if no valid MapCompoundTypes exist.
+		 */
+		public MapCompoundType[] getPossibleMapCompounds(MapRegionType region) {
+			MapCompoundType[] all = MapCompoundType.values();
+			MapCompoundType[] typeArr = new MapCompoundType[all.length];
+			int index = 0;
+
+			for (MapCompoundType mc : all)
+				if (rangeStart(MapProperties.packKey(region, mc, MapProperties.MIN_YEAR, -1)) < rangeStart(MapProperties.packKey(region, mc, MapProperties.MAX_YEAR, 11) + 1))
+					typeArr[index++] = mc;
+
+			return Arrays.copyOf(typeArr, index);
+		}
+
+		/**
+		 * Finds all the possible years given a map region and a map compound.
+		 * 
+		 * @param region
+		 *           The region that you wish to check for valid years.
+		 * @param compound
+		 *           The compound that you wish to check for valid years.
+		 * @return A sorted array of all valid years that exist given a particular region and compound. An empty array will be passed if no valid years exist.
+		 */
+		public int[] getPossibleYears(MapRegionType region, MapCompoundType compound) {
+			int from = rangeStart(MapProperties.packKey(region, compound, MapProperties.MIN_YEAR, -1));
+			int to = rangeStart(MapProperties.packKey(region, compound, MapProperties.MAX_YEAR, 11) + 1);
+
+			int[] ret = new int[to - from];
+			int index = 0;
+			for (int i = from; i < to; i++) {
+				int year = MapProperties.packedYear(sortedKeys[i]);
+				if (index == 0 || ret[index - 1] != year)
+					ret[index++] = year;
+			}
+
+			return Arrays.copyOf(ret, index);
+		}
+
+		/**
+		 * Finds all possible months given a map region, map compound, an a year.
+		 * 
+		 * @param region
+		 *           The region that you wish to check for valid months.
+		 * @param compound
+		 *           The compound that you wish to check for valid months.
+		 * @param year
+		 *           The year that you wish to check for valid months.
+		 * @return A sorted array of all valid months that exist given a particular region and compound. An empty array will be passed if no valid months exist.
+		 */
+		public int[] getPossibleMonths(MapRegionType region, MapCompoundType compound, int year) {
+			int from = rangeStart(MapProperties.packKey(region, compound, year, -1));
+			int to = rangeStart(MapProperties.packKey(region, compound, year, 11) + 1);
+
+			// A yearly map means there are no months to choose from.
+			if (from == to || MapProperties.packedMonth(sortedKeys[from]) == -1)
+				return new int[0];
+
+			int[] ret = new int[to - from];
+			for (int i = from; i < to; i++)
+				ret[i - from] = MapProperties.packedMonth(sortedKeys[i]);
+
+			return ret;
+		}
+
+		/**
+		 * Helper to find where a key is, or would be inserted, in sortedKeys.
+		 * 
+		 * @param key
+		 *           The packed key to search for.
+		 * @return The index of the first key that is greater than or equal to the given key.
+		 */
+		private int rangeStart(int key) {
+			int index = Arrays.binarySearch(sortedKeys, key);
+			return index >= 0 ? index : -(index + 1);
+		}
 	}
 }
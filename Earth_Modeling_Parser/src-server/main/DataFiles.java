@@ -0,0 +1,69 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Utility class for the daemon's binary data files (converted.ser, metadata.dat, jobs.dat, checkpoints.dat, and ingested.dat), which are rewritten in full when they are compacted.
+ */
+
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+class DataFiles {
+
+	/**
+	 * Writes the new contents of a file.
+	 */
+	@FunctionalInterface
+	interface Contents {
+		void writeTo(DataOutputStream dos) throws IOException;
+	}
+
+	private DataFiles() {
+	}
+
+	/**
+	 * Replaces a file with new contents, so that a crash never leaves it half-written: the contents are written to a temp file next to it, forced to the disk, and then moved over the file (atomically, if the file system can).
+	 *
+	 * @param file
+	 *           The file to replace.
+	 * @param contents
+	 *           Writes the new contents.
+	 * @throws IOException
+	 *            The contents couldn't be written, or the file couldn't be replaced.
+	 */
+	static void replace(File file, Contents contents) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp, false); DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+			contents.writeTo(dos);
+
+			dos.flush();
+			fos.getFD().sync();
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
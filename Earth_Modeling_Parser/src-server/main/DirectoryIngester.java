@@ -0,0 +1,398 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Turns ASCII files dropped into Original_ASCII_files into CREATE_MAP jobs, so that model runs can hand off their grids without going through the client. Files are named the same way as for the multi-upload screen (MISSISSIPPI_RIVER_BASINCH4y2000m11.txt, GLOBALN2Oy1980m-1.txt), and a
+ *         file is only picked up once it has stopped changing for SETTLE_TIME_IN_MILLIS, so that a copy in progress isn't ingested half written. No more than MAX_JOBS_IN_FLIGHT jobs are outstanding at once; the rest wait in the directory.
+ *
+ *         Every file that is turned into a job is recorded in ingested.dat along with a checksum of its contents and the outcome of its job, so a file is ingested once no matter how many times the daemon restarts. A file whose contents change is ingested again, as a REPLACE_MAP job if the old
+ *         version was created. A file that failed is only retried once it is dropped in again.
+ *
+ *         Enabled by starting the daemon with -Dvems.ingest=watch.
+ */
+
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.JobStatus;
+import utils.MapProperties;
+
+public class DirectoryIngester {
+
+	public static final int MAX_JOBS_IN_FLIGHT = MapProcessingPipeline.MAX_CONCURRENT_PUBLISHES * 4; // Enough to keep every stage of the pipeline busy without burying other users' uploads.
+	public static final long SETTLE_TIME_IN_MILLIS = 5000L;
+	public static final long POLL_INTERVAL_IN_MILLIS = 1000L;
+	public static final String INGEST_USERNAME = "directory-ingest";
+
+	private static final int FILE_MAGIC = 0x56494E47; // "VING"
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * What happened to a file the last time it was ingested.
+	 */
+	private enum Outcome {
+		ACCEPTED, DONE, FAILED;
+	}
+
+	/**
+	 * A file's entry in ingested.dat.
+	 */
+	private static class Entry {
+		final long checksum;
+		final long lastModified;
+		final long jobId;
+		final Outcome outcome;
+
+		Entry(long checksum, long lastModified, long jobId, Outcome outcome) {
+			this.checksum = checksum;
+			this.lastModified = lastModified;
+			this.jobId = jobId;
+			this.outcome = outcome;
+		}
+	}
+
+	/**
+	 * The size and modification time a waiting file had when it was last looked at.
+	 */
+	private static class Candidate {
+		long length = -1;
+		long lastModified = -1;
+		long unchangedSince;
+	}
+
+	private final Path directory;
+	private final JobQueue jobQueue;
+	private final Semaphore jobsInFlight = new Semaphore(MAX_JOBS_IN_FLIGHT);
+	private final Map<String, Entry> ledger = new ConcurrentHashMap<String, Entry>();
+	private final Map<Long, String> activeJobs = new ConcurrentHashMap<Long, String>(); // Job ID to file name.
+	private final Map<String, Candidate> candidates = new HashMap<String, Candidate>(); // Only touched by the watch thread.
+	private final Consumer<JobStatus> jobListener = this::jobChanged;
+
+	private WatchService watcher;
+	private Thread watchThread;
+	private FileOutputStream out;
+	private DataOutputStream log;
+	private volatile boolean running;
+
+	/**
+	 * @param jobQueue
+	 *           The queue that the daemon's jobs are tracked in.
+	 */
+	public DirectoryIngester(JobQueue jobQueue) {
+		this.directory = new File(FileLocations.ASCII_INPUT_DIRECTORY_LOCATION).toPath();
+		this.jobQueue = jobQueue;
+	}
+
+	/**
+	 * Loads ingested.dat, picks up the files that were dropped while the daemon was down, and starts watching the directory.
+	 *
+	 * @throws IOException
+	 *            The directory can't be watched, or ingested.dat can't be read or written.
+	 */
+	public void start() throws IOException {
+		Files.createDirectories(directory);
+
+		File file = new File(FileLocations.INGESTED_FILE_LOCATION);
+		if (file.exists() && file.length() > 0)
+			replay(file);
+		compact(file);
+		out = new FileOutputStream(file, true);
+		log = new DataOutputStream(new BufferedOutputStream(out));
+
+		// Jobs that were in flight when the daemon stopped have been resumed (or failed) by now.
+		jobQueue.addListener(jobListener);
+		for (Map.Entry<String, Entry> e : ledger.entrySet())
+			if (e.getValue().outcome == Outcome.ACCEPTED) {
+				JobStatus job = jobQueue.get(e.getValue().jobId);
+				if (job == null || job.getState().isFinished())
+					finish(e.getKey(), e.getValue(), job != null && job.getState() == JobStatus.State.DONE);
+				else if (jobsInFlight.tryAcquire()) {
+					activeJobs.put(job.getJobId(), e.getKey());
+					Logger.info("Ingestion of {} is still running as job {}.", e.getKey(), job.getJobId());
+				}
+			}
+
+		watcher = FileSystems.getDefault().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		addEveryFile();
+
+		running = true;
+		watchThread = new Thread(this::watch, "directory-ingester");
+		watchThread.setDaemon(true);
+		watchThread.start();
+
+		Logger.info("Watching {} for ASCII files to ingest ({} already ingested).", directory, ledger.size());
+	}
+
+	/**
+	 * Stops watching the directory. Jobs that were already submitted carry on.
+	 */
+	public void shutdown() {
+		running = false;
+		jobQueue.removeListener(jobListener);
+
+		try {
+			if (watcher != null)
+				watcher.close();
+		} catch (IOException ioe) {
+			Logger.warn("Error closing the directory watcher: {}", ioe);
+		}
+
+		if (watchThread != null)
+			watchThread.interrupt();
+	}
+
+	/**
+	 * The watch thread: collects changed files, and ingests each once it has settled.
+	 */
+	private void watch() {
+		try {
+			while (running) {
+				WatchKey key = watcher.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents())
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							addEveryFile();
+						else
+							addCandidate(((Path) event.context()).getFileName().toString());
+
+					if (!key.reset()) {
+						Logger.error("{} can no longer be watched. Directory ingestion has stopped.", directory);
+						return;
+					}
+				}
+
+				ingestSettledFiles();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Shutting down.
+		} catch (RuntimeException re) {
+			Logger.error(re, "Directory ingestion stopped unexpectedly.");
+		}
+	}
+
+	/**
+	 * Helper to consider every file in the directory, for startup and for when the watcher has dropped events.
+	 */
+	private void addEveryFile() {
+		String[] names = directory.toFile().list();
+		if (names != null)
+			for (String name : names)
+				addCandidate(name);
+	}
+
+	/**
+	 * Helper to start waiting for a file to settle, if it looks like an ASCII upload.
+	 */
+	private void addCandidate(String name) {
+		if (!name.endsWith(".txt"))
+			return;
+
+		if (!candidates.containsKey(name))
+			candidates.put(name, new Candidate());
+	}
+
+	/**
+	 * Helper to ingest each waiting file that hasn't changed for SETTLE_TIME_IN_MILLIS. Blocks while MAX_JOBS_IN_FLIGHT jobs are outstanding.
+	 */
+	private void ingestSettledFiles() throws InterruptedException {
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<String, Candidate>> it = candidates.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Candidate> e = it.next();
+			File file = directory.resolve(e.getKey()).toFile();
+			Candidate c = e.getValue();
+
+			if (!file.isFile()) {
+				it.remove();
+				continue;
+			}
+
+			if (file.length() != c.length || file.lastModified() != c.lastModified) {
+				c.length = file.length();
+				c.lastModified = file.lastModified();
+				c.unchangedSince = now;
+			} else if (now - c.unchangedSince >= SETTLE_TIME_IN_MILLIS) {
+				it.remove();
+				jobsInFlight.acquire();
+				if (!ingest(e.getKey(), file))
+					jobsInFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * Helper to turn a settled file into a job, unless the ledger says it has already been ingested.
+	 *
+	 * @return true if a job was started.
+	 */
+	private boolean ingest(String name, File file) {
+		MapProperties properties = MapProperties.fromString(name.substring(0, name.length() - ".txt".length()));
+		if (properties == null) {
+			Logger.warn("Not ingesting {}, because its name isn't a valid map name (such as GLOBALN2Oy1980m-1.txt).", file);
+			return false;
+		}
+
+		try {
+			long lastModified = file.lastModified();
+			long checksum = MapCheckpoints.checksum(file);
+			Entry previous = ledger.get(name);
+
+			if (previous != null && previous.checksum == checksum) {
+				if (previous.outcome == Outcome.DONE || previous.outcome == Outcome.ACCEPTED || previous.lastModified == lastModified) {
+					Logger.debug("{} has already been ingested.", name);
+					return false;
+				}
+			}
+
+			// A new version of a map that was created replaces it.
+			boolean replace = previous != null && previous.outcome == Outcome.DONE;
+			JobStatus job = EarthModellingDaemon.acceptMapJob(file, properties, INGEST_USERNAME, replace);
+
+			activeJobs.put(job.getJobId(), name);
+			append(name, new Entry(checksum, lastModified, job.getJobId(), Outcome.ACCEPTED));
+			EarthModellingDaemon.startJob(job.getJobId());
+			Logger.info("Ingesting {} as job {}.", name, job.getJobId());
+
+			return true;
+		} catch (IOException | IllegalAccessException e) {
+			Logger.error(e, "Couldn't ingest {}.", file);
+			return false;
+		}
+	}
+
+	/**
+	 * Listens to the JobQueue for the jobs that ingestion started.
+	 */
+	private void jobChanged(JobStatus job) {
+		if (!job.getState().isFinished())
+			return;
+
+		String name = activeJobs.remove(job.getJobId());
+		if (name == null)
+			return;
+
+		jobsInFlight.release();
+		Entry entry = ledger.get(name);
+		if (entry != null && entry.jobId == job.getJobId())
+			finish(name, entry, job.getState() == JobStatus.State.DONE);
+	}
+
+	/**
+	 * Helper to record the outcome of a file's job.
+	 */
+	private void finish(String name, Entry entry, boolean done) {
+		append(name, new Entry(entry.checksum, entry.lastModified, entry.jobId, done ? Outcome.DONE : Outcome.FAILED));
+		if (!done)
+			Logger.warn("Ingesting {} failed. Drop the file in again to retry.", name);
+	}
+
+	/**
+	 * Helper to update a file's entry in memory and in ingested.dat.
+	 */
+	private void append(String name, Entry entry) {
+		ledger.put(name, entry);
+
+		synchronized (this) {
+			try {
+				writeEntry(log, name, entry);
+				log.flush();
+				out.getFD().sync(); // Otherwise a crash could lose the entry, and the file would be ingested again.
+			} catch (IOException ioe) {
+				Logger.error("Error appending the ingestion of {}: {}", name, ioe);
+			}
+		}
+	}
+
+	/**
+	 * Helper to read every entry in ingested.dat. An entry cut short by a crash is dropped.
+	 */
+	private void replay(File file) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (dis.readInt() != FILE_MAGIC || dis.readInt() != FILE_VERSION) {
+				Logger.error("The ingestion ledger at: {} isn't in a known format. Every file in {} will be ingested again.", FileLocations.INGESTED_FILE_LOCATION, directory);
+				return;
+			}
+
+			Outcome[] outcomes = Outcome.values();
+			while (true) {
+				String name = dis.readUTF();
+				long checksum = dis.readLong();
+				long lastModified = dis.readLong();
+				long jobId = dis.readLong();
+				int outcome = dis.readByte();
+				if (outcome < 0 || outcome >= outcomes.length) {
+					Logger.error("Unknown outcome {} in the ingestion ledger at: {}. Ignoring the rest of the file.", outcome, FileLocations.INGESTED_FILE_LOCATION);
+					return;
+				}
+
+				ledger.put(name, new Entry(checksum, lastModified, jobId, outcomes[outcome]));
+			}
+		} catch (EOFException eofe) {
+			// End of the log (possibly in the middle of an entry that was being written during a crash).
+		}
+	}
+
+	/**
+	 * Helper to rewrite ingested.dat with only the latest entry for each file.
+	 */
+	private void compact(File file) throws IOException {
+		DataFiles.replace(file, dos -> {
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(FILE_VERSION);
+
+			for (Map.Entry<String, Entry> e : ledger.entrySet())
+				writeEntry(dos, e.getKey(), e.getValue());
+		});
+	}
+
+	/**
+	 * Helper to write an entry.
+	 */
+	private static void writeEntry(DataOutputStream dos, String name, Entry entry) throws IOException {
+		dos.writeUTF(name);
+		dos.writeLong(entry.checksum);
+		dos.writeLong(entry.lastModified);
+		dos.writeLong(entry.jobId);
+		dos.writeByte(entry.outcome.ordinal());
+	}
+}
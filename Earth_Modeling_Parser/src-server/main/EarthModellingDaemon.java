@@ -19,32 +19,73 @@
 
 package main;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 import org.pmw.tinylog.Logger;
 
+import main.MapProcessingPipeline.Stage;
 import networking.ClientServer;
 import networking.ServerInformation;
+import networking.TimedExecutor;
 import parser.AsciiToCsv;
 import parser.JavaScriptGenerator;
+import parser.WebArtifactPublisher;
 import utils.CompoundDescriptions;
 import utils.FileLocations;
+import utils.JobStatus;
+import utils.MapCompoundType;
+import utils.MapMetadata;
 import utils.MapProperties;
+import utils.MapRegionType;
 import utils.ReferenceScales;
 
 public class EarthModellingDaemon {
 
 	public static final long TIME_TO_SLEEP = 30000L; // 30 seconds before this daemon wakes up again.
 	public static final long MAX_EXECUTABLE_RUNTIME_IN_MINUTES = 10L; // Represented in minutes.
+	public static final int CONVERSION_BYTES_PER_UPLOAD_BYTE = 8; // AsciiToCsv holds every CSV line of a grid as a String before writing it out.
+	public static final long MAX_MEMORY_WAIT_IN_MINUTES = 10L; // How long a conversion waits in line for memory before its job fails.
+	public static final long METRICS_INTERVAL_IN_SECONDS = 30L;
+	public static final long STALE_UPLOAD_CHECK_INTERVAL_IN_MINUTES = 60L; // How often abandoned staging files are looked for while the server is up.
+	public static final int BULK_DELETE_BATCH_SIZE = 40; // Services deleted by each run of the batch delete script.
+	private static final Object bulkDeleteLock = new Object();
 	private static ConvertedSet convertedSet;
+	private static MapMetadataCatalog metadataCatalog;
+	private static MapProcessingPipeline pipeline;
+	private static JobQueue jobQueue;
+	private static MapPublisher mapPublisher;
+	private static MapCheckpoints checkpoints;
+	private static DirectoryIngester directoryIngester;
+	private static MemoryBudget memoryBudget;
+	private static UploadStaging uploadStaging;
+	private static ScheduledExecutorService metricsReporter;
+	private static final Map<TimedExecutor, Long> reportedStarts = new IdentityHashMap<TimedExecutor, Long>(); // Only used by reportMetrics().
+	private static final ExecutorService memoryWaiters = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "conversion-memory-wait");
+		t.setDaemon(true);
+		return t;
+	}); // Conversions wait in line for memory here, rather than on the threads of the PARSE stage.
+	private static final Map<Long, ReusedUpload> reusedUploads = new ConcurrentHashMap<Long, ReusedUpload>(); // Jobs that copy another map's CSV instead of converting an upload.
+	private static final WebArtifactPublisher jsPublisher = new WebArtifactPublisher(ServerInformation.WEB_SERVER_JAVASCRIPT_DIRECTORY_LOCATION, "minifiedAutoJS", ".js");
 	private static boolean run = false;
 	private static ClientServer clientServer;
 	private static ReferenceScales referenceScales;
@@ -81,29 +122,67 @@ public class EarthModellingDaemon {
 	public static void start() {
 		Logger.info("Server daemon is starting up...");
 
+		memoryBudget = MemoryBudget.fromSystemProperties();
+		Logger.info("Large uploads and conversions may hold up to {} bytes of the heap at once.", memoryBudget.getBudgetBytes());
+
 		try {
 			convertedSet = new ConvertedSet();
+			metadataCatalog = new MapMetadataCatalog();
+			jobQueue = new JobQueue();
+			checkpoints = new MapCheckpoints();
 			referenceScales = new ReferenceScales();
 			compoundDescriptions = new CompoundDescriptions();
 		} catch (Exception e) {
 			Logger.error(e);
 		}
 
+		// Make sure a bad shutdown didn't leave the ConvertedSet out of step with the maps on the disk.
+		try {
+			if (new CatalogReconciler(convertedSet, checkpoints).reconcile() > 0)
+				generateAndTransferJavaScript();
+		} catch (Exception e) {
+			Logger.error("Error reconciling the ConvertedSet with the disk.", e);
+		}
+
+		pipeline = new MapProcessingPipeline();
+		// A daemon that was killed leaves its Python processes running; they would hold locks on the map files.
+		SubprocessRunner.reapOrphans();
+		mapPublisher = createMapPublisher();
+		mapPublisher.start();
+
 		// Create required temp directories if they don't exist.
 		File csvOutputDir = new File(FileLocations.CSV_OUTPUT_DIRECTORY_LOCATION);
 		File tempOutputDir = new File(FileLocations.TEMP_WORKING_DIRECTORY_LOCATION);
+		File jobUploadsDir = new File(FileLocations.JOB_UPLOADS_DIRECTORY_LOCATION);
 		csvOutputDir.mkdir();
 		tempOutputDir.mkdir();
+		jobUploadsDir.mkdir();
+		uploadStaging = new UploadStaging();
+
+		resumeUnfinishedJobs();
+
+		if ("watch".equalsIgnoreCase(System.getProperty("vems.ingest")))
+			try {
+				directoryIngester = new DirectoryIngester(jobQueue);
+				directoryIngester.start();
+			} catch (IOException ioe) {
+				Logger.error("Couldn't start watching for ASCII files to ingest.", ioe);
+			}
 
 		Logger.info("Starting VEMS ClientServer.");
 		clientServer = new ClientServer(ServerInformation.SERVER_PORT, FileLocations.KEYSTORE_FILE_LOCATION, keystorePassword);
 		clientServer.start();
 
+		metricsReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		metricsReporter.scheduleWithFixedDelay(EarthModellingDaemon::reportMetrics, METRICS_INTERVAL_IN_SECONDS, METRICS_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+		metricsReporter.scheduleWithFixedDelay(EarthModellingDaemon::removeStaleUploads, STALE_UPLOAD_CHECK_INTERVAL_IN_MINUTES, STALE_UPLOAD_CHECK_INTERVAL_IN_MINUTES, TimeUnit.MINUTES);
+
 		while (run)
 			try {
-				if (!clientServer.isAClientConnected())
-					System.gc();
-
 				Thread.sleep(TIME_TO_SLEEP);
 			} catch (InterruptedException e) {
 				// Do nothing, because map processing is likely happening right now.
@@ -115,10 +194,61 @@ public class EarthModellingDaemon {
 	 */
 	public static void stop() {
 		Logger.info("Shutting down server.");
+		if (metricsReporter != null)
+			metricsReporter.shutdownNow();
 		clientServer.end();
+		if (directoryIngester != null)
+			directoryIngester.shutdown();
+		pipeline.shutdown();
+		mapPublisher.shutdown();
 		run = true;
 	}
 
+	/**
+	 * Logs the MemoryBudget while anything is reserved or waiting for memory, and the queue times of each ClientServer.Category that has been busy since the last report. Runs every METRICS_INTERVAL_IN_SECONDS.
+	 */
+	private static void reportMetrics() {
+		try {
+			if (memoryBudget.getReservedBytes() > 0 || memoryBudget.getWaiting() > 0)
+				Logger.info(memoryBudget);
+
+			for (TimedExecutor executor : clientServer.getExecutors()) {
+				Long started = executor.getStarted();
+				if (executor.getWaiting() > 0 || !started.equals(reportedStarts.put(executor, started)))
+					Logger.info(executor);
+			}
+		} catch (RuntimeException e) {
+			Logger.error(e); // Thrown out of the task, it would cancel every later report.
+		}
+	}
+
+	/**
+	 * Deletes the staging files of uploads that were abandoned while the server was up. Runs every STALE_UPLOAD_CHECK_INTERVAL_IN_MINUTES; UploadStaging also does this when it is created.
+	 */
+	private static void removeStaleUploads() {
+		try {
+			uploadStaging.removeStale();
+		} catch (RuntimeException e) {
+			Logger.error(e); // Thrown out of the task, it would cancel every later check.
+		}
+	}
+
+	/**
+	 * Picks the MapPublisher named by the vems.publisher system property: "simulated" for a SimulatedMapPublisher, or anything else (including nothing) for the ArcGIS server.
+	 * 
+	 * The vems.pythonWorkerArgs system property holds extra arguments (separated by spaces) for the ArcGIS server's Python workers; for example, -Dvems.pythonWorkerArgs="--stub --stub-delay 0.5" runs them without arcpy, so that the Java side can be tested on a machine
+	 * without ArcGIS.
+	 * 
+	 * @return The publisher that maps should be published with.
+	 */
+	private static MapPublisher createMapPublisher() {
+		if ("simulated".equalsIgnoreCase(System.getProperty("vems.publisher")))
+			return SimulatedMapPublisher.fromSystemProperties();
+
+		String workerArguments = System.getProperty("vems.pythonWorkerArgs", "").trim();
+		return new ArcGisScriptPublisher(arcgisServerUsername, arcgisServerPassword, workerArguments.isEmpty() ? null : workerArguments.split("\\s+"));
+	}
+
 	/**
 	 * Overloaded helper if you wish to call a script with no arguments.
 	 * 
@@ -152,7 +282,7 @@ public class EarthModellingDaemon {
 	 * @throws TimeoutException
 	 *            The process was terminated because it took too long to finish executing!
 	 */
-	private static ArrayList<String> runPythonScript(String scriptLocation, String[] arguments) throws IOException, InterruptedException, TimeoutException {
+	static ArrayList<String> runPythonScript(String scriptLocation, String[] arguments) throws IOException, InterruptedException, TimeoutException {
 		String[] strArr = new String[arguments.length + 1];
 		strArr[0] = scriptLocation;
 		for (int i = 0; i < arguments.length; i++)
@@ -199,14 +329,14 @@ public class EarthModellingDaemon {
 	}
 
 	/**
-	 * /** Runs a an executable file with the given arguments.
+	 * Runs a an executable file with the given arguments. Output is checked for errors as it arrives, and the process is killed if it prints an error and doesn't exit, or if it runs past the timeout.
 	 * 
 	 * @param exeLocation
 	 *           The absolute file location of the runnable on the disk.
 	 * @param arguments
 	 *           A tokenized array of arguments, if the program has any.
 	 * @param timeoutValue
-	 *           How long to wait before breaking off the program being executed.
+	 *           How long to wait before killing the program being executed.
 	 * @param timeoutValueUnits
 	 *           The units of the timeoutValue long.
 	 * @return An ArrayList of the standard output of the script.
@@ -223,61 +353,18 @@ public class EarthModellingDaemon {
 		else
 			Logger.info("Running executable: {} with arguments: {}", exeLocation, Arrays.toString(arguments));
 
-		ProcessBuilder builder = new ProcessBuilder();
-
 		ArrayList<String> commands = new ArrayList<String>();
 		commands.add(exeLocation);
 		if (arguments != null)
 			for (String s : arguments)
 				commands.add(s);
-		builder.command(commands);
 
-		builder.redirectErrorStream(true);
+		SubprocessRunner.Result result = SubprocessRunner.run(commands, timeoutValue, timeoutValueUnits);
+		if (result.isTimedOut())
+			throw new TimeoutException(exeLocation + " was terminated after running for " + timeoutValue + " " + timeoutValueUnits + ".");
 
-		final Process process = builder.start();
-		return waitForProcess(process, timeoutValue, timeoutValueUnits);
-	}
-
-	/**
-	 * Creates a new thread to run the Process and blocks this.Thread until it is complete.
-	 * 
-	 * @param process
-	 *           The process that you wish to execute.
-	 * @param waitTime
-	 *           How long we should wait for a process to finish executing before terminating the process.
-	 * @param waitTimeUnit
-	 *           The units of the long passed as waitTime.
-	 * @return An ArrayList of the standard output of the process.
-	 * @throws InterruptedException
-	 *            Interrupt was encountered before the process could finish executing!
-	 * @throws TimeoutException
-	 *            The process took longer than the value given in waitTime to finish executing!
-	 */
-	private static ArrayList<String> waitForProcess(final Process process, long waitTime, TimeUnit waitTimeUnit) throws InterruptedException, TimeoutException {
-		ArrayList<String> result = new ArrayList<String>();
-
-		// Don't crash this thread if everything fails miserably.
-		Runnable run = () -> {
-			BufferedReader input = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line = null;
-			try {
-				while ((line = input.readLine()) != null)
-					result.add(line);
-			} catch (Exception e) {
-				Logger.error(e);
-				result.add("EXCEPTION THROWN!");
-			}
-		};
-
-		new Thread(run).start();
-		if (process.waitFor(waitTime, waitTimeUnit))
-			Logger.info("Done running script.");
-		else {
-			Logger.error("Process terminated before script completion.");
-			return result;
-		}
-
-		return result;
+		Logger.info("Done running executable: {}", result);
+		return result.getOutput();
 	}
 
 	/**
@@ -350,20 +437,30 @@ public class EarthModellingDaemon {
 	 * 
 	 * @param asciiFile
 	 *           The absolute file path of the ascii.txt file on the disk.
+	 * @param metadata
+	 *           The MapMetadata that the conversion time and grid statistics should be recorded in.
 	 * @return A File reference to the newly created CSV file. Null is returned in the event the parser had an issue parsing the file.
 	 * @throws IOException
 	 *            Can't find the file at the specified location!
 	 */
-	private static File convertAsciiToCsv(File asciiFile) throws IOException {
+	private static File convertAsciiToCsv(File asciiFile, MapMetadata metadata) throws IOException {
 		Logger.info("Converting file: {} to CSV", asciiFile);
-		File f = new AsciiToCsv().parseToCsv(asciiFile); // Init new obj to save memory.
-		Logger.info("File converted to CSV!");
+		long start = System.currentTimeMillis();
+		AsciiToCsv parser = new AsciiToCsv(); // Init new obj to save memory.
+		File f = parser.parseToCsv(asciiFile);
+		metadata.setConversionMillis(System.currentTimeMillis() - start);
+
+		if (f != null) {
+			boolean hasValues = parser.getvalid_values_parsed() > 0;
+			metadata.setCellStatistics(parser.getvalues_parsed(), parser.getvalid_values_parsed(), hasValues ? parser.getMinValue() : Double.NaN, hasValues ? parser.getMaxValue() : Double.NaN);
+			Logger.info("File converted to CSV!");
+		}
 
 		return f;
 	}
 
 	/**
-	 * Removes a map from the ArcGIS server by executing a command line argument.
+	 * Removes a map from the ArcGIS server by executing a command line argument. Waits behind any other operation on the same map, but not behind other maps.
 	 * 
 	 * @param properties
 	 *           The MapProperties that represents what needs to be deleted.
@@ -375,45 +472,202 @@ public class EarthModellingDaemon {
 	 * @throws TimeoutException
 	 *            Means that the the service manager Python script was terminated before completion (took too long).
 	 */
-	public static synchronized String removeMapFromServer(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
-		if (!convertedSet.contains(properties))
-			return "The map " + properties.toString() + " is not in the ConvertedSet.";
+	public static String removeMapFromServer(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+		return await(pipeline.submit(properties, () -> removeMap(properties)));
+	}
+
+	/**
+	 * Removes every converted map that matches a region, compound, and range of years. Local files are deleted in parallel on the PARSE stage, services are deleted from the map server in batches of BULK_DELETE_BATCH_SIZE on the PARAMS stage, and then the ConvertedSet and MapMetadataCatalog
+	 * are updated and the JS regenerated just once. Waits behind any other operation on the matched maps, and holds every one of them until it finishes.
+	 * 
+	 * @param region
+	 *           The region of the maps to remove; null for all regions.
+	 * @param compound
+	 *           The compound of the maps to remove; null for all compounds.
+	 * @param fromYear
+	 *           The first year of the maps to remove.
+	 * @param toYear
+	 *           The last year of the maps to remove.
+	 * @param onResult
+	 *           Called (possibly from other threads) as soon as each matched map's removal succeeds or fails, with the map and its error (null if it was removed).
+	 * @return The error if the JS couldn't be updated; null otherwise.
+	 * @throws IOException
+	 *            The catalog couldn't be updated.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for the removals to finish.
+	 * @throws TimeoutException
+	 *            The catalog update timed out.
+	 */
+	public static String removeMapsFromServer(MapRegionType region, MapCompoundType compound, int fromYear, int toYear, BiConsumer<MapProperties, String> onResult) throws IOException, InterruptedException, TimeoutException {
+		List<MapProperties> matched = new ArrayList<MapProperties>();
+		for (int key : convertedSet.snapshot().getPackedKeys()) {
+			int year = MapProperties.packedYear(key);
+			if ((region == null || MapProperties.packedRegion(key) == region) && (compound == null || MapProperties.packedCompound(key) == compound) && year >= fromYear && year <= toYear)
+				matched.add(MapProperties.fromPackedKey(key));
+		}
+
+		if (matched.isEmpty())
+			return null;
+
+		Logger.info("Removing {} maps of region: {}, compound: {}, years: {} to {}.", matched.size(), region, compound, fromYear, toYear);
+
+		// Take the turn of every map, in one go so that two bulk removals can't each hold a map that the other is waiting for.
+		final CompletableFuture<String> release = new CompletableFuture<String>();
+		List<CompletableFuture<String>> localRemovals = new ArrayList<CompletableFuture<String>>(matched.size());
+		synchronized (bulkDeleteLock) {
+			for (MapProperties properties : matched) {
+				CompletableFuture<String> local = new CompletableFuture<String>();
+				localRemovals.add(local);
+
+				pipeline.submit(properties, () -> {
+					pipeline.runStage(Stage.PARSE, () -> {
+						if (!convertedSet.contains(properties))
+							return "The map " + properties.toString() + " is not in the ConvertedSet.";
+
+						return removeLocalMapFiles(properties) ? null : "Error deleting local map files for: " + properties.toString();
+					}).whenComplete((error, e) -> local.complete(e != null ? "Error deleting local map files for: " + properties.toString() + "\n" + e : error));
+
+					return release;
+				});
+			}
+		}
+
+		try {
+			List<MapProperties> unpublish = new ArrayList<MapProperties>();
+			for (int i = 0; i < matched.size(); i++) {
+				String error = localRemovals.get(i).get();
+				if (error == null)
+					unpublish.add(matched.get(i));
+				else
+					onResult.accept(matched.get(i), error);
+			}
+
+			List<CompletableFuture<List<MapProperties>>> batches = new ArrayList<CompletableFuture<List<MapProperties>>>();
+			for (int i = 0; i < unpublish.size(); i += BULK_DELETE_BATCH_SIZE) {
+				final List<MapProperties> batch = new ArrayList<MapProperties>(unpublish.subList(i, Math.min(i + BULK_DELETE_BATCH_SIZE, unpublish.size())));
+
+				batches.add(pipeline.runStage(Stage.PARAMS, () -> mapPublisher.deleteAll(batch)).handle((errors, e) -> {
+					List<MapProperties> deleted = new ArrayList<MapProperties>();
+					for (MapProperties properties : batch) {
+						String error = e != null ? "Error removing the service of " + properties.toString() + ": " + (e.getCause() != null ? e.getCause() : e) : errors.get(properties);
+						if (error == null)
+							deleted.add(properties);
+
+						onResult.accept(properties, error);
+					}
+
+					return deleted;
+				}));
+			}
+
+			final List<MapProperties> deleted = new ArrayList<MapProperties>();
+			for (CompletableFuture<List<MapProperties>> batch : batches)
+				deleted.addAll(batch.get());
+
+			if (deleted.isEmpty())
+				return null;
+
+			return await(pipeline.runStage(Stage.CATALOG, () -> {
+				for (MapProperties properties : deleted)
+					metadataCatalog.remove(properties);
+
+				return convertedSet.removeAll(deleted);
+			}).thenCompose(removed -> removed == 0 ? CompletableFuture.completedFuture((String) null) : pipeline.requestJavaScriptUpdate(EarthModellingDaemon::generateAndTransferJavaScript).thenApply(transferred -> transferred ? null : "Error transferring updated JS after removing " + deleted.size() + " maps.")));
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException(ee.getCause()); // The futures above handle their own failures.
+		} finally {
+			release.complete(null);
+		}
+	}
+
+	/**
+	 * Removes a map's local files, its service, and its catalog entries. Must be called from within pipeline.submit() for the map.
+	 * 
+	 * @param properties
+	 *           The MapProperties that represents what needs to be deleted.
+	 * @return A future that completes with the error if the map wasn't successfully deleted; null if it was.
+	 */
+	private static CompletableFuture<String> removeMap(MapProperties properties) {
+		if (!convertedSet.contains(properties) && checkpoints.get(properties) != null)
+			return pipeline.runStage(Stage.PARAMS, () -> discardPartialMap(properties));
+
+		return pipeline.runStage(Stage.PARAMS, () -> {
+			if (!convertedSet.contains(properties))
+				return "The map " + properties.toString() + " is not in the ConvertedSet.";
 
-		if (!removeLocalMapFiles(properties))
-			return "Error deleting local map files for: " + properties.toString();
+			if (!removeLocalMapFiles(properties))
+				return "Error deleting local map files for: " + properties.toString();
 
-		return removeMapFromServerWithoutChecks(properties);
+			return removeService(properties);
+		}).thenCompose(error -> error != null ? CompletableFuture.completedFuture(error) : removeFromCatalog(properties));
 	}
 
 	/**
-	 * Removes a map from the ArcGIS server by executing a command line argument. Designed to be used by internal methods should map creation succeed, but a succeeding step fails. The calling method is responsible for deleting map files by calling removeLocalMapFiles().
+	 * Removes a map's service from the map server through the MapPublisher. Designed to be used by internal methods should map creation succeed, but a succeeding step fails. The calling method is responsible for deleting map files by calling removeLocalMapFiles() and for updating the catalog.
 	 * 
 	 * @param properties
 	 *           The MapProperties that represents what needs to be deleted.
-	 * @return The error if the map wasn't successfully deleted; null if it was.
+	 * @return The error if the service wasn't successfully deleted; null if it was.
 	 * @throws IOException
-	 *            Means that FileLocations.ARCSERVER_MANAGE_SERVICE_FILE_LOCATION couldn't be located.
+	 *            Means that the publisher couldn't be run (for ArcGIS, that manageservice.py couldn't be located).
 	 * @throws InterruptedException
 	 *            Probably means there was an issue while running the command line arguments.
 	 * @throws TimeoutException
-	 *            Means that the the service manager Python script was terminated before completion (took too long).
+	 *            Means that the publisher was terminated before completion (took too long).
 	 */
-	private static String removeMapFromServerWithoutChecks(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
-		// required arguments for the delete from server command using executable python script
-		// python.exe "C:\Program Files\ArcGIS\Server\tools\admin\manageservice.py" -u username -p password -s https://proj-se491.iastate.edu:6443 -n EarthModelingTest/service_name -o delete
-		String arguments[] = { "-u", arcgisServerUsername, "-p", arcgisServerPassword, "-s", "https://clu-vems.eeob.iastate.edu:6443", "-n", "EarthModelingTest/" + properties.toString(), "-o", "delete" };
-		String exceptions = logExceptions(runPythonScript(FileLocations.ARCSERVER_MANAGE_SERVICE_FILE_LOCATION, arguments));
+	private static String removeService(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+		return mapPublisher.delete(properties);
+	}
 
-		if (exceptions != null)
-			return "Error running the remove Python script for map: " + properties.toString();
+	/**
+	 * Removes a map from the ConvertedSet and MapMetadataCatalog on the CATALOG stage and regenerates the JS if the map was in the set.
+	 * 
+	 * @param properties
+	 *           The MapProperties that represents what was deleted.
+	 * @return A future that completes with an error if the JS couldn't be updated; null otherwise.
+	 */
+	private static CompletableFuture<String> removeFromCatalog(MapProperties properties) {
+		return pipeline.runStage(Stage.CATALOG, () -> {
+			metadataCatalog.remove(properties);
+			return convertedSet.remove(properties);
+		}).thenCompose(removed -> !removed ? CompletableFuture.completedFuture((String) null) : pipeline.requestJavaScriptUpdate(EarthModellingDaemon::generateAndTransferJavaScript).thenApply(transferred -> transferred ? null : "Error transferring updated JS after removing map: " + properties.toString() + "."));
+	}
+
+	/**
+	 * Throws away the partial work of a map whose creation didn't finish: its checkpoint, its CSV and other local files, and its service if it got as far as being published.
+	 * 
+	 * @param properties
+	 *           The MapProperties of the unfinished map.
+	 * @return The error if the map's service couldn't be removed; null otherwise.
+	 * @throws IOException
+	 *            Means that the publisher couldn't be run.
+	 * @throws InterruptedException
+	 *            Interrupted while removing the service.
+	 * @throws TimeoutException
+	 *            Means that the publisher was terminated before completion (took too long).
+	 */
+	private static String discardPartialMap(MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+		MapCheckpoints.Checkpoint checkpoint = checkpoints.clear(properties);
+		Logger.info("Discarding the partial work on {}.", properties);
 
-		if (convertedSet.remove(properties))
-			if (!generateAndTransferJavaScript())
-				return "Error transferring updated JS after removing map: " + properties.toString() + ".";
+		removeLocalMapFiles(properties);
+		deleteFile(getCsvFile(properties));
+		if (checkpoint != null && checkpoint.getStage().reached(MapCheckpoints.Stage.SERVICE_PUBLISHED))
+			return removeService(properties);
 
 		return null;
 	}
 
+	/**
+	 * @param properties
+	 *           The map.
+	 * @return The CSV that AsciiToCsv writes for the map.
+	 */
+	private static File getCsvFile(MapProperties properties) {
+		// AsciiToCsv swaps dashes for underscores to keep ESRI happy.
+		return new File(FileLocations.CSV_OUTPUT_DIRECTORY_LOCATION + properties.toString().replace("-", "_") + ".csv");
+	}
+
 	/**
 	 * Removes map files stored locally on the server.
 	 * 
@@ -421,7 +675,7 @@ public class EarthModellingDaemon {
 	 *           The MapProperites that represents what needs to be deleted.
 	 * @return true if and only if all files typically created on a successful map generation run were found and deleted; false otherwise.
 	 */
-	public static synchronized boolean removeLocalMapFiles(MapProperties properties) {
+	public static boolean removeLocalMapFiles(MapProperties properties) {
 		boolean ret = true;
 
 		// For ESRI, since some of their functions don't accept negative values as file arguments.
@@ -455,44 +709,314 @@ public class EarthModellingDaemon {
 	}
 
 	/**
-	 * Creates a map by calling the correct parsers and Python script(s).
+	 * Accepts an uploaded map as a CREATE_MAP (or REPLACE_MAP) job. The upload is stored with the job, so the job can be resumed if the daemon restarts before it is parsed. The job isn't started until startJob() is called, so the caller can subscribe to its updates first.
 	 * 
 	 * @param asciiFile
 	 *           A byte array representing the ASCII file that you wish to generate a map from.
 	 * @param properties
 	 *           The map's properties as defined in MapProperties.
-	 * @return The error if map wasn't successfully created; null if it was.
+	 * @param username
+	 *           The user that uploaded the map.
+	 * @param replaceExisting
+	 *           true to remove the map first if it already exists; false to fail the job if it already exists.
+	 * @return The status of the accepted job.
 	 * @throws IOException
-	 *            There was an error creating or reading from a temporary file/folder.
-	 * @throws InterruptedException
-	 *            Probably means one of the intermediary Python scipts were cut short before they could complete execution.
-	 * @throws TimeoutException
-	 *            Means an intermediary Python script was cut short because it took too long to process.
+	 *            The upload couldn't be stored. The job is marked as FAILED.
+	 * @throws IllegalAccessException
+	 *            If properties or username is null.
 	 */
-	public static synchronized String createMap(byte[] asciiFile, MapProperties properties) throws IOException, InterruptedException, TimeoutException {
-		File file = new File(FileLocations.TEMP_WORKING_DIRECTORY_LOCATION + properties.toString() + ".txt");
-		Files.write(file.toPath(), asciiFile);
+	public static JobStatus acceptMapJob(byte[] asciiFile, MapProperties properties, String username, boolean replaceExisting) throws IOException, IllegalAccessException {
+		JobStatus job = jobQueue.submit(replaceExisting ? JobStatus.Operation.REPLACE_MAP : JobStatus.Operation.CREATE_MAP, properties, username);
 
-		return createMap(file, properties);
+		try {
+			Files.write(JobQueue.getUploadFile(job.getJobId()).toPath(), asciiFile);
+		} catch (IOException ioe) {
+			jobQueue.update(job.getJobId(), JobStatus.State.FAILED, "The upload couldn't be stored on the server.");
+			throw ioe;
+		}
+
+		return job;
 	}
 
 	/**
-	 * Creates a map by calling the correct parsers and Python script(s).
+	 * Accepts a map on the disk as a CREATE_MAP (or REPLACE_MAP) job, in the same way as acceptMapJob(byte[], ...). The file is copied, so it can be changed or removed once this returns.
 	 * 
 	 * @param asciiFile
-	 *           A File (linked to something on the local disk) representing the ASCII file that you wish to generate a map from.
+	 *           The ASCII file that you wish to generate a map from.
 	 * @param properties
 	 *           The map's properties as defined in MapProperties.
-	 * @return The error if map wasn't successfully created; null if it was.
+	 * @param username
+	 *           The user that the map is created for.
+	 * @param replaceExisting
+	 *           true to remove the map first if it already exists; false to fail the job if it already exists.
+	 * @return The status of the accepted job.
 	 * @throws IOException
-	 *            There was an error creating or reading from a temporary file/folder.
-	 * @throws InterruptedException
-	 *            Probably means one of the intermediary Python scripts were cut short before they could complete execution.
-	 * @throws TimeoutException
-	 *            Means an intermediary Python script was cut short because it took too long to process.
+	 *            The file couldn't be copied. The job is marked as FAILED.
+	 * @throws IllegalAccessException
+	 *            If properties or username is null.
+	 */
+	public static JobStatus acceptMapJob(File asciiFile, MapProperties properties, String username, boolean replaceExisting) throws IOException, IllegalAccessException {
+		JobStatus job = jobQueue.submit(replaceExisting ? JobStatus.Operation.REPLACE_MAP : JobStatus.Operation.CREATE_MAP, properties, username);
+
+		try {
+			Files.copy(asciiFile.toPath(), JobQueue.getUploadFile(job.getJobId()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			jobQueue.update(job.getJobId(), JobStatus.State.FAILED, "The file couldn't be copied for processing.");
+			throw ioe;
+		}
+
+		return job;
+	}
+
+	/**
+	 * Accepts a committed chunked upload as a CREATE_MAP (or REPLACE_MAP) job, in the same way as acceptMapJob(byte[], ...). The staged file is moved rather than copied.
+	 * 
+	 * @param upload
+	 *           The upload, as returned by UploadStaging.commit().
+	 * @param username
+	 *           The user that the map is created for.
+	 * @return The status of the accepted job.
+	 * @throws IOException
+	 *            The file couldn't be moved. The job is marked as FAILED, and the staged file is deleted.
+	 * @throws IllegalAccessException
+	 *            If username is null.
 	 */
-	private static synchronized String createMap(File asciiFile, MapProperties properties) throws IOException, InterruptedException, TimeoutException {
+	public static JobStatus acceptMapJob(UploadStaging.Upload upload, String username) throws IOException, IllegalAccessException {
+		JobStatus job = jobQueue.submit(upload.getOverwriteExisting() ? JobStatus.Operation.REPLACE_MAP : JobStatus.Operation.CREATE_MAP, upload.getMapProperties(), username);
 
+		try {
+			Files.move(upload.getFile().toPath(), JobQueue.getUploadFile(job.getJobId()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			jobQueue.update(job.getJobId(), JobStatus.State.FAILED, "The upload couldn't be stored on the server.");
+			upload.getFile().delete();
+			throw ioe;
+		}
+
+		return job;
+	}
+
+	/**
+	 * Accepts a map whose content the server already holds, in the CSV of another converted map, as a CREATE_MAP (or REPLACE_MAP) job. The job copies that map's CSV instead of converting an upload, so the client doesn't have to send anything. Unlike other jobs, it can't be resumed if the daemon
+	 * restarts before it is parsed.
+	 * 
+	 * @param source
+	 *           The metadata of the map that holds the content, as returned by findUpload().
+	 * @param properties
+	 *           The map's properties as defined in MapProperties.
+	 * @param username
+	 *           The user that the map is created for.
+	 * @param replaceExisting
+	 *           true to remove the map first if it already exists; false to fail the job if it already exists.
+	 * @param uploadChecksum
+	 *           The checksum of the upload, as MapCheckpoints.checksum() would compute it, for the map's checkpoints.
+	 * @return The status of the accepted job.
+	 * @throws IllegalAccessException
+	 *            If properties or username is null.
+	 */
+	public static JobStatus acceptMapJob(MapMetadata source, MapProperties properties, String username, boolean replaceExisting, long uploadChecksum) throws IllegalAccessException {
+		JobStatus job = jobQueue.submit(replaceExisting ? JobStatus.Operation.REPLACE_MAP : JobStatus.Operation.CREATE_MAP, properties, username);
+		reusedUploads.put(job.getJobId(), new ReusedUpload(source, uploadChecksum));
+		Logger.info("Job {} reuses the content of {} for {}.", job.getJobId(), source.getMapProperties(), properties);
+
+		return job;
+	}
+
+	/**
+	 * Finds a converted map whose upload had the given content, so that an upload of the same content doesn't have to be sent. Doesn't wait on map creation or removal.
+	 * 
+	 * @param digest
+	 *           The SHA-256 digest of the upload.
+	 * @param uploadSizeBytes
+	 *           The size of the upload, in bytes.
+	 * @param properties
+	 *           The map that the upload is for, which is preferred if it holds the content itself.
+	 * @return The metadata of the given map if it holds the content; otherwise the metadata of another map that holds the content and still has its CSV; null if no map does.
+	 */
+	public static MapMetadata findUpload(byte[] digest, long uploadSizeBytes, MapProperties properties) {
+		MapMetadata found = null;
+		for (MapMetadata m : metadataCatalog.findByDigest(digest, uploadSizeBytes)) {
+			MapProperties held = m.getMapProperties();
+			if (!convertedSet.contains(held))
+				continue;
+
+			if (held.equals(properties))
+				return m;
+			if (found == null && getCsvFile(held).isFile())
+				found = m;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Starts a job accepted by acceptMapJob(). Returns right away; the job's progress is reported through the JobQueue.
+	 * 
+	 * @param jobId
+	 *           The ID of the job.
+	 */
+	public static void startJob(long jobId) {
+		JobStatus job = jobQueue.get(jobId);
+		if (job == null || job.getState() != JobStatus.State.QUEUED) {
+			Logger.warn("Job {} can't be started, because it isn't queued.", jobId);
+			return;
+		}
+
+		startCreateMapJob(job);
+	}
+
+	/**
+	 * Helper to run a CREATE_MAP or REPLACE_MAP job through the pipeline and record its outcome. Waits behind any other operation on the same map, but not behind other maps.
+	 * 
+	 * @param job
+	 *           The status of the job.
+	 */
+	private static void startCreateMapJob(JobStatus job) {
+		final long jobId = job.getJobId();
+		final MapProperties properties = job.getMapProperties();
+		final File upload = JobQueue.getUploadFile(jobId);
+		final ReusedUpload reused = reusedUploads.remove(jobId);
+
+		MapMetadata metadata;
+		try {
+			metadata = new MapMetadata(properties, job.getUsername(), reused != null ? reused.source.getUploadSizeBytes() : upload.length(), job.getSubmittedAt());
+		} catch (IllegalAccessException iae) {
+			jobQueue.update(jobId, JobStatus.State.FAILED, iae.getMessage());
+			deleteFile(upload);
+			return;
+		}
+
+		final boolean replace = job.getOperation() == JobStatus.Operation.REPLACE_MAP;
+
+		pipeline.submit(properties, () -> {
+			CompletableFuture<String> removal = replace && convertedSet.contains(properties) ? removeMap(properties) : CompletableFuture.completedFuture((String) null);
+
+			return removal.thenCompose(removalError -> removalError != null ? CompletableFuture.completedFuture(removalError) : pipeline.runStage(Stage.PARSE, () -> {
+				jobQueue.update(jobId, JobStatus.State.PARSING, null);
+				if (reused != null)
+					return (File) null; // There is no upload to move.
+
+				File file = new File(FileLocations.TEMP_WORKING_DIRECTORY_LOCATION + properties.toString() + ".txt");
+				Files.move(upload.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return file;
+			}).thenCompose(file -> createMap(file, properties, metadata, jobId, reused)));
+		}).whenComplete((error, e) -> {
+			if (e != null) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				Logger.error(cause, "Job {} failed.", jobId);
+				jobQueue.update(jobId, JobStatus.State.FAILED, "Map generation failed. Try again, utilizing the overwrite setting.\n" + cause);
+			} else if (error != null)
+				jobQueue.update(jobId, JobStatus.State.FAILED, error);
+			else
+				jobQueue.update(jobId, JobStatus.State.DONE, "The map " + properties.toString() + " was sucessfully created.");
+
+			// A job that failed before its upload was moved to the PARSE stage is never resumed, so nothing else would delete it.
+			if ((e != null || error != null) && upload.exists())
+				deleteFile(upload);
+		});
+	}
+
+	/**
+	 * Helper to pick up the jobs that hadn't finished when the daemon last stopped. CREATE_MAP and REPLACE_MAP jobs that hadn't been parsed yet still have their upload, so they are started again; every other unfinished job is marked as FAILED.
+	 */
+	private static void resumeUnfinishedJobs() {
+		for (JobStatus job : jobQueue.getUnfinishedAtStartup())
+			if (job.getOperation() != JobStatus.Operation.DELETE_MAP && JobQueue.getUploadFile(job.getJobId()).exists()) {
+				Logger.info("Resuming job {} after a restart.", job.getJobId());
+				startCreateMapJob(jobQueue.update(job.getJobId(), JobStatus.State.QUEUED, "Resumed after the server restarted."));
+			} else
+				jobQueue.update(job.getJobId(), JobStatus.State.FAILED, "The server restarted before this job finished. Please submit it again.");
+	}
+
+	/**
+	 * @return The MemoryBudget that large uploads and conversions reserve their memory from.
+	 */
+	public static MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return The chunked uploads that are on their way from clients.
+	 */
+	public static UploadStaging getUploadStaging() {
+		return uploadStaging;
+	}
+
+	/**
+	 * @return The catalog of every map that has been converted.
+	 */
+	public static ConvertedSet getConvertedSet() {
+		return convertedSet;
+	}
+
+	/**
+	 * @return The JobQueue that tracks every job the daemon has accepted.
+	 */
+	public static JobQueue getJobQueue() {
+		return jobQueue;
+	}
+
+	/**
+	 * Creates a map by passing it through each stage of the pipeline: parse, publish, publish parameters, and catalog. Each stage records a checkpoint in MapCheckpoints when it finishes, and a stage that fails keeps the work of the stages before it and skips the rest of the stages. Uploading the same
+	 * data again resumes the map at the first stage that didn't finish. Must be called from within pipeline.submit() for the map.
+	 * 
+	 * @param asciiFile
+	 *           A File (linked to something on the local disk) representing the ASCII file that you wish to generate a map from; null if the map reuses another map's content.
+	 * @param properties
+	 *           The map's properties as defined in MapProperties.
+	 * @param metadata
+	 *           The MapMetadata that statistics and timings should be recorded in. Added to the MapMetadataCatalog if the map is created.
+	 * @param jobId
+	 *           The ID of the job that the map is being created for. Its state is moved to PUBLISHING when the map reaches the PUBLISH stage.
+	 * @param reused
+	 *           The map whose CSV is copied instead of converting asciiFile; null to convert asciiFile.
+	 * @return A future that completes with the error if map wasn't successfully created; null if it was. Completes exceptionally with an IOException, InterruptedException, or TimeoutException if a stage threw one.
+	 */
+	private static CompletableFuture<String> createMap(File asciiFile, MapProperties properties, MapMetadata metadata, long jobId, ReusedUpload reused) {
+		CompletableFuture<String> result;
+		if (reused != null)
+			result = pipeline.runStage(Stage.PARSE, () -> parseStage(asciiFile, properties, metadata, reused, null));
+		else
+			// Wait for memory before taking a PARSE thread, so a large conversion can't hold up the maps (and deletes) behind it.
+			result = CompletableFuture.supplyAsync(() -> reserveConversionMemory(asciiFile, properties), memoryWaiters).thenCompose(reservation -> {
+				if (reservation == null) {
+					deleteFile(asciiFile);
+					return CompletableFuture.completedFuture("The server didn't have enough memory free to convert " + properties.toString() + " within " + MAX_MEMORY_WAIT_IN_MINUTES + " minutes. Please try again later.");
+				}
+
+				return pipeline.runStage(Stage.PARSE, () -> parseStage(asciiFile, properties, metadata, null, reservation)).whenComplete((error, e) -> reservation.close());
+			});
+		result = result.thenCompose(error -> error != null ? CompletableFuture.completedFuture(error) : pipeline.runStage(Stage.PUBLISH, () -> {
+			jobQueue.update(jobId, JobStatus.State.PUBLISHING, null);
+			return publishStage(asciiFile, properties, metadata);
+		}));
+		result = result.thenCompose(error -> error != null ? CompletableFuture.completedFuture(error) : pipeline.runStage(Stage.PARAMS, () -> paramsStage(asciiFile, properties, metadata)));
+		result = result.thenCompose(error -> error != null ? CompletableFuture.completedFuture(error) : addToCatalog(asciiFile, properties, metadata));
+
+		return result;
+	}
+
+	/**
+	 * Helper for createMap() that reserves the memory that converting an upload needs, waiting in line for up to MAX_MEMORY_WAIT_IN_MINUTES.
+	 * 
+	 * @return The reservation; null if there wasn't room in time.
+	 */
+	private static MemoryBudget.Reservation reserveConversionMemory(File asciiFile, MapProperties properties) {
+		try {
+			return memoryBudget.reserve("conversion of " + properties.toString(), asciiFile.length() * CONVERSION_BYTES_PER_UPLOAD_BYTE, MAX_MEMORY_WAIT_IN_MINUTES, TimeUnit.MINUTES);
+		} catch (InterruptedException ie) {
+			throw new CompletionException(ie);
+		}
+	}
+
+	/**
+	 * The PARSE stage of map creation. Checks the map against the ConvertedSet and converts it to a CSV (or copies the CSV of the map it reuses), unless an earlier attempt with the same upload already got past this stage. The partial work of an earlier attempt with a different upload is thrown
+	 * away.
+	 * 
+	 * @param reservation
+	 *           The memory reserved for converting asciiFile, which is given back once it is converted; null if the map reuses another map's content.
+	 * @return The error if the stage failed; null if it succeeded.
+	 */
+	private static String parseStage(File asciiFile, MapProperties properties, MapMetadata metadata, ReusedUpload reused, MemoryBudget.Reservation reservation) throws IOException, InterruptedException, TimeoutException {
 		// Check against converted set.
 		if (convertedSet.contains(properties)) {
 			Logger.warn("The file {} has already been converted!", properties.toString());
@@ -500,7 +1024,39 @@ public class EarthModellingDaemon {
 			return "The file " + properties.toString() + " has already been converted!";
 		}
 
-		File csvFile = convertAsciiToCsv(asciiFile);
+		long checksum = reused != null ? reused.checksum : MapCheckpoints.checksum(asciiFile);
+		MapCheckpoints.Checkpoint checkpoint = checkpoints.get(properties);
+		if (checkpoint != null) {
+			// Only the stages after CSV_WRITTEN need the CSV to be there, but all of them could need it again.
+			if (checkpoint.getUploadChecksum() == checksum && getCsvFile(properties).isFile()) {
+				MapMetadata done = checkpoint.getMetadata();
+				metadata.setCellStatistics(done.getCellCount(), done.getValidCellCount(), done.getMinValue(), done.getMaxValue());
+				metadata.setUploadDigest(done.getUploadDigest());
+				metadata.setConversionMillis(done.getConversionMillis());
+				metadata.setPublishMillis(done.getPublishMillis());
+				metadata.setParamsMillis(done.getParamsMillis());
+				Logger.info("Resuming {} after its {} checkpoint.", properties, checkpoint.getStage());
+				return null;
+			}
+
+			String error = discardPartialMap(properties);
+			if (error != null) {
+				deleteFile(asciiFile);
+				return "The earlier, unfinished attempt at " + properties.toString() + " couldn't be removed. " + error;
+			}
+		}
+
+		if (reused != null)
+			return copyReusedCsv(properties, metadata, reused);
+
+		metadata.setUploadDigest(MapMetadataCatalog.digest(asciiFile));
+		File csvFile;
+		try {
+			csvFile = convertAsciiToCsv(asciiFile, metadata);
+		} finally {
+			reservation.close();
+		}
+
 		if (csvFile == null) {
 			Logger.error("File generated became null");
 			removeLocalMapFiles(properties);
@@ -508,10 +1064,46 @@ public class EarthModellingDaemon {
 			return "There was an error converting " + properties.toString() + " to a CSV file.";
 		}
 
-		String template = properties.getMapRegion().toString() + properties.getMapCompoundType().toString();
-		String referenceScale;
+		checkpoints.record(properties, MapCheckpoints.Stage.CSV_WRITTEN, checksum, metadata);
+		return null;
+	}
+
+	/**
+	 * Helper for the PARSE stage of a map that reuses another map's content: copies that map's CSV and grid statistics instead of converting an upload.
+	 * 
+	 * @return The error if the CSV couldn't be copied; null if it was.
+	 */
+	private static String copyReusedCsv(MapProperties properties, MapMetadata metadata, ReusedUpload reused) throws IOException {
+		MapMetadata source = reused.source;
+		File csvFile = getCsvFile(source.getMapProperties());
+
+		try {
+			Files.copy(csvFile.toPath(), getCsvFile(properties).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException nsfe) {
+			return "The map " + source.getMapProperties().toString() + " that held the same content as " + properties.toString() + " was removed. Please upload the map again.";
+		}
+
+		metadata.setCellStatistics(source.getCellCount(), source.getValidCellCount(), source.getMinValue(), source.getMaxValue());
+		metadata.setUploadDigest(source.getUploadDigest());
+		Logger.info("Copied the CSV of {} for {}, which has the same content.", source.getMapProperties(), properties);
+
+		checkpoints.record(properties, MapCheckpoints.Stage.CSV_WRITTEN, reused.checksum, metadata);
+		return null;
+	}
+
+	/**
+	 * The PUBLISH stage of map creation. Publishes the map through the MapPublisher, starting from the saved map document if an earlier attempt got that far. If publishing fails, the CSV (and the map document, if one was saved) is kept for the next attempt.
+	 * 
+	 * @return The error if the stage failed; null if it succeeded.
+	 */
+	private static String publishStage(File asciiFile, MapProperties properties, MapMetadata metadata) throws IOException, InterruptedException, TimeoutException {
+		MapCheckpoints.Checkpoint checkpoint = checkpoints.get(properties);
+		if (checkpoint.getStage().reached(MapCheckpoints.Stage.SERVICE_PUBLISHED))
+			return null;
+
+		int referenceScale;
 		try {
-			referenceScale = "" + referenceScales.getReferenceScale(properties.getMapRegion());
+			referenceScale = referenceScales.getReferenceScale(properties.getMapRegion());
 		} catch (Exception e) {
 			Logger.error("Error when calling getReferenceScale. Check ReferenceScale Class.", e);
 			removeLocalMapFiles(properties);
@@ -519,35 +1111,104 @@ public class EarthModellingDaemon {
 			return "There was an error determining the proper reference scale for " + properties.toString() + ".";
 		}
 
-		String[] arguments = { FileLocations.ABS_CSV_OUTPUT_DIRECTORY_LOCATION, properties.toString(), FileLocations.CURRENT_WORKING_DIRECTORY_LOCATION, FileLocations.MAP_TEMPLATES_DIRECTORY_LOCATION, FileLocations.MAPS_PUBLISHING_DIRECTORY_LOCATION, FileLocations.TEMP_PUBLISHING_FILES_DIRECTORY_LOCATION, template, FileLocations.BLANK_MAP_FILE_LOCATION,
-				FileLocations.CSV_TABLES_OUTPUT_DIRECTORY_LOCATION, FileLocations.CREATED_GDBS_OUTPUT_DIRECTORY_LOCATION, FileLocations.CREATED_LAYERS_DIRECTORY_LOCATION, arcgisServerUsername, arcgisServerPassword, referenceScale, ServerInformation.ARCGIS_PUBLISH_ADMIN_FOLDER, ServerInformation.ARCGIS_PUBLISHING_SERVICES_SUBFOLDER };
+		boolean mapDocumentSaved = checkpoint.getStage() == MapCheckpoints.Stage.MXD_SAVED && mapPublisher.hasSavedMapDocument(properties);
+		long start = System.currentTimeMillis();
+		String error = mapPublisher.publish(properties, referenceScale, mapDocumentSaved);
+		metadata.setPublishMillis(System.currentTimeMillis() - start);
+		if (error != null) {
+			if (!mapDocumentSaved && mapPublisher.hasSavedMapDocument(properties))
+				checkpoints.record(properties, MapCheckpoints.Stage.MXD_SAVED, checkpoint.getUploadChecksum(), metadata);
+			else if (!mapDocumentSaved)
+				removeLocalMapFiles(properties); // Whatever was made before the MXD can't be reused; only the CSV can.
 
-		ArrayList<String> al = runPythonScript(FileLocations.PUBLISH_MAP_PYTHON_SCRIPT_LOCATION, arguments);
-		String exceptions = logExceptions(al);
-		if (exceptions != null) {
-			removeLocalMapFiles(properties);
 			deleteFile(asciiFile);
-			return "Error running map generation script for " + properties.toString() + ".";
+			return error + " Upload the map again to retry from where it stopped.";
 		}
 
-		String[] arguments2 = { properties.toString(), arcgisServerUsername, arcgisServerPassword, ServerInformation.ARCGIS_SERVER_NAME, "" + ServerInformation.ARCGIS_SERVER_PORT, ServerInformation.ARCGIS_INNER_SUBSTRING, ServerInformation.ARCGIS_PUBLISHING_SERVICES_SUBFOLDER, ServerInformation.ARCGIS_HTTPS_TOKEN_URL };
-		al = runPythonScript(FileLocations.PUBLISHING_PARAMS_PYTHON_SCRIPT_LOCATION, arguments2);
+		checkpoints.record(properties, MapCheckpoints.Stage.SERVICE_PUBLISHED, checkpoint.getUploadChecksum(), metadata);
+		return null;
+	}
 
-		exceptions = logExceptions(al);
-		if (exceptions != null) {
-			removeLocalMapFiles(properties);
-			removeMapFromServerWithoutChecks(properties);
+	/**
+	 * The PARAMS stage of map creation. Sets the service parameters through the MapPublisher. If it fails, the published service and the map's files are kept, so the next attempt only has to set the parameters again.
+	 * 
+	 * @return The error if the stage failed; null if it succeeded.
+	 */
+	private static String paramsStage(File asciiFile, MapProperties properties, MapMetadata metadata) throws IOException, InterruptedException, TimeoutException {
+		MapCheckpoints.Checkpoint checkpoint = checkpoints.get(properties);
+		if (checkpoint.getStage().reached(MapCheckpoints.Stage.PARAMS_APPLIED))
+			return null;
+
+		long start = System.currentTimeMillis();
+		String error = mapPublisher.setParams(properties);
+		metadata.setParamsMillis(System.currentTimeMillis() - start);
+		if (error != null) {
 			deleteFile(asciiFile);
-			return "Error running publish parameters script for " + properties.toString() + ".";
+			return error + " Upload the map again to retry from where it stopped.";
 		}
 
-		convertedSet.add(properties);
-		deleteFile(asciiFile);
+		checkpoints.record(properties, MapCheckpoints.Stage.PARAMS_APPLIED, checkpoint.getUploadChecksum(), metadata);
+		return null;
+	}
 
-		if (!generateAndTransferJavaScript())
-			return "Error transferring updated JS after creating map: " + properties.toString() + ".";
+	/**
+	 * The CATALOG stage of map creation. Adds the map to the MapMetadataCatalog and ConvertedSet, then asks for the JS to be regenerated.
+	 * 
+	 * @return A future that completes with an error if the JS couldn't be updated; null otherwise.
+	 */
+	private static CompletableFuture<String> addToCatalog(File asciiFile, MapProperties properties, MapMetadata metadata) {
+		return pipeline.runStage(Stage.CATALOG, () -> {
+			metadata.setCompletedAt(System.currentTimeMillis());
+			metadataCatalog.put(metadata);
+			convertedSet.add(properties);
+			checkpoints.clear(properties);
+			deleteFile(asciiFile);
+			Logger.info("Created map: {}", metadata);
+			return null;
+		}).thenCompose(v -> pipeline.requestJavaScriptUpdate(EarthModellingDaemon::generateAndTransferJavaScript)).thenApply(transferred -> transferred ? null : "Error transferring updated JS after creating map: " + properties.toString() + ".");
+	}
 
-		return null;
+	/**
+	 * Waits for a pipeline operation to finish and unwraps any exception it failed with, so callers see the same exceptions as before the pipeline existed.
+	 * 
+	 * @param operation
+	 *           The future returned by pipeline.submit().
+	 * @return The result of the operation.
+	 * @throws IOException
+	 *            A stage threw an IOException.
+	 * @throws InterruptedException
+	 *            A stage was interrupted, or this thread was interrupted while waiting.
+	 * @throws TimeoutException
+	 *            A stage threw a TimeoutException.
+	 */
+	private static String await(CompletableFuture<String> operation) throws IOException, InterruptedException, TimeoutException {
+		try {
+			return operation.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if (cause instanceof TimeoutException)
+				throw (TimeoutException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Finds the metadata of converted maps. Doesn't wait on map creation or removal.
+	 * 
+	 * @param region
+	 *           The region of the maps; null for all regions.
+	 * @param compound
+	 *           The compound of the maps; null for all compounds.
+	 * @return The MapMetadata of every matching map that has metadata, sorted by region, compound, year, and month.
+	 */
+	public static ArrayList<MapMetadata> getMapMetadata(MapRegionType region, MapCompoundType compound) {
+		return metadataCatalog.query(region, compound);
 	}
 
 	/**
@@ -557,7 +1218,7 @@ public class EarthModellingDaemon {
 	 * @param al
 	 *           An ArrayList that contains the output piped from an executable.
 	 */
-	private static String logExceptions(ArrayList<String> al) {
+	static String logExceptions(ArrayList<String> al) {
 		String ret = null;
 
 		for (String s : al) {
@@ -578,14 +1239,13 @@ public class EarthModellingDaemon {
 	 */
 	private static boolean generateAndTransferJavaScript() {
 		try {
-			new JavaScriptGenerator(convertedSet, compoundDescriptions);
+			new JavaScriptGenerator(convertedSet.snapshot(), compoundDescriptions);
 		} catch (IOException | IllegalArgumentException | IllegalAccessException e) {
 			Logger.error("Issue generating new JavaScript.", e);
 			return false;
 		}
 
-		//String miniJS = FileLocations.TEMP_WORKING_DIRECTORY_LOCATION + "minifiedAutoJS.js";
-		String miniJS = ServerInformation.WEB_SERVER_JAVASCRIPT_DIRECTORY_LOCATION + "minifiedAutoJS.js";
+		String miniJS = FileLocations.TEMP_WORKING_DIRECTORY_LOCATION + "minifiedAutoJS.js";
 		String[] arguments = { "-jar", FileLocations.JS_MINIFIER_JAR_LOCATION, "--js", FileLocations.JAVASCRIPT_FILE_LOCATION, "--js_output_file", miniJS };
 
 		try {
@@ -600,9 +1260,17 @@ public class EarthModellingDaemon {
 			//Logger.info(output);
 			return false;
 		}
-	
+
+		try {
+			jsPublisher.publish(new File(miniJS));
+		} catch (IOException e) {
+			Logger.error("Failed to publish the minified JS to the web server.", e);
+			return false;
+		} finally {
+			deleteFile(new File(miniJS));
+		}
+
 		return true;
-		//return transferFileToWebServer(miniJS, ServerInformation.WEB_SERVER_JAVASCRIPT_DIRECTORY_LOCATION);
 	}
 
 	/**
@@ -631,4 +1299,18 @@ public class EarthModellingDaemon {
 
 		return true;
 	}
+
+	/**
+	 * The content that a job accepted by acceptMapJob(MapMetadata, ...) reuses.
+	 */
+	private static class ReusedUpload {
+
+		private final MapMetadata source;
+		private final long checksum;
+
+		private ReusedUpload(MapMetadata source, long checksum) {
+			this.source = source;
+			this.checksum = checksum;
+		}
+	}
 }
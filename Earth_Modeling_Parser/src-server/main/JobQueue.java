@@ -0,0 +1,346 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Keeps track of every job the daemon has accepted. Every state change is appended to jobs.dat before listeners hear about it, so a job's last known state survives a restart. The log is replayed and compacted every time the daemon starts; unfinished jobs are kept, along with the most
+ *         recent finished ones.
+ */
+
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.JobStatus;
+import utils.MapProperties;
+
+public class JobQueue {
+
+	public static final int MAX_FINISHED_JOBS_KEPT = 1000; // Finished jobs beyond this are dropped when the log is compacted.
+	private static final int MAX_MESSAGE_LENGTH = 8192; // Keeps every record well under the 64KB limit of writeUTF().
+
+	private static final int FILE_MAGIC = 0x564A4F42; // "VJOB"
+	private static final int FILE_VERSION = 1;
+	private static final byte STATUS_RECORD = 1;
+
+	private final ConcurrentHashMap<Long, JobStatus> jobs;
+	private final CopyOnWriteArrayList<Consumer<JobStatus>> listeners;
+	private final AtomicLong nextJobId;
+	private final ArrayList<JobStatus> unfinishedAtStartup;
+	private FileOutputStream out;
+	private DataOutputStream log;
+
+	/**
+	 * Creates the queue by replaying jobs.dat, then compacts the file and opens it for appending.
+	 * 
+	 * @throws IOException
+	 *            Can't read from or write to jobs.dat!
+	 */
+	public JobQueue() throws IOException {
+		jobs = new ConcurrentHashMap<Long, JobStatus>();
+		listeners = new CopyOnWriteArrayList<Consumer<JobStatus>>();
+
+		File file = new File(FileLocations.JOBS_FILE_LOCATION);
+		if (file.exists() && file.length() > 0)
+			replay(file);
+
+		long maxId = 0;
+		unfinishedAtStartup = new ArrayList<JobStatus>();
+		for (JobStatus js : jobs.values()) {
+			maxId = Math.max(maxId, js.getJobId());
+			if (!js.getState().isFinished())
+				unfinishedAtStartup.add(js);
+		}
+		unfinishedAtStartup.sort(Comparator.comparingLong(JobStatus::getJobId));
+		nextJobId = new AtomicLong(maxId + 1);
+
+		compact(file);
+		out = new FileOutputStream(file, true);
+		log = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	/**
+	 * Helper to read every record in the log. Later records for a job replace earlier ones. A record cut short by a crash is dropped.
+	 * 
+	 * @param file
+	 *           The jobs.dat file.
+	 * @throws IOException
+	 *            Can't read from jobs.dat!
+	 */
+	private void replay(File file) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (dis.readInt() != FILE_MAGIC || dis.readInt() != FILE_VERSION) {
+				Logger.error("The jobs file at: {} isn't in a known format. Starting with no jobs.", FileLocations.JOBS_FILE_LOCATION);
+				return;
+			}
+
+			while (true) {
+				byte op = dis.readByte();
+				if (op != STATUS_RECORD) {
+					Logger.error("Unknown record type {} in the jobs file at: {}. Ignoring the rest of the file.", op, FileLocations.JOBS_FILE_LOCATION);
+					return;
+				}
+
+				JobStatus js = readStatus(dis);
+				jobs.put(js.getJobId(), js);
+			}
+		} catch (EOFException eofe) {
+			// End of the log (possibly in the middle of a record that was being written during a crash).
+		}
+	}
+
+	/**
+	 * Helper to rewrite the log with every unfinished job and the most recent MAX_FINISHED_JOBS_KEPT finished jobs.
+	 * 
+	 * @param file
+	 *           The jobs.dat file.
+	 * @throws IOException
+	 *            Can't write to jobs.dat!
+	 */
+	private void compact(File file) throws IOException {
+		ArrayList<JobStatus> finished = new ArrayList<JobStatus>();
+		for (JobStatus js : jobs.values())
+			if (js.getState().isFinished())
+				finished.add(js);
+
+		finished.sort(Comparator.comparingLong(JobStatus::getJobId));
+		for (int i = 0; i < finished.size() - MAX_FINISHED_JOBS_KEPT; i++)
+			jobs.remove(finished.get(i).getJobId());
+
+		DataFiles.replace(file, dos -> {
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(FILE_VERSION);
+
+			for (JobStatus js : jobs.values())
+				writeStatus(dos, js);
+		});
+	}
+
+	/**
+	 * Accepts a new job in the QUEUED state.
+	 * 
+	 * @param operation
+	 *           What the job does.
+	 * @param properties
+	 *           The map the job works on.
+	 * @param username
+	 *           The user that submitted the job.
+	 * @return The status of the new job.
+	 * @throws IllegalAccessException
+	 *            If operation, properties, or username is null.
+	 */
+	public JobStatus submit(JobStatus.Operation operation, MapProperties properties, String username) throws IllegalAccessException {
+		long now = System.currentTimeMillis();
+		JobStatus js = new JobStatus(nextJobId.getAndIncrement(), operation, properties, username, JobStatus.State.QUEUED, null, now, now);
+		jobs.put(js.getJobId(), js);
+		record(js);
+
+		return js;
+	}
+
+	/**
+	 * Moves a job to a new state. Finished jobs never change state again, so updates to them are ignored.
+	 * 
+	 * @param jobId
+	 *           The ID of the job.
+	 * @param state
+	 *           The state the job is now in.
+	 * @param message
+	 *           Details about the new state (such as the error a job failed with); null if there are none.
+	 * @return The new status of the job; null if the job doesn't exist or had already finished.
+	 */
+	public JobStatus update(long jobId, JobStatus.State state, String message) {
+		final String trimmed = message != null && message.length() > MAX_MESSAGE_LENGTH ? message.substring(0, MAX_MESSAGE_LENGTH) : message;
+		final JobStatus[] updated = new JobStatus[1];
+
+		// Appended while the job is locked, so the log holds a job's statuses in the order they happened.
+		jobs.computeIfPresent(jobId, (id, js) -> {
+			if (js.getState().isFinished())
+				return js;
+
+			updated[0] = js.withState(state, trimmed);
+			append(updated[0]);
+			return updated[0];
+		});
+
+		if (updated[0] != null)
+			announce(updated[0]);
+
+		return updated[0];
+	}
+
+	/**
+	 * Helper to append a status to the log and then tell every listener about it.
+	 * 
+	 * @param js
+	 *           The new status of a job.
+	 */
+	private void record(JobStatus js) {
+		append(js);
+		announce(js);
+	}
+
+	/**
+	 * Helper to append a status to the log. QUEUED and finished statuses are forced to the disk, so that a crash can't lose a job the client was told about, or make a finished job run again; the states in between are redone anyway when the job is resumed.
+	 * 
+	 * @param js
+	 *           The new status of a job.
+	 */
+	private synchronized void append(JobStatus js) {
+		try {
+			writeStatus(log, js);
+			log.flush();
+			if (js.getState() == JobStatus.State.QUEUED || js.getState().isFinished())
+				out.getFD().sync();
+		} catch (IOException ioe) {
+			Logger.error("Error appending the status of job {}: {}", js.getJobId(), ioe);
+		}
+	}
+
+	/**
+	 * Helper to tell every listener about a status.
+	 * 
+	 * @param js
+	 *           The new status of a job.
+	 */
+	private void announce(JobStatus js) {
+		Logger.info(js);
+		for (Consumer<JobStatus> listener : listeners)
+			try {
+				listener.accept(js);
+			} catch (Exception e) {
+				Logger.error("Job listener failed.", e);
+			}
+	}
+
+	/**
+	 * @param jobId
+	 *           The ID of the job.
+	 * @return The current status of the job; null if no such job is known.
+	 */
+	public JobStatus get(long jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * @return The current status of every known job, sorted by job ID.
+	 */
+	public ArrayList<JobStatus> list() {
+		ArrayList<JobStatus> ret = new ArrayList<JobStatus>(jobs.values());
+		ret.sort(Comparator.comparingLong(JobStatus::getJobId));
+		return ret;
+	}
+
+	/**
+	 * @return The jobs that hadn't finished when the daemon last stopped, sorted by job ID. The daemon is expected to resume or fail each of them.
+	 */
+	public List<JobStatus> getUnfinishedAtStartup() {
+		return unfinishedAtStartup;
+	}
+
+	/**
+	 * @param jobId
+	 *           The ID of the job.
+	 * @return Where the uploaded ASCII file of a CREATE_MAP job is kept until the job has parsed it.
+	 */
+	public static File getUploadFile(long jobId) {
+		return new File(FileLocations.JOB_UPLOADS_DIRECTORY_LOCATION + jobId + ".txt");
+	}
+
+	/**
+	 * Registers a listener that is called, on the thread that made the change, every time any job changes state.
+	 * 
+	 * @param listener
+	 *           The listener to add.
+	 */
+	public void addListener(Consumer<JobStatus> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *           The listener to remove.
+	 */
+	public void removeListener(Consumer<JobStatus> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Helper to write a status record.
+	 * 
+	 * @param dos
+	 *           The stream to write to.
+	 * @param js
+	 *           The JobStatus to write.
+	 * @throws IOException
+	 *            Can't write to the stream!
+	 */
+	private static void writeStatus(DataOutputStream dos, JobStatus js) throws IOException {
+		dos.writeByte(STATUS_RECORD);
+		dos.writeLong(js.getJobId());
+		dos.writeByte(js.getOperation().ordinal());
+		dos.writeInt(js.getMapProperties().toPackedKey());
+		dos.writeUTF(js.getUsername());
+		dos.writeByte(js.getState().ordinal());
+		dos.writeBoolean(js.getMessage() != null);
+		if (js.getMessage() != null)
+			dos.writeUTF(js.getMessage());
+		dos.writeLong(js.getSubmittedAt());
+		dos.writeLong(js.getUpdatedAt());
+	}
+
+	/**
+	 * Helper to read the body of a status record.
+	 * 
+	 * @param dis
+	 *           The stream to read from.
+	 * @return The JobStatus stored in the record.
+	 * @throws IOException
+	 *            Can't read from the stream, or the record is corrupt!
+	 */
+	private static JobStatus readStatus(DataInputStream dis) throws IOException {
+		long jobId = dis.readLong();
+		try {
+			JobStatus.Operation operation = JobStatus.Operation.values()[dis.readByte()];
+			MapProperties properties = MapProperties.fromPackedKey(dis.readInt());
+			String username = dis.readUTF();
+			JobStatus.State state = JobStatus.State.values()[dis.readByte()];
+			String message = dis.readBoolean() ? dis.readUTF() : null;
+			long submittedAt = dis.readLong();
+			long updatedAt = dis.readLong();
+
+			return new JobStatus(jobId, operation, properties, username, state, message, submittedAt, updatedAt);
+		} catch (IllegalAccessException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt status record for job " + jobId + ".", e);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Just enough JSON to talk to the Python workers one line at a time. Objects become LinkedHashMaps, arrays become ArrayLists, numbers become Longs or Doubles, and the rest map to String, Boolean, and null. Not meant as a general purpose JSON library.
+ */
+
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class JsonLines {
+
+	private final String text;
+	private int pos;
+
+	private JsonLines(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Writes a value as a single line of JSON (without the line break).
+	 *
+	 * @param value
+	 *           A Map with String keys, a List or array, a String, a Number, a Boolean, or null.
+	 * @return The JSON text.
+	 */
+	static String write(Object value) {
+		StringBuilder sb = new StringBuilder();
+		write(sb, value);
+		return sb.toString();
+	}
+
+	/**
+	 * Parses one line of JSON.
+	 *
+	 * @param line
+	 *           The JSON text.
+	 * @return The parsed value.
+	 * @throws IllegalArgumentException
+	 *            The line isn't valid JSON.
+	 */
+	static Object parse(String line) {
+		JsonLines parser = new JsonLines(line);
+		Object value = parser.readValue();
+		parser.skipWhitespace();
+		if (parser.pos != line.length())
+			throw parser.error("Unexpected trailing characters");
+
+		return value;
+	}
+
+	private static void write(StringBuilder sb, Object value) {
+		if (value == null)
+			sb.append("null");
+		else if (value instanceof String)
+			quote(sb, (String) value);
+		else if (value instanceof Number || value instanceof Boolean)
+			sb.append(value);
+		else if (value instanceof Map) {
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				if (!first)
+					sb.append(", ");
+				first = false;
+				quote(sb, e.getKey().toString());
+				sb.append(": ");
+				write(sb, e.getValue());
+			}
+			sb.append('}');
+		} else if (value instanceof List || value instanceof Object[]) {
+			List<?> list = value instanceof List ? (List<?>) value : Arrays.asList((Object[]) value);
+			sb.append('[');
+			for (int i = 0; i < list.size(); i++) {
+				if (i > 0)
+					sb.append(", ");
+				write(sb, list.get(i));
+			}
+			sb.append(']');
+		} else
+			throw new IllegalArgumentException("Can't write a " + value.getClass().getName() + " as JSON.");
+	}
+
+	private static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20 || c > 0x7e)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos >= text.length())
+			throw error("Unexpected end of input");
+
+		char c = text.charAt(pos);
+		if (c == '{')
+			return readObject();
+		if (c == '[')
+			return readArray();
+		if (c == '"')
+			return readString();
+		if (text.startsWith("true", pos)) {
+			pos += 4;
+			return Boolean.TRUE;
+		}
+		if (text.startsWith("false", pos)) {
+			pos += 5;
+			return Boolean.FALSE;
+		}
+		if (text.startsWith("null", pos)) {
+			pos += 4;
+			return null;
+		}
+
+		return readNumber();
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		pos++; // {
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return map;
+		}
+
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("Expected a key");
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			map.put(key, readValue());
+			skipWhitespace();
+			if (peek() == ',')
+				pos++;
+			else {
+				expect('}');
+				return map;
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> list = new ArrayList<Object>();
+		pos++; // [
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+
+		while (true) {
+			list.add(readValue());
+			skipWhitespace();
+			if (peek() == ',')
+				pos++;
+			else {
+				expect(']');
+				return list;
+			}
+		}
+	}
+
+	private String readString() {
+		StringBuilder sb = new StringBuilder();
+		pos++; // "
+		while (pos < text.length()) {
+			char c = text.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+
+			if (pos >= text.length())
+				break;
+			char e = text.charAt(pos++);
+			switch (e) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > text.length())
+						throw error("Truncated unicode escape");
+					try {
+						sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException nfe) {
+						throw error("Invalid unicode escape");
+					}
+					pos += 4;
+					break;
+				default: // " \ /
+					sb.append(e);
+			}
+		}
+
+		throw error("Unterminated string");
+	}
+
+	private Number readNumber() {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+			pos++;
+
+		String number = text.substring(start, pos);
+		try {
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0)
+				return Long.valueOf(number);
+			return Double.valueOf(number);
+		} catch (NumberFormatException nfe) {
+			throw error("Invalid value");
+		}
+	}
+
+	private char peek() {
+		if (pos >= text.length())
+			throw error("Unexpected end of input");
+		return text.charAt(pos);
+	}
+
+	private void expect(char c) {
+		if (peek() != c)
+			throw error("Expected '" + c + "'");
+		pos++;
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at character " + pos + " of: " + text);
+	}
+}
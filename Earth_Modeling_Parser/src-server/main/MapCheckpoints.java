@@ -0,0 +1,316 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Records how far the creation of each unfinished map got, so that a retry (or an overwrite with the same upload) picks up at the first stage that didn't finish instead of converting and publishing the map all over again. A checkpoint remembers a checksum of the upload it was made from; an
+ *         upload with different contents starts from scratch. Checkpoints are appended to checkpoints.dat and synced to the disk before the next stage starts, and the file is replayed and compacted at startup, in the same way as metadata.dat.
+ */
+
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.MapMetadata;
+import utils.MapProperties;
+
+public class MapCheckpoints {
+
+	private static final int FILE_MAGIC = 0x5643484B; // "VCHK"
+	private static final int FILE_VERSION = 2;
+	private static final int DIGEST_FILE_VERSION = 2; // The first version whose metadata holds the upload digest.
+	private static final byte SET_RECORD = 1;
+	private static final byte CLEAR_RECORD = 2;
+
+	/**
+	 * The stages of map creation that leave something durable behind, in the order they happen.
+	 */
+	public enum Stage {
+		/** The CSV has been written to Parsed_CSV_files. */
+		CSV_WRITTEN,
+		/** The publish script saved the MXD, but didn't finish publishing the service. */
+		MXD_SAVED,
+		/** The service is on the map server. */
+		SERVICE_PUBLISHED,
+		/** The service parameters have been set. All that's left is adding the map to the catalog. */
+		PARAMS_APPLIED;
+
+		/**
+		 * @param other
+		 *           Another stage.
+		 * @return true if this stage comes at or after the other stage.
+		 */
+		public boolean reached(Stage other) {
+			return compareTo(other) >= 0;
+		}
+	}
+
+	/**
+	 * The furthest stage that a map got to, along with what's needed to carry on from it.
+	 */
+	public static class Checkpoint {
+
+		private final Stage stage;
+		private final long uploadChecksum;
+		private final MapMetadata metadata;
+
+		private Checkpoint(Stage stage, long uploadChecksum, MapMetadata metadata) {
+			this.stage = stage;
+			this.uploadChecksum = uploadChecksum;
+			this.metadata = metadata;
+		}
+
+		/**
+		 * @return The last stage that finished.
+		 */
+		public Stage getStage() {
+			return stage;
+		}
+
+		/**
+		 * @return The checksum (from MapCheckpoints.checksum()) of the upload the map was being created from.
+		 */
+		public long getUploadChecksum() {
+			return uploadChecksum;
+		}
+
+		/**
+		 * @return The statistics and timings recorded by the stages that finished.
+		 */
+		public MapMetadata getMetadata() {
+			return metadata;
+		}
+	}
+
+	private final Map<Integer, Checkpoint> checkpoints;
+	private FileOutputStream out;
+	private DataOutputStream log;
+
+	/**
+	 * Loads the checkpoints by replaying checkpoints.dat, then compacts the file and opens it for appending.
+	 *
+	 * @throws IOException
+	 *            Can't read from or write to checkpoints.dat!
+	 */
+	public MapCheckpoints() throws IOException {
+		checkpoints = new ConcurrentHashMap<Integer, Checkpoint>();
+
+		File file = new File(FileLocations.CHECKPOINTS_FILE_LOCATION);
+		if (file.exists() && file.length() > 0)
+			replay(file);
+
+		compact(file);
+		out = new FileOutputStream(file, true);
+		log = new DataOutputStream(new BufferedOutputStream(out));
+
+		if (!checkpoints.isEmpty())
+			Logger.info("{} unfinished map(s) can be resumed from a checkpoint.", checkpoints.size());
+	}
+
+	/**
+	 * Helper to read every record in the log. A record cut short by a crash is dropped.
+	 *
+	 * @param file
+	 *           The checkpoints.dat file.
+	 * @throws IOException
+	 *            Can't read from checkpoints.dat!
+	 */
+	private void replay(File file) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int version = dis.readInt() != FILE_MAGIC ? -1 : dis.readInt();
+			if (version < 1 || version > FILE_VERSION) {
+				Logger.error("The checkpoint file at: {} isn't in a known format. Unfinished maps will start over.", FileLocations.CHECKPOINTS_FILE_LOCATION);
+				return;
+			}
+
+			Stage[] stages = Stage.values();
+			while (true) {
+				byte op = dis.readByte();
+				int key = dis.readInt();
+
+				if (op == SET_RECORD) {
+					int stage = dis.readByte();
+					long checksum = dis.readLong();
+					MapMetadata m = MapMetadataCatalog.readMetadata(dis, key, version >= DIGEST_FILE_VERSION);
+					if (stage < 0 || stage >= stages.length)
+						throw new IOException("Unknown stage " + stage + " for key " + key + ".");
+
+					checkpoints.put(key, new Checkpoint(stages[stage], checksum, m));
+				} else if (op == CLEAR_RECORD)
+					checkpoints.remove(key);
+				else {
+					Logger.error("Unknown record type {} in the checkpoint file at: {}. Ignoring the rest of the file.", op, FileLocations.CHECKPOINTS_FILE_LOCATION);
+					return;
+				}
+			}
+		} catch (EOFException eofe) {
+			// End of the log (possibly in the middle of a record that was being written during a crash).
+		}
+	}
+
+	/**
+	 * Helper to rewrite the log with only the current checkpoints.
+	 *
+	 * @param file
+	 *           The checkpoints.dat file.
+	 * @throws IOException
+	 *            Can't write to checkpoints.dat!
+	 */
+	private void compact(File file) throws IOException {
+		DataFiles.replace(file, dos -> {
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(FILE_VERSION);
+
+			for (Map.Entry<Integer, Checkpoint> e : checkpoints.entrySet())
+				writeCheckpoint(dos, e.getKey(), e.getValue());
+		});
+	}
+
+	/**
+	 * Records that a map has finished a stage. Returns once the checkpoint is on the disk.
+	 *
+	 * @param properties
+	 *           The map.
+	 * @param stage
+	 *           The stage that just finished.
+	 * @param uploadChecksum
+	 *           The checksum of the upload the map is being created from.
+	 * @param metadata
+	 *           The statistics and timings recorded so far.
+	 */
+	public void record(MapProperties properties, Stage stage, long uploadChecksum, MapMetadata metadata) {
+		int key = properties.toPackedKey();
+		Checkpoint checkpoint = new Checkpoint(stage, uploadChecksum, metadata);
+		checkpoints.put(key, checkpoint);
+
+		synchronized (this) {
+			try {
+				writeCheckpoint(log, key, checkpoint);
+				log.flush();
+				out.getFD().sync();
+			} catch (IOException ioe) {
+				Logger.error("Error appending the {} checkpoint of {}: {}", stage, properties, ioe);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the checkpoint of a map, once the map is finished or its partial work has been thrown away.
+	 *
+	 * @param properties
+	 *           The map.
+	 * @return The checkpoint that was cleared; null if the map had none.
+	 */
+	public Checkpoint clear(MapProperties properties) {
+		int key = properties.toPackedKey();
+		Checkpoint removed = checkpoints.remove(key);
+		if (removed == null)
+			return null;
+
+		synchronized (this) {
+			try {
+				log.writeByte(CLEAR_RECORD);
+				log.writeInt(key);
+				log.flush();
+				out.getFD().sync();
+			} catch (IOException ioe) {
+				Logger.error("Error appending the removal of the checkpoint of {}: {}", properties, ioe);
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * @param properties
+	 *           The map.
+	 * @return The map's checkpoint; null if it has none.
+	 */
+	public Checkpoint get(MapProperties properties) {
+		return checkpoints.get(properties.toPackedKey());
+	}
+
+	/**
+	 * @param packedKey
+	 *           The packed key of a map, from MapProperties.toPackedKey().
+	 * @return true if the map has an unfinished creation that can be resumed.
+	 */
+	public boolean contains(int packedKey) {
+		return checkpoints.containsKey(packedKey);
+	}
+
+	/**
+	 * Computes the checksum that identifies an upload, so that a retry can tell whether it is for the same data.
+	 *
+	 * @param upload
+	 *           The uploaded ASCII file.
+	 * @return The CRC-32 of the file's contents, combined with its length.
+	 * @throws IOException
+	 *            The file couldn't be read.
+	 */
+	public static long checksum(File upload) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		long length = 0;
+
+		try (InputStream in = new FileInputStream(upload)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				length += read;
+			}
+		}
+
+		return checksum(length, crc.getValue());
+	}
+
+	/**
+	 * Combines an upload's length and CRC-32 into the checksum that identifies it, for uploads whose CRC-32 was computed as they came in.
+	 *
+	 * @param length
+	 *           The length of the upload in bytes.
+	 * @param crc
+	 *           The CRC-32 of the upload's contents.
+	 * @return The same checksum that checksum(File) returns for the upload.
+	 */
+	public static long checksum(long length, long crc) {
+		return (length << 32) ^ crc;
+	}
+
+	/**
+	 * Helper to write a set record.
+	 */
+	private static void writeCheckpoint(DataOutputStream dos, int key, Checkpoint checkpoint) throws IOException {
+		dos.writeByte(SET_RECORD);
+		dos.writeInt(key);
+		dos.writeByte(checkpoint.stage.ordinal());
+		dos.writeLong(checkpoint.uploadChecksum);
+		MapMetadataCatalog.writeMetadataBody(dos, checkpoint.metadata);
+	}
+}
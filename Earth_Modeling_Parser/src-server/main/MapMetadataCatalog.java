@@ -0,0 +1,333 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Keeps the MapMetadata of every converted map. Changes are appended to metadata.dat as small binary records, so recording a map costs one short write no matter how many maps exist. The log is replayed and compacted (rewritten with only the live records) every time the daemon starts.
+ * 
+ *         Version 2 of the file adds the digest of each map's upload, so that an upload of the same content can be recognized before it is sent (see findByDigest()). Version 1 files are still read, and are rewritten as version 2 when they are compacted.
+ */
+
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.MapCompoundType;
+import utils.MapMetadata;
+import utils.MapProperties;
+import utils.MapRegionType;
+
+public class MapMetadataCatalog {
+
+	private static final int FILE_MAGIC = 0x564D4D44; // "VMMD"
+	private static final int FILE_VERSION = 2;
+	private static final int DIGEST_FILE_VERSION = 2; // The first version whose records hold the upload digest.
+	private static final byte PUT_RECORD = 1;
+	private static final byte REMOVE_RECORD = 2;
+
+	private final Map<Integer, MapMetadata> metadata;
+	private DataOutputStream log;
+
+	/**
+	 * Creates the catalog by replaying metadata.dat, then compacts the file and opens it for appending.
+	 * 
+	 * @throws IOException
+	 *            Can't read from or write to metadata.dat!
+	 */
+	public MapMetadataCatalog() throws IOException {
+		metadata = new ConcurrentHashMap<Integer, MapMetadata>();
+
+		File file = new File(FileLocations.METADATA_FILE_LOCATION);
+		if (file.exists() && file.length() > 0)
+			replay(file);
+
+		compact(file);
+		log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	/**
+	 * Helper to read every record in the log into the map. A record cut short by a crash is dropped.
+	 * 
+	 * @param file
+	 *           The metadata.dat file.
+	 * @throws IOException
+	 *            Can't read from metadata.dat!
+	 */
+	private void replay(File file) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int version = dis.readInt() != FILE_MAGIC ? -1 : dis.readInt();
+			if (version < 1 || version > FILE_VERSION) {
+				Logger.error("The metadata file at: {} isn't in a known format. Starting with empty metadata.", FileLocations.METADATA_FILE_LOCATION);
+				return;
+			}
+
+			while (true) {
+				byte op = dis.readByte();
+				int key = dis.readInt();
+
+				if (op == PUT_RECORD)
+					metadata.put(key, readMetadata(dis, key, version >= DIGEST_FILE_VERSION));
+				else if (op == REMOVE_RECORD)
+					metadata.remove(key);
+				else {
+					Logger.error("Unknown record type {} in the metadata file at: {}. Ignoring the rest of the file.", op, FileLocations.METADATA_FILE_LOCATION);
+					return;
+				}
+			}
+		} catch (EOFException eofe) {
+			// End of the log (possibly in the middle of a record that was being written during a crash).
+		}
+	}
+
+	/**
+	 * Helper to rewrite the log with only the current metadata.
+	 * 
+	 * @param file
+	 *           The metadata.dat file.
+	 * @throws IOException
+	 *            Can't write to metadata.dat!
+	 */
+	private void compact(File file) throws IOException {
+		DataFiles.replace(file, dos -> {
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(FILE_VERSION);
+
+			for (MapMetadata m : metadata.values())
+				writeMetadata(dos, m);
+		});
+	}
+
+	/**
+	 * Records the metadata of a map, replacing any metadata it already had.
+	 * 
+	 * @param m
+	 *           The MapMetadata of the map.
+	 */
+	public void put(MapMetadata m) {
+		metadata.put(m.getMapProperties().toPackedKey(), m);
+
+		synchronized (this) {
+			try {
+				writeMetadata(log, m);
+				log.flush();
+			} catch (IOException ioe) {
+				Logger.error("Error appending the metadata of {}: {}", m.getMapProperties(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the metadata of a map.
+	 * 
+	 * @param properties
+	 *           The MapProperties of the map.
+	 */
+	public void remove(MapProperties properties) {
+		int key = properties.toPackedKey();
+		if (metadata.remove(key) == null)
+			return;
+
+		synchronized (this) {
+			try {
+				log.writeByte(REMOVE_RECORD);
+				log.writeInt(key);
+				log.flush();
+			} catch (IOException ioe) {
+				Logger.error("Error appending the removal of {}: {}", properties, ioe);
+			}
+		}
+	}
+
+	/**
+	 * @param properties
+	 *           The MapProperties of the map.
+	 * @return The MapMetadata of the map; null if none was recorded.
+	 */
+	public MapMetadata get(MapProperties properties) {
+		return metadata.get(properties.toPackedKey());
+	}
+
+	/**
+	 * Finds the maps whose upload had the given content. Scans every map, which is cheap next to the transfer that a match saves.
+	 * 
+	 * @param digest
+	 *           The SHA-256 digest of the upload (see digest()).
+	 * @param uploadSizeBytes
+	 *           The size of the upload, in bytes.
+	 * @return The metadata of every map whose upload had the same digest and size; empty if there are none.
+	 */
+	public ArrayList<MapMetadata> findByDigest(byte[] digest, long uploadSizeBytes) {
+		ArrayList<MapMetadata> ret = new ArrayList<MapMetadata>();
+		for (MapMetadata m : metadata.values())
+			if (m.getUploadSizeBytes() == uploadSizeBytes && Arrays.equals(m.getUploadDigest(), digest))
+				ret.add(m);
+
+		return ret;
+	}
+
+	/**
+	 * Computes the digest that identifies the content of an upload, as recorded with MapMetadata.setUploadDigest().
+	 * 
+	 * @param upload
+	 *           The uploaded ASCII file.
+	 * @return The SHA-256 digest of the file's contents.
+	 * @throws IOException
+	 *            The file couldn't be read.
+	 */
+	public static byte[] digest(File upload) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-256 isn't available.", nsae);
+		}
+
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(upload)) {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				md.update(buffer, 0, read);
+		}
+
+		return md.digest();
+	}
+
+	/**
+	 * Finds the metadata of all maps matching the given filters.
+	 * 
+	 * @param region
+	 *           The region of the maps; null for all regions.
+	 * @param compound
+	 *           The compound of the maps; null for all compounds.
+	 * @return The metadata of every matching map, sorted by region, compound, year, and month.
+	 */
+	public ArrayList<MapMetadata> query(MapRegionType region, MapCompoundType compound) {
+		ArrayList<MapMetadata> ret = new ArrayList<MapMetadata>();
+		for (MapMetadata m : metadata.values()) {
+			MapProperties p = m.getMapProperties();
+			if ((region == null || p.getMapRegion() == region) && (compound == null || p.getMapCompoundType() == compound))
+				ret.add(m);
+		}
+
+		ret.sort(Comparator.comparingInt(m -> m.getMapProperties().toPackedKey()));
+		return ret;
+	}
+
+	/**
+	 * Helper to write a put record.
+	 * 
+	 * @param dos
+	 *           The stream to write to.
+	 * @param m
+	 *           The MapMetadata to write.
+	 * @throws IOException
+	 *            Can't write to the stream!
+	 */
+	private static void writeMetadata(DataOutputStream dos, MapMetadata m) throws IOException {
+		dos.writeByte(PUT_RECORD);
+		dos.writeInt(m.getMapProperties().toPackedKey());
+		writeMetadataBody(dos, m);
+	}
+
+	/**
+	 * Helper to write everything in a MapMetadata but its MapProperties. Shared with MapCheckpoints.
+	 * 
+	 * @param dos
+	 *           The stream to write to.
+	 * @param m
+	 *           The MapMetadata to write.
+	 * @throws IOException
+	 *            Can't write to the stream!
+	 */
+	static void writeMetadataBody(DataOutputStream dos, MapMetadata m) throws IOException {
+		dos.writeUTF(m.getUploadedBy());
+		dos.writeLong(m.getUploadSizeBytes());
+		dos.writeLong(m.getUploadedAt());
+		dos.writeLong(m.getCompletedAt());
+		dos.writeLong(m.getCellCount());
+		dos.writeLong(m.getValidCellCount());
+		dos.writeDouble(m.getMinValue());
+		dos.writeDouble(m.getMaxValue());
+		dos.writeLong(m.getConversionMillis());
+		dos.writeLong(m.getPublishMillis());
+		dos.writeLong(m.getParamsMillis());
+
+		byte[] digest = m.getUploadDigest();
+		dos.writeShort(digest == null ? 0 : digest.length);
+		if (digest != null)
+			dos.write(digest);
+	}
+
+	/**
+	 * Helper to read the body of a put record, as written by writeMetadataBody(). Shared with MapCheckpoints.
+	 * 
+	 * @param dis
+	 *           The stream to read from.
+	 * @param key
+	 *           The packed key of the map, already read from the stream.
+	 * @param hasDigest
+	 *           true if the record was written with the upload digest (by a file version that has it); false otherwise.
+	 * @return The MapMetadata stored in the record.
+	 * @throws IOException
+	 *            Can't read from the stream, or the record is corrupt!
+	 */
+	static MapMetadata readMetadata(DataInputStream dis, int key, boolean hasDigest) throws IOException {
+		try {
+			String uploadedBy = dis.readUTF();
+			long uploadSizeBytes = dis.readLong();
+			long uploadedAt = dis.readLong();
+
+			MapMetadata m = new MapMetadata(MapProperties.fromPackedKey(key), uploadedBy, uploadSizeBytes, uploadedAt);
+			m.setCompletedAt(dis.readLong());
+			long cellCount = dis.readLong();
+			long validCellCount = dis.readLong();
+			double min = dis.readDouble();
+			double max = dis.readDouble();
+			m.setCellStatistics(cellCount, validCellCount, min, max);
+			m.setConversionMillis(dis.readLong());
+			m.setPublishMillis(dis.readLong());
+			m.setParamsMillis(dis.readLong());
+
+			if (hasDigest) {
+				byte[] digest = new byte[dis.readUnsignedShort()];
+				dis.readFully(digest);
+				if (digest.length > 0)
+					m.setUploadDigest(digest);
+			}
+
+			return m;
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			throw new IOException("Corrupt metadata record for key " + key + ".", e);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Runs map creation and removal as a series of stages, each with its own bounded pool of threads. Operations on the same map run one after another in the order they were submitted; operations on different maps move through the stages concurrently. This replaces the single daemon-wide lock, so one
+ *         long GLOBAL publish no longer holds up every other upload and delete.
+ */
+
+package main;
+
+import java.util.EnumMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.pmw.tinylog.Logger;
+
+import utils.MapProperties;
+
+public class MapProcessingPipeline {
+
+	public static final int MAX_CONCURRENT_PUBLISHES = 2; // ArcGIS publishing is heavy; more than a couple at once just slows every publish down.
+	public static final int MAX_CONCURRENT_ADMIN_CALLS = 4; // Publish parameters and service deletes are short ArcGIS admin calls.
+	public static final long SHUTDOWN_WAIT_IN_MINUTES = 1L;
+
+	/**
+	 * The stages that a map passes through. Each stage has its own pool of threads.
+	 */
+	public enum Stage {
+		/** Validating the upload and parsing it into a CSV. CPU bound, so one thread per core. */
+		PARSE,
+		/** Running the ArcGIS publishing script. */
+		PUBLISH,
+		/** Running the publish parameters script, and deleting services from the ArcGIS server. */
+		PARAMS,
+		/** Updating the ConvertedSet and MapMetadataCatalog and regenerating the JS. A single thread, so updates are applied in order. */
+		CATALOG
+	}
+
+	private final EnumMap<Stage, ExecutorService> executors;
+	private final ConcurrentHashMap<Integer, CompletableFuture<Void>> inFlight;
+	private CompletableFuture<Boolean> pendingJavaScriptUpdate; // Guarded by this.
+
+	/**
+	 * Creates the pipeline and starts the thread pools for every stage.
+	 */
+	public MapProcessingPipeline() {
+		executors = new EnumMap<Stage, ExecutorService>(Stage.class);
+		executors.put(Stage.PARSE, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new StageThreadFactory(Stage.PARSE)));
+		executors.put(Stage.PUBLISH, Executors.newFixedThreadPool(MAX_CONCURRENT_PUBLISHES, new StageThreadFactory(Stage.PUBLISH)));
+		executors.put(Stage.PARAMS, Executors.newFixedThreadPool(MAX_CONCURRENT_ADMIN_CALLS, new StageThreadFactory(Stage.PARAMS)));
+		executors.put(Stage.CATALOG, Executors.newSingleThreadExecutor(new StageThreadFactory(Stage.CATALOG)));
+
+		inFlight = new ConcurrentHashMap<Integer, CompletableFuture<Void>>();
+	}
+
+	/**
+	 * Submits an operation on a map. The operation is started once every operation previously submitted for the same map has finished (successfully or not), which takes the place of a per-map lock that would otherwise have to be held across threads.
+	 *
+	 * @param properties
+	 *           The map that the operation works on.
+	 * @param operation
+	 *           Starts the operation, usually by chaining calls to runStage(), and returns a future for its result.
+	 * @return A future that completes with the result of the operation.
+	 */
+	public <T> CompletableFuture<T> submit(MapProperties properties, Supplier<CompletableFuture<T>> operation) {
+		final Integer key = properties.toPackedKey();
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		CompletableFuture<Void> previous = inFlight.put(key, done);
+		if (previous == null)
+			previous = CompletableFuture.completedFuture(null);
+
+		CompletableFuture<T> result = previous.thenCompose(v -> operation.get());
+		result.whenComplete((r, e) -> {
+			inFlight.remove(key, done);
+			done.complete(null);
+		});
+
+		return result;
+	}
+
+	/**
+	 * Runs a task on the threads of the given stage.
+	 *
+	 * @param stage
+	 *           The stage that the task belongs to.
+	 * @param task
+	 *           The task to run. Any exception it throws completes the returned future exceptionally.
+	 * @return A future that completes with the task's result.
+	 */
+	public <T> CompletableFuture<T> runStage(Stage stage, Callable<T> task) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.call();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.get(stage));
+	}
+
+	/**
+	 * Asks for the JS to be regenerated on the CATALOG stage. Requests made while an earlier request is still waiting to run are merged into it, so a burst of finished maps only regenerates the JS once. A request is never merged into a regeneration that has already started, since that one may have
+	 * missed the latest change.
+	 *
+	 * @param generator
+	 *           Generates and publishes the JS; returns true on success.
+	 * @return A future that completes with the result of the regeneration that covers this request.
+	 */
+	public synchronized CompletableFuture<Boolean> requestJavaScriptUpdate(BooleanSupplier generator) {
+		if (pendingJavaScriptUpdate == null) {
+			final CompletableFuture<Boolean> update = new CompletableFuture<Boolean>();
+			pendingJavaScriptUpdate = update;
+
+			executors.get(Stage.CATALOG).execute(() -> {
+				synchronized (this) {
+					if (pendingJavaScriptUpdate == update)
+						pendingJavaScriptUpdate = null;
+				}
+
+				try {
+					update.complete(generator.getAsBoolean());
+				} catch (Exception e) {
+					update.completeExceptionally(e);
+				}
+			});
+		}
+
+		return pendingJavaScriptUpdate;
+	}
+
+	/**
+	 * @return The number of maps that have an operation queued or running.
+	 */
+	public int getMapsInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Stops accepting new work and waits (for a limited time) for queued work to finish.
+	 */
+	public void shutdown() {
+		for (ExecutorService es : executors.values())
+			es.shutdown();
+
+		try {
+			for (ExecutorService es : executors.values())
+				if (!es.awaitTermination(SHUTDOWN_WAIT_IN_MINUTES, TimeUnit.MINUTES))
+					Logger.warn("Map processing threads didn't finish before shutdown.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Names threads after their stage so they are easy to tell apart in the logs.
+	 */
+	private static class StageThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		private StageThreadFactory(Stage stage) {
+			prefix = "pipeline-" + stage.name().toLowerCase() + "-";
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         The steps of map creation and removal that happen on the map server. EarthModellingDaemon calls these from the PUBLISH and PARAMS stages of the MapProcessingPipeline, so implementations must be safe to call from several threads at once (for different maps).
+ */
+
+package main;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import utils.MapProperties;
+
+public interface MapPublisher {
+
+	/**
+	 * Called once by the daemon before any map is processed.
+	 */
+	public default void start() {
+	}
+
+	/**
+	 * Publishes a map whose CSV has already been written to FileLocations.CSV_OUTPUT_DIRECTORY_LOCATION.
+	 *
+	 * @param properties
+	 *           The map to publish.
+	 * @param referenceScale
+	 *           The reference scale of the map's region.
+	 * @param useSavedMapDocument
+	 *           true to publish the map document left by an earlier attempt (see hasSavedMapDocument()) rather than building it again from the CSV.
+	 * @return A description of the error if the map wasn't published; null if it was.
+	 * @throws IOException
+	 *            The publisher couldn't be reached or run.
+	 * @throws InterruptedException
+	 *            Interrupted before publishing finished.
+	 * @throws TimeoutException
+	 *            Publishing took too long and was given up on.
+	 */
+	public String publish(MapProperties properties, int referenceScale, boolean useSavedMapDocument) throws IOException, InterruptedException, TimeoutException;
+
+	/**
+	 * Checks whether a failed publish got far enough to save the map document, so the next attempt can start from it.
+	 *
+	 * @param properties
+	 *           The map that failed to publish.
+	 * @return true if publish() can be called with useSavedMapDocument set.
+	 */
+	public default boolean hasSavedMapDocument(MapProperties properties) {
+		return false;
+	}
+
+	/**
+	 * Sets the service parameters (instances, timeouts, capabilities) of a published map.
+	 *
+	 * @param properties
+	 *           The map whose service should be updated.
+	 * @return A description of the error if the parameters weren't set; null if they were.
+	 * @throws IOException
+	 *            The publisher couldn't be reached or run.
+	 * @throws InterruptedException
+	 *            Interrupted before the parameters were set.
+	 * @throws TimeoutException
+	 *            Setting the parameters took too long and was given up on.
+	 */
+	public String setParams(MapProperties properties) throws IOException, InterruptedException, TimeoutException;
+
+	/**
+	 * Deletes a map's service from the map server. Doesn't touch any local files.
+	 *
+	 * @param properties
+	 *           The map whose service should be deleted.
+	 * @return A description of the error if the service wasn't deleted; null if it was.
+	 * @throws IOException
+	 *            The publisher couldn't be reached or run.
+	 * @throws InterruptedException
+	 *            Interrupted before the service was deleted.
+	 * @throws TimeoutException
+	 *            Deleting took too long and was given up on.
+	 */
+	public String delete(MapProperties properties) throws IOException, InterruptedException, TimeoutException;
+
+	/**
+	 * Deletes the services of several maps from the map server. Publishers that can delete several services more cheaply than one at a time should override this; by default, each is deleted with delete().
+	 *
+	 * @param maps
+	 *           The maps whose services should be deleted.
+	 * @return The result for every map: a description of the error if its service wasn't deleted; null if it was.
+	 * @throws IOException
+	 *            The publisher couldn't be reached or run.
+	 * @throws InterruptedException
+	 *            Interrupted before every service was deleted.
+	 * @throws TimeoutException
+	 *            Deleting took too long and was given up on.
+	 */
+	public default Map<MapProperties, String> deleteAll(List<MapProperties> maps) throws IOException, InterruptedException, TimeoutException {
+		Map<MapProperties, String> results = new HashMap<MapProperties, String>();
+		for (MapProperties properties : maps)
+			results.put(properties, delete(properties));
+
+		return results;
+	}
+
+	/**
+	 * Called once by the daemon when it shuts down.
+	 */
+	public default void shutdown() {
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Keeps count of the heap held by the daemon's large allocations (uploaded files waiting to be stored, and ASCII grids being converted), so that they can't add up to more than the heap can hold. Whoever is about to hold a large allocation reserves its size first, waiting in line until the
+ *         budget has room, and closes the Reservation once the memory is no longer held.
+ *
+ *         The budget is half of the maximum heap by default, and can be set in bytes with -Dvems.memoryBudgetBytes.
+ */
+
+package main;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MemoryBudget {
+
+	public static final double DEFAULT_HEAP_FRACTION = 0.5; // The rest of the heap is for everything that isn't tracked.
+
+	/**
+	 * Memory reserved by reserve(). Closing it gives the memory back to the budget.
+	 */
+	public class Reservation implements AutoCloseable {
+
+		private final long id;
+		private final String purpose;
+		private final long bytes;
+		private final long reservedAt;
+		private boolean closed;
+
+		private Reservation(long id, String purpose, long bytes) {
+			this.id = id;
+			this.purpose = purpose;
+			this.bytes = bytes;
+			this.reservedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return How many bytes are reserved.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Gives the memory back to the budget. Does nothing if the reservation is already closed.
+		 */
+		@Override
+		public void close() {
+			release(this);
+		}
+
+		@Override
+		public String toString() {
+			return purpose + " (" + bytes + " bytes for " + (System.currentTimeMillis() - reservedAt) + " ms)";
+		}
+	}
+
+	private final long budgetBytes;
+	private final Map<Long, Reservation> reservations = new LinkedHashMap<Long, Reservation>();
+	private long reservedBytes;
+	private long peakReservedBytes;
+	private int waiting;
+	private long nextId;
+	private long nextTicket; // Hands out places in line, so that a large reservation isn't starved by small ones.
+	private long nowServing;
+	private final Set<Long> skipped = new HashSet<Long>(); // Tickets that gave up before their turn came.
+
+	private final AtomicLong granted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong waitedMillis = new AtomicLong();
+
+	/**
+	 * @param budgetBytes
+	 *           The most bytes that can be reserved at once.
+	 */
+	public MemoryBudget(long budgetBytes) {
+		if (budgetBytes < 1)
+			throw new IllegalArgumentException("The memory budget must be positive.");
+
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Creates a budget from -Dvems.memoryBudgetBytes, or from DEFAULT_HEAP_FRACTION of the maximum heap if it isn't set.
+	 *
+	 * @return The new budget.
+	 */
+	public static MemoryBudget fromSystemProperties() {
+		return new MemoryBudget(Long.getLong("vems.memoryBudgetBytes", (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)));
+	}
+
+	/**
+	 * Reserves memory, waiting in line for it if the budget doesn't have room.
+	 *
+	 * @param purpose
+	 *           What the memory is for, for the metrics and the log.
+	 * @param bytes
+	 *           How many bytes to reserve. A reservation can never be larger than the whole budget, so larger requests are cut down to the budget (and wait until nothing else is reserved).
+	 * @param timeout
+	 *           How long to wait for room.
+	 * @param unit
+	 *           The units of timeout.
+	 * @return The reservation; null if there wasn't room before the timeout.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting.
+	 */
+	public synchronized Reservation reserve(String purpose, long bytes, long timeout, TimeUnit unit) throws InterruptedException {
+		bytes = Math.min(Math.max(bytes, 0L), budgetBytes);
+
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		long ticket = nextTicket++;
+		waiting++;
+
+		try {
+			long remaining;
+			while ((ticket != nowServing || reservedBytes + bytes > budgetBytes) && (remaining = deadline - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+
+			if (ticket != nowServing || reservedBytes + bytes > budgetBytes) {
+				rejected.incrementAndGet();
+				return null;
+			}
+
+			Reservation r = new Reservation(nextId++, purpose, bytes);
+			reservations.put(r.id, r);
+			reservedBytes += bytes;
+			peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+			granted.incrementAndGet();
+
+			return r;
+		} finally {
+			waiting--;
+			waitedMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			// Whether this ticket was served or gave up, the next one in line is up.
+			if (ticket == nowServing)
+				nowServing++;
+			else
+				skipped.add(ticket);
+			while (skipped.remove(nowServing))
+				nowServing++;
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the budget has room and no one is waiting in line for it, for callers that are about to take on memory of a size they don't know yet.
+	 *
+	 * @param timeout
+	 *           How long to wait.
+	 * @param unit
+	 *           The units of timeout.
+	 * @return true if the budget has room; false if it was still full at the timeout.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting.
+	 */
+	public synchronized boolean awaitRoom(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long remaining;
+		while ((reservedBytes >= budgetBytes || waiting > 0) && (remaining = deadline - System.nanoTime()) > 0)
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+
+		return reservedBytes < budgetBytes && waiting == 0;
+	}
+
+	/**
+	 * Helper to give a reservation's memory back.
+	 */
+	private synchronized void release(Reservation r) {
+		if (r.closed)
+			return;
+
+		r.closed = true;
+		reservations.remove(r.id);
+		reservedBytes -= r.bytes;
+		notifyAll();
+	}
+
+	/**
+	 * @return The most bytes that can be reserved at once.
+	 */
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	/**
+	 * @return How many bytes are reserved right now.
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * @return The most bytes that have been reserved at once.
+	 */
+	public synchronized long getPeakReservedBytes() {
+		return peakReservedBytes;
+	}
+
+	/**
+	 * @return How many callers are waiting for room.
+	 */
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * @return The reservations that are open right now, oldest first.
+	 */
+	public synchronized List<Reservation> getReservations() {
+		return new ArrayList<Reservation>(reservations.values());
+	}
+
+	/**
+	 * @return How many reservations have been granted.
+	 */
+	public long getGranted() {
+		return granted.get();
+	}
+
+	/**
+	 * @return How many reservations gave up waiting for room.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return The total time that callers have spent waiting for room, in milliseconds.
+	 */
+	public long getWaitedMillis() {
+		return waitedMillis.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MemoryBudget [budgetBytes=" + budgetBytes + ", reservedBytes=" + reservedBytes + ", peakReservedBytes=" + peakReservedBytes + ", waiting=" + waiting + ", granted=" + granted + ", rejected=" + rejected + ", waitedMillis=" + waitedMillis + ", reservations=" + reservations.values() + "]";
+	}
+}
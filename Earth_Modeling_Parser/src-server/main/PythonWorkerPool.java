@@ -0,0 +1,400 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         A pool of long-lived Python worker processes (Python_Scripts/arcpy_worker.py) that run the publishing scripts. Each worker imports arcpy once when it starts, so a map no longer pays the multi-second import for every script it runs. Workers speak one JSON object per line over stdin and stdout; see
+ *         arcpy_worker.py for the protocol. Idle workers are pinged periodically, workers that die or time out are replaced, and every worker is recycled after a fixed number of jobs (or as soon as it prints an error outside the protocol) so that leaks in arcpy can't build up. Their output is read on SubprocessRunner's shared reader threads.
+ */
+
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pmw.tinylog.Logger;
+
+public class PythonWorkerPool {
+
+	public static final long STARTUP_TIMEOUT_IN_SECONDS = 120L; // Importing arcpy on a cold machine can take a while.
+	public static final long PING_TIMEOUT_IN_SECONDS = 10L;
+	public static final long HEALTH_CHECK_INTERVAL_IN_SECONDS = 60L;
+	public static final long EXIT_TIMEOUT_IN_SECONDS = 5L;
+
+	private static final String END_OF_STREAM = new String("<end of stream>"); // Compared by reference.
+
+	private final List<String> command;
+	private final int maxJobsPerWorker;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<Worker> idle;
+	private final ScheduledExecutorService healthChecker;
+	private final AtomicInteger workersStarted;
+	private final AtomicLong nextRequestId;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pool. No workers are started until start() or the first job.
+	 *
+	 * @param pythonExecutable
+	 *           The python.exe to run the workers with. Must be the ArcGIS Python unless the worker is run with --stub.
+	 * @param workerScript
+	 *           The location of arcpy_worker.py.
+	 * @param workerArguments
+	 *           Extra arguments for the worker, such as --stub; may be null.
+	 * @param maxWorkers
+	 *           The most workers (and so scripts) that may run at once. Callers past this wait for a worker to free up.
+	 * @param maxJobsPerWorker
+	 *           How many scripts a worker runs before it is replaced with a fresh one.
+	 */
+	public PythonWorkerPool(String pythonExecutable, String workerScript, String[] workerArguments, int maxWorkers, int maxJobsPerWorker) {
+		command = new ArrayList<String>();
+		command.add(pythonExecutable);
+		command.add("-u"); // Unbuffered, so a crashing worker still gets its last words to the log.
+		command.add(workerScript);
+		if (workerArguments != null)
+			command.addAll(Arrays.asList(workerArguments));
+
+		this.maxJobsPerWorker = maxJobsPerWorker;
+		permits = new Semaphore(maxWorkers, true);
+		idle = new LinkedBlockingDeque<Worker>();
+		workersStarted = new AtomicInteger();
+		nextRequestId = new AtomicLong();
+
+		healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "python-worker-health");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts some workers ahead of time, so the first maps don't wait for arcpy to load, and starts the periodic health checks.
+	 *
+	 * @param warmWorkers
+	 *           How many workers to start now.
+	 * @throws IOException
+	 *            A worker couldn't be started, or exited before it was ready.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for a worker to become ready.
+	 * @throws TimeoutException
+	 *            A worker didn't become ready within STARTUP_TIMEOUT_IN_SECONDS.
+	 */
+	public void start(int warmWorkers) throws IOException, InterruptedException, TimeoutException {
+		for (int i = 0; i < warmWorkers; i++)
+			idle.offerLast(new Worker());
+
+		healthChecker.scheduleWithFixedDelay(this::checkIdleWorkers, HEALTH_CHECK_INTERVAL_IN_SECONDS, HEALTH_CHECK_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Runs a Python script on a worker, as if it had been run with "python.exe scriptLocation arguments...".
+	 *
+	 * @param scriptLocation
+	 *           The location of the *.py script on the disk.
+	 * @param arguments
+	 *           A tokenized array of arguments, if the script has any; may be null.
+	 * @param timeout
+	 *           How long the script may run. A worker that runs over is killed.
+	 * @param unit
+	 *           The units of timeout.
+	 * @return An ArrayList of the standard output of the script. If the script raised, the error follows its output, so it will be found by EarthModellingDaemon.logExceptions().
+	 * @throws IOException
+	 *            A worker couldn't be started, or died while running the script.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for a worker or for the script.
+	 * @throws TimeoutException
+	 *            The script didn't finish in time.
+	 */
+	public ArrayList<String> runScript(String scriptLocation, String[] arguments, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+		if (closed)
+			throw new IOException("The Python worker pool has been shut down.");
+
+		Map<String, Object> request = new LinkedHashMap<String, Object>();
+		request.put("op", "run");
+		request.put("script", scriptLocation);
+		request.put("args", arguments == null ? new String[0] : arguments);
+
+		permits.acquire();
+		Worker worker = null;
+		try {
+			worker = borrow();
+			Map<?, ?> response;
+			try {
+				response = worker.call(request, timeout, unit);
+			} catch (IOException | InterruptedException | TimeoutException e) {
+				// The worker is either dead or still busy with the script; it can't be trusted with the next job.
+				worker.kill();
+				worker = null;
+				throw e;
+			}
+
+			ArrayList<String> result = new ArrayList<String>();
+			Object output = response.get("output");
+			if (output instanceof List)
+				for (Object line : (List<?>) output)
+					result.add(String.valueOf(line));
+
+			if (!Boolean.TRUE.equals(response.get("ok"))) {
+				Logger.error("{} raised an exception in Python worker {}: {}", scriptLocation, worker.name, response.get("error"));
+				result.add("Exception raised by " + scriptLocation + ":");
+				result.addAll(Arrays.asList(String.valueOf(response.get("error")).split("\n")));
+			}
+
+			return result;
+		} finally {
+			if (worker != null)
+				giveBack(worker);
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return The number of workers that are alive and waiting for a job.
+	 */
+	public int getIdleWorkers() {
+		return idle.size();
+	}
+
+	/**
+	 * @return The number of workers started since the pool was created, including the ones that have since been recycled.
+	 */
+	public int getWorkersStarted() {
+		return workersStarted.get();
+	}
+
+	/**
+	 * Stops the health checks and asks every idle worker to exit. Workers that are running a script are stopped when they finish it.
+	 */
+	public void shutdown() {
+		closed = true;
+		healthChecker.shutdownNow();
+
+		Worker worker;
+		while ((worker = idle.pollFirst()) != null)
+			worker.retire();
+	}
+
+	/**
+	 * Takes an idle worker that is still alive, or starts a new one. The caller must hold a permit.
+	 */
+	private Worker borrow() throws IOException, InterruptedException, TimeoutException {
+		Worker worker;
+		while ((worker = idle.pollFirst()) != null) {
+			if (worker.process.isAlive())
+				return worker;
+
+			Logger.warn("Python worker {} died while idle; replacing it.", worker.name);
+			worker.kill();
+		}
+
+		return new Worker();
+	}
+
+	/**
+	 * Returns a worker after a job, or retires it if it has run its share of jobs or printed an error.
+	 */
+	private void giveBack(Worker worker) {
+		if (closed || !worker.process.isAlive() || worker.jobsRun >= maxJobsPerWorker || worker.firstError != null) {
+			if (worker.firstError != null)
+				Logger.warn("Recycling Python worker {} after it printed an error: {}", worker.name, worker.firstError);
+			else if (worker.jobsRun >= maxJobsPerWorker)
+				Logger.info("Recycling Python worker {} after {} jobs.", worker.name, worker.jobsRun);
+			worker.retire();
+		} else
+			idle.offerFirst(worker); // The most recently used worker is the most likely to be paged in.
+	}
+
+	/**
+	 * Pings every idle worker and kills any that doesn't answer. Runs on the health check thread.
+	 */
+	private void checkIdleWorkers() {
+		for (Worker worker : new ArrayList<Worker>(idle)) {
+			if (!idle.remove(worker))
+				continue; // Borrowed since the snapshot was taken.
+
+			try {
+				worker.ping();
+				if (closed)
+					worker.retire();
+				else
+					idle.offerLast(worker);
+			} catch (IOException | TimeoutException e) {
+				Logger.warn("Python worker {} failed its health check and was killed: {}", worker.name, e.getMessage());
+				worker.kill();
+			} catch (InterruptedException e) {
+				idle.offerLast(worker);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * One worker process. Only used by one thread at a time: whoever took it from the pool.
+	 */
+	private class Worker {
+
+		private final String name;
+		private final Process process;
+		private final BufferedWriter stdin;
+		private final LinkedBlockingQueue<String> stdout;
+		private volatile String firstError; // The first line on stderr that matched SubprocessRunner.DEFAULT_ERROR_PATTERN.
+		private int jobsRun;
+
+		/**
+		 * Starts the process and waits for it to say it's ready.
+		 */
+		private Worker() throws IOException, InterruptedException, TimeoutException {
+			name = "python-worker-" + workersStarted.incrementAndGet();
+
+			ProcessBuilder builder = new ProcessBuilder(command);
+			process = builder.start();
+			stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+			stdout = new LinkedBlockingQueue<String>(SubprocessRunner.MAX_OUTPUT_LINES);
+
+			SubprocessRunner.readLines(process.getInputStream(), StandardCharsets.UTF_8, this::addLine, () -> {
+				while (!stdout.offer(END_OF_STREAM))
+					stdout.poll();
+			});
+			SubprocessRunner.readLines(process.getErrorStream(), StandardCharsets.UTF_8, this::logError, () -> {
+			});
+
+			try {
+				Object ready = JsonLines.parse(readLine(STARTUP_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+				if (!(ready instanceof Map) || !Boolean.TRUE.equals(((Map<?, ?>) ready).get("ready")))
+					throw new IOException(name + " sent an unexpected greeting: " + ready);
+
+				Logger.info("Started Python worker {} (pid {}).", name, ((Map<?, ?>) ready).get("pid"));
+			} catch (IOException | TimeoutException | InterruptedException | RuntimeException e) {
+				kill();
+				throw e;
+			}
+		}
+
+		/**
+		 * Sends a request and waits for its response. Lines that aren't the response to this request are logged and skipped.
+		 */
+		private Map<?, ?> call(Map<String, Object> request, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+			long id = nextRequestId.incrementAndGet();
+			request.put("id", id);
+
+			stdin.write(JsonLines.write(request));
+			stdin.newLine();
+			stdin.flush();
+
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (true) {
+				String line = readLine(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+				Object response;
+				try {
+					response = JsonLines.parse(line);
+				} catch (IllegalArgumentException iae) {
+					Logger.warn("{} wrote a line outside the protocol: {}", name, line);
+					continue;
+				}
+
+				if (response instanceof Map && Long.valueOf(id).equals(((Map<?, ?>) response).get("id"))) {
+					if ("run".equals(request.get("op")))
+						jobsRun++;
+					return (Map<?, ?>) response;
+				}
+
+				Logger.warn("{} sent a response to a different request: {}", name, line);
+			}
+		}
+
+		private void ping() throws IOException, InterruptedException, TimeoutException {
+			Map<String, Object> request = new LinkedHashMap<String, Object>();
+			request.put("op", "ping");
+			if (!Boolean.TRUE.equals(call(request, PING_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS).get("ok")))
+				throw new IOException(name + " didn't answer a ping.");
+		}
+
+		private String readLine(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+			String line = stdout.poll(timeout, unit);
+			if (line == null)
+				throw new TimeoutException(name + " didn't respond in time.");
+			if (line == END_OF_STREAM) {
+				stdout.add(END_OF_STREAM); // So later reads fail the same way.
+				throw new IOException(name + " exited unexpectedly.");
+			}
+
+			return line;
+		}
+
+		/**
+		 * Asks the worker to exit, and kills it if it doesn't.
+		 */
+		private void retire() {
+			try {
+				Map<String, Object> request = new LinkedHashMap<String, Object>();
+				request.put("op", "exit");
+				call(request, EXIT_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+				if (process.waitFor(EXIT_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+					return;
+			} catch (IOException | TimeoutException e) {
+				// Fall through and kill it.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			kill();
+		}
+
+		private void kill() {
+			SubprocessRunner.destroyTree(process);
+			try {
+				stdin.close();
+			} catch (IOException e) {
+				// Already gone.
+			}
+		}
+
+		/**
+		 * Queues a line from stdout for call(). Past MAX_OUTPUT_LINES unread lines, new ones are dropped.
+		 */
+		private void addLine(String line) {
+			if (!stdout.offer(line))
+				Logger.warn("{} has more than {} unread lines; dropped: {}", name, SubprocessRunner.MAX_OUTPUT_LINES, line);
+		}
+
+		/**
+		 * Logs a line from stderr. A line that looks like an error means the worker can't be trusted, so it is recycled after its current job (its script's own errors come back in the response instead).
+		 */
+		private void logError(String line) {
+			if (firstError == null && SubprocessRunner.DEFAULT_ERROR_PATTERN.matcher(line).find()) {
+				firstError = line;
+				Logger.error("{}: {}", name, line);
+			} else
+				Logger.info("{}: {}", name, line);
+		}
+	}
+}
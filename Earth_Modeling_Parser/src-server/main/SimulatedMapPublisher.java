@@ -0,0 +1,179 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         A MapPublisher that never leaves the JVM, for load testing and profiling the rest of the daemon on a machine without ArcGIS. Each call burns a fixed amount of CPU (standing in for the work ArcGIS does on the same machine), then sleeps for a randomized latency (standing in for waiting on the server),
+ *         and then fails with a configurable probability.
+ *
+ *         Selected by starting the daemon with -Dvems.publisher=simulated. The other settings are read from system properties too; see fromSystemProperties().
+ */
+
+package main;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pmw.tinylog.Logger;
+
+import utils.MapProperties;
+
+public class SimulatedMapPublisher implements MapPublisher {
+
+	public static final long DEFAULT_PUBLISH_LATENCY_IN_MILLIS = 20000L; // Roughly a small map on the real server.
+	public static final long DEFAULT_ADMIN_LATENCY_IN_MILLIS = 2000L;
+	public static final double DEFAULT_FAILURE_RATE = 0.0;
+	public static final long DEFAULT_CPU_IN_MILLIS = 0L;
+	public static final double LATENCY_JITTER = 0.25; // Latencies vary by up to this fraction either way.
+
+	private final long publishLatencyMillis;
+	private final long adminLatencyMillis;
+	private final double failureRate;
+	private final long cpuMillis;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong paramsSet = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long blackhole; // Keeps the JIT from optimizing the CPU burn away.
+
+	/**
+	 * @param publishLatencyMillis
+	 *           The average time publish() waits, in milliseconds.
+	 * @param adminLatencyMillis
+	 *           The average time setParams() and delete() wait, in milliseconds.
+	 * @param failureRate
+	 *           The probability, from 0 to 1, that a call fails.
+	 * @param cpuMillis
+	 *           How long each call keeps a core busy, in milliseconds, before it starts waiting.
+	 */
+	public SimulatedMapPublisher(long publishLatencyMillis, long adminLatencyMillis, double failureRate, long cpuMillis) {
+		if (publishLatencyMillis < 0 || adminLatencyMillis < 0 || cpuMillis < 0)
+			throw new IllegalArgumentException("Latencies and CPU time can't be negative.");
+		if (failureRate < 0 || failureRate > 1)
+			throw new IllegalArgumentException("The failure rate must be between 0 and 1.");
+
+		this.publishLatencyMillis = publishLatencyMillis;
+		this.adminLatencyMillis = adminLatencyMillis;
+		this.failureRate = failureRate;
+		this.cpuMillis = cpuMillis;
+	}
+
+	/**
+	 * Creates a simulated publisher from the system properties vems.simulated.publishLatencyMillis, vems.simulated.adminLatencyMillis, vems.simulated.failureRate, and vems.simulated.cpuMillis. Any that aren't set take their defaults.
+	 *
+	 * @return The new publisher.
+	 */
+	public static SimulatedMapPublisher fromSystemProperties() {
+		long publish = Long.getLong("vems.simulated.publishLatencyMillis", DEFAULT_PUBLISH_LATENCY_IN_MILLIS);
+		long admin = Long.getLong("vems.simulated.adminLatencyMillis", DEFAULT_ADMIN_LATENCY_IN_MILLIS);
+		double failure = Double.parseDouble(System.getProperty("vems.simulated.failureRate", "" + DEFAULT_FAILURE_RATE));
+		long cpu = Long.getLong("vems.simulated.cpuMillis", DEFAULT_CPU_IN_MILLIS);
+
+		return new SimulatedMapPublisher(publish, admin, failure, cpu);
+	}
+
+	@Override
+	public void start() {
+		Logger.info("Using the simulated map publisher: {}", this);
+	}
+
+	@Override
+	public String publish(MapProperties properties, int referenceScale, boolean useSavedMapDocument) throws InterruptedException {
+		return simulate("publish", properties, publishLatencyMillis, published);
+	}
+
+	@Override
+	public String setParams(MapProperties properties) throws InterruptedException {
+		return simulate("set the parameters of", properties, adminLatencyMillis, paramsSet);
+	}
+
+	@Override
+	public String delete(MapProperties properties) throws InterruptedException {
+		return simulate("delete", properties, adminLatencyMillis, deleted);
+	}
+
+	@Override
+	public void shutdown() {
+		Logger.info("Simulated map publisher finished: {}", this);
+	}
+
+	/**
+	 * @return The number of successful publish() calls.
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return The number of successful setParams() calls.
+	 */
+	public long getParamsSet() {
+		return paramsSet.get();
+	}
+
+	/**
+	 * @return The number of successful delete() calls.
+	 */
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	/**
+	 * @return The number of calls that were made to fail.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SimulatedMapPublisher [publishLatencyMillis=" + publishLatencyMillis + ", adminLatencyMillis=" + adminLatencyMillis + ", failureRate=" + failureRate + ", cpuMillis=" + cpuMillis + ", published=" + published + ", paramsSet=" + paramsSet + ", deleted=" + deleted + ", failed=" + failed + "]";
+	}
+
+	/**
+	 * Burns CPU, waits, and then succeeds or fails.
+	 *
+	 * @return A description of the error if the call was made to fail; null otherwise.
+	 */
+	private String simulate(String action, MapProperties properties, long latencyMillis, AtomicLong successes) throws InterruptedException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		burnCpu(cpuMillis);
+		if (latencyMillis > 0)
+			Thread.sleep(Math.round(latencyMillis * (1 + LATENCY_JITTER * (2 * random.nextDouble() - 1))));
+
+		if (random.nextDouble() < failureRate) {
+			failed.incrementAndGet();
+			return "Simulated failure trying to " + action + " " + properties.toString() + ".";
+		}
+
+		successes.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Keeps this thread busy for the given time.
+	 */
+	private void burnCpu(long millis) {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		long x = blackhole;
+		while (System.nanoTime() < end)
+			for (int i = 0; i < 1000; i++)
+				x = x * 6364136223846793005L + 1442695040888963407L;
+
+		blackhole = x;
+	}
+}
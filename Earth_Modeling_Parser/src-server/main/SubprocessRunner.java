@@ -0,0 +1,347 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Runs external programs (Python scripts, the JS minifier, WinSCP) and watches their output as it arrives. Output is read on a small shared pool of threads rather than a new thread per process, and only the last MAX_OUTPUT_LINES lines are kept. A line that matches an error pattern fails the run
+ *         straight away: the process gets FATAL_GRACE_IN_MILLIS to finish printing and exit on its own, and is then killed. A process that runs past its timeout is killed too, rather than being left running.
+ *
+ *         Java 8 can only kill the process it started, not that process's children. When the daemon runs on Java 9 or later, children are found through ProcessHandle (by reflection) and killed as well.
+ */
+
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.pmw.tinylog.Logger;
+
+public class SubprocessRunner {
+
+	public static final int READER_THREADS = 8 + 2 * (MapProcessingPipeline.MAX_CONCURRENT_PUBLISHES + MapProcessingPipeline.MAX_CONCURRENT_ADMIN_CALLS); // Two for each Python worker, plus more than the most other processes the pipeline can have running at once.
+	public static final int MAX_OUTPUT_LINES = 5000; // Older lines are dropped; the end of the output is what explains a failure.
+	public static final long FATAL_GRACE_IN_MILLIS = 2000L;
+	public static final long OUTPUT_DRAIN_IN_MILLIS = 1000L; // How long to wait for the last of a dead process's output.
+
+	/**
+	 * Matches the lines that EarthModellingDaemon.logExceptions() has always treated as errors: anything mentioning an error, exception, or errno, other than the "----ERRORS---" headings printed by publish_map.py.
+	 */
+	public static final Pattern DEFAULT_ERROR_PATTERN = Pattern.compile("(?i)^(?!.*-errors?-).*(error|exception|errno)");
+
+	private static final AtomicInteger readerCount = new AtomicInteger();
+	private static final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS, r -> {
+		Thread t = new Thread(r, "subprocess-reader-" + readerCount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	private SubprocessRunner() {
+	}
+
+	/**
+	 * Runs a program to completion, failing it at the first line that matches DEFAULT_ERROR_PATTERN.
+	 *
+	 * @param command
+	 *           The program and its arguments.
+	 * @param timeout
+	 *           How long the program may run before it is killed.
+	 * @param unit
+	 *           The units of timeout.
+	 * @return The result of the run.
+	 * @throws IOException
+	 *            The program couldn't be started.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting. The program is killed.
+	 */
+	public static Result run(List<String> command, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return run(command, timeout, unit, DEFAULT_ERROR_PATTERN);
+	}
+
+	/**
+	 * Runs a program to completion. Standard error is merged into standard output.
+	 *
+	 * @param command
+	 *           The program and its arguments.
+	 * @param timeout
+	 *           How long the program may run before it is killed.
+	 * @param unit
+	 *           The units of timeout.
+	 * @param errorPattern
+	 *           A line that this finds (with Matcher.find()) is a fatal error; null to never fail early.
+	 * @return The result of the run.
+	 * @throws IOException
+	 *            The program couldn't be started.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting. The program is killed.
+	 */
+	public static Result run(List<String> command, long timeout, TimeUnit unit, Pattern errorPattern) throws IOException, InterruptedException {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+
+		final Process process = builder.start();
+		final Result result = new Result(command.get(0));
+
+		readLines(process.getInputStream(), Charset.defaultCharset(), line -> result.addLine(line, errorPattern != null && errorPattern.matcher(line).find()), result::endOfOutput);
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			// Wait for the output to end (the process is exiting), a fatal error, or the timeout.
+			if (!result.awaitEndOrError(deadline)) {
+				destroyTree(process);
+				result.timedOut = true;
+				Logger.error("{} ran longer than {} {} and was killed.", command.get(0), timeout, unit);
+			} else if (result.getFirstError() != null && !process.waitFor(FATAL_GRACE_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+				destroyTree(process);
+				result.killed = true;
+				Logger.error("{} was killed after printing an error: {}", command.get(0), result.getFirstError());
+			}
+
+			long remaining = Math.max(0L, deadline - System.nanoTime());
+			if (!process.waitFor(remaining, TimeUnit.NANOSECONDS)) {
+				destroyTree(process);
+				result.timedOut = true;
+				Logger.error("{} closed its output but didn't exit, and was killed.", command.get(0));
+			}
+		} catch (InterruptedException e) {
+			destroyTree(process);
+			throw e;
+		}
+
+		if (!process.isAlive())
+			result.exitCode = process.exitValue();
+		result.awaitEnd(OUTPUT_DRAIN_IN_MILLIS);
+
+		return result;
+	}
+
+	/**
+	 * Reads a stream of a process line by line on the shared pool of reader threads, until the process closes it or is killed. Used by run(), and by PythonWorkerPool for its long-lived workers, so the daemon never has more than READER_THREADS threads reading process output.
+	 *
+	 * @param stream
+	 *           The output or error stream of a process.
+	 * @param charset
+	 *           The encoding of the stream.
+	 * @param onLine
+	 *           Called with each line, on the reader thread.
+	 * @param onEnd
+	 *           Called on the reader thread once the stream has ended.
+	 */
+	public static void readLines(InputStream stream, Charset charset, Consumer<String> onLine, Runnable onEnd) {
+		readers.execute(() -> {
+			try (BufferedReader input = new BufferedReader(new InputStreamReader(stream, charset))) {
+				String line;
+				while ((line = input.readLine()) != null)
+					onLine.accept(line);
+			} catch (IOException e) {
+				// The process was killed; nothing left to read.
+			} finally {
+				onEnd.run();
+			}
+		});
+	}
+
+	/**
+	 * Forcibly kills a process, and its descendants if the JVM can see them (Java 9 or later).
+	 *
+	 * @param process
+	 *           The process to kill.
+	 */
+	public static void destroyTree(Process process) {
+		try {
+			Method descendants = Process.class.getMethod("descendants");
+			Method destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+			Iterator<?> it = ((Stream<?>) descendants.invoke(process)).iterator();
+			while (it.hasNext())
+				destroyForcibly.invoke(it.next());
+		} catch (NoSuchMethodException e) {
+			// Java 8: only the process itself can be killed.
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Logger.warn("Couldn't kill the children of a process: {}", e);
+		}
+
+		process.destroyForcibly();
+	}
+
+	/**
+	 * Kills VEMS Python processes left behind by an earlier run of the daemon that didn't shut down cleanly (a killed JVM doesn't take its child processes with it). Must be called before any script or Python worker is started.
+	 *
+	 * @return The number of processes killed.
+	 */
+	public static int reapOrphans() {
+		String marker = "Python_Scripts";
+		String self = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		boolean windows = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+		List<String> list;
+		if (windows)
+			list = Arrays.asList("wmic", "process", "where", "name='python.exe' and CommandLine like '%" + marker + "%'", "get", "ProcessId");
+		else
+			list = Arrays.asList("ps", "-eo", "pid=,args=");
+
+		ArrayList<String> pids = new ArrayList<String>();
+		try {
+			Result processes = run(list, 30L, TimeUnit.SECONDS, null);
+			for (String line : processes.getOutput()) {
+				line = line.trim();
+				if (windows ? line.matches("\\d+") : line.contains(marker) && line.contains("python"))
+					pids.add(line.split("\\s+")[0]);
+			}
+
+			pids.remove(self);
+			if (pids.isEmpty())
+				return 0;
+
+			List<String> kill = new ArrayList<String>();
+			if (windows) {
+				kill.addAll(Arrays.asList("taskkill", "/F", "/T"));
+				for (String pid : pids) {
+					kill.add("/PID");
+					kill.add(pid);
+				}
+			} else {
+				kill.addAll(Arrays.asList("kill", "-9"));
+				kill.addAll(pids);
+			}
+
+			run(kill, 30L, TimeUnit.SECONDS, null);
+			Logger.warn("Killed {} orphaned Python processes from a previous run: {}", pids.size(), pids);
+		} catch (IOException e) {
+			Logger.warn("Couldn't look for orphaned Python processes: {}", e.getMessage());
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return pids.size();
+	}
+
+	/**
+	 * The outcome of running a program.
+	 */
+	public static class Result {
+
+		private final String program;
+		private final ArrayDeque<String> output = new ArrayDeque<String>();
+		private int droppedLines;
+		private String firstError;
+		private boolean ended;
+		private volatile int exitCode = -1;
+		private volatile boolean timedOut;
+		private volatile boolean killed;
+
+		private Result(String program) {
+			this.program = program;
+		}
+
+		private synchronized void addLine(String line, boolean error) {
+			if (output.size() == MAX_OUTPUT_LINES) {
+				output.removeFirst();
+				droppedLines++;
+			}
+			output.addLast(line);
+
+			if (error && firstError == null) {
+				firstError = line;
+				notifyAll();
+			}
+		}
+
+		private synchronized void endOfOutput() {
+			ended = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return false if the deadline passed first.
+		 */
+		private synchronized boolean awaitEndOrError(long deadline) throws InterruptedException {
+			long remaining;
+			while (!ended && firstError == null && (remaining = deadline - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+
+			return ended || firstError != null;
+		}
+
+		private synchronized void awaitEnd(long millis) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			long remaining;
+			while (!ended && (remaining = deadline - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		/**
+		 * @return The last MAX_OUTPUT_LINES lines the program printed.
+		 */
+		public synchronized ArrayList<String> getOutput() {
+			return new ArrayList<String>(output);
+		}
+
+		/**
+		 * @return How many lines were dropped from the start of the output to keep it to MAX_OUTPUT_LINES.
+		 */
+		public synchronized int getDroppedLines() {
+			return droppedLines;
+		}
+
+		/**
+		 * @return The first line that matched the error pattern; null if none did.
+		 */
+		public synchronized String getFirstError() {
+			return firstError;
+		}
+
+		/**
+		 * @return The program's exit code (which is platform specific if it was killed); -1 if it couldn't be collected.
+		 */
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		/**
+		 * @return true if the program was killed for running past its timeout.
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * @return true if the program was killed because it didn't exit after printing an error.
+		 */
+		public boolean isKilled() {
+			return killed;
+		}
+
+		@Override
+		public String toString() {
+			return "Result [program=" + program + ", exitCode=" + exitCode + ", timedOut=" + timedOut + ", killed=" + killed + ", firstError=" + getFirstError() + "]";
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ *
+ * Copyright (C) 2017 Anish Kunduru
+ *
+ * This file is part the Visual Earth Modeling System (VEMS).
+ *
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ *
+ *         Holds the chunked uploads that are on their way from clients (see networking.UploadMessage). Each upload is appended to a staging file in Upload_Staging as its chunks arrive, so the server never holds more than a chunk of a file in memory.
+ *
+ *         A staging file is named after a hash of the user, the map, and the size and CRC32 of the file, so if an upload is cut off, the same user sending the same file again picks up where the staging file ends (even after a restart). Only chunks that pass their own CRC32 are appended, so
+ *         everything in a staging file can be trusted. Staging files that haven't been touched for STALE_UPLOAD_IN_HOURS are deleted.
+ */
+
+package main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.pmw.tinylog.Logger;
+
+import utils.FileLocations;
+import utils.MapProperties;
+
+public class UploadStaging {
+
+	public static final long STALE_UPLOAD_IN_HOURS = 48L; // Long enough to resume an upload cut off at the end of a day.
+	public static final String STAGING_SUFFIX = ".part";
+
+	/**
+	 * An upload that a client has begun.
+	 */
+	public static class Upload {
+
+		private final String uploadId;
+		private final String username;
+		private final MapProperties properties;
+		private final long totalBytes;
+		private final long checksum;
+		private final File file;
+		private volatile boolean overwriteExisting;
+
+		private Upload(String uploadId, String username, MapProperties properties, long totalBytes, long checksum, File file) {
+			this.uploadId = uploadId;
+			this.username = username;
+			this.properties = properties;
+			this.totalBytes = totalBytes;
+			this.checksum = checksum;
+			this.file = file;
+		}
+
+		/**
+		 * @return The ID of the upload's staging file.
+		 */
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		/**
+		 * @return The map that the file is for.
+		 */
+		public MapProperties getMapProperties() {
+			return properties;
+		}
+
+		/**
+		 * @return true if an existing map should be overwritten, as of the latest BEGIN; false otherwise.
+		 */
+		public boolean getOverwriteExisting() {
+			return overwriteExisting;
+		}
+
+		/**
+		 * @return The staging file. Once the upload is committed, it holds the whole file, and must be moved or deleted by whoever committed it.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return How many bytes of the file have been staged.
+		 */
+		public synchronized long getOffset() {
+			return file.length();
+		}
+	}
+
+	private final File directory;
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+	/**
+	 * Creates the staging directory if it doesn't exist, and deletes staging files that have gone stale.
+	 */
+	public UploadStaging() {
+		directory = new File(FileLocations.UPLOAD_STAGING_DIRECTORY_LOCATION);
+		directory.mkdir();
+		removeStale();
+	}
+
+	/**
+	 * Starts an upload, or finds the one that was started before for the same user, map, and file.
+	 *
+	 * @param username
+	 *           The user that is sending the file.
+	 * @param properties
+	 *           The map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 * @param totalBytes
+	 *           The size of the file.
+	 * @param checksum
+	 *           The CRC32 of the whole file.
+	 * @return The upload. Its getOffset() is where the client should start sending.
+	 * @throws IOException
+	 *            The staging file couldn't be checked or created.
+	 */
+	public Upload begin(String username, MapProperties properties, boolean overwriteExisting, long totalBytes, long checksum) throws IOException {
+		String uploadId = uploadId(username, properties, totalBytes, checksum);
+
+		Upload upload = uploads.computeIfAbsent(uploadId, id -> new Upload(id, username, properties, totalBytes, checksum, new File(directory, id + STAGING_SUFFIX)));
+		upload.overwriteExisting = overwriteExisting;
+
+		synchronized (upload) {
+			if (upload.file.length() > totalBytes) {
+				Logger.warn("The staging file for {} from {} is larger than the file; starting it over.", properties, username);
+				truncate(upload.file);
+			} else if (!upload.file.exists())
+				upload.file.createNewFile();
+			else if (upload.file.length() > 0)
+				Logger.info("Resuming the upload of {} from {} at {} of {} bytes.", properties, username, upload.file.length(), totalBytes);
+		}
+
+		return upload;
+	}
+
+	/**
+	 * Appends a chunk to an upload. A chunk that doesn't start where the staging file ends (because it was already stored, or one before it was lost) isn't stored.
+	 *
+	 * @param uploadId
+	 *           The ID from begin().
+	 * @param username
+	 *           The user that is sending the chunk.
+	 * @param offset
+	 *           Where in the file the chunk starts.
+	 * @param data
+	 *           The chunk.
+	 * @param checksum
+	 *           The CRC32 of the chunk.
+	 * @return How many bytes of the file have been staged, after this chunk.
+	 * @throws IllegalStateException
+	 *            If the upload hasn't been begun by this user.
+	 * @throws IllegalArgumentException
+	 *            If the chunk fails its CRC32, or goes past the end of the file.
+	 * @throws IOException
+	 *            The chunk couldn't be written.
+	 */
+	public long append(String uploadId, String username, long offset, byte[] data, long checksum) throws IOException {
+		Upload upload = get(uploadId, username);
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if (crc.getValue() != checksum)
+			throw new IllegalArgumentException("The chunk at " + offset + " was damaged on the way.");
+		if (offset + data.length > upload.totalBytes)
+			throw new IllegalArgumentException("The chunk at " + offset + " goes past the end of the file.");
+
+		synchronized (upload) {
+			long staged = upload.file.length();
+			if (offset != staged)
+				return staged;
+
+			try (FileChannel channel = FileChannel.open(upload.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+
+			return staged + data.length;
+		}
+	}
+
+	/**
+	 * @param uploadId
+	 *           The ID from begin().
+	 * @param username
+	 *           The user that is sending the file.
+	 * @return How many bytes of the file have been staged.
+	 * @throws IllegalStateException
+	 *            If the upload hasn't been begun by this user.
+	 */
+	public long getOffset(String uploadId, String username) {
+		return get(uploadId, username).getOffset();
+	}
+
+	/**
+	 * Checks that an upload is complete and undamaged, and takes it out of staging.
+	 *
+	 * @param uploadId
+	 *           The ID from begin().
+	 * @param username
+	 *           The user that sent the file.
+	 * @return The upload. Its staging file holds the whole file.
+	 * @throws IllegalStateException
+	 *            If the upload hasn't been begun by this user, or isn't complete.
+	 * @throws IOException
+	 *            The whole file doesn't match its CRC32 (the staging file is deleted, so it can be sent again), or couldn't be read.
+	 */
+	public Upload commit(String uploadId, String username) throws IOException {
+		Upload upload = get(uploadId, username);
+
+		synchronized (upload) {
+			long staged = upload.file.length();
+			if (staged != upload.totalBytes)
+				throw new IllegalStateException("Only " + staged + " of " + upload.totalBytes + " bytes have been uploaded.");
+
+			uploads.remove(uploadId);
+			if (crc32(upload.file) != upload.checksum) {
+				upload.file.delete();
+				throw new IOException("The uploaded file doesn't match the file that was sent.");
+			}
+		}
+
+		return upload;
+	}
+
+	/**
+	 * Deletes staging files that haven't been written to for STALE_UPLOAD_IN_HOURS.
+	 */
+	public void removeStale() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(STAGING_SUFFIX));
+		if (files == null)
+			return;
+
+		long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(STALE_UPLOAD_IN_HOURS);
+		for (File f : files)
+			if (f.lastModified() < cutoff) {
+				uploads.remove(f.getName().substring(0, f.getName().length() - STAGING_SUFFIX.length()));
+				if (f.delete())
+					Logger.info("Deleted the stale upload {}.", f.getName());
+			}
+	}
+
+	/**
+	 * Helper to find an upload, making sure it belongs to the user.
+	 */
+	private Upload get(String uploadId, String username) {
+		Upload upload = uploadId == null ? null : uploads.get(uploadId);
+		if (upload == null || !upload.username.equals(username))
+			throw new IllegalStateException("The upload " + uploadId + " hasn't been started.");
+
+		return upload;
+	}
+
+	/**
+	 * Helper to name a staging file after everything that identifies an upload.
+	 */
+	private static String uploadId(String username, MapProperties properties, long totalBytes, long checksum) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest((username + "|" + properties.toString() + "|" + totalBytes + "|" + checksum).getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-256 isn't available.", nsae);
+		}
+	}
+
+	/**
+	 * Helper to empty a staging file.
+	 */
+	private static void truncate(File f) throws IOException {
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(0);
+		}
+	}
+
+	/**
+	 * Helper to compute the CRC32 of a file.
+	 */
+	private static long crc32(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+
+		try (InputStream in = new FileInputStream(f)) {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				crc.update(buffer, 0, read);
+		}
+
+		return crc.getValue();
+	}
+}
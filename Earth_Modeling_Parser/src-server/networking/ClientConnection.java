@@ -0,0 +1,940 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Server-side class that handles the connection between the server and an individual client. The socket and TLS work (reading, SSLEngine wrap and unwrap, and splitting the stream into frames) is done on the connection's EventLoop, which never blocks. Each complete frame is handed to the
+ *         ClientServer to be deserialized, and then acted on by the executor of its ClientServer.Category, one at a time and in the order they arrived. Messages for the client can be sent from any thread with bufferMessage().
+ * 
+ *         The exception is a request wrapped in a CorrelatedMessage: once it is deserialized, it is acted on alongside the messages after it, and every response to it is wrapped with the same correlation ID so the client can match them up.
+ * 
+ *         Frames larger than LARGE_FRAME_BYTES (uploads), or that decompress to more than it, reserve room in the daemon's MemoryBudget before they are read. Until the reservation is granted, the connection stops reading from its socket and TCP slows the client down.
+ * 
+ *         Going the other way, a client that lets more than MAX_OUTBOUND_BYTES pile up unsent (because it stopped reading, or reads too slowly) is disconnected, so that it can't make the server hold on to everything sent to it.
+ */
+
+package networking;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.pmw.tinylog.Logger;
+
+import main.ConvertedSet;
+import main.MemoryBudget;
+import utils.JobStatus;
+
+public class ClientConnection {
+
+	public static final int LARGE_FRAME_BYTES = 1024 * 1024; // Frames this large reserve memory before they are read.
+	public static final int MAX_UNAUTHENTICATED_FRAME_BYTES = 64 * 1024; // Far larger than any ConnectionMessage.
+	public static final int MAX_LOGIN_ATTEMPTS = 6;
+	public static final long MAX_OUTBOUND_BYTES = 64L * 1024 * 1024; // Far more than a client that keeps up ever has waiting.
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final ClientServer server;
+	private final EventLoop loop;
+	private final SocketAddress remoteAddress;
+
+	// Only used on the loop. The buffers are always left ready to be filled.
+	private SelectionKey key;
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+	private ByteBuffer sending; // The frame being wrapped.
+	private boolean tasksRunning; // Delegated SSLEngine tasks are running on a worker.
+	private boolean awaitingMemory; // A large frame is waiting for its memory reservation.
+	private int frameLength;
+	private Compression frameCompression;
+	private byte[] frameBody;
+	private int frameFilled;
+	private MemoryBudget.Reservation frameReservation;
+	private int skipRemaining; // The rest of a large frame that was refused.
+	private CompletableFuture<Void> inbox = CompletableFuture.completedFuture(null);
+
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong outboundBytes = new AtomicLong(); // The size of the frames in outbound.
+	private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+	private volatile boolean closed;
+
+	// Only used while handling this connection's messages, which happens one at a time.
+	private int loginAttempts;
+
+	private volatile String username;
+	private volatile boolean authenticated;
+	private volatile FrameFormat format = FrameFormat.LOGIN; // Agreed on at login.
+	private final Set<Long> subscribedJobs = ConcurrentHashMap.newKeySet();
+	private volatile boolean subscribedToAllJobs = false;
+	private final Consumer<JobStatus> jobListener = this::jobChanged;
+	private final Map<String, LogFollower.Subscription> followedLogs = new ConcurrentHashMap<String, LogFollower.Subscription>();
+	private final Consumer<ConvertedSet.Change> catalogListener = this::catalogChanged;
+	private final Object catalogLock = new Object(); // Keeps snapshots and deltas in the order they were taken.
+
+	/**
+	 * Constructor creates a new connection for an accepted client. It doesn't do anything until it is registered with its loop.
+	 * 
+	 * @param channel
+	 *           The non-blocking channel that the client is connected on.
+	 * @param engine
+	 *           A server-mode SSLEngine for the connection.
+	 * @param server
+	 *           A reference to the parent ClientServer that is managing this client.
+	 * @param loop
+	 *           The loop that the connection will be registered with.
+	 * @throws IOException
+	 *            The channel isn't connected.
+	 */
+	public ClientConnection(SocketChannel channel, SSLEngine engine, ClientServer server, EventLoop loop) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		this.server = server;
+		this.loop = loop;
+		remoteAddress = channel.getRemoteAddress();
+
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocate(packetSize);
+		netOut = ByteBuffer.allocate(packetSize);
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * Called on the loop once the channel is registered with its Selector. Starts the TLS handshake.
+	 * 
+	 * @param key
+	 *           The channel's key.
+	 */
+	void registered(SelectionKey key) {
+		this.key = key;
+
+		if (closed) {
+			close();
+			return;
+		}
+
+		try {
+			engine.beginHandshake();
+			pump();
+		} catch (Exception e) {
+			Logger.error("Couldn't start the TLS handshake with {}: {}", remoteAddress, e);
+			close();
+		}
+	}
+
+	/**
+	 * Called on the loop when the channel is readable or writable.
+	 */
+	void ready() {
+		try {
+			if (key.isReadable() && channel.read(netIn) < 0) {
+				close();
+				return;
+			}
+
+			pump();
+		} catch (IOException ioe) {
+			Logger.info("The connection to {} at {} was lost: {}", username, remoteAddress, ioe);
+			close();
+		}
+	}
+
+	/**
+	 * Helper to do all of the socket and TLS work that can be done without blocking: flushing, wrapping, unwrapping, and splitting frames, until none of them makes progress.
+	 */
+	private void pump() throws IOException {
+		boolean progress = true;
+		while (progress && !closed && !tasksRunning) {
+			progress = false;
+
+			flush();
+
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			if (hs == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+				break;
+			}
+
+			if (hs == HandshakeStatus.NEED_WRAP || hs == HandshakeStatus.NOT_HANDSHAKING)
+				progress |= wrap(hs);
+			if (hs != HandshakeStatus.NEED_WRAP)
+				progress |= unwrap(hs);
+			progress |= decodeFrames();
+		}
+
+		if (!closed)
+			updateInterest();
+	}
+
+	/**
+	 * Helper for pump() that wraps handshake data, or the next part of an outbound frame, into netOut.
+	 * 
+	 * @return true if anything was wrapped.
+	 */
+	private boolean wrap(HandshakeStatus hs) throws IOException {
+		ByteBuffer source = EMPTY;
+		if (hs == HandshakeStatus.NOT_HANDSHAKING) {
+			if (sending == null && (sending = outbound.poll()) != null)
+				outboundBytes.addAndGet(-sending.remaining());
+			if (sending == null)
+				return false;
+			source = sending;
+		}
+
+		if (netOut.remaining() < engine.getSession().getPacketBufferSize() && !flush())
+			return false;
+
+		SSLEngineResult result = engine.wrap(source, netOut);
+		if (sending != null && !sending.hasRemaining())
+			sending = null;
+
+		if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			close();
+			return false;
+		}
+
+		return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+	}
+
+	/**
+	 * Helper for pump() that unwraps what has been read from the socket into appIn.
+	 * 
+	 * @return true if anything was unwrapped.
+	 */
+	private boolean unwrap(HandshakeStatus hs) throws IOException {
+		// On Java 9 and later, the engine can have more to unwrap from data that it has already taken.
+		if (netIn.position() == 0 && !"NEED_UNWRAP_AGAIN".equals(hs.name()))
+			return false;
+
+		SSLEngineResult result;
+		netIn.flip();
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+		}
+
+		switch (result.getStatus()) {
+		case BUFFER_UNDERFLOW:
+			// Wait for the rest of the record, making room for it if it is larger than expected.
+			if (!netIn.hasRemaining())
+				netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+			return false;
+		case BUFFER_OVERFLOW:
+			// decodeFrames() makes room, unless appIn is just too small.
+			if (appIn.position() == 0)
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+			return false;
+		case CLOSED:
+			close();
+			return false;
+		default:
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		}
+	}
+
+	/**
+	 * Helper for pump() that writes netOut to the socket.
+	 * 
+	 * @return true if everything was written; false if the socket can't take any more right now.
+	 */
+	private boolean flush() throws IOException {
+		if (netOut.position() == 0)
+			return true;
+
+		netOut.flip();
+		try {
+			channel.write(netOut);
+			return !netOut.hasRemaining();
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	/**
+	 * Helper for pump() that runs the SSLEngine's delegated tasks (the expensive parts of the handshake) on a worker, so the loop can go on with other connections.
+	 */
+	private void runDelegatedTasks() {
+		tasksRunning = true;
+		server.getHandshakeWorkers().execute(() -> {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null)
+				task.run();
+
+			loop.execute(() -> {
+				tasksRunning = false;
+				pumpSafely();
+			});
+		});
+	}
+
+	/**
+	 * Helper for pump() that splits what has been unwrapped into frames, and hands each complete frame to a worker.
+	 * 
+	 * @return true if anything was taken from appIn.
+	 */
+	private boolean decodeFrames() throws IOException {
+		if (appIn.position() == 0 || awaitingMemory)
+			return false;
+
+		appIn.flip();
+		int available = appIn.remaining();
+		try {
+			while (appIn.hasRemaining() && !awaitingMemory) {
+				if (skipRemaining > 0) {
+					int skip = Math.min(skipRemaining, appIn.remaining());
+					appIn.position(appIn.position() + skip);
+					skipRemaining -= skip;
+					continue;
+				}
+
+				if (frameBody == null) {
+					if (appIn.remaining() < MessageFrames.HEADER_BYTES)
+						break;
+
+					int header = appIn.getInt(appIn.position());
+					int length = MessageFrames.bodyLength(header);
+					Compression c = MessageFrames.compression(header);
+					if (!authenticated && length > MAX_UNAUTHENTICATED_FRAME_BYTES)
+						throw new StreamCorruptedException("A frame of " + length + " bytes was sent before logging in.");
+					if (c != Compression.NONE && c != format.getCompression())
+						throw new StreamCorruptedException("A frame was compressed with " + c + ", which wasn't agreed on.");
+
+					// A compressed frame costs what it decompresses to as well, which its body declares up front.
+					long memory = length;
+					if (c != Compression.NONE) {
+						if (length < MessageFrames.DECODED_LENGTH_BYTES)
+							throw new StreamCorruptedException("A compressed frame of " + length + " bytes is too short to declare its length.");
+						if (appIn.remaining() < MessageFrames.HEADER_BYTES + MessageFrames.DECODED_LENGTH_BYTES)
+							break;
+						memory += MessageFrames.decodedLength(appIn.getInt(appIn.position() + MessageFrames.HEADER_BYTES));
+					}
+					appIn.position(appIn.position() + MessageFrames.HEADER_BYTES);
+
+					frameLength = length;
+					frameCompression = c;
+					if (memory >= LARGE_FRAME_BYTES) {
+						reserveFrameMemory(memory);
+						break;
+					}
+
+					frameBody = new byte[length];
+					frameFilled = 0;
+				}
+
+				int count = Math.min(frameBody.length - frameFilled, appIn.remaining());
+				appIn.get(frameBody, frameFilled, count);
+				frameFilled += count;
+
+				if (frameFilled == frameBody.length) {
+					dispatch(frameBody, frameCompression, frameReservation);
+					frameBody = null;
+					frameReservation = null;
+				}
+			}
+
+			return appIn.remaining() != available;
+		} finally {
+			appIn.compact();
+		}
+	}
+
+	/**
+	 * Helper for decodeFrames() that stops reading while a worker waits for memory for a large frame.
+	 */
+	private void reserveFrameMemory(long memory) {
+		awaitingMemory = true;
+		server.getExecutor(ClientServer.Category.MUTATION).execute(() -> {
+			MemoryBudget.Reservation reservation = null;
+			try {
+				reservation = server.reserveFrameMemory(memory, username);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				Logger.error(e);
+			}
+
+			MemoryBudget.Reservation r = reservation;
+			loop.execute(() -> frameMemoryReserved(r));
+		});
+	}
+
+	/**
+	 * Called on the loop once reserveFrameMemory() has a result. Starts reading the frame, or skips it if there wasn't room.
+	 */
+	private void frameMemoryReserved(MemoryBudget.Reservation reservation) {
+		awaitingMemory = false;
+
+		if (closed) {
+			if (reservation != null)
+				reservation.close();
+			return;
+		}
+
+		if (reservation == null) {
+			Logger.warn("Turned away a message of {} bytes from {}, because the server is out of memory for uploads.", frameLength, username);
+			skipRemaining = frameLength;
+			try {
+				bufferMessage(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "The server is too busy to accept your upload right now.",
+						"Other uploads and conversions are using all of the memory set aside for them. Please wait for some of them to finish and upload the map again."));
+			} catch (IllegalAccessException iae) {
+				Logger.error("Error message was defined with incorrect parameters: {}", iae);
+			}
+		} else {
+			frameReservation = reservation;
+			frameBody = new byte[frameLength];
+			frameFilled = 0;
+		}
+
+		pumpSafely();
+	}
+
+	/**
+	 * Helper for decodeFrames() that queues a frame to be handled after the ones before it.
+	 */
+	private void dispatch(byte[] body, Compression compression, MemoryBudget.Reservation reservation) {
+		inbox = inbox.thenComposeAsync(v -> handle(body, compression, reservation), server.getExecutor(ClientServer.Category.CONTROL));
+	}
+
+	/**
+	 * Deserializes a frame and hands it to the executor of its ClientServer.Category. Runs in the order the frames arrived, and the next frame isn't handled until this one is done, unless it is a CorrelatedMessage, which runs alongside the frames after it.
+	 * 
+	 * @param body
+	 *           The frame's body.
+	 * @param compression
+	 *           The Compression from the frame's header.
+	 * @param reservation
+	 *           The memory reserved for the frame; null if it is small.
+	 * @return Completed once the next frame can be handled.
+	 */
+	private CompletableFuture<Void> handle(byte[] body, Compression compression, MemoryBudget.Reservation reservation) {
+		if (closed) {
+			if (reservation != null)
+				reservation.close();
+			return CompletableFuture.completedFuture(null);
+		}
+
+		Object obj;
+		try {
+			obj = MessageFrames.decode(body, compression);
+		} catch (IOException ioe) {
+			Logger.error("Exception parsing a message from {}: {}", username, ioe);
+			obj = null;
+			close(); // The stream of frames can't be trusted anymore.
+		} catch (ClassNotFoundException cnfe) {
+			Logger.error("Couldn't parse with a defined class. Check src-shared.networking? {}", cnfe);
+			obj = null;
+			close();
+		}
+
+		if (closed) {
+			if (reservation != null)
+				reservation.close();
+			return CompletableFuture.completedFuture(null);
+		}
+
+		Object message = obj;
+		if (!authenticated)
+			return run(ClientServer.Category.LOGIN, () -> initializeUser(message), reservation);
+
+		if (message instanceof CorrelatedMessage) {
+			CorrelatedMessage cm = (CorrelatedMessage) message;
+			run(ClientServer.categorize(cm.getMessage()), () -> parseMessage(cm.getMessage(), cm.getCorrelationId()), reservation);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return run(ClientServer.categorize(message), () -> parseMessage(message, CorrelatedMessage.UNCORRELATED), reservation);
+	}
+
+	/**
+	 * Helper for handle() that runs a message's action on the executor of its ClientServer.Category, and then releases the memory reserved for its frame.
+	 * 
+	 * @return Completed once the action is done, whether or not it failed.
+	 */
+	private CompletableFuture<Void> run(ClientServer.Category category, Action action, MemoryBudget.Reservation reservation) {
+		try {
+			return CompletableFuture.runAsync(() -> {
+				try {
+					action.run();
+				} catch (IllegalAccessException iae) {
+					Logger.error("Error message was defined with incorrect parameters: {}", iae);
+				} catch (Exception e) {
+					Logger.error(e);
+				} finally {
+					if (reservation != null)
+						reservation.close();
+				}
+			}, server.getExecutor(category));
+		} catch (RejectedExecutionException ree) {
+			Logger.debug("Dropped a {} message from {}, because the server is shutting down.", category, username);
+			if (reservation != null)
+				reservation.close();
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	/**
+	 * Something that handle() does with a message.
+	 */
+	private interface Action {
+		void run() throws IllegalAccessException;
+	}
+
+	/**
+	 * Checks a ConnectionMessage for validity. The connection is closed after MAX_LOGIN_ATTEMPTS failed attempts.
+	 * 
+	 * @param obj
+	 *           The message from the client.
+	 */
+	private void initializeUser(Object obj) throws IllegalAccessException {
+		if (obj instanceof ConnectionMessage && ((ConnectionMessage) obj).getMessageType() == ConnectionMessage.Type.CONNECT) {
+			ConnectionMessage cm = (ConnectionMessage) obj;
+
+			if (server.validateUser(cm.getUsername(), cm.getPassword(), remoteAddress)) {
+				username = cm.getUsername();
+				authenticated = true;
+				FrameFormat agreed = new FrameFormat(Math.min(cm.getProtocolVersion(), MessageCodecs.PROTOCOL_VERSION), Compression.negotiate(cm.getCompressions()), Compression.DEFAULT_THRESHOLD_BYTES);
+				bufferMessage(new ConnectionMessage(ConnectionMessage.Type.SUCCESSFUL_CONNECTION, cm.getUsername(), cm.getPassword(), agreed));
+				format = agreed; // Only after the reply, which the client reads before it knows what was agreed on.
+				Logger.debug("Frames to {} are written as {}.", cm.getUsername(), agreed);
+
+				Logger.info("{} sucessfully connected to server", username);
+				server.addJobListener(jobListener);
+
+				if (agreed.getProtocolVersion() >= MessageCodecs.CATALOG_VERSION) {
+					server.addCatalogListener(catalogListener);
+					if (closed)
+						server.removeCatalogListener(catalogListener); // close() may have already cleaned up.
+					else
+						sendCatalogSnapshot();
+				}
+				return;
+			}
+
+			bufferMessage(new ConnectionMessage(ConnectionMessage.Type.UNSUCCESSFUL_CONNECTION, cm.getUsername(), cm.getPassword()));
+		}
+
+		if (++loginAttempts >= MAX_LOGIN_ATTEMPTS) {
+			Logger.info("{} failed attempted connection too many times.", remoteAddress);
+			close();
+		}
+	}
+
+	/**
+	 * Acts on a message from a logged in client. The connection is closed if the client passes a ConnectionMessage of ConnectionMessage.Type.DISCONNECT.
+	 * 
+	 * @param obj
+	 *           The message from the client.
+	 * @param correlationId
+	 *           The ID that the client wrapped the message with, which every response is wrapped with too; CorrelatedMessage.UNCORRELATED if it wasn't wrapped.
+	 */
+	private void parseMessage(Object obj, long correlationId) throws IllegalAccessException {
+		if (obj == null)
+			reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "Communication Error", "A null value was passed to the server."), correlationId);
+		else if (obj instanceof AsciiFileMessage) {
+			AsciiFileMessage afm = (AsciiFileMessage) obj;
+			JobMessage accepted = server.queueAsciiFileMessage(afm, username);
+
+			if (accepted == null)
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "An unknown error occured while parsing the ascii file message.", "This shouldn't happen."), correlationId);
+			else {
+				// Subscribe before the job starts, so no update is missed.
+				subscribedJobs.add(accepted.getJobId());
+				reply(accepted, correlationId);
+				server.startJob(accepted.getJobId());
+			}
+		} else if (obj instanceof UploadMessage) {
+			UploadMessage um = (UploadMessage) obj;
+			// If the server already holds the content of a BEGIN, nothing has to be sent.
+			Object matched = um.isRequest() && um.getType() == UploadMessage.Type.BEGIN ? server.matchUpload(um, username) : null;
+
+			if (!um.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "UploadMessage error", "The server was passed an upload message that wasn't an upload request."), correlationId);
+			else if (matched instanceof JobMessage) {
+				JobMessage accepted = (JobMessage) matched;
+				subscribedJobs.add(accepted.getJobId());
+				reply(accepted, correlationId);
+				server.startJob(accepted.getJobId());
+			} else if (matched != null)
+				reply(matched, correlationId);
+			else if (um.getType() != UploadMessage.Type.COMMIT) {
+				UploadMessage responseMsg = server.parseUploadMessage(um, username);
+				if (responseMsg == null)
+					reply(UploadMessage.failed(um.getTransferId(), "An unknown error occured while parsing the upload message."), correlationId);
+				else
+					reply(responseMsg, correlationId);
+			} else {
+				Object responseMsg = server.commitUpload(um, username);
+				if (responseMsg instanceof JobMessage) {
+					JobMessage accepted = (JobMessage) responseMsg;
+					subscribedJobs.add(accepted.getJobId());
+					reply(accepted, correlationId);
+					server.startJob(accepted.getJobId());
+				} else if (responseMsg == null)
+					reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "An unknown error occured while finishing the upload.", "This shouldn't happen."), correlationId);
+				else
+					reply(responseMsg, correlationId);
+			}
+		} else if (obj instanceof JobMessage) {
+			JobMessage jm = (JobMessage) obj;
+			if (!jm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "JobMessage error", "The server was passed a job message that wasn't a job request."), correlationId);
+			else {
+				updateSubscription(jm);
+
+				JobMessage responseMsg = server.parseJobMessage(jm);
+				if (responseMsg != null)
+					reply(responseMsg, correlationId);
+			}
+		} else if (obj instanceof ConnectionMessage) {
+			ConnectionMessage cm = (ConnectionMessage) obj;
+
+			if (cm.getMessageType() == ConnectionMessage.Type.DISCONNECT)
+				close();
+		} else if (obj instanceof DeleteMapMessage) {
+			StringMessage sm = server.parseDeleteMapMessage((DeleteMapMessage) obj);
+
+			if (sm == null)
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "An unknown error occured while parsing the delete map message.", "This shouldn't happen."), correlationId);
+			else
+				reply(sm, correlationId);
+		} else if (obj instanceof BulkDeleteMessage) {
+			BulkDeleteMessage bdm = (BulkDeleteMessage) obj;
+			if (!bdm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "BulkDeleteMessage error", "The server was passed a bulk delete message that wasn't a request."), correlationId);
+			else
+				reply(server.parseBulkDeleteMessage(bdm, m -> reply(m, correlationId)), correlationId);
+		} else if (obj instanceof LogMessage) {
+			LogMessage lm = (LogMessage) obj;
+			if (!lm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "LogMessage error", "The server was passed a log message that wasn't a type of log request."), correlationId);
+
+			LogMessage responseMsg = server.parseLogMessage(lm);
+			if (responseMsg == null)
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "An unknown error occured while parsing the log message.", "This shouldn't happen."), correlationId);
+			else
+				reply(responseMsg, correlationId);
+		} else if (obj instanceof LogRangeMessage) {
+			LogRangeMessage lrm = (LogRangeMessage) obj;
+			if (!lrm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "LogRangeMessage error", "The server was passed a log range message that wasn't a type of request."), correlationId);
+			else if (lrm.getType() == LogRangeMessage.Type.FOLLOW) {
+				LogFollower.Subscription subscription = server.followLog(lrm, this::bufferMessage, this::canTakeFollowedLines);
+				unfollow(subscription == null ? followedLogs.remove(lrm.getLogName()) : followedLogs.put(lrm.getLogName(), subscription));
+				if (closed)
+					unfollow(followedLogs.remove(lrm.getLogName())); // close() may have already cleaned up.
+
+				if (subscription == null)
+					reply(LogRangeMessage.failed(lrm.getLogName(), "There isn't a log named " + lrm.getLogName() + "."), correlationId);
+				else
+					reply(LogRangeMessage.appended(lrm.getLogName(), lrm.getOffset(), new byte[0], lrm.getOffset()), correlationId);
+			} else if (lrm.getType() == LogRangeMessage.Type.UNFOLLOW)
+				unfollow(followedLogs.remove(lrm.getLogName()));
+			else
+				reply(server.parseLogRangeMessage(lrm), correlationId);
+		} else if (obj instanceof LogSearchMessage) {
+			LogSearchMessage lsm = (LogSearchMessage) obj;
+			if (!lsm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "LogSearchMessage error", "The server was passed a log search message that wasn't a search."), correlationId);
+			else
+				reply(server.parseLogSearchMessage(lsm), correlationId);
+		} else if (obj instanceof CatalogMessage) {
+			if (((CatalogMessage) obj).getType() != CatalogMessage.Type.SUBSCRIBE)
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "CatalogMessage error", "The server was passed a catalog message that wasn't a subscription."), correlationId);
+			else
+				sendCatalogSnapshot();
+		} else if (obj instanceof MetadataMessage) {
+			MetadataMessage mm = (MetadataMessage) obj;
+			if (!mm.isRequest())
+				reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "MetadataMessage error", "The server was passed a metadata message that wasn't a metadata request."), correlationId);
+			else {
+				MetadataMessage responseMsg = server.parseMetadataMessage(mm);
+				if (responseMsg == null)
+					reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "An unknown error occured while parsing the metadata message.", "This shouldn't happen."), correlationId);
+				else
+					reply(responseMsg, correlationId);
+			}
+		} else
+			reply(new StringMessage(StringMessage.Type.ERROR_MESSAGE, "Message sending error.", "The input object passed is not a value message class defined in src-shared.networking. Try again."), correlationId);
+	}
+
+	/**
+	 * Helper to apply a SUBSCRIBE or UNSUBSCRIBE request to this client's job subscriptions.
+	 * 
+	 * @param jm
+	 *           The job request from the client.
+	 */
+	private void updateSubscription(JobMessage jm) {
+		boolean all = jm.getJobId() == JobMessage.ALL_JOBS;
+
+		if (jm.getType() == JobMessage.Type.SUBSCRIBE) {
+			if (all)
+				subscribedToAllJobs = true;
+			else
+				subscribedJobs.add(jm.getJobId());
+		} else if (jm.getType() == JobMessage.Type.UNSUBSCRIBE) {
+			if (all) {
+				subscribedToAllJobs = false;
+				subscribedJobs.clear();
+			} else
+				subscribedJobs.remove(jm.getJobId());
+		}
+	}
+
+	/**
+	 * Called by the JobQueue (on the thread that changed the job) whenever any job changes state. Pushes the change to the client if it is subscribed to the job.
+	 * 
+	 * @param js
+	 *           The new status of the job.
+	 */
+	private void jobChanged(JobStatus js) {
+		if (!subscribedToAllJobs && !subscribedJobs.contains(js.getJobId()))
+			return;
+
+		if (js.getState().isFinished())
+			subscribedJobs.remove(js.getJobId());
+
+		try {
+			bufferMessage(new JobMessage(JobMessage.Type.STATUS_UPDATE, js));
+		} catch (IllegalAccessException iae) {
+			Logger.error("Job message was defined with incorrect parameters: {}", iae);
+		}
+	}
+
+	/**
+	 * Helper to send the client a SNAPSHOT of the catalog. Snapshots are never wrapped in a CorrelatedMessage, as the client keeps its copy of the catalog up to date from deltas that aren't either.
+	 */
+	private void sendCatalogSnapshot() throws IllegalAccessException {
+		// A change that is committed while the snapshot is taken is sent after it, where the client ignores it if the snapshot already holds it.
+		synchronized (catalogLock) {
+			bufferMessage(server.getCatalogSnapshot());
+		}
+	}
+
+	/**
+	 * Called by the ConvertedSet (on the thread that changed it) whenever a map is added to or removed from the catalog. Pushes the change to the client as a DELTA.
+	 * 
+	 * @param change
+	 *           The change.
+	 */
+	private void catalogChanged(ConvertedSet.Change change) {
+		try {
+			synchronized (catalogLock) {
+				bufferMessage(CatalogMessage.delta(change.getVersion(), change.getAddedKeys(), change.getRemovedKeys()));
+			}
+		} catch (IllegalAccessException iae) {
+			Logger.error("Catalog message was defined with incorrect parameters: {}", iae);
+		}
+	}
+
+	/**
+	 * Helper for the LogFollower that holds back the lines of followed logs while the client hasn't taken what was sent before, counting every kind of message, so that a slow client can't make them pile up.
+	 */
+	private boolean canTakeFollowedLines() {
+		return outboundBytes.get() < LogRangeMessage.MAX_RANGE_BYTES;
+	}
+
+	/**
+	 * Helper to stop following a log, if it was.
+	 */
+	private void unfollow(LogFollower.Subscription subscription) {
+		if (subscription != null)
+			server.unfollowLog(subscription);
+	}
+
+	/**
+	 * Helper to queue a response, wrapped with the correlation ID of its request if it had one.
+	 */
+	private boolean reply(Object message, long correlationId) {
+		if (correlationId == CorrelatedMessage.UNCORRELATED)
+			return bufferMessage(message);
+
+		try {
+			return bufferMessage(new CorrelatedMessage(correlationId, message));
+		} catch (IllegalAccessException iae) {
+			Logger.error("A null response to request {} from {} couldn't be sent.", correlationId, username);
+			return false;
+		}
+	}
+
+	/**
+	 * Queues a message to be sent to the client. Can be called from any thread; the message is serialized on the caller's thread, and encrypted and written by the loop.
+	 * 
+	 * @param message
+	 *           The message formatted as a src-shared.networking.
+	 * @return true if the message was queued; false if the client is disconnected, the message couldn't be serialized, or the client was disconnected for having MAX_OUTBOUND_BYTES unsent.
+	 */
+	public boolean bufferMessage(Object message) {
+		if (closed)
+			return false;
+
+		ByteBuffer frame;
+		try {
+			frame = MessageFrames.encode(message, format);
+		} catch (IOException ioe) {
+			Logger.error("{} had an error when attempting to write to the output stream: {}", username, ioe);
+			return false;
+		}
+
+		long unsent = outboundBytes.get();
+		if (unsent >= MAX_OUTBOUND_BYTES) {
+			Logger.warn("Disconnecting {} at {}, who has {} bytes waiting to be sent to them.", username, remoteAddress, unsent);
+			close();
+			return false;
+		}
+
+		outboundBytes.addAndGet(frame.remaining());
+		outbound.add(frame);
+
+		if (pumpScheduled.compareAndSet(false, true))
+			loop.execute(() -> {
+				pumpScheduled.set(false);
+				pumpSafely();
+			});
+		return true;
+	}
+
+	/**
+	 * Helper to run pump() from a task on the loop.
+	 */
+	private void pumpSafely() {
+		if (closed)
+			return;
+
+		try {
+			pump();
+		} catch (IOException ioe) {
+			Logger.info("The connection to {} at {} was lost: {}", username, remoteAddress, ioe);
+			close();
+		}
+	}
+
+	/**
+	 * Helper to tell the Selector what this connection is waiting for: reading whenever netIn has room (and the handshake isn't waiting on a worker), and writing while netOut has data the socket hasn't taken.
+	 */
+	private void updateInterest() {
+		int ops = 0;
+		if (netIn.hasRemaining() && !tasksRunning)
+			ops |= SelectionKey.OP_READ;
+		if (netOut.position() > 0)
+			ops |= SelectionKey.OP_WRITE;
+
+		if (key.interestOps() != ops)
+			key.interestOps(ops);
+	}
+
+	/**
+	 * Helper to make room in a buffer that is too small for the SSLEngine, keeping what it holds.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/**
+	 * Closes the connection, sending a TLS close_notify if the socket will take it, and removes it from the ClientServer. Can be called from any thread; the work is done on the loop.
+	 */
+	public void close() {
+		if (!loop.inLoop()) {
+			loop.execute(this::close);
+			return;
+		}
+
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			engine.closeOutbound();
+			if (key != null && netOut.position() == 0 && engine.wrap(EMPTY, netOut).getStatus() == SSLEngineResult.Status.CLOSED)
+				flush();
+		} catch (IOException ioe) {
+			// The client is already gone.
+		}
+
+		try {
+			if (key != null)
+				key.cancel();
+			channel.close();
+		} catch (IOException ioe) {
+			Logger.error("There was a issue trying to close the socket: {}", ioe);
+		}
+
+		if (frameReservation != null)
+			frameReservation.close();
+		frameBody = null;
+		outbound.clear();
+		outboundBytes.set(0);
+
+		server.removeClient(this);
+		server.removeJobListener(jobListener);
+		server.removeCatalogListener(catalogListener);
+		for (String logName : followedLogs.keySet())
+			unfollow(followedLogs.remove(logName));
+
+		if (authenticated)
+			Logger.info("{} sucessfully disconnected from the server", username);
+	}
+
+	/**
+	 * @return The channel the client is connected on.
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return The address that the client connected from.
+	 */
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Accessor for this client's username.
+	 * 
+	 * @return A String representing the client; null if the client hasn't logged in.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return true if the client has logged in and is still connected; false otherwise.
+	 */
+	public boolean isClientConnected() {
+		return authenticated && !closed;
+	}
+}
@@ -14,7 +14,10 @@
 /**
  * @author Anish Kunduru
  * 
- *         Server-side class that handles client connections and interactions between a ClientThread and the main daemon.
+ *         Server-side class that handles client connections and interactions between a ClientConnection and the main daemon. Connections are accepted here and shared among a few EventLoops, which do their socket and TLS work with non-blocking I/O. Messages are handled on a worker pool, so an idle
+ *         connection doesn't hold a thread.
+ * 
+ *         Each Category of message has its own pool of threads (see categorize()), and nothing here is synchronized, so a login or a log read never waits behind a map being created or deleted. How long each Category's messages wait for a thread is kept by its TimedExecutor.
  */
 
 package networking;
@@ -24,7 +27,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -33,32 +40,71 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import org.pmw.tinylog.Logger;
 
+import main.ConvertedSet;
 import main.EarthModellingDaemon;
+import main.JobQueue;
+import main.MapCheckpoints;
+import main.MemoryBudget;
+import main.UploadStaging;
 import utils.FileLocations;
+import utils.JobStatus;
+import utils.MapMetadata;
+import utils.MapProperties;
 
 public class ClientServer extends Thread {
 
-	private Set<ClientThread> clients;
-	private Map<String, String> approvedClients;
+	public static final long UPLOAD_MEMORY_WAIT_IN_SECONDS = 30L; // Uploads that can't get memory by then are turned away.
+	public static final int EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)); // Each loop can keep up with hundreds of connections.
+	public static final int LOGIN_THREADS = 2; // Checking a password takes microseconds.
+
+	/**
+	 * The kinds of work that clients ask for. Each has its own pool of threads, so that one kind can't hold up another.
+	 */
+	public enum Category {
+		/** Checking a login. */
+		LOGIN,
+		/** Reading logs, map metadata, and jobs. One thread per core, since they only read files and memory. */
+		READ,
+		/** Uploads, deletes, and bulk deletes: anything that changes the maps. Can block for as long as a map takes to delete, so the pool grows with the number in progress. */
+		MUTATION,
+		/** Deserializing frames, disconnects, and anything that isn't understood. */
+		CONTROL
+	}
+
+	private final Set<ClientConnection> clients;
+	private final Map<String, String> approvedClients; // Only written by the constructor.
 	private int serverPort;
-	private boolean run;
+	private volatile boolean run;
+	private volatile ServerSocketChannel serverChannel;
+	private final EventLoop[] loops;
+	private final EnumMap<Category, TimedExecutor> executors;
+	private final ExecutorService handshakeWorkers;
+	private final LogCatalog logCatalog;
+	private final LogReader logReader;
+	private final LogFollower logFollower;
 	private String keyStoreLocation;
 	private String keyStorePassword;
 
@@ -74,13 +120,26 @@ public class ClientServer extends Thread {
 	 */
 	public ClientServer(int portNumber, String keyStoreLocation, String keyStorePassword) {
 		serverPort = portNumber;
-		clients = new HashSet<ClientThread>();
+		clients = ConcurrentHashMap.newKeySet();
 		run = true;
 		this.keyStoreLocation = keyStoreLocation;
 		this.keyStorePassword = keyStorePassword;
 
 		approvedClients = new HashMap<String, String>();
 		addFromApprovedList();
+
+		loops = new EventLoop[EVENT_LOOPS];
+		executors = new EnumMap<Category, TimedExecutor>(Category.class);
+		executors.put(Category.LOGIN, new TimedExecutor("LOGIN", Executors.newFixedThreadPool(LOGIN_THREADS, new WorkerThreadFactory("client-login-"))));
+		executors.put(Category.READ, new TimedExecutor("READ", Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new WorkerThreadFactory("client-read-"))));
+		executors.put(Category.MUTATION, new TimedExecutor("MUTATION", Executors.newCachedThreadPool(new WorkerThreadFactory("client-mutation-"))));
+		executors.put(Category.CONTROL, new TimedExecutor("CONTROL", Executors.newCachedThreadPool(new WorkerThreadFactory("client-control-"))));
+		handshakeWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new WorkerThreadFactory("client-tls-"));
+
+		logCatalog = new LogCatalog(new File(FileLocations.LOGS_DIRECTORY_LOCATION));
+		logCatalog.start();
+		logReader = new LogReader();
+		logFollower = new LogFollower();
 	}
 
 	/**
@@ -109,7 +168,7 @@ public class ClientServer extends Thread {
 	}
 
 	/**
-	 * Starts the server and waits for connections.
+	 * Starts the server and waits for connections. Each accepted connection is handed to one of the EventLoops, in turn.
 	 */
 	@Override
 	public void run() {
@@ -127,31 +186,37 @@ public class ClientServer extends Thread {
 			TrustManager[] trustManagers = tmf.getTrustManagers();
 			sc.init(kmf.getKeyManagers(), trustManagers, null);
 
-			SSLServerSocketFactory ssf = sc.getServerSocketFactory();
-			SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(serverPort);
-
-			Logger.info("Waiting for clients on port: {}", serverPort);
-
-			while (run) {
-				SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-
-				if (!run)
-					break; // Previous call is blocking, so check again to avoid IOExceptions or stalled threads.
-
-				ClientThread client = new ClientThread(clientSocket, this);
-				clients.add(client);
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop("client-loop-" + (i + 1));
+				loops[i].start();
+			}
 
-				client.start();
-			} // end run loop
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(serverPort));
+			if (!run)
+				serverChannel.close(); // end() was called before the channel was opened.
 
-			try {
-				serverSocket.close();
+			Logger.info("Waiting for clients on port: {}", serverPort);
 
-				for (ClientThread client : clients)
-					client.end();
-			} catch (IOException ioe) {
-				Logger.error("Error closing the serverSocket: {}", ioe);
-			}
+			int next = 0;
+			while (run)
+				try {
+					SocketChannel channel = serverChannel.accept();
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+
+					SSLEngine engine = sc.createSSLEngine();
+					engine.setUseClientMode(false);
+
+					EventLoop loop = loops[next++ % loops.length];
+					ClientConnection client = new ClientConnection(channel, engine, this, loop);
+					clients.add(client);
+					loop.register(client);
+				} catch (ClosedChannelException cce) {
+					break; // Closed by end().
+				} catch (IOException ioe) {
+					Logger.error("Error accepting a client: {}", ioe);
+				}
 		} catch (IOException ioe) {
 			Logger.error("IOException while creating ServerSocket on port: {}\n{}", serverPort, ioe);
 		} catch (KeyStoreException e) {
@@ -166,18 +231,31 @@ public class ClientServer extends Thread {
 			Logger.error("Issue retrieving keymanager.", e);
 		} catch (Exception e) {
 			Logger.error(e);
+		} finally {
+			// Each loop closes its own connections.
+			for (EventLoop loop : loops)
+				if (loop != null)
+					loop.end();
+
+			for (TimedExecutor executor : executors.values()) {
+				executor.shutdown();
+				Logger.info(executor);
+			}
+			handshakeWorkers.shutdown();
+			logFollower.shutdown();
+			logCatalog.shutdown();
 		}
 	}
 
 	/**
-	 * Gracefully shuts the server down by tripping the flag.
+	 * Gracefully shuts the server down by tripping the flag and closing the server channel, which stops accept().
 	 */
 	public void end() {
 		run = false;
-		// Break a blocking call by connecting to the socket.
+
 		try {
-			Socket closeSocket = new Socket("localhost", serverPort);
-			closeSocket.close();
+			if (serverChannel != null)
+				serverChannel.close();
 		} catch (IOException ioe) {
 			Logger.error("Error trying to stop the server: {}", ioe);
 		} catch (Exception e) {
@@ -185,6 +263,46 @@ public class ClientServer extends Thread {
 		}
 	}
 
+	/**
+	 * @param category
+	 *           A kind of client work.
+	 * @return The pool that runs that kind of work.
+	 */
+	TimedExecutor getExecutor(Category category) {
+		return executors.get(category);
+	}
+
+	/**
+	 * Decides which pool a message from a logged in client is handled on.
+	 * 
+	 * @param message
+	 *           The message, unwrapped from any CorrelatedMessage.
+	 * @return The Category of the message.
+	 */
+	public static Category categorize(Object message) {
+		if (message instanceof LogMessage || message instanceof LogRangeMessage || message instanceof LogSearchMessage || message instanceof MetadataMessage || message instanceof JobMessage
+				|| message instanceof CatalogMessage)
+			return Category.READ;
+		if (message instanceof AsciiFileMessage || message instanceof UploadMessage || message instanceof DeleteMapMessage || message instanceof BulkDeleteMessage)
+			return Category.MUTATION;
+
+		return Category.CONTROL;
+	}
+
+	/**
+	 * @return The executors of every Category, for their queue times. A Category whose getWaiting() stays above 0 is short of threads.
+	 */
+	public Iterable<TimedExecutor> getExecutors() {
+		return executors.values();
+	}
+
+	/**
+	 * @return The pool that runs the CPU-heavy parts of TLS handshakes, so that they don't hold up an EventLoop.
+	 */
+	ExecutorService getHandshakeWorkers() {
+		return handshakeWorkers;
+	}
+
 	/**
 	 * Responds to a log message request from the client.
 	 * 
@@ -192,24 +310,12 @@ public class ClientServer extends Thread {
 	 *           The log message from the client (must return true for logMessage.isRequest()).
 	 * @return A log message response (will return true for logMessage.isReponse()).
 	 */
-	public synchronized LogMessage parseLogMessage(LogMessage lm) {
+	public LogMessage parseLogMessage(LogMessage lm) {
 		try {
-			if (lm.isListOfLogsRequest()) {
-				File logDir = new File(FileLocations.LOGS_DIRECTORY_LOCATION);
-
-				ArrayList<String> logNames = new ArrayList<String>();
-				for (File f : logDir.listFiles())
-					if (f.getName().contains(".log"))
-						logNames.add(f.getName().replace(".log", "").replace("log.", ""));
-
-				return new LogMessage(LogMessage.Type.LIST_OF_LOGS_RESPONSE, logNames);
-			} else if (lm.isLogRequest()) {
-				File logDir = new File(FileLocations.LOGS_DIRECTORY_LOCATION);
-
-				File logFile = null;
-				for (File f : logDir.listFiles())
-					if (f.getName().contains(lm.getRequestedLogName()))
-						logFile = f;
+			if (lm.isListOfLogsRequest())
+				return new LogMessage(LogMessage.Type.LIST_OF_LOGS_RESPONSE, logCatalog.getLogNames());
+			else if (lm.isLogRequest()) {
+				File logFile = logCatalog.find(lm.getRequestedLogName());
 
 				if (logFile == null)
 					return null; // Can't be a valid request, as such a file doesn't exist.
@@ -223,31 +329,301 @@ public class ClientServer extends Thread {
 	}
 
 	/**
-	 * Creates a new map by calling the appropriate daemon methods.
+	 * Responds to a request for part of a log from the client.
+	 * 
+	 * @param lrm
+	 *           A LogRangeMessage of LogRangeMessage.Type.BYTES or LogRangeMessage.Type.LINES.
+	 * @return A LogRangeMessage of LogRangeMessage.Type.RANGE, or of LogRangeMessage.Type.FAILED if the log couldn't be read.
+	 * @throws IllegalAccessException
+	 *            The response couldn't be created.
+	 */
+	public LogRangeMessage parseLogRangeMessage(LogRangeMessage lrm) throws IllegalAccessException {
+		File log = logCatalog.find(lrm.getLogName());
+		if (log == null)
+			return LogRangeMessage.failed(lrm.getLogName(), "There isn't a log named " + lrm.getLogName() + ".");
+
+		try {
+			if (lrm.getType() == LogRangeMessage.Type.BYTES)
+				return logReader.readBytes(log, lrm);
+			else if (lrm.getType() == LogRangeMessage.Type.LINES)
+				return logReader.readLines(log, lrm);
+		} catch (IOException ioe) {
+			Logger.error("Couldn't read {} for a client: {}", log, ioe);
+			return LogRangeMessage.failed(lrm.getLogName(), "The log couldn't be read: " + ioe.getMessage());
+		}
+
+		return LogRangeMessage.failed(lrm.getLogName(), "Only ranges of bytes and lines can be read.");
+	}
+
+	/**
+	 * Responds to a search of the logs from the client.
+	 * 
+	 * @param lsm
+	 *           A LogSearchMessage of LogSearchMessage.Type.SEARCH.
+	 * @return A LogSearchMessage of LogSearchMessage.Type.RESULTS, or of LogSearchMessage.Type.FAILED if the search couldn't be carried out.
+	 * @throws IllegalAccessException
+	 *            The response couldn't be created.
+	 */
+	public LogSearchMessage parseLogSearchMessage(LogSearchMessage lsm) throws IllegalAccessException {
+		return logCatalog.search(lsm);
+	}
+
+	/**
+	 * Starts pushing the lines that are added to a log to a client.
+	 * 
+	 * @param lrm
+	 *           A LogRangeMessage of LogRangeMessage.Type.FOLLOW.
+	 * @param follower
+	 *           Where to send each LogRangeMessage of LogRangeMessage.Type.APPENDED. Mustn't block.
+	 * @param ready
+	 *           Tells whether the client has taken the lines sent before; nothing more is sent while this is false.
+	 * @return The Subscription, to pass to unfollowLog(); null if there isn't such a log.
+	 */
+	public LogFollower.Subscription followLog(LogRangeMessage lrm, Consumer<LogRangeMessage> follower, BooleanSupplier ready) {
+		File log = logCatalog.find(lrm.getLogName());
+		if (log == null)
+			return null;
+
+		return logFollower.follow(lrm.getLogName(), log, lrm.getOffset(), follower, ready);
+	}
+
+	/**
+	 * Stops pushing the lines that are added to a log to a client.
+	 * 
+	 * @param subscription
+	 *           From followLog().
+	 */
+	public void unfollowLog(LogFollower.Subscription subscription) {
+		logFollower.unfollow(subscription);
+	}
+
+	/**
+	 * Queues the creation of a new map as a job. With the overwrite setting, the job replaces any existing map. Returns as soon as the upload is stored; the job isn't started until startJob() is called.
 	 * 
 	 * @param afm
 	 *           The AsciiFileMessage that represents the instructions for this map's creation.
-	 * @return A StringMessage letting the user know if the process was successful or not (outputs the error).
+	 * @param username
+	 *           The user that sent the message.
+	 * @return A JobMessage of type JOB_ACCEPTED with the status of the new job; null if the job couldn't be created.
 	 */
-	public synchronized StringMessage parseAsciiFileMessage(AsciiFileMessage afm) {
+	public JobMessage queueAsciiFileMessage(AsciiFileMessage afm, String username) {
 		try {
-			if (afm.getOverwriteExisting()) {
-				String exceptions = EarthModellingDaemon.removeMapFromServer(afm.getMapProperties());
-				if (exceptions != null)
-					return new StringMessage(StringMessage.Type.ERROR_MESSAGE, "There was an issue removing map: " + afm.getMapProperties().toString() + ".", exceptions);
-			} else
+			return new JobMessage(JobMessage.Type.JOB_ACCEPTED, EarthModellingDaemon.acceptMapJob(afm.getFile(), afm.getMapProperties(), username, afm.getOverwriteExisting()));
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks whether the server already holds the content of a chunked upload, from the digest that the client sent with the BEGIN, so that the upload doesn't have to be sent.
+	 * 
+	 * @param um
+	 *           The BEGIN from the client.
+	 * @param username
+	 *           The user that sent the message.
+	 * @return A StringMessage of type INFORMATION_MESSAGE if the map itself already holds the content; a JobMessage of type JOB_ACCEPTED with the status of a new job that creates the map from another map's content; null if the upload has to be sent (including if the BEGIN has no digest).
+	 *         The job isn't started until startJob() is called.
+	 */
+	public Object matchUpload(UploadMessage um, String username) {
+		if (um.getDigest() == null)
+			return null;
+
+		try {
+			MapProperties properties = um.getMapProperties();
+			MapMetadata held = EarthModellingDaemon.findUpload(um.getDigest(), um.getTotalBytes(), properties);
+			if (held == null)
+				return null;
+
+			if (held.getMapProperties().equals(properties)) {
+				Logger.info("The upload of {} from {} was skipped; the map already holds its content.", properties, username);
+				return new StringMessage(StringMessage.Type.INFORMATION_MESSAGE, "The map is already up to date.", "The map " + properties.toString() + " already holds the same content, so nothing was sent. To publish it again, delete the map first.");
+			}
+
+			long checksum = MapCheckpoints.checksum(um.getTotalBytes(), um.getChecksum());
+			return new JobMessage(JobMessage.Type.JOB_ACCEPTED, EarthModellingDaemon.acceptMapJob(held, properties, username, um.getOverwriteExisting(), checksum));
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Responds to the BEGIN or a CHUNK of a chunked upload from the client.
+	 * 
+	 * @param um
+	 *           The upload message from the client (must be of Type.BEGIN or Type.CHUNK).
+	 * @param username
+	 *           The user that sent the message.
+	 * @return A READY (for a BEGIN) or ACK (for a CHUNK) response, or a FAILED response if the upload can't go on; null if the response couldn't be created.
+	 */
+	public UploadMessage parseUploadMessage(UploadMessage um, String username) {
+		UploadStaging staging = EarthModellingDaemon.getUploadStaging();
+
+		try {
+			try {
+				if (um.getType() == UploadMessage.Type.BEGIN) {
+					UploadStaging.Upload upload = staging.begin(username, um.getMapProperties(), um.getOverwriteExisting(), um.getTotalBytes(), um.getChecksum());
+					return UploadMessage.ready(um.getTransferId(), upload.getUploadId(), upload.getOffset());
+				}
+
 				try {
-					String exceptions = EarthModellingDaemon.createMap(afm.getFile(), afm.getMapProperties());
-					if (exceptions != null)
-						return new StringMessage(StringMessage.Type.ERROR_MESSAGE, "There was an issue creating map: " + afm.getMapProperties().toString() + ".", exceptions);
-					else
-						return new StringMessage(StringMessage.Type.INFORMATION_MESSAGE, "Success!", "The map " + afm.getMapProperties().toString() + " was sucessfully created.");
-				} catch (Exception e) {
-					Logger.error(e);
-					return new StringMessage(StringMessage.Type.ERROR_MESSAGE, "Map generation for map: " + afm.getMapProperties().toString() + " failed.", "Try again, utilizing the overwrite setting.\n" + e.getMessage());
+					long offset = staging.append(um.getUploadId(), username, um.getOffset(), um.getData(), um.getChecksum());
+					return UploadMessage.ack(um.getTransferId(), um.getUploadId(), offset, null);
+				} catch (IllegalArgumentException iae) {
+					// Only this chunk is refused; the client sends it again.
+					return UploadMessage.ack(um.getTransferId(), um.getUploadId(), staging.getOffset(um.getUploadId(), username), iae.getMessage());
 				}
-		} catch (IllegalAccessException iae) {
-			Logger.error("StringMessage message was defined with incorrect parameters: {}", iae);
+			} catch (IllegalStateException | IOException e) {
+				Logger.warn("The upload from {} can't go on: {}", username, e);
+				return UploadMessage.failed(um.getTransferId(), e.getMessage());
+			}
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finishes a chunked upload and queues the creation of its map as a job, like queueAsciiFileMessage(). The job isn't started until startJob() is called.
+	 * 
+	 * @param um
+	 *           The COMMIT from the client.
+	 * @param username
+	 *           The user that sent the message.
+	 * @return A JobMessage of type JOB_ACCEPTED with the status of the new job, or a StringMessage explaining why the upload couldn't be queued; null if the response couldn't be created.
+	 */
+	public Object commitUpload(UploadMessage um, String username) {
+		try {
+			UploadStaging.Upload upload;
+			try {
+				upload = EarthModellingDaemon.getUploadStaging().commit(um.getUploadId(), username);
+			} catch (IllegalStateException | IOException e) {
+				Logger.warn("The upload from {} couldn't be committed: {}", username, e);
+				return new StringMessage(StringMessage.Type.ERROR_MESSAGE, "The upload couldn't be finished.", e.getMessage() + " Please upload the map again.");
+			}
+
+			return new JobMessage(JobMessage.Type.JOB_ACCEPTED, EarthModellingDaemon.acceptMapJob(upload, username));
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reserves memory for a large message (an upload) that is about to be read from a client, so that it can't add up with other uploads and conversions to more than the heap can hold. Waits up to UPLOAD_MEMORY_WAIT_IN_SECONDS for room.
+	 * 
+	 * @param bytes
+	 *           The size of the message.
+	 * @param username
+	 *           The user that is sending the message.
+	 * @return The reservation, which must be closed once the message has been handled; null if there wasn't room in time.
+	 * @throws InterruptedException
+	 *            Interrupted while waiting for room.
+	 */
+	public MemoryBudget.Reservation reserveFrameMemory(long bytes, String username) throws InterruptedException {
+		return EarthModellingDaemon.getMemoryBudget().reserve("upload from " + username, bytes, UPLOAD_MEMORY_WAIT_IN_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts a job created by queueAsciiFileMessage().
+	 * 
+	 * @param jobId
+	 *           The ID of the job.
+	 */
+	public void startJob(long jobId) {
+		EarthModellingDaemon.startJob(jobId);
+	}
+
+	/**
+	 * Responds to a job status request or subscription from the client. Subscriptions themselves are kept by the ClientThread.
+	 * 
+	 * @param jm
+	 *           The job message from the client (must return true for jm.isRequest()).
+	 * @return A job message response with the current status of the requested job(s); null if no response should be sent.
+	 */
+	public JobMessage parseJobMessage(JobMessage jm) {
+		if (jm.getType() == JobMessage.Type.UNSUBSCRIBE)
+			return null;
+
+		try {
+			JobQueue queue = EarthModellingDaemon.getJobQueue();
+			if (jm.getJobId() == JobMessage.ALL_JOBS)
+				return new JobMessage(queue.list());
+
+			ArrayList<JobStatus> statuses = new ArrayList<JobStatus>(1);
+			JobStatus js = queue.get(jm.getJobId());
+			if (js != null)
+				statuses.add(js);
+
+			return new JobMessage(statuses);
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Registers a listener for changes to every job.
+	 * 
+	 * @param listener
+	 *           The listener to add.
+	 */
+	public void addJobListener(Consumer<JobStatus> listener) {
+		EarthModellingDaemon.getJobQueue().addListener(listener);
+	}
+
+	/**
+	 * @param listener
+	 *           The listener to remove.
+	 */
+	public void removeJobListener(Consumer<JobStatus> listener) {
+		EarthModellingDaemon.getJobQueue().removeListener(listener);
+	}
+
+	/**
+	 * @return A SNAPSHOT of every map that has been converted, for a client's copy of the catalog.
+	 * @throws IllegalAccessException
+	 *            The CatalogMessage was defined with incorrect parameters.
+	 */
+	public CatalogMessage getCatalogSnapshot() throws IllegalAccessException {
+		ConvertedSet.Snapshot snapshot = EarthModellingDaemon.getConvertedSet().snapshot();
+		return CatalogMessage.snapshot(snapshot.getVersion(), snapshot.getPackedKeys());
+	}
+
+	/**
+	 * Registers a listener for changes to the catalog of converted maps.
+	 * 
+	 * @param listener
+	 *           The listener to add.
+	 */
+	public void addCatalogListener(Consumer<ConvertedSet.Change> listener) {
+		EarthModellingDaemon.getConvertedSet().addListener(listener);
+	}
+
+	/**
+	 * @param listener
+	 *           The listener to remove.
+	 */
+	public void removeCatalogListener(Consumer<ConvertedSet.Change> listener) {
+		EarthModellingDaemon.getConvertedSet().removeListener(listener);
+	}
+
+	/**
+	 * Responds to a metadata request from the client. Not synchronized, so it never waits behind a map being created.
+	 * 
+	 * @param mm
+	 *           The metadata message from the client (must return true for mm.isRequest()).
+	 * @return A metadata message response with the metadata of every matching map; null if the response couldn't be created.
+	 */
+	public MetadataMessage parseMetadataMessage(MetadataMessage mm) {
+		try {
+			return new MetadataMessage(EarthModellingDaemon.getMapMetadata(mm.getRegion(), mm.getCompound()));
 		} catch (Exception e) {
 			Logger.error(e);
 		}
@@ -261,7 +637,7 @@ public class ClientServer extends Thread {
 	 * @param dmm
 	 *           The DeleteMapMessage that represents the map to be deleted.
 	 */
-	public synchronized StringMessage parseDeleteMapMessage(DeleteMapMessage dmm) {
+	public StringMessage parseDeleteMapMessage(DeleteMapMessage dmm) {
 		try {
 			String exceptions = EarthModellingDaemon.removeMapFromServer(dmm.getMapProperties());
 			if (exceptions == null)
@@ -277,13 +653,46 @@ public class ClientServer extends Thread {
 		return null;
 	}
 
+	/**
+	 * Deletes every map matching a bulk delete request by calling the appropriate daemon method. Blocks until every matched map has a result.
+	 * 
+	 * @param bdm
+	 *           The request from the client (must return true for bdm.isRequest()).
+	 * @param send
+	 *           Sends a message to the client. Given a MAP_RESULT for each matched map as soon as it has one (possibly from other threads).
+	 * @return The FINISHED response; null if the response couldn't be created.
+	 */
+	public BulkDeleteMessage parseBulkDeleteMessage(BulkDeleteMessage bdm, Consumer<Object> send) {
+		final AtomicInteger matched = new AtomicInteger();
+		final AtomicInteger deleted = new AtomicInteger();
+
+		try {
+			String error = EarthModellingDaemon.removeMapsFromServer(bdm.getRegion(), bdm.getCompound(), bdm.getFromYear(), bdm.getToYear(), (properties, mapError) -> {
+				matched.incrementAndGet();
+				if (mapError == null)
+					deleted.incrementAndGet();
+
+				try {
+					send.accept(new BulkDeleteMessage(properties, mapError));
+				} catch (IllegalAccessException iae) {
+					Logger.error("BulkDeleteMessage message was defined with incorrect parameters: {}", iae);
+				}
+			});
+
+			return new BulkDeleteMessage(matched.get(), deleted.get(), error);
+		} catch (Exception e) {
+			Logger.error(e);
+			return new BulkDeleteMessage(matched.get(), deleted.get(), "The bulk delete stopped early: " + e);
+		}
+	}
+
 	/**
 	 * Remove the stored reference after the client disconnects.
 	 * 
 	 * @param client
-	 *           The ClientThread that will be disconnected.
+	 *           The ClientConnection that was closed.
 	 */
-	public synchronized void removeClient(ClientThread client) {
+	public void removeClient(ClientConnection client) {
 		clients.remove(client);
 	}
 
@@ -292,8 +701,8 @@ public class ClientServer extends Thread {
 	 * 
 	 * @return true if a client is connected; false otherwise.
 	 */
-	public synchronized boolean isAClientConnected() {
-		for (ClientThread c : clients)
+	public boolean isAClientConnected() {
+		for (ClientConnection c : clients)
 			if (c.isClientConnected())
 				return true;
 
@@ -307,24 +716,44 @@ public class ClientServer extends Thread {
 	 *           The username of the client to validate.
 	 * @param password
 	 *           The password associated with the username you wish to validate.
-	 * @param socket
-	 *           The Socket that the client is connecting on (for logging functionality).
+	 * @param address
+	 *           The address that the client is connecting from (for logging functionality).
 	 * @return true if the user is authorized to access the web interface; false otherwise.
 	 */
-	public synchronized boolean validateUser(String username, String password, Socket socket) {
+	public boolean validateUser(String username, String password, SocketAddress address) {
 		if (!approvedClients.containsKey(username)) {
-			Logger.warn("Authentication failure with username: {} @ {}", username, socket.getInetAddress());
+			Logger.warn("Authentication failure with username: {} @ {}", username, address);
 			return false;
 		}
 
 		// TODO
 		// Salt passwords instead of storing as plaintext.
 		if (!approvedClients.get(username).equals(password)) {
-			Logger.warn("Authentication failure with username: {}, password: {}, @ {}", username, password, socket.getInetAddress());
+			Logger.warn("Authentication failure with username: {}, password: {}, @ {}", username, password, address);
 			return false;
 		}
 
-		Logger.info("Username: {} connected from: {}", username, socket.getInetAddress());
+		Logger.info("Username: {} connected from: {}", username, address);
 		return true;
 	}
+
+	/**
+	 * Names the threads of the worker pools, and keeps them from holding the daemon open.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		private WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
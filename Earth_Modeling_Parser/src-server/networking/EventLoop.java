@@ -0,0 +1,140 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         A thread that waits on a Selector for any of its client connections to be readable or writable, and does their socket and TLS work. Many connections share each EventLoop, so a connection that isn't sending anything costs a registration and its buffers, not a thread.
+ * 
+ *         Nothing run on an EventLoop may block. Other threads hand work to it with execute().
+ */
+
+package networking;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.pmw.tinylog.Logger;
+
+public class EventLoop extends Thread implements Executor {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean run = true;
+
+	/**
+	 * @param name
+	 *           The name of the thread.
+	 * @throws IOException
+	 *            The Selector couldn't be opened.
+	 */
+	public EventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Runs a task on this loop's thread, after whatever it is doing now.
+	 * 
+	 * @param task
+	 *           The task, which must not block.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if the caller is running on this loop's thread.
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Hands a new connection to this loop.
+	 * 
+	 * @param connection
+	 *           The connection, which is registered with the Selector on this loop's thread.
+	 */
+	public void register(ClientConnection connection) {
+		execute(() -> {
+			try {
+				connection.registered(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+			} catch (IOException ioe) {
+				Logger.error("Couldn't register a connection from {}: {}", connection.getRemoteAddress(), ioe);
+				connection.close();
+			}
+		});
+	}
+
+	/**
+	 * Waits for and handles socket events until end() is called, and then closes every connection left on this loop.
+	 */
+	@Override
+	public void run() {
+		while (run)
+			try {
+				selector.select();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					runSafely(task);
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					ClientConnection connection = (ClientConnection) key.attachment();
+					if (key.isValid())
+						runSafely(connection::ready);
+				}
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException cse) {
+				break;
+			} catch (IOException ioe) {
+				Logger.error("{} couldn't select: {}", getName(), ioe);
+			}
+
+		try {
+			for (SelectionKey key : selector.keys())
+				((ClientConnection) key.attachment()).close();
+			selector.close();
+		} catch (Exception e) {
+			Logger.error(e);
+		}
+	}
+
+	/**
+	 * Stops the loop, which closes its connections.
+	 */
+	public void end() {
+		run = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Helper to keep an unexpected exception in one connection from stopping the loop for the rest.
+	 */
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			Logger.error("Unexpected error on {}: {}", getName(), e);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Keeps the list of the server's logs (the current one and the ones tinylog has rolled over), so that a client's request doesn't have to list the logs directory. The directory is watched, and only listed again when a file in it is created or deleted. If it can't be watched,
+ *         it is listed for every request instead.
+ * 
+ *         Also searches the logs for a LogSearchMessage. Each log is searched on its own thread, reading only the parts of it that its LogIndex says can match, and the results are merged in the order they were logged.
+ */
+
+package networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.pmw.tinylog.Logger;
+
+import utils.MapProperties;
+
+public class LogCatalog {
+
+	public static final int SEARCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * A log in the directory, and its index once it has been searched.
+	 */
+	private static class Entry {
+		final File file;
+		volatile LogIndex index;
+
+		Entry(File file) {
+			this.file = file;
+		}
+	}
+
+	private final File logDir;
+	private final Map<String, Entry> logs = new ConcurrentSkipListMap<String, Entry>(); // By name, which sorts oldest first with tinylog's timestamp labels.
+	private final ExecutorService searchers;
+	private WatchService watcher;
+	private Thread watchThread;
+	private volatile boolean watching;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param logDir
+	 *           The directory that tinylog writes the logs to.
+	 */
+	public LogCatalog(File logDir) {
+		this.logDir = logDir;
+
+		AtomicInteger count = new AtomicInteger();
+		searchers = Executors.newFixedThreadPool(SEARCH_THREADS, r -> {
+			Thread t = new Thread(r, "log-search-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Lists the logs and starts watching the directory.
+	 */
+	public void start() {
+		refresh();
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			logDir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+			watching = true;
+
+			watchThread = new Thread(this::watch, "log-catalog");
+			watchThread.setDaemon(true);
+			watchThread.start();
+		} catch (IOException ioe) {
+			Logger.warn("Couldn't watch {}; it will be listed for every log request instead. {}", logDir, ioe);
+		}
+	}
+
+	/**
+	 * Stops watching the directory and searching.
+	 */
+	public void shutdown() {
+		watching = false;
+		searchers.shutdownNow();
+
+		try {
+			if (watcher != null)
+				watcher.close();
+		} catch (IOException ioe) {
+			Logger.warn("Error closing the log directory watcher: {}", ioe);
+		}
+	}
+
+	/**
+	 * @return The names of the logs, oldest first. The name of a log is its file name without "log." and ".log".
+	 */
+	public ArrayList<String> getLogNames() {
+		if (!watching)
+			refresh();
+
+		return new ArrayList<String>(logs.keySet());
+	}
+
+	/**
+	 * Finds a log by its name.
+	 * 
+	 * @param logName
+	 *           The name from getLogNames().
+	 * @return The log; null if there isn't a log with that name.
+	 */
+	public File find(String logName) {
+		if (!watching)
+			refresh();
+
+		Entry entry = logs.get(logName);
+		return entry == null ? null : entry.file;
+	}
+
+	/**
+	 * Searches the logs.
+	 * 
+	 * @param lsm
+	 *           A LogSearchMessage of LogSearchMessage.Type.SEARCH.
+	 * @return A LogSearchMessage of LogSearchMessage.Type.RESULTS, or of LogSearchMessage.Type.FAILED if the search is invalid or was interrupted.
+	 * @throws IllegalAccessException
+	 *            The response couldn't be created.
+	 */
+	public LogSearchMessage search(LogSearchMessage lsm) throws IllegalAccessException {
+		Pattern pattern;
+		try {
+			pattern = lsm.getPattern() == null ? null : Pattern.compile(lsm.getPattern());
+		} catch (PatternSyntaxException pse) {
+			return LogSearchMessage.failed("Invalid regular expression: " + pse.getDescription());
+		}
+
+		List<String> keywords = new ArrayList<String>();
+		for (String keyword : lsm.getKeywords())
+			keywords.add(keyword.toLowerCase(Locale.ROOT));
+
+		if (!watching)
+			refresh();
+		List<String> names = lsm.getLogNames() == null ? new ArrayList<String>(logs.keySet()) : lsm.getLogNames();
+
+		List<Future<List<LogSearchMessage.Hit>>> futures = new ArrayList<Future<List<LogSearchMessage.Hit>>>();
+		for (String name : names) {
+			Entry entry = logs.get(name);
+			if (entry == null)
+				return LogSearchMessage.failed("There isn't a log named " + name + ".");
+
+			futures.add(searchers.submit(() -> searchLog(name, entry, pattern, keywords, lsm)));
+		}
+
+		ArrayList<LogSearchMessage.Hit> hits = new ArrayList<LogSearchMessage.Hit>();
+		boolean truncated = false;
+		try {
+			for (Future<List<LogSearchMessage.Hit>> future : futures) {
+				List<LogSearchMessage.Hit> found = future.get();
+				truncated |= found.size() > lsm.getMaxResults();
+				hits.addAll(found);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return LogSearchMessage.failed("The server was interrupted while searching.");
+		} catch (ExecutionException ee) {
+			Logger.error("Error searching the logs: {}", ee.getCause());
+			return LogSearchMessage.failed("The logs couldn't be searched: " + ee.getCause().getMessage());
+		} finally {
+			for (Future<List<LogSearchMessage.Hit>> future : futures)
+				future.cancel(true);
+		}
+
+		// Logs are named oldest first, so ties (and lines without a time) keep the order they were logged in.
+		hits.sort(Comparator.comparingLong(LogSearchMessage.Hit::getTimestamp));
+		if (hits.size() > lsm.getMaxResults()) {
+			truncated = true;
+			hits = new ArrayList<LogSearchMessage.Hit>(hits.subList(0, lsm.getMaxResults()));
+		}
+
+		return LogSearchMessage.results(hits, truncated);
+	}
+
+	/**
+	 * Helper for search() that searches one log, on a searcher thread.
+	 * 
+	 * @return The lines that matched; one more than the search's maxResults if there were more.
+	 */
+	private List<LogSearchMessage.Hit> searchLog(String name, Entry entry, Pattern pattern, List<String> keywords, LogSearchMessage lsm) throws IOException {
+		List<LogSearchMessage.Hit> hits = new ArrayList<LogSearchMessage.Hit>();
+		Path path = entry.file.toPath();
+		MapProperties map = lsm.getMap();
+		String mapName = map == null ? null : map.toString();
+		String esriMapName = map == null || map.getMonth() != -1 ? null : mapName.substring(0, mapName.length() - 2) + "_1";
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			LogIndex index = index(entry, path, channel);
+
+			for (LogIndex.Range range : index.plan(map, lsm.getFrom(), lsm.getTo())) {
+				long[] time = { range.time };
+				LogIndex.scan(channel, range.start, range.end, index.getIndexedBytes(), (offset, data, start, length) -> {
+					long lineTime = LogIndex.parseTimestamp(data, start, length);
+					if (lineTime != LogIndex.UNKNOWN_TIME)
+						time[0] = lineTime;
+
+					if (lsm.getFrom() != Long.MIN_VALUE || lsm.getTo() != Long.MAX_VALUE) {
+						if (time[0] == LogIndex.UNKNOWN_TIME || time[0] < lsm.getFrom())
+							return true;
+						if (time[0] > lsm.getTo())
+							return false; // Everything after this is later still.
+					}
+
+					String line = new String(data, start, length, StandardCharsets.UTF_8);
+					if (mapName != null && !line.contains(mapName) && (esriMapName == null || !line.contains(esriMapName)))
+						return true;
+					if (pattern != null && !pattern.matcher(line).find())
+						return true;
+					if (!keywords.isEmpty()) {
+						String lower = line.toLowerCase(Locale.ROOT);
+						for (String keyword : keywords)
+							if (!lower.contains(keyword))
+								return true;
+					}
+
+					hits.add(new LogSearchMessage.Hit(name, offset, time[0], line));
+					return hits.size() <= lsm.getMaxResults() && !Thread.currentThread().isInterrupted();
+				});
+
+				if (hits.size() > lsm.getMaxResults() || (time[0] != LogIndex.UNKNOWN_TIME && time[0] > lsm.getTo()))
+					break;
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Helper to get a log's LogIndex, brought up to date with its size.
+	 */
+	private LogIndex index(Entry entry, Path path, FileChannel channel) throws IOException {
+		Object identity = LogReader.identity(path);
+		long size = channel.size();
+
+		synchronized (entry) {
+			LogIndex index = entry.index;
+			if (index == null || !index.getIdentity().equals(identity) || size < index.getIndexedBytes()) {
+				index = new LogIndex(identity);
+				entry.index = index;
+			}
+
+			index.update(channel, size);
+			return index;
+		}
+	}
+
+	/**
+	 * Lists the directory, keeping the entries (and so the indexes) of the logs that are still there.
+	 */
+	private void refresh() {
+		File[] files = logDir.listFiles();
+		if (files == null)
+			return;
+
+		List<String> names = new ArrayList<String>();
+		for (File f : files)
+			if (f.getName().contains(".log")) {
+				String name = f.getName().replace(".log", "").replace("log.", "");
+				names.add(name);
+				logs.computeIfAbsent(name, key -> new Entry(f));
+			}
+
+		logs.keySet().retainAll(names);
+	}
+
+	/**
+	 * The watch thread: lists the directory again whenever a file is created or deleted in it.
+	 */
+	private void watch() {
+		try {
+			while (watching) {
+				WatchKey key = watcher.take();
+				key.pollEvents(); // Listing again covers every event, including OVERFLOW.
+				refresh();
+
+				if (!key.reset()) {
+					Logger.warn("{} can no longer be watched; it will be listed for every log request instead.", logDir);
+					watching = false;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Shutting down.
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Pushes the lines that are added to followed logs to the clients that follow them. Every POLL_INTERVAL_MILLIS, each followed log is checked for lines past where its follower has read to, and up to LogRangeMessage.MAX_RANGE_BYTES of them are sent as a LogRangeMessage of
+ *         LogRangeMessage.Type.APPENDED. A log that shrinks or is replaced (when tinylog rolls it over) is followed from its start again.
+ * 
+ *         A follower that hasn't taken what it was sent before (see follow()) is skipped until it has, so a slow client falls behind the log rather than having it pile up in memory.
+ * 
+ *         Polling (instead of a WatchService) is used because Windows doesn't report changes to a file that is still open for writing until it is flushed and closed.
+ */
+
+package networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.pmw.tinylog.Logger;
+
+public class LogFollower {
+
+	public static final long POLL_INTERVAL_MILLIS = 500;
+
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService poller;
+
+	/**
+	 * Constructor starts polling.
+	 */
+	public LogFollower() {
+		poller = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "log-follower");
+			t.setDaemon(true);
+			return t;
+		});
+		poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts following a log. The first lines are sent on the next poll.
+	 * 
+	 * @param logName
+	 *           The name of the log, which every LogRangeMessage is sent with.
+	 * @param log
+	 *           The log.
+	 * @param offset
+	 *           Where to start following.
+	 * @param follower
+	 *           Where to send the lines. Called on the polling thread, so it mustn't block.
+	 * @param ready
+	 *           Tells whether the follower has taken what it was sent before; the log isn't read for it while this is false. Called on the polling thread.
+	 * @return The Subscription, to pass to unfollow().
+	 */
+	public Subscription follow(String logName, File log, long offset, Consumer<LogRangeMessage> follower, BooleanSupplier ready) {
+		Subscription subscription = new Subscription(logName, log.toPath(), offset, follower, ready);
+		subscriptions.add(subscription);
+
+		return subscription;
+	}
+
+	/**
+	 * Stops following a log. Nothing more is sent once this returns, except a batch that was already being read.
+	 * 
+	 * @param subscription
+	 *           From follow().
+	 */
+	public void unfollow(Subscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Stops polling.
+	 */
+	public void shutdown() {
+		poller.shutdownNow();
+		subscriptions.clear();
+	}
+
+	/**
+	 * Checks every followed log for new lines. Runs on the polling thread.
+	 */
+	private void poll() {
+		for (Subscription subscription : subscriptions)
+			try {
+				if (!subscription.ready.getAsBoolean())
+					continue; // Picked up where it left off once the follower catches up.
+
+				LogRangeMessage appended = subscription.poll();
+				if (appended.getData().length > 0)
+					subscription.follower.accept(appended);
+			} catch (IOException | IllegalAccessException e) {
+				Logger.debug("Couldn't read {} for its followers: {}", subscription.path, e);
+			} catch (Exception e) {
+				Logger.error(e); // Keeps the poller running for the other logs.
+			}
+	}
+
+	/**
+	 * One client following one log.
+	 */
+	public static class Subscription {
+		private final String logName;
+		private final Path path;
+		private final Consumer<LogRangeMessage> follower;
+		private final BooleanSupplier ready;
+		private Object identity;
+		private long position;
+
+		private Subscription(String logName, Path path, long offset, Consumer<LogRangeMessage> follower, BooleanSupplier ready) {
+			this.logName = logName;
+			this.path = path;
+			this.position = offset;
+			this.follower = follower;
+			this.ready = ready;
+		}
+
+		/**
+		 * Reads the lines added since the last poll. Only called on the polling thread.
+		 */
+		private LogRangeMessage poll() throws IOException, IllegalAccessException {
+			Object current = LogReader.identity(path);
+
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if ((identity != null && !identity.equals(current)) || size < position)
+					position = 0; // Rolled over.
+				identity = current;
+
+				long offset = Math.min(position, size);
+				byte[] data = LogReader.readAppended(channel, offset, size);
+				position = offset + data.length;
+
+				return LogRangeMessage.appended(logName, offset, data, size);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         A lightweight index of one log, so a search only reads the parts of the log that can match it. The log is split into blocks of BLOCK_BYTES, and for each block the index keeps where its first line starts and the time of the log entry in effect there. For each map named in the
+ *         log (any word that MapProperties.fromString() accepts), it keeps which blocks name it.
+ * 
+ *         Log entries are written in order, so a block can only hold entries from between its own time and the next block's. tinylog's default format is assumed: each entry starts with a line beginning "yyyy-MM-dd HH:mm:ss", in the server's time zone.
+ * 
+ *         Only whole lines are indexed. update() scans what was added since the last update, so the index of the current log is kept up to date cheaply, and the index of a rolled over log is only built once.
+ */
+
+package networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import utils.MapProperties;
+
+public class LogIndex {
+
+	public static final int BLOCK_BYTES = 64 * 1024;
+	public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+	private static final Pattern MAP_NAME = Pattern.compile("[A-Z][A-Z0-9_]*y\\d+m(?:-1|_1|\\d+)");
+	private static final int TIMESTAMP_LENGTH = "yyyy-MM-dd HH:mm:ss".length();
+
+	private final Object identity;
+	private long indexedBytes;
+	private long currentTime = UNKNOWN_TIME;
+	private int blockCount;
+	private long[] blockStarts = new long[16]; // Where the first line that starts in each block starts.
+	private long[] blockTimes = new long[16]; // The time in effect at each block's first line.
+	private final Map<Integer, BitSet> mapBlocks = new HashMap<Integer, BitSet>(); // Packed MapProperties key to the blocks that name the map.
+
+	/**
+	 * Receives the lines of a log from scan().
+	 */
+	interface LineVisitor {
+		/**
+		 * @param offset
+		 *           Where the line starts.
+		 * @param data
+		 *           An array that holds the line, without its line ending. Only valid until the call returns.
+		 * @param start
+		 *           Where the line starts in data.
+		 * @param length
+		 *           How long the line is.
+		 * @return true to go on to the next line; false to stop.
+		 */
+		boolean visit(long offset, byte[] data, int start, int length);
+	}
+
+	/**
+	 * A part of the log that a search has to read: the lines that start between start and end, the first of which is part of an entry logged at time.
+	 */
+	static class Range {
+		final long start;
+		final long end;
+		final long time;
+
+		private Range(long start, long end, long time) {
+			this.start = start;
+			this.end = end;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Constructor for an empty index.
+	 * 
+	 * @param identity
+	 *           The identity of the log (see LogReader.identity()), so that the index can be thrown away if the log is replaced.
+	 */
+	LogIndex(Object identity) {
+		this.identity = identity;
+	}
+
+	/**
+	 * @return The identity of the log that was indexed.
+	 */
+	Object getIdentity() {
+		return identity;
+	}
+
+	/**
+	 * @return How much of the log has been indexed. Always the end of a line.
+	 */
+	synchronized long getIndexedBytes() {
+		return indexedBytes;
+	}
+
+	/**
+	 * Indexes the lines that were added to the log since the last update.
+	 * 
+	 * @param channel
+	 *           The log.
+	 * @param size
+	 *           How long the log is.
+	 * @throws IOException
+	 *            The log couldn't be read.
+	 */
+	synchronized void update(FileChannel channel, long size) throws IOException {
+		indexedBytes = scan(channel, indexedBytes, Long.MAX_VALUE, size, (offset, data, start, length) -> {
+			int block = (int) (offset / BLOCK_BYTES);
+			while (blockCount <= block) {
+				if (blockCount == blockStarts.length) {
+					blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+					blockTimes = Arrays.copyOf(blockTimes, blockCount * 2);
+				}
+				blockStarts[blockCount] = offset; // A block that no line starts in (inside a very long line) has the same lines as the next.
+				blockTimes[blockCount] = currentTime;
+				blockCount++;
+			}
+
+			long time = parseTimestamp(data, start, length);
+			if (time != UNKNOWN_TIME)
+				currentTime = time;
+
+			Matcher m = MAP_NAME.matcher(new String(data, start, length, StandardCharsets.ISO_8859_1));
+			while (m.find()) {
+				MapProperties map = MapProperties.fromString(m.group());
+				if (map != null)
+					mapBlocks.computeIfAbsent(map.toPackedKey(), key -> new BitSet()).set(block);
+			}
+
+			return true;
+		});
+	}
+
+	/**
+	 * Works out which parts of the indexed log a search has to read.
+	 * 
+	 * @param map
+	 *           A map that lines must name; null for any line.
+	 * @param from
+	 *           The earliest time of the entries to read.
+	 * @param to
+	 *           The latest time of the entries to read.
+	 * @return The parts to read, in order.
+	 */
+	synchronized List<Range> plan(MapProperties map, long from, long to) {
+		List<Range> ranges = new ArrayList<Range>();
+		BitSet blocks = map == null ? null : mapBlocks.get(map.toPackedKey());
+		if (map != null && blocks == null)
+			return ranges;
+
+		for (int b = 0; b < blockCount; b++) {
+			long endTime = b + 1 < blockCount ? blockTimes[b + 1] : currentTime;
+			if (blockTimes[b] != UNKNOWN_TIME && blockTimes[b] > to)
+				break; // Every block after this one is later still.
+			if (endTime != UNKNOWN_TIME && endTime < from)
+				continue;
+			if (blocks != null && !blocks.get(b))
+				continue;
+
+			long end = b + 1 < blockCount ? blockStarts[b + 1] : indexedBytes;
+			Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && last.end == blockStarts[b])
+				ranges.set(ranges.size() - 1, new Range(last.start, end, last.time));
+			else
+				ranges.add(new Range(blockStarts[b], end, blockTimes[b]));
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Reads the whole lines of a log, one at a time.
+	 * 
+	 * @param channel
+	 *           The log.
+	 * @param position
+	 *           Where a line starts.
+	 * @param startLimit
+	 *           Lines that start here or later aren't visited.
+	 * @param end
+	 *           Where to stop reading. A line that isn't finished by then isn't visited.
+	 * @param visitor
+	 *           Receives each line.
+	 * @return Where the line after the last one that was visited starts.
+	 * @throws IOException
+	 *            The log couldn't be read.
+	 */
+	static long scan(FileChannel channel, long position, long startLimit, long end, LineVisitor visitor) throws IOException {
+		byte[] data = new byte[BLOCK_BYTES];
+		int filled = 0;
+		long dataStart = position; // Where data[0] is in the log.
+
+		while (dataStart + filled < end) {
+			ByteBuffer buffer = ByteBuffer.wrap(data, filled, (int) Math.min(data.length - filled, end - dataStart - filled));
+			int read = channel.read(buffer, dataStart + filled);
+			if (read < 0)
+				break;
+			int scanned = filled;
+			filled += read;
+
+			int lineStart = 0;
+			for (int i = scanned; i < filled; i++)
+				if (data[i] == '\n') {
+					if (dataStart + lineStart >= startLimit)
+						return dataStart + lineStart;
+
+					int length = i - lineStart;
+					if (length > 0 && data[i - 1] == '\r')
+						length--;
+					if (!visitor.visit(dataStart + lineStart, data, lineStart, length))
+						return dataStart + i + 1;
+
+					lineStart = i + 1;
+				}
+
+			// Keep the unfinished line for the next read, with room to grow if it fills the array.
+			System.arraycopy(data, lineStart, data, 0, filled - lineStart);
+			filled -= lineStart;
+			dataStart += lineStart;
+			if (filled == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+		}
+
+		return dataStart;
+	}
+
+	/**
+	 * Reads the time at the start of the first line of a log entry.
+	 * 
+	 * @return The time in milliseconds since the epoch; UNKNOWN_TIME if the line doesn't start with one.
+	 */
+	static long parseTimestamp(byte[] data, int start, int length) {
+		if (length < TIMESTAMP_LENGTH || data[start + 4] != '-' || data[start + 7] != '-' || data[start + 10] != ' ' || data[start + 13] != ':' || data[start + 16] != ':')
+			return UNKNOWN_TIME;
+
+		int year = digits(data, start, 4);
+		int month = digits(data, start + 5, 2);
+		int day = digits(data, start + 8, 2);
+		int hour = digits(data, start + 11, 2);
+		int minute = digits(data, start + 14, 2);
+		int second = digits(data, start + 17, 2);
+		if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0)
+			return UNKNOWN_TIME;
+
+		try {
+			return LocalDateTime.of(year, month, day, hour, minute, second).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeException dte) {
+			return UNKNOWN_TIME;
+		}
+	}
+
+	/**
+	 * Helper to read a number of ASCII digits; -1 if they aren't all digits.
+	 */
+	private static int digits(byte[] data, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			if (data[i] < '0' || data[i] > '9')
+				return -1;
+			value = value * 10 + data[i] - '0';
+		}
+
+		return value;
+	}
+}
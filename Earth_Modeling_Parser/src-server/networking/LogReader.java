@@ -0,0 +1,334 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Reads the ranges of the server's logs that LogRangeMessages ask for, with positional FileChannel reads, so that no more of a log than a page is ever read into memory.
+ * 
+ *         To find a line without reading everything before it, each log has a LineIndex with the offset of every LINES_PER_CHECKPOINT-th line. An index is built the first time its log is read by line, and only the bytes added since are scanned after that. It is thrown away if the log
+ *         shrinks or is replaced (when tinylog rolls it over).
+ */
+
+package networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LogReader {
+
+	public static final int LINES_PER_CHECKPOINT = 1024;
+	private static final int SCAN_BUFFER_BYTES = 64 * 1024;
+
+	private final Map<File, LineIndex> indexes = new ConcurrentHashMap<File, LineIndex>();
+
+	/**
+	 * Answers a request of LogRangeMessage.Type.BYTES.
+	 * 
+	 * @param log
+	 *           The log that was asked for.
+	 * @param request
+	 *           The request.
+	 * @return A LogRangeMessage of LogRangeMessage.Type.RANGE.
+	 * @throws IOException
+	 *            The log couldn't be read.
+	 * @throws IllegalAccessException
+	 *            The response couldn't be created.
+	 */
+	public LogRangeMessage readBytes(File log, LogRangeMessage request) throws IOException, IllegalAccessException {
+		try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long offset = Math.min(request.getOffset(), size);
+			byte[] data = read(channel, offset, (int) Math.min(request.getLength(), size - offset));
+
+			return LogRangeMessage.range(request.getLogName(), offset, data, -1, -1, size, -1);
+		}
+	}
+
+	/**
+	 * Answers a request of LogRangeMessage.Type.LINES. The page ends early if its lines would be more than LogRangeMessage.MAX_RANGE_BYTES. For LogRangeMessage.LAST_PAGE, it starts late instead, so the last line is always included.
+	 * 
+	 * @param log
+	 *           The log that was asked for.
+	 * @param request
+	 *           The request.
+	 * @return A LogRangeMessage of LogRangeMessage.Type.RANGE.
+	 * @throws IOException
+	 *            The log couldn't be read.
+	 * @throws IllegalAccessException
+	 *            The response couldn't be created.
+	 */
+	public LogRangeMessage readLines(File log, LogRangeMessage request) throws IOException, IllegalAccessException {
+		Path path = log.toPath();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			LineIndex index = index(log, identity(path), channel, channel.size());
+
+			long totalLines;
+			long firstLine;
+			long start;
+			long size;
+			synchronized (index) {
+				size = index.indexedBytes; // Another reader may have indexed more of the log since it was opened.
+				totalLines = index.totalLines(size);
+
+				if (request.getFirstLine() == LogRangeMessage.LAST_PAGE) {
+					firstLine = Math.max(0, totalLines - request.getLineCount());
+					start = index.lineStart(channel, firstLine);
+
+					// Too long for one page, so start at the first whole line that fits.
+					if (size - start > LogRangeMessage.MAX_RANGE_BYTES) {
+						start = nextLineStart(channel, size - LogRangeMessage.MAX_RANGE_BYTES, size);
+						firstLine = index.lineAt(channel, start);
+					}
+				} else {
+					firstLine = Math.min(request.getFirstLine(), totalLines);
+					start = firstLine < totalLines ? index.lineStart(channel, firstLine) : size;
+				}
+			}
+
+			byte[] data = read(channel, start, (int) Math.min(LogRangeMessage.MAX_RANGE_BYTES, size - start));
+			int end = 0;
+			int lines = 0;
+			while (end < data.length && lines < request.getLineCount()) {
+				int newline = indexOf(data, end, data.length);
+				if (newline < 0) {
+					// The last line of the log (or a line longer than a page) ends at the end of what was read.
+					if (start + data.length == size || lines == 0) {
+						end = data.length;
+						lines++;
+					}
+					break;
+				}
+
+				end = newline + 1;
+				lines++;
+			}
+
+			return LogRangeMessage.range(request.getLogName(), start, end == data.length ? data : Arrays.copyOf(data, end), firstLine, lines, size, totalLines);
+		}
+	}
+
+	/**
+	 * Reads the lines that were added to a log after an offset, up to the end of the last whole line (or LogRangeMessage.MAX_RANGE_BYTES, for a line longer than that).
+	 * 
+	 * @param channel
+	 *           The log.
+	 * @param offset
+	 *           Where to start.
+	 * @param size
+	 *           The size of the log.
+	 * @return The lines; empty if no whole line has been added.
+	 * @throws IOException
+	 *            The log couldn't be read.
+	 */
+	static byte[] readAppended(FileChannel channel, long offset, long size) throws IOException {
+		byte[] data = read(channel, offset, (int) Math.min(LogRangeMessage.MAX_RANGE_BYTES, size - offset));
+
+		int end = data.length;
+		while (end > 0 && data[end - 1] != '\n')
+			end--;
+		if (end == 0 && data.length == LogRangeMessage.MAX_RANGE_BYTES)
+			return data;
+
+		return end == data.length ? data : Arrays.copyOf(data, end);
+	}
+
+	/**
+	 * Tells one file apart from another at the same path, so that a log that was rolled over isn't mistaken for the one it replaced.
+	 * 
+	 * @param path
+	 *           The log.
+	 * @return Something that only equals the identity of the same file.
+	 * @throws IOException
+	 *            The log's attributes couldn't be read.
+	 */
+	static Object identity(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+	}
+
+	/**
+	 * Helper to get a log's LineIndex, brought up to date with its size.
+	 */
+	private LineIndex index(File log, Object identity, FileChannel channel, long size) throws IOException {
+		LineIndex index = indexes.get(log);
+		if (index == null || !index.identity.equals(identity) || size < index.indexedBytes) {
+			index = new LineIndex(identity);
+			indexes.put(log, index);
+		}
+
+		synchronized (index) {
+			index.update(channel, size);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Helper to read part of a file without moving its position.
+	 */
+	private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				break;
+
+		return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * Helper to find where the line after an offset starts.
+	 */
+	private static long nextLineStart(FileChannel channel, long offset, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+		long position = offset;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				break;
+
+			int newline = indexOf(buffer.array(), 0, read);
+			if (newline >= 0)
+				return position + newline + 1;
+			position += read;
+		}
+
+		return offset; // A single line longer than a page.
+	}
+
+	/**
+	 * Helper to find the next newline in an array.
+	 */
+	private static int indexOf(byte[] data, int from, int to) {
+		for (int i = from; i < to; i++)
+			if (data[i] == '\n')
+				return i;
+
+		return -1;
+	}
+
+	/**
+	 * The offset of every LINES_PER_CHECKPOINT-th line of a log, scanned up to indexedBytes. Guarded by its own lock.
+	 */
+	private static class LineIndex {
+		private final Object identity;
+		private long[] checkpoints = new long[16];
+		private int checkpointCount = 1; // Line 0 starts at 0.
+		private long indexedBytes;
+		private long newlines;
+		private long lastLineStart; // Where the line after the last newline starts.
+
+		private LineIndex(Object identity) {
+			this.identity = identity;
+		}
+
+		/**
+		 * Scans what was added to the log since the last update.
+		 */
+		private void update(FileChannel channel, long size) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+			while (indexedBytes < size) {
+				buffer.clear();
+				int read = channel.read(buffer, indexedBytes);
+				if (read < 0)
+					break;
+
+				byte[] data = buffer.array();
+				for (int i = 0; i < read; i++)
+					if (data[i] == '\n') {
+						newlines++;
+						lastLineStart = indexedBytes + i + 1;
+						if (newlines % LINES_PER_CHECKPOINT == 0) {
+							if (checkpointCount == checkpoints.length)
+								checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+							checkpoints[checkpointCount++] = lastLineStart;
+						}
+					}
+
+				indexedBytes += read;
+			}
+		}
+
+		/**
+		 * @return How many lines the log has, counting a last line that hasn't ended yet.
+		 */
+		private long totalLines(long size) {
+			return newlines + (lastLineStart < size ? 1 : 0);
+		}
+
+		/**
+		 * @return Where a line starts. The line must be no later than the line after the last newline.
+		 */
+		private long lineStart(FileChannel channel, long line) throws IOException {
+			long position = checkpoints[(int) (line / LINES_PER_CHECKPOINT)];
+			long skip = line % LINES_PER_CHECKPOINT;
+
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+			while (skip > 0) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					break;
+
+				byte[] data = buffer.array();
+				int i = 0;
+				for (; i < read && skip > 0; i++)
+					if (data[i] == '\n')
+						skip--;
+				position += i;
+			}
+
+			return position;
+		}
+
+		/**
+		 * @return The line that an offset is in.
+		 */
+		private long lineAt(FileChannel channel, long offset) throws IOException {
+			int checkpoint = Arrays.binarySearch(checkpoints, 0, checkpointCount, offset);
+			if (checkpoint < 0)
+				checkpoint = -checkpoint - 2; // The last checkpoint before the offset.
+
+			long line = (long) checkpoint * LINES_PER_CHECKPOINT;
+			long position = checkpoints[checkpoint];
+
+			ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+			while (position < offset) {
+				buffer.clear();
+				buffer.limit((int) Math.min(SCAN_BUFFER_BYTES, offset - position));
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					break;
+
+				byte[] data = buffer.array();
+				for (int i = 0; i < read; i++)
+					if (data[i] == '\n')
+						line++;
+				position += read;
+			}
+
+			return line;
+		}
+	}
+}
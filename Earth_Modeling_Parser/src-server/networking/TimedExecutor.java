@@ -0,0 +1,111 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         An Executor that keeps track of how long its tasks wait for a thread, so that the ClientServer can show whether one kind of client work (see ClientServer.Category) is being held up.
+ */
+
+package networking;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimedExecutor implements Executor {
+
+	private final String name;
+	private final ExecutorService delegate;
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong waitedNanos = new AtomicLong();
+	private final AtomicLong maxWaitedNanos = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name
+	 *           What the tasks are, for toString().
+	 * @param delegate
+	 *           The pool that runs the tasks.
+	 */
+	public TimedExecutor(String name, ExecutorService delegate) {
+		this.name = name;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		final long queued = System.nanoTime();
+		waiting.incrementAndGet();
+
+		try {
+			delegate.execute(() -> {
+				long waited = System.nanoTime() - queued;
+				waiting.decrementAndGet();
+				started.incrementAndGet();
+				waitedNanos.addAndGet(waited);
+				maxWaitedNanos.accumulateAndGet(waited, Math::max);
+
+				task.run();
+			});
+		} catch (RuntimeException re) {
+			waiting.decrementAndGet(); // Rejected, so it will never start.
+			throw re;
+		}
+	}
+
+	/**
+	 * Stops taking tasks. Tasks that were already queued still run.
+	 */
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	/**
+	 * @return How many tasks are waiting for a thread.
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * @return How many tasks have been started.
+	 */
+	public long getStarted() {
+		return started.get();
+	}
+
+	/**
+	 * @return The average time that a started task waited for a thread, in milliseconds.
+	 */
+	public double getAverageWaitMillis() {
+		long count = started.get();
+		return count == 0 ? 0 : waitedNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return The longest time that a started task waited for a thread, in milliseconds.
+	 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitedNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return name + " [waiting=" + waiting + ", started=" + started + ", averageWaitMillis=" + String.format("%.2f", getAverageWaitMillis()) + ", maxWaitMillis=" + getMaxWaitMillis() + "]";
+	}
+}
@@ -70,6 +70,11 @@ public class AsciiToCsv {
 	 */
 	private long values_parsed;
 
+	/**
+	 * Number of values found in the table that weren't NODATA_value
+	 */
+	private long valid_values_parsed;
+
 	/*
 	 * Parsed Values
 	 */
@@ -116,6 +121,7 @@ public class AsciiToCsv {
 		this.NODATA_value = 0;
 		this.linesInHeader = 0;
 		this.values_parsed = 0;
+		this.valid_values_parsed = 0;
 		this.headerParsed = false;
 		this.maxValue = Double.MAX_VALUE;
 		this.minValue = Double.MAX_VALUE;
@@ -225,6 +231,14 @@ public class AsciiToCsv {
 		this.values_parsed++;
 	}
 
+	/**
+	 * 
+	 * @return the number of values parsed from the table that weren't NODATA_value.
+	 */
+	public long getvalid_values_parsed(){
+		return this.valid_values_parsed;
+	}
+
 	/**
 	 * 
 	 * @param ftp
@@ -448,9 +462,11 @@ public class AsciiToCsv {
 						increment_values_parsed();
 
 						// If we want to print the value
-						if (value != NODATA_value)
+						if (value != NODATA_value) {
 							// add to array list
 							this.addValueToList(value, lines, rows, columns);
+							valid_values_parsed++;
+						}
 					} catch (Exception e) {
 						Logger.error("1: Non double value found in the body of the Table. Please check your input file.");
 						linescan.close();
@@ -33,11 +33,12 @@ import networking.ServerInformation;
 import utils.CompoundDescriptions;
 import utils.FileLocations;
 import utils.MapCompoundType;
+import utils.MapProperties;
 import utils.MapRegionType;
 
 public class JavaScriptGenerator {
 
-	private ConvertedSet convertedSet;
+	private ConvertedSet.Snapshot convertedSet;
 	private CompoundDescriptions compoundDescriptions;
 	public static final String helpText = "<h2>Visualization of Earth Modeling Systems</h2> How To Use: <br> 1. Select a region.<br> 2. Select a compound.<br> 3. Select a year.<br> 4. If applicable, select a month. Currently, only CH4 is updated monthly.<br> 5. Click on the 'Load Map' button.<br><br> NOTE: Viewing freshly uploaded maps may require you to refresh your browser's cache. On most browsers, this can can be done by pressing the following buttons simultaneously: 'Ctrl+Shift+R'. <br> An explanation button (the '?' button) is present next to the compound selection menu to provide a detailed description of the selected compound.";
 
@@ -47,13 +48,13 @@ public class JavaScriptGenerator {
 	 * @throws IOException
 	 *            Had an issue creating the temp file or replacing the existing file with the temp file.
 	 * @param set
-	 *           The ConvertedSet that represents the maps that are already being hosted by the map server.
+	 *           A ConvertedSet.Snapshot that represents the maps that are already being hosted by the map server. Every list in the generated JS is built from this one snapshot, so they always agree with each other.
 	 * @throws IllegalAccessException
 	 *            Likely caused by an issue with the generateCompoundDescriptionEventListener().
 	 * @throws IllegalArgumentException
 	 *            Likely cause by an issue with the generateCompoundDescriptionEventListener().
 	 */
-	public JavaScriptGenerator(ConvertedSet set, CompoundDescriptions descriptions) throws IOException, IllegalArgumentException, IllegalAccessException {
+	public JavaScriptGenerator(ConvertedSet.Snapshot set, CompoundDescriptions descriptions) throws IOException, IllegalArgumentException, IllegalAccessException {
 		convertedSet = set;
 		compoundDescriptions = descriptions;
 
@@ -78,18 +79,14 @@ public class JavaScriptGenerator {
 		generateRegionEventListener(strBuff);
 		generateCompoundEventListener(strBuff);
 		generateYearEventListener(strBuff);
+		generateServiceTable(strBuff);
 		/*
 		 * Note about above helper methods from Anish: Honestly, the code to generate the JS is just plain bad. However, it runs quickly enough, works, and will likely never be expanded upon, so we have no incentive to refactor it. My assumption is if the number of maps ever gets sufficiently large, we would switch to querying a database.
 		 */
 
-		// Add button listener.
+		// Add button listener. Whether the map exists is looked up in the embedded services table, so the map server doesn't need to be probed first.
 		strBuff.append(
-				"loadMapBtn.addEventListener('click', function(){ require([ 'esri/Map', 'esri/views/SceneView', 'esri/layers/MapImageLayer', 'esri/widgets/Legend', 'dojo/domReady!', 'dojo/on', 'dojo/dom', ], function( Map, SceneView, MapImageLayer, Legend, domReady, on, dom) { var region = dom.byId('region'); var comp = dom.byId('compound'); var year = dom.byId('year'); var month = dom.byId('month'); var selectMonth; if (month.options[month.selectedIndex].text == 'Choose a month.'){ selectMonth = 'm-1'; } else{ selectMonth = month.value; } if (selectMonth != 'm-1') { new_url = '");
-		strBuff.append(ServerInformation.ARCGIS_PUBLISH_URL);
-		strBuff.append("' + region.value + compound.value + 'y' + year.value + 'm' + selectMonth + '/MapServer'; } else { new_url = '");
-		strBuff.append(ServerInformation.ARCGIS_PUBLISH_URL);
-		strBuff.append(
-				"' + region.value + compound.value + 'y' + year.value + selectMonth + '/MapServer'; } var url = new_url; var request; if(window.XMLHttpRequest){ request = new XMLHttpRequest(); } else { request = new ActiveXObject('Microsoft.XMLHTTP'); } request.open('GET', url, false); request.send(); if (request.status !== 200) { alert('The server cannot find that map.'); } else { view.map.removeAll(); view.ui.remove(legend); var lyr = new MapImageLayer({ url: url, opacity: 0.75 }); view.map.add(lyr); var monthTitle = month.options[month.selectedIndex].text; var legendTitle; if (monthTitle == 'Choose a month.') { legendTitle = comp.options[comp.selectedIndex].text + ' ' + year.options[year.selectedIndex].text; } else { legendTitle = month.options[month.selectedIndex].text + ' ' + year.options[year.selectedIndex].text; } view.then(function() { legend = new Legend({ view: view, layerInfos: [{ layer: lyr, title: legendTitle }] }); view.ui.add(legend, 'bottom-right'); }); lyr.then(function() { view.goTo(lyr.fullExtent); }); } }); }); legendCheck.addEventListener('click', function(){ require(['esri/Map', 'esri/views/SceneView', 'esri/layers/MapImageLayer', 'esri/widgets/Legend', 'dojo/domReady!', 'dojo/on', 'dojo/dom', ], function(Map, SceneView, MapImageLayer, Legend, domReady, on, dom) { if(legendCheck.value === 'hide'){ view.then(function(){ view.ui.remove(legend); }); legendCheck.value = 'show'; } else { view.then(function(){ view.ui.add(legend, 'bottom-right'); }); legendCheck.value = 'hide'; } }); }); }); }");
+				"loadMapBtn.addEventListener('click', function(){ require([ 'esri/Map', 'esri/views/SceneView', 'esri/layers/MapImageLayer', 'esri/widgets/Legend', 'dojo/domReady!', 'dojo/on', 'dojo/dom', ], function( Map, SceneView, MapImageLayer, Legend, domReady, on, dom) { var region = dom.byId('region'); var comp = dom.byId('compound'); var year = dom.byId('year'); var month = dom.byId('month'); var selectMonth; if (month.options[month.selectedIndex].text == 'Choose a month.'){ selectMonth = '-1'; } else{ selectMonth = month.value; } var url = getServiceUrl(region.value, comp.value, year.value, selectMonth); if (url === null) { alert('The server cannot find that map.'); } else { view.map.removeAll(); view.ui.remove(legend); var lyr = new MapImageLayer({ url: url, opacity: 0.75 }); view.map.add(lyr); var monthTitle = month.options[month.selectedIndex].text; var legendTitle; if (monthTitle == 'Choose a month.') { legendTitle = comp.options[comp.selectedIndex].text + ' ' + year.options[year.selectedIndex].text; } else { legendTitle = month.options[month.selectedIndex].text + ' ' + year.options[year.selectedIndex].text; } view.then(function() { legend = new Legend({ view: view, layerInfos: [{ layer: lyr, title: legendTitle }] }); view.ui.add(legend, 'bottom-right'); }); lyr.then(function() { view.goTo(lyr.fullExtent); }); } }); }); legendCheck.addEventListener('click', function(){ require(['esri/Map', 'esri/views/SceneView', 'esri/layers/MapImageLayer', 'esri/widgets/Legend', 'dojo/domReady!', 'dojo/on', 'dojo/dom', ], function(Map, SceneView, MapImageLayer, Legend, domReady, on, dom) { if(legendCheck.value === 'hide'){ view.then(function(){ view.ui.remove(legend); }); legendCheck.value = 'show'; } else { view.then(function(){ view.ui.add(legend, 'bottom-right'); }); legendCheck.value = 'hide'; } }); }); }); }");
 
 		// Output finalized JS.
 		output.write(strBuff.toString());
@@ -350,4 +347,28 @@ public class JavaScriptGenerator {
 
 		return arrayNames;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Helper to generate the table of published map services and the function that builds a service's URL from the dropdown values. A yearly map uses a month of -1.
+	 * 
+	 * @param strBuff
+	 *           The StringBuilder upon which the services table should be appended to.
+	 */
+	private void generateServiceTable(StringBuilder strBuff) {
+		strBuff.append("var services = {");
+
+		int[] keys = convertedSet.getPackedKeys();
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				strBuff.append(", ");
+			strBuff.append("'");
+			strBuff.append(MapProperties.fromPackedKey(keys[i]).toString());
+			strBuff.append("': 1");
+		}
+		strBuff.append("}; ");
+
+		strBuff.append("function getServiceUrl(region, compound, year, month) { var name = region + compound + 'y' + year + 'm' + month; if (!services.hasOwnProperty(name)) { return null; } return '");
+		strBuff.append(ServerInformation.ARCGIS_PUBLISH_URL);
+		strBuff.append("' + name + '/MapServer'; } ");
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Publishes a generated web artifact (such as the minified JS) to the web server directory under a content-hashed name, so browsers can cache it forever. A gzipped sibling is written next to it for servers that can serve precompressed files, and a small JSON manifest always points at the current version. The
+ *         manifest is written last, so it never points at a file that doesn't exist yet. The stable, unhashed name is still written for pages that haven't switched to the manifest.
+ */
+
+package parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.pmw.tinylog.Logger;
+
+public class WebArtifactPublisher {
+
+	public static final int HASH_LENGTH = 16; // Hex characters of the SHA-256 digest used in file names.
+	public static final int VERSIONS_TO_KEEP = 3; // Older versions are kept for pages that loaded a previous manifest.
+
+	private final File directory;
+	private final String baseName;
+	private final String extension;
+
+	/**
+	 * Creates a publisher for one artifact. For example, a base name of "minifiedAutoJS" and an extension of ".js" publishes minifiedAutoJS.<hash>.js, minifiedAutoJS.<hash>.js.gz, minifiedAutoJS.manifest.json, and minifiedAutoJS.js.
+	 * 
+	 * @param directory
+	 *           The web server directory that the artifact should be published to.
+	 * @param baseName
+	 *           The name of the artifact without its extension.
+	 * @param extension
+	 *           The extension of the artifact, including the dot.
+	 */
+	public WebArtifactPublisher(String directory, String baseName, String extension) {
+		this.directory = new File(directory);
+		this.baseName = baseName;
+		this.extension = extension;
+	}
+
+	/**
+	 * Publishes the contents of a file. Nothing is rewritten if the current version already has the same content.
+	 * 
+	 * @param source
+	 *           The file to publish. Isn't modified or deleted.
+	 * @return The name of the content-hashed file that is now current.
+	 * @throws IOException
+	 *            There was an issue reading the source or writing to the web server directory.
+	 */
+	public String publish(File source) throws IOException {
+		byte[] content = Files.readAllBytes(source.toPath());
+		String hash = hash(content);
+		String hashedName = baseName + "." + hash + extension;
+
+		File hashedFile = new File(directory, hashedName);
+		File gzipFile = new File(directory, hashedName + ".gz");
+		if (!hashedFile.exists() || !gzipFile.exists()) {
+			byte[] gzipped = gzip(content);
+			writeAtomically(gzipFile, gzipped);
+			writeAtomically(hashedFile, content);
+			Logger.info("Published {} ({} bytes, {} bytes gzipped).", hashedName, content.length, gzipped.length);
+		}
+
+		writeAtomically(new File(directory, baseName + extension), content);
+		writeAtomically(new File(directory, baseName + ".manifest.json"), manifest(hashedName, hash, content.length, gzipFile.length()).getBytes(StandardCharsets.UTF_8));
+		pruneOldVersions(hashedName);
+
+		return hashedName;
+	}
+
+	/**
+	 * Builds the manifest that points at the current version.
+	 */
+	private String manifest(String hashedName, String hash, long size, long gzipSize) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"file\": \"").append(hashedName);
+		sb.append("\", \"gzip\": \"").append(hashedName).append(".gz");
+		sb.append("\", \"hash\": \"").append(hash);
+		sb.append("\", \"size\": ").append(size);
+		sb.append(", \"gzipSize\": ").append(gzipSize);
+		sb.append(", \"generated\": ").append(System.currentTimeMillis());
+		sb.append("}");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Deletes all but the newest VERSIONS_TO_KEEP hashed versions of this artifact (and their compressed siblings). The current version is never deleted.
+	 * 
+	 * @param currentName
+	 *           The name of the content-hashed file that is now current.
+	 */
+	private void pruneOldVersions(String currentName) {
+		final String prefix = baseName + ".";
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		ArrayList<File> versions = new ArrayList<File>();
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(prefix) && name.endsWith(extension) && name.length() == prefix.length() + HASH_LENGTH + extension.length() && !name.equals(currentName))
+				versions.add(f);
+		}
+
+		if (versions.size() < VERSIONS_TO_KEEP)
+			return;
+
+		Collections.sort(versions, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+
+		// The current version counts as one of the versions kept.
+		for (int i = VERSIONS_TO_KEEP - 1; i < versions.size(); i++) {
+			File f = versions.get(i);
+			if (!f.delete() || !new File(directory, f.getName() + ".gz").delete())
+				Logger.warn("Couldn't fully remove old web artifact: {}", f);
+		}
+	}
+
+	/**
+	 * Writes the data to a temp file in the same directory and moves it into place, so the web server never serves a partially written file. Not thread-safe for the same target.
+	 */
+	private static void writeAtomically(File target, byte[] data) throws IOException {
+		Path temp = new File(target.getPath() + ".tmp").toPath();
+		try {
+			Files.write(temp, data);
+			Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return The first HASH_LENGTH hex characters of the SHA-256 digest of the content.
+	 */
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; sb.length() < HASH_LENGTH; i++)
+				sb.append(String.format("%02x", digest[i]));
+
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java platform is required to support SHA-256.", e);
+		}
+	}
+
+	/**
+	 * @return The content compressed at the best gzip compression level. The artifact is compressed once and served many times, so the extra time is worth it.
+	 */
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gzip.write(content);
+		}
+
+		return bytes.toByteArray();
+	}
+}
@@ -32,6 +32,10 @@ public class FileLocations {
 	// --- This should be replaced with a new 0-byte file when testing core daemon map functionality for validity. ---
 	// NOTE: Don't delete the old file on a working server! Simply test new functionality on a blank set, and copy the old one back once bug free.
 	public static final String CONVERTED_FILE_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "resources\\converted.ser";
+	public static final String METADATA_FILE_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "resources\\metadata.dat";
+	public static final String JOBS_FILE_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "resources\\jobs.dat";
+	public static final String CHECKPOINTS_FILE_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "resources\\checkpoints.dat";
+	public static final String INGESTED_FILE_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "resources\\ingested.dat";
 
 	/////////////////////////////////////////////////////////////////////////////////////////////////////////
 	// -------------- The following don't need to be updated if the entire directory is copied. --------------
@@ -39,6 +43,8 @@ public class FileLocations {
 	public static final String ASCII_INPUT_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Original_ASCII_files\\";
 	public static final String CSV_OUTPUT_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Parsed_CSV_files\\";
 	public static final String TEMP_WORKING_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Temp_Working_Files\\";
+	public static final String JOB_UPLOADS_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Job_Uploads\\";
+	public static final String UPLOAD_STAGING_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Upload_Staging\\";
 	public static final String LOGS_DIRECTORY_LOCATION = System.getProperty("user.dir");
 
 	// Files that are used by EarthModellingDaemon.
@@ -52,6 +58,8 @@ public class FileLocations {
 	// Location of Python scripts.
 	public static final String PUBLISH_MAP_PYTHON_SCRIPT_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Python_Scripts\\publish_map.py";
 	public static final String PUBLISHING_PARAMS_PYTHON_SCRIPT_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Python_Scripts\\publishing_params.py";
+	public static final String DELETE_SERVICES_PYTHON_SCRIPT_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Python_Scripts\\delete_services.py";
+	public static final String ARCPY_WORKER_PYTHON_SCRIPT_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Python_Scripts\\arcpy_worker.py";
 
 	// Directories that are used by Python scripts.
 	public static final String ABS_CSV_OUTPUT_DIRECTORY_LOCATION = CURRENT_WORKING_DIRECTORY_LOCATION + "Parsed_CSV_files\\";
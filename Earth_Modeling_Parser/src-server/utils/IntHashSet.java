@@ -0,0 +1,275 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         An open-addressing hash set of primitive ints. Stores values in a single int[] using linear probing, so adds, lookups, and removals never box or allocate (outside of growing the table). Integer.MIN_VALUE is reserved as the empty-slot marker and cannot be stored.
+ */
+
+package utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+public class IntHashSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int FREE = Integer.MIN_VALUE;
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private int[] table;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	/**
+	 * Creates an empty set.
+	 */
+	public IntHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty set that can hold the expected number of values without growing.
+	 * 
+	 * @param expectedSize
+	 *           The number of values you expect to store.
+	 */
+	public IntHashSet(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	/**
+	 * Creates a copy of the given set.
+	 * 
+	 * @param other
+	 *           The set that you wish to copy.
+	 */
+	public IntHashSet(IntHashSet other) {
+		table = other.table.clone();
+		size = other.size;
+		mask = other.mask;
+		resizeThreshold = other.resizeThreshold;
+	}
+
+	/**
+	 * Adds a value to the set.
+	 * 
+	 * @param value
+	 *           The value that you wish to add. Cannot be Integer.MIN_VALUE.
+	 * @return true if the value wasn't in the set and was added; false otherwise.
+	 */
+	public boolean add(int value) {
+		checkValue(value);
+
+		int i = indexOf(value);
+		while (table[i] != FREE) {
+			if (table[i] == value)
+				return false;
+			i = (i + 1) & mask;
+		}
+
+		table[i] = value;
+		if (++size > resizeThreshold)
+			rehash(table.length << 1);
+
+		return true;
+	}
+
+	/**
+	 * Removes a value from the set.
+	 * 
+	 * @param value
+	 *           The value that you wish to remove.
+	 * @return true if the value was in the set and was removed; false otherwise.
+	 */
+	public boolean remove(int value) {
+		if (value == FREE)
+			return false;
+
+		int i = indexOf(value);
+		while (table[i] != FREE) {
+			if (table[i] == value) {
+				shiftBack(i);
+				size--;
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param value
+	 *           The value that you wish to check for.
+	 * @return true if the value is in the set; false otherwise.
+	 */
+	public boolean contains(int value) {
+		if (value == FREE)
+			return false;
+
+		int i = indexOf(value);
+		while (table[i] != FREE) {
+			if (table[i] == value)
+				return true;
+			i = (i + 1) & mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The number of values in the set.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the set holds no values; false otherwise.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes every value from the set.
+	 */
+	public void clear() {
+		Arrays.fill(table, FREE);
+		size = 0;
+	}
+
+	/**
+	 * Passes every value in the set to the consumer, in no particular order. The set must not be modified while this runs.
+	 * 
+	 * @param action
+	 *           The consumer that you wish to receive each value.
+	 */
+	public void forEach(IntConsumer action) {
+		for (int v : table)
+			if (v != FREE)
+				action.accept(v);
+	}
+
+	/**
+	 * @return A new array of all values in the set, sorted in ascending order.
+	 */
+	public int[] toSortedArray() {
+		int[] ret = new int[size];
+		int index = 0;
+		for (int v : table)
+			if (v != FREE)
+				ret[index++] = v;
+
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Helper to find the home slot of a value. Mixes the bits first, as packed keys tend to differ only in their high bits.
+	 * 
+	 * @param value
+	 *           The value that you wish to place.
+	 * @return The index in the table where probing should start.
+	 */
+	private int indexOf(int value) {
+		int h = value * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Helper to close the gap left by a removal so that later probes don't stop early (backward-shift deletion).
+	 * 
+	 * @param gap
+	 *           The index of the slot that was just emptied.
+	 */
+	private void shiftBack(int gap) {
+		int i = gap;
+		while (true) {
+			i = (i + 1) & mask;
+			int v = table[i];
+			if (v == FREE)
+				break;
+
+			int home = indexOf(v);
+			// Move v into the gap only if its home slot isn't cyclically between the gap and its current slot.
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				table[gap] = v;
+				gap = i;
+			}
+		}
+
+		table[gap] = FREE;
+	}
+
+	/**
+	 * Helper to grow the table and re-insert all values.
+	 * 
+	 * @param newCapacity
+	 *           The new length of the table; must be a power of two.
+	 */
+	private void rehash(int newCapacity) {
+		int[] old = table;
+		allocate(newCapacity);
+
+		for (int v : old)
+			if (v != FREE) {
+				int i = indexOf(v);
+				while (table[i] != FREE)
+					i = (i + 1) & mask;
+				table[i] = v;
+			}
+	}
+
+	/**
+	 * Helper to create an empty table of the given capacity.
+	 * 
+	 * @param capacity
+	 *           The length of the table; must be a power of two.
+	 */
+	private void allocate(int capacity) {
+		table = new int[capacity];
+		Arrays.fill(table, FREE);
+		mask = capacity - 1;
+		resizeThreshold = capacity >>> 1; // Keep the load factor at or below 0.5 so probe chains stay short.
+	}
+
+	/**
+	 * @param expectedSize
+	 *           The number of values the table should hold.
+	 * @return The smallest power of two table length that keeps the load factor at or below 0.5.
+	 */
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity >>> 1 < expectedSize)
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	/**
+	 * Helper to make sure the reserved marker isn't stored.
+	 * 
+	 * @param value
+	 *           The value that you wish to check.
+	 */
+	private static void checkValue(int value) {
+		if (value == FREE)
+			throw new IllegalArgumentException("Integer.MIN_VALUE is reserved and cannot be stored in an IntHashSet.");
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines a message that asks the server to delete every map matching a region, compound, and range of years, or carries the server's response. The server sends a MAP_RESULT for each matched map as soon as it is deleted (or fails to be), followed by a single FINISHED.
+ */
+
+package networking;
+
+import java.io.Serializable;
+
+import utils.MapCompoundType;
+import utils.MapProperties;
+import utils.MapRegionType;
+
+public class BulkDeleteMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		BULK_DELETE_REQUEST, MAP_RESULT, FINISHED;
+	};
+
+	private Type type;
+	private MapRegionType region;
+	private MapCompoundType compound;
+	private int fromYear;
+	private int toYear;
+	private MapProperties properties;
+	private String error;
+	private int matched;
+	private int deleted;
+
+	/**
+	 * Constructs a bulk delete request from the client to the server. Only maps matching every filter are deleted.
+	 * 
+	 * @param region
+	 *           The region of the maps you want to delete; null for all regions.
+	 * @param compound
+	 *           The compound of the maps you want to delete; null for all compounds.
+	 * @param fromYear
+	 *           The first year of the maps you want to delete.
+	 * @param toYear
+	 *           The last year of the maps you want to delete.
+	 * @throws IllegalArgumentException
+	 *            If fromYear is after toYear.
+	 */
+	public BulkDeleteMessage(MapRegionType region, MapCompoundType compound, int fromYear, int toYear) {
+		if (fromYear > toYear)
+			throw new IllegalArgumentException("fromYear can't be after toYear.");
+
+		type = Type.BULK_DELETE_REQUEST;
+		this.region = region;
+		this.compound = compound;
+		this.fromYear = fromYear;
+		this.toYear = toYear;
+	}
+
+	/**
+	 * Constructs the server's result for one matched map.
+	 * 
+	 * @param properties
+	 *           The map.
+	 * @param error
+	 *           Why the map wasn't deleted; null if it was.
+	 * @throws IllegalAccessException
+	 *            If properties is null.
+	 */
+	public BulkDeleteMessage(MapProperties properties, String error) throws IllegalAccessException {
+		if (properties == null)
+			throw new IllegalAccessException("properties must be set.");
+
+		type = Type.MAP_RESULT;
+		this.properties = properties;
+		this.error = error;
+	}
+
+	/**
+	 * Constructs the server's last response to a request, sent once every matched map has a result.
+	 * 
+	 * @param matched
+	 *           The number of maps that matched the request.
+	 * @param deleted
+	 *           The number of those maps that were deleted.
+	 * @param error
+	 *           An error that affects the whole request (such as the JS not being updated); null if there was none.
+	 */
+	public BulkDeleteMessage(int matched, int deleted, String error) {
+		type = Type.FINISHED;
+		this.matched = matched;
+		this.deleted = deleted;
+		this.error = error;
+	}
+
+	/**
+	 * @return true if this message is a request for the server; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.BULK_DELETE_REQUEST;
+	}
+
+	/**
+	 * @return The region filter of this request; null if all regions were requested.
+	 */
+	public MapRegionType getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return The compound filter of this request; null if all compounds were requested.
+	 */
+	public MapCompoundType getCompound() {
+		return compound;
+	}
+
+	/**
+	 * @return The first year of this request.
+	 */
+	public int getFromYear() {
+		return fromYear;
+	}
+
+	/**
+	 * @return The last year of this request.
+	 */
+	public int getToYear() {
+		return toYear;
+	}
+
+	/**
+	 * @return The map that a MAP_RESULT is for. Will return null if type is not Type.MAP_RESULT.
+	 */
+	public MapProperties getMapProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return Why a map (for a MAP_RESULT) or the request (for FINISHED) failed; null if it didn't.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return The number of maps that matched the request. Only set for Type.FINISHED.
+	 */
+	public int getMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return The number of maps that were deleted. Only set for Type.FINISHED.
+	 */
+	public int getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines the messages that keep a client's copy of the server's catalog of converted maps (the ConvertedSet) up to date, so that a client can tell which maps exist without asking:
+ * 
+ *         Right after a client logs in, the server sends a SNAPSHOT of every map in the catalog along with the catalog's version, and from then on pushes a DELTA with the maps that were added and removed each time the catalog changes. Each change increases the version by one, so a client that
+ *         receives a DELTA whose version isn't one more than its own has missed a change, and should send SUBSCRIBE to be sent a new SNAPSHOT. Deltas whose version isn't newer than the client's can be ignored.
+ * 
+ *         Maps are passed as packed keys (see MapProperties.toPackedKey()), sorted in ascending order.
+ * 
+ *         Only understood by servers that logged in with MessageCodecs.CATALOG_VERSION or later.
+ */
+
+package networking;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class CatalogMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		SUBSCRIBE, SNAPSHOT, DELTA;
+	};
+
+	private static final int[] NONE = new int[0];
+
+	private Type type;
+	private long version;
+	private int[] keys = NONE;
+	private int[] added = NONE;
+	private int[] removed = NONE;
+
+	/**
+	 * Helper for the factory methods.
+	 */
+	private CatalogMessage(Type type, long version) {
+		this.type = type;
+		this.version = version;
+	}
+
+	/**
+	 * Constructs a client request for a SNAPSHOT of the catalog.
+	 * 
+	 * @return The message.
+	 */
+	public static CatalogMessage subscribe() {
+		return new CatalogMessage(Type.SUBSCRIBE, 0);
+	}
+
+	/**
+	 * Constructs the server's message with every map in the catalog.
+	 * 
+	 * @param version
+	 *           The version of the catalog.
+	 * @param keys
+	 *           The packed keys of every map in the catalog.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If keys is null.
+	 */
+	public static CatalogMessage snapshot(long version, int[] keys) throws IllegalAccessException {
+		if (keys == null)
+			throw new IllegalAccessException("keys must be set.");
+
+		CatalogMessage cm = new CatalogMessage(Type.SNAPSHOT, version);
+		cm.keys = sorted(keys);
+		return cm;
+	}
+
+	/**
+	 * Constructs the server's message with a change to the catalog.
+	 * 
+	 * @param version
+	 *           The version of the catalog after the change.
+	 * @param added
+	 *           The packed keys of the maps that the change added.
+	 * @param removed
+	 *           The packed keys of the maps that the change removed.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If added or removed is null.
+	 */
+	public static CatalogMessage delta(long version, int[] added, int[] removed) throws IllegalAccessException {
+		if (added == null || removed == null)
+			throw new IllegalAccessException("added and removed must be set.");
+
+		CatalogMessage cm = new CatalogMessage(Type.DELTA, version);
+		cm.added = sorted(added);
+		cm.removed = sorted(removed);
+		return cm;
+	}
+
+	/**
+	 * Helper to copy and sort an array of packed keys, which are never negative.
+	 */
+	private static int[] sorted(int[] keys) {
+		int[] copy = keys.clone();
+		Arrays.sort(copy);
+		if (copy.length > 0 && copy[0] < 0)
+			throw new IllegalArgumentException("Packed keys can't be negative.");
+
+		return copy;
+	}
+
+	/**
+	 * @return The type of this message.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The version of the catalog that a SNAPSHOT holds, or that a DELTA brings the catalog to; 0 for SUBSCRIBE.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The packed keys of every map in a SNAPSHOT, sorted in ascending order; empty for other types.
+	 */
+	public int[] getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return The packed keys of the maps that a DELTA added, sorted in ascending order; empty for other types.
+	 */
+	public int[] getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return The packed keys of the maps that a DELTA removed, sorted in ascending order; empty for other types.
+	 */
+	public int[] getRemoved() {
+		return removed;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         The ways that a frame's body can be compressed (see MessageFrames). The client lists the ones it can read when it logs in, and the server picks one, along with the size that a message has to reach before it is worth compressing. ASCII grids, with their long runs of -9999, shrink to a
+ *         fraction of their size.
+ * 
+ *         DEFLATE_FAST trades some of DEFLATE's ratio for speed, so that compressing doesn't become slower than the network.
+ */
+
+package networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public enum Compression {
+	NONE(0, Deflater.NO_COMPRESSION), DEFLATE_FAST(1, Deflater.BEST_SPEED), DEFLATE(2, Deflater.DEFAULT_COMPRESSION);
+
+	public static final int DEFAULT_THRESHOLD_BYTES = 8 * 1024; // Smaller messages aren't worth the time.
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private final int id;
+	private final int level;
+
+	private Compression(int id, int level) {
+		this.id = id;
+		this.level = level;
+	}
+
+	/**
+	 * @return The number that identifies this compression in a frame's header.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Finds a compression by the number in a frame's header.
+	 * 
+	 * @param id
+	 *           The number.
+	 * @return The compression; null if there is none with that number.
+	 */
+	public static Compression fromId(int id) {
+		for (Compression c : values())
+			if (c.id == id)
+				return c;
+
+		return null;
+	}
+
+	/**
+	 * Picks the compression to use from the ones that the other side can read.
+	 * 
+	 * @param offered
+	 *           The compressions that the other side can read, the one it prefers first; null if it can't read any.
+	 * @return The first compression offered, other than NONE; NONE if nothing else was offered.
+	 */
+	public static Compression negotiate(Compression[] offered) {
+		if (offered != null)
+			for (Compression c : offered)
+				if (c != null && c != NONE)
+					return c;
+
+		return NONE;
+	}
+
+	/**
+	 * Compresses bytes into a stream.
+	 * 
+	 * @param bytes
+	 *           The bytes to compress.
+	 * @param offset
+	 *           Where to start in bytes.
+	 * @param length
+	 *           How many bytes to compress.
+	 * @param out
+	 *           Where to write the compressed bytes. It isn't closed.
+	 * @throws IOException
+	 *            The bytes couldn't be written.
+	 */
+	public void compress(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+		if (this == NONE) {
+			out.write(bytes, offset, length);
+			return;
+		}
+
+		Deflater deflater = new Deflater(level);
+		try {
+			DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, BUFFER_BYTES);
+			dos.write(bytes, offset, length);
+			dos.finish();
+		} finally {
+			deflater.end(); // Frees the native memory now, rather than whenever it is garbage collected.
+		}
+	}
+
+	/**
+	 * Wraps a stream of compressed bytes.
+	 * 
+	 * @param in
+	 *           The compressed bytes.
+	 * @return A stream of the original bytes.
+	 */
+	public InputStream decompress(InputStream in) {
+		if (this == NONE)
+			return in;
+
+		return new InflaterInputStream(in, new Inflater(), BUFFER_BYTES) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inf.end(); // InflaterInputStream only ends the Inflaters it creates itself.
+			}
+		};
+	}
+}
@@ -15,6 +15,8 @@
  * @author Anish Kunduru
  * 
  *         This class defines the type of message that will happen upon client sign-on or sign-off.
+ * 
+ *         A CONNECT can also list the Compressions and the newest protocol version that the client can read, and the SUCCESSFUL_CONNECTION answering it carries the FrameFormat that the server picked from them. Both sides write frames in that format for the rest of the connection.
  */
 
 package networking;
@@ -32,6 +34,10 @@ public class ConnectionMessage implements Serializable {
 	private Type messageType;
 	private String username;
 	private String password;
+	private Compression[] compressions;
+	private Compression compression;
+	private int compressionThreshold;
+	private int protocolVersion;
 
 	/**
 	 * Constructs a new ConnectionMessage.
@@ -55,6 +61,61 @@ public class ConnectionMessage implements Serializable {
 		messageType = type;
 	}
 
+	/**
+	 * Constructs a new ConnectionMessage of Type.CONNECT that offers compression and a newer protocol.
+	 * 
+	 * @param type
+	 *           Type.CONNECT.
+	 * @param username
+	 *           The user of the person logging into the server.
+	 * @param password
+	 *           The password for the specified username.
+	 * @param compressions
+	 *           The Compressions that the client can read, the one it prefers first.
+	 * @param protocolVersion
+	 *           The newest protocol version that the client can read (see MessageCodecs).
+	 * @throws IllegalAccessException
+	 *            If a null value is passed.
+	 */
+	public ConnectionMessage(Type type, String username, String password, Compression[] compressions, int protocolVersion) throws IllegalAccessException {
+		this(type, username, password);
+
+		if (compressions == null)
+			throw new IllegalAccessException("All values must be set.");
+		if (type != Type.CONNECT)
+			throw new IllegalArgumentException("Only a CONNECT can offer compression.");
+
+		this.compressions = compressions.clone();
+		this.protocolVersion = protocolVersion;
+	}
+
+	/**
+	 * Constructs a new ConnectionMessage of Type.SUCCESSFUL_CONNECTION that settles how frames are written.
+	 * 
+	 * @param type
+	 *           Type.SUCCESSFUL_CONNECTION.
+	 * @param username
+	 *           The user of the person logging into the server.
+	 * @param password
+	 *           The password for the specified username.
+	 * @param format
+	 *           The FrameFormat that both sides will use.
+	 * @throws IllegalAccessException
+	 *            If a null value is passed.
+	 */
+	public ConnectionMessage(Type type, String username, String password, FrameFormat format) throws IllegalAccessException {
+		this(type, username, password);
+
+		if (format == null)
+			throw new IllegalAccessException("All values must be set.");
+		if (type != Type.SUCCESSFUL_CONNECTION)
+			throw new IllegalArgumentException("Only a SUCCESSFUL_CONNECTION can settle how frames are written.");
+
+		compression = format.getCompression();
+		compressionThreshold = format.getCompressionThreshold();
+		protocolVersion = format.getProtocolVersion();
+	}
+
 	/**
 	 * Accessor for this message's type.
 	 * 
@@ -81,4 +142,38 @@ public class ConnectionMessage implements Serializable {
 	public String getPassword() {
 		return password;
 	}
+
+	/**
+	 * The Compressions that the client can read. Only set for Type.CONNECT.
+	 * 
+	 * @return The Compressions, the one the client prefers first; null if the client didn't offer any.
+	 */
+	public Compression[] getCompressions() {
+		return compressions == null ? null : compressions.clone();
+	}
+
+	/**
+	 * The protocol version that the client can read (for Type.CONNECT), or that both sides will use (for Type.SUCCESSFUL_CONNECTION).
+	 * 
+	 * @return The version; MessageCodecs.SERIALIZED_VERSION if it wasn't set, as by versions of VEMS that didn't know about it.
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion < MessageCodecs.SERIALIZED_VERSION ? MessageCodecs.SERIALIZED_VERSION : protocolVersion;
+	}
+
+	/**
+	 * How both sides will write frames. Only set for Type.SUCCESSFUL_CONNECTION.
+	 * 
+	 * @return The FrameFormat; FrameFormat.LOGIN if nothing was agreed on.
+	 */
+	public FrameFormat getFrameFormat() {
+		if (compression == null)
+			return FrameFormat.LOGIN;
+
+		try {
+			return new FrameFormat(getProtocolVersion(), compression, compressionThreshold);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae); // compression was checked above.
+		}
+	}
 }
@@ -0,0 +1,68 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class wraps a request with a correlation ID that the client picks, and each response to it with the same ID, so that the client can have many requests in flight and still tell which response answers which. The server handles wrapped requests concurrently instead of in order.
+ * 
+ *         Only sent once both sides have agreed on MessageCodecs.CORRELATION_VERSION or later at login. Messages that aren't wrapped (like job updates that the client subscribed to) are handled and routed as before.
+ */
+
+package networking;
+
+import java.io.Serializable;
+
+public class CorrelatedMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final long UNCORRELATED = 0L; // Never used as a correlation ID.
+
+	private long correlationId;
+	private Object message;
+
+	/**
+	 * Constructs a new CorrelatedMessage.
+	 * 
+	 * @param correlationId
+	 *           The ID that the client picked for the request; anything but UNCORRELATED.
+	 * @param message
+	 *           The request or response, formatted as a src-shared.networking.
+	 * @throws IllegalAccessException
+	 *            If message is null.
+	 */
+	public CorrelatedMessage(long correlationId, Object message) throws IllegalAccessException {
+		if (message == null)
+			throw new IllegalAccessException("message must be set.");
+		if (correlationId == UNCORRELATED || message instanceof CorrelatedMessage)
+			throw new IllegalArgumentException("A message must be correlated once, with an ID other than UNCORRELATED.");
+
+		this.correlationId = correlationId;
+		this.message = message;
+	}
+
+	/**
+	 * @return The ID that the client picked for the request.
+	 */
+	public long getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * @return The request or response.
+	 */
+	public Object getMessage() {
+		return message;
+	}
+}
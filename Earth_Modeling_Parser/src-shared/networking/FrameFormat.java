@@ -0,0 +1,89 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         What the client and server agreed on at login about how to write frames (see MessageFrames): the protocol version, and the Compression and the size a message has to reach before it is compressed. Each side reads whatever the other sends, so this only decides what a side writes.
+ * 
+ *         Until the agreement arrives, LOGIN is used, which any version of VEMS can read.
+ */
+
+package networking;
+
+public final class FrameFormat {
+
+	public static final FrameFormat LOGIN = login();
+
+	private final int protocolVersion;
+	private final Compression compression;
+	private final int compressionThreshold;
+
+	/**
+	 * Constructs a new FrameFormat.
+	 * 
+	 * @param protocolVersion
+	 *           The protocol version that both sides can read (see MessageCodecs).
+	 * @param compression
+	 *           The Compression that both sides can read.
+	 * @param compressionThreshold
+	 *           The smallest serialized message, in bytes, that will be compressed.
+	 * @throws IllegalAccessException
+	 *            If compression is null.
+	 */
+	public FrameFormat(int protocolVersion, Compression compression, int compressionThreshold) throws IllegalAccessException {
+		if (compression == null)
+			throw new IllegalAccessException("compression must be set.");
+
+		this.protocolVersion = protocolVersion;
+		this.compression = compression;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return The protocol version that both sides can read.
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * @return The Compression that both sides can read.
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return The smallest serialized message, in bytes, that will be compressed.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Helper to create LOGIN, whose arguments are known to be valid.
+	 */
+	private static FrameFormat login() {
+		try {
+			return new FrameFormat(MessageCodecs.SERIALIZED_VERSION, Compression.NONE, 0);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "v" + protocolVersion + "/" + compression;
+	}
+}
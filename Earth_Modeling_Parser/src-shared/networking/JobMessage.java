@@ -0,0 +1,133 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines a message about background jobs. The server sends JOB_ACCEPTED as soon as an upload has been queued, and STATUS_UPDATE every time a job the client is subscribed to changes state. Clients can ask for the status of a job (or all jobs) at any time, and subscribe to or
+ *         unsubscribe from a job's updates.
+ */
+
+package networking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import utils.JobStatus;
+
+public class JobMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final long ALL_JOBS = -1L;
+
+	public enum Type {
+		JOB_ACCEPTED, STATUS_REQUEST, STATUS_RESPONSE, SUBSCRIBE, UNSUBSCRIBE, STATUS_UPDATE;
+	};
+
+	private Type type;
+	private long jobId;
+	private ArrayList<JobStatus> statuses;
+
+	/**
+	 * Constructs a request from the client to the server.
+	 * 
+	 * @param type
+	 *           Must be Type.STATUS_REQUEST, Type.SUBSCRIBE, or Type.UNSUBSCRIBE.
+	 * @param jobId
+	 *           The ID of the job; ALL_JOBS for every job.
+	 * @throws IllegalAccessException
+	 *            If type isn't a request type.
+	 */
+	public JobMessage(Type type, long jobId) throws IllegalAccessException {
+		if (type != Type.STATUS_REQUEST && type != Type.SUBSCRIBE && type != Type.UNSUBSCRIBE)
+			throw new IllegalAccessException("Only STATUS_REQUEST, SUBSCRIBE, and UNSUBSCRIBE messages are defined with a job ID.");
+
+		this.type = type;
+		this.jobId = jobId;
+	}
+
+	/**
+	 * Constructs a message from the server about a single job.
+	 * 
+	 * @param type
+	 *           Must be Type.JOB_ACCEPTED or Type.STATUS_UPDATE.
+	 * @param status
+	 *           The status of the job.
+	 * @throws IllegalAccessException
+	 *            If type isn't Type.JOB_ACCEPTED or Type.STATUS_UPDATE, or status is null.
+	 */
+	public JobMessage(Type type, JobStatus status) throws IllegalAccessException {
+		if ((type != Type.JOB_ACCEPTED && type != Type.STATUS_UPDATE) || status == null)
+			throw new IllegalAccessException("Only JOB_ACCEPTED and STATUS_UPDATE messages are defined with a single job status.");
+
+		this.type = type;
+		jobId = status.getJobId();
+		statuses = new ArrayList<JobStatus>(1);
+		statuses.add(status);
+	}
+
+	/**
+	 * Constructs a status response from the server to the client.
+	 * 
+	 * @param statuses
+	 *           The status of every job that matched the request.
+	 * @throws IllegalAccessException
+	 *            If statuses is null.
+	 */
+	public JobMessage(ArrayList<JobStatus> statuses) throws IllegalAccessException {
+		if (statuses == null)
+			throw new IllegalAccessException("statuses must be set.");
+
+		type = Type.STATUS_RESPONSE;
+		jobId = ALL_JOBS;
+		this.statuses = statuses;
+	}
+
+	/**
+	 * @return true if this message is a request for the server; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.STATUS_REQUEST || type == Type.SUBSCRIBE || type == Type.UNSUBSCRIBE;
+	}
+
+	/**
+	 * @return The ID of the job this message is about; ALL_JOBS if it is about every job.
+	 */
+	public long getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * @return The status of the job for JOB_ACCEPTED and STATUS_UPDATE messages; null otherwise.
+	 */
+	public JobStatus getStatus() {
+		return type == Type.JOB_ACCEPTED || type == Type.STATUS_UPDATE ? statuses.get(0) : null;
+	}
+
+	/**
+	 * @return The job statuses carried by this message. Will return null for requests.
+	 */
+	public ArrayList<JobStatus> getStatuses() {
+		return statuses;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
@@ -158,6 +158,13 @@ public class LogMessage implements Serializable {
 		return null;
 	}
 
+	/**
+	 * @return The log response as it was read from the file, for MessageCodecs. Will return null if type is not Type.LOG_RESPONSE.
+	 */
+	byte[] getLogResponseBytes() {
+		return logResponse;
+	}
+
 	/**
 	 * Determines if this message is a request for the server.
 	 * 
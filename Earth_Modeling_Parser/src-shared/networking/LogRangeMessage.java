@@ -0,0 +1,321 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines the messages for reading part of a log, instead of the whole log with a LogMessage of LogMessage.Type.LOG_REQUEST:
+ * 
+ *         A BYTES request asks for the bytes of a log starting at an offset, and a LINES request asks for a page of lines starting at a line number (or the last page, with LAST_PAGE). The server answers either with a RANGE, which says where in the log its data starts and how long the log was when
+ *         it was read. Neither answer holds more than MAX_RANGE_BYTES, so a client only has to hold the pages it shows.
+ * 
+ *         A FOLLOW request asks the server to push the lines that are added to a log after an offset, each batch as an APPENDED message, until the client sends UNFOLLOW (which isn't answered) or disconnects. The server answers FOLLOW with an APPENDED that holds no lines, and
+ *         pushes may arrive before that answer, so a client should go by the offset of each APPENDED. If a log can't be read, the server answers FAILED.
+ * 
+ *         Only understood by servers that logged in with MessageCodecs.LOG_RANGE_VERSION or later.
+ */
+
+package networking;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+public class LogRangeMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_RANGE_BYTES = 256 * 1024; // The most a RANGE or APPENDED can hold.
+	public static final int MAX_LINES = 5000; // The most lines a LINES request can ask for.
+	public static final long LAST_PAGE = -1; // A LINES request's firstLine for the last lines of the log.
+
+	public enum Type {
+		BYTES, LINES, RANGE, FOLLOW, UNFOLLOW, APPENDED, FAILED;
+	};
+
+	private Type type;
+	private String logName;
+	private long offset;
+	private int length;
+	private long firstLine;
+	private int lineCount;
+	private byte[] data;
+	private long logLength;
+	private long totalLines;
+	private String error;
+
+	/**
+	 * Helper for the factory methods.
+	 */
+	private LogRangeMessage(Type type, String logName) throws IllegalAccessException {
+		if (logName == null)
+			throw new IllegalAccessException("logName must be set.");
+		if (logName.equals(""))
+			throw new IllegalArgumentException("logName is empty; you must specify a filename.");
+
+		this.type = type;
+		this.logName = logName;
+	}
+
+	/**
+	 * Constructs a client request for the bytes of a log.
+	 * 
+	 * @param logName
+	 *           The name of the log (as passed in the list of logs from the server).
+	 * @param offset
+	 *           Where in the log to start.
+	 * @param length
+	 *           How many bytes to read; no more than MAX_RANGE_BYTES.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName is null.
+	 */
+	public static LogRangeMessage bytes(String logName, long offset, int length) throws IllegalAccessException {
+		if (offset < 0 || length < 1 || length > MAX_RANGE_BYTES)
+			throw new IllegalArgumentException("A range must start at 0 or later and hold between 1 and " + MAX_RANGE_BYTES + " bytes.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.BYTES, logName);
+		lrm.offset = offset;
+		lrm.length = length;
+		return lrm;
+	}
+
+	/**
+	 * Constructs a client request for a page of lines of a log.
+	 * 
+	 * @param logName
+	 *           The name of the log (as passed in the list of logs from the server).
+	 * @param firstLine
+	 *           The first line to read, counting from 0; LAST_PAGE for the last lineCount lines.
+	 * @param lineCount
+	 *           How many lines to read; no more than MAX_LINES. The server sends fewer if they would be more than MAX_RANGE_BYTES.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName is null.
+	 */
+	public static LogRangeMessage lines(String logName, long firstLine, int lineCount) throws IllegalAccessException {
+		if ((firstLine < 0 && firstLine != LAST_PAGE) || lineCount < 1 || lineCount > MAX_LINES)
+			throw new IllegalArgumentException("A page must start at line 0 or later (or LAST_PAGE) and hold between 1 and " + MAX_LINES + " lines.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.LINES, logName);
+		lrm.firstLine = firstLine;
+		lrm.lineCount = lineCount;
+		return lrm;
+	}
+
+	/**
+	 * Constructs the server's answer to BYTES or LINES.
+	 * 
+	 * @param logName
+	 *           The log that was read.
+	 * @param offset
+	 *           Where in the log data starts.
+	 * @param data
+	 *           What was read; no more than MAX_RANGE_BYTES. Empty if the request started at or past the end of the log.
+	 * @param firstLine
+	 *           The line that data starts with; -1 if it isn't known (for BYTES).
+	 * @param lineCount
+	 *           How many lines data holds; -1 if it isn't known (for BYTES).
+	 * @param logLength
+	 *           How long the log was when it was read, in bytes.
+	 * @param totalLines
+	 *           How many lines the log had when it was read; -1 if it isn't known (for BYTES).
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName or data is null.
+	 */
+	public static LogRangeMessage range(String logName, long offset, byte[] data, long firstLine, int lineCount, long logLength, long totalLines) throws IllegalAccessException {
+		if (data == null)
+			throw new IllegalAccessException("data must be set.");
+		if (data.length > MAX_RANGE_BYTES)
+			throw new IllegalArgumentException("A range can't be larger than " + MAX_RANGE_BYTES + " bytes.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.RANGE, logName);
+		lrm.offset = offset;
+		lrm.data = data;
+		lrm.firstLine = firstLine;
+		lrm.lineCount = lineCount;
+		lrm.logLength = logLength;
+		lrm.totalLines = totalLines;
+		return lrm;
+	}
+
+	/**
+	 * Constructs a client request to be sent the lines added to a log.
+	 * 
+	 * @param logName
+	 *           The name of the log (as passed in the list of logs from the server).
+	 * @param offset
+	 *           Where in the log to start following; usually where the last RANGE that the client read ends.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName is null.
+	 */
+	public static LogRangeMessage follow(String logName, long offset) throws IllegalAccessException {
+		if (offset < 0)
+			throw new IllegalArgumentException("offset must be 0 or later.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.FOLLOW, logName);
+		lrm.offset = offset;
+		return lrm;
+	}
+
+	/**
+	 * Constructs a client request to stop being sent the lines added to a log.
+	 * 
+	 * @param logName
+	 *           The name of the log that was followed.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName is null.
+	 */
+	public static LogRangeMessage unfollow(String logName) throws IllegalAccessException {
+		return new LogRangeMessage(Type.UNFOLLOW, logName);
+	}
+
+	/**
+	 * Constructs the server's push of lines added to a followed log.
+	 * 
+	 * @param logName
+	 *           The log that was followed.
+	 * @param offset
+	 *           Where in the log data starts. 0 if the log was rolled over and is being followed from its start again.
+	 * @param data
+	 *           What was added, up to the end of the last whole line; no more than MAX_RANGE_BYTES.
+	 * @param logLength
+	 *           How long the log was when it was read, in bytes.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName or data is null.
+	 */
+	public static LogRangeMessage appended(String logName, long offset, byte[] data, long logLength) throws IllegalAccessException {
+		if (data == null)
+			throw new IllegalAccessException("data must be set.");
+		if (data.length > MAX_RANGE_BYTES)
+			throw new IllegalArgumentException("A range can't be larger than " + MAX_RANGE_BYTES + " bytes.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.APPENDED, logName);
+		lrm.offset = offset;
+		lrm.data = data;
+		lrm.logLength = logLength;
+		return lrm;
+	}
+
+	/**
+	 * Constructs the server's answer to a request that can't be carried out.
+	 * 
+	 * @param logName
+	 *           The log that was asked for.
+	 * @param error
+	 *           Why the log couldn't be read.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If logName or error is null.
+	 */
+	public static LogRangeMessage failed(String logName, String error) throws IllegalAccessException {
+		if (error == null)
+			throw new IllegalAccessException("error must be set.");
+
+		LogRangeMessage lrm = new LogRangeMessage(Type.FAILED, logName);
+		lrm.error = error;
+		return lrm;
+	}
+
+	/**
+	 * @return true if this message is from the client; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.BYTES || type == Type.LINES || type == Type.FOLLOW || type == Type.UNFOLLOW;
+	}
+
+	/**
+	 * @return The name of the log.
+	 */
+	public String getLogName() {
+		return logName;
+	}
+
+	/**
+	 * @return Where a BYTES request or FOLLOW starts, or where the data of a RANGE or APPENDED starts.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return How many bytes a BYTES request asks for.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return The first line that a LINES request asks for (or LAST_PAGE), or that the data of a RANGE starts with (-1 if it isn't known).
+	 */
+	public long getFirstLine() {
+		return firstLine;
+	}
+
+	/**
+	 * @return How many lines a LINES request asks for, or that the data of a RANGE holds (-1 if it isn't known).
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return What was read, for Type.RANGE and Type.APPENDED; null otherwise.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return What was read as text, for Type.RANGE and Type.APPENDED; null otherwise.
+	 */
+	public String getText() {
+		if (data == null)
+			return null;
+
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return How long the log was when it was read, in bytes, for Type.RANGE and Type.APPENDED.
+	 */
+	public long getLogLength() {
+		return logLength;
+	}
+
+	/**
+	 * @return How many lines the log had when it was read, for Type.RANGE; -1 if it isn't known.
+	 */
+	public long getTotalLines() {
+		return totalLines;
+	}
+
+	/**
+	 * @return Why the log couldn't be read, for Type.FAILED; null otherwise.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines a search of the server's logs, and its results. A SEARCH names the logs to search (or all of them), and the filters that a line has to pass: a regular expression, keywords that must all appear (ignoring case), a map that must be named, and the times
+ *         that its log entry must have been written between. The server answers with RESULTS, holding up to maxResults matching lines in the order they were logged, or FAILED if the search is invalid.
+ * 
+ *         Only understood by servers that logged in with MessageCodecs.LOG_SEARCH_VERSION or later.
+ */
+
+package networking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import utils.MapProperties;
+
+public class LogSearchMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_RESULTS = 1000;
+
+	public enum Type {
+		SEARCH, RESULTS, FAILED;
+	};
+
+	/**
+	 * A line that matched a search.
+	 */
+	public static class Hit implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String logName;
+		private long offset;
+		private long timestamp;
+		private String line;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param logName
+		 *           The log that the line is in.
+		 * @param offset
+		 *           Where in the log the line starts, so the client can read the lines around it with a LogRangeMessage.
+		 * @param timestamp
+		 *           When the log entry that the line is part of was written, in milliseconds since the epoch; Long.MIN_VALUE if it isn't known.
+		 * @param line
+		 *           The line.
+		 */
+		public Hit(String logName, long offset, long timestamp, String line) {
+			this.logName = logName;
+			this.offset = offset;
+			this.timestamp = timestamp;
+			this.line = line;
+		}
+
+		/**
+		 * @return The log that the line is in.
+		 */
+		public String getLogName() {
+			return logName;
+		}
+
+		/**
+		 * @return Where in the log the line starts.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return When the log entry that the line is part of was written, in milliseconds since the epoch; Long.MIN_VALUE if it isn't known.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return The line.
+		 */
+		public String getLine() {
+			return line;
+		}
+	}
+
+	private Type type;
+	private ArrayList<String> logNames;
+	private String pattern;
+	private ArrayList<String> keywords;
+	private MapProperties map;
+	private long from;
+	private long to;
+	private int maxResults;
+	private ArrayList<Hit> hits;
+	private boolean truncated;
+	private String error;
+
+	/**
+	 * Helper for the factory methods.
+	 */
+	private LogSearchMessage(Type type) {
+		this.type = type;
+	}
+
+	/**
+	 * Constructs a client request to search the logs. Every filter is optional, but at least one must be set.
+	 * 
+	 * @param logNames
+	 *           The names of the logs to search (as passed in the list of logs from the server); null to search every log.
+	 * @param pattern
+	 *           A regular expression (see java.util.regex.Pattern) that must be found in the line; null for any line.
+	 * @param keywords
+	 *           Words that must all be in the line, ignoring case; null or empty for any line.
+	 * @param map
+	 *           A map that must be named in the line; null for any line.
+	 * @param from
+	 *           The earliest time that the line's log entry can have been written, in milliseconds since the epoch; Long.MIN_VALUE for any time.
+	 * @param to
+	 *           The latest time that the line's log entry can have been written, in milliseconds since the epoch; Long.MAX_VALUE for any time.
+	 * @param maxResults
+	 *           The most lines to send back; no more than MAX_RESULTS.
+	 * @return The message.
+	 */
+	public static LogSearchMessage search(ArrayList<String> logNames, String pattern, ArrayList<String> keywords, MapProperties map, long from, long to, int maxResults) {
+		if (maxResults < 1 || maxResults > MAX_RESULTS)
+			throw new IllegalArgumentException("maxResults must be between 1 and " + MAX_RESULTS + ".");
+		if (from > to)
+			throw new IllegalArgumentException("from must not be after to.");
+		if ((pattern == null || pattern.isEmpty()) && (keywords == null || keywords.isEmpty()) && map == null && from == Long.MIN_VALUE && to == Long.MAX_VALUE)
+			throw new IllegalArgumentException("At least one filter must be set.");
+
+		LogSearchMessage lsm = new LogSearchMessage(Type.SEARCH);
+		lsm.logNames = logNames;
+		lsm.pattern = pattern == null || pattern.isEmpty() ? null : pattern;
+		lsm.keywords = keywords == null ? new ArrayList<String>() : keywords;
+		lsm.map = map;
+		lsm.from = from;
+		lsm.to = to;
+		lsm.maxResults = maxResults;
+		return lsm;
+	}
+
+	/**
+	 * Constructs the server's answer to a SEARCH.
+	 * 
+	 * @param hits
+	 *           The lines that matched, in the order they were logged.
+	 * @param truncated
+	 *           true if more lines matched than the search's maxResults; false otherwise.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If hits is null.
+	 */
+	public static LogSearchMessage results(ArrayList<Hit> hits, boolean truncated) throws IllegalAccessException {
+		if (hits == null)
+			throw new IllegalAccessException("hits must be set.");
+
+		LogSearchMessage lsm = new LogSearchMessage(Type.RESULTS);
+		lsm.hits = hits;
+		lsm.truncated = truncated;
+		return lsm;
+	}
+
+	/**
+	 * Constructs the server's answer to a SEARCH that can't be carried out.
+	 * 
+	 * @param error
+	 *           Why (like an invalid regular expression).
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If error is null.
+	 */
+	public static LogSearchMessage failed(String error) throws IllegalAccessException {
+		if (error == null)
+			throw new IllegalAccessException("error must be set.");
+
+		LogSearchMessage lsm = new LogSearchMessage(Type.FAILED);
+		lsm.error = error;
+		return lsm;
+	}
+
+	/**
+	 * @return true if this message is from the client; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.SEARCH;
+	}
+
+	/**
+	 * @return The names of the logs to search; null for every log.
+	 */
+	public ArrayList<String> getLogNames() {
+		return logNames;
+	}
+
+	/**
+	 * @return The regular expression that must be found in the line; null for any line.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return The words that must all be in the line, ignoring case.
+	 */
+	public ArrayList<String> getKeywords() {
+		return keywords;
+	}
+
+	/**
+	 * @return The map that must be named in the line; null for any line.
+	 */
+	public MapProperties getMap() {
+		return map;
+	}
+
+	/**
+	 * @return The earliest time that the line's log entry can have been written, in milliseconds since the epoch.
+	 */
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * @return The latest time that the line's log entry can have been written, in milliseconds since the epoch.
+	 */
+	public long getTo() {
+		return to;
+	}
+
+	/**
+	 * @return The most lines to send back.
+	 */
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * @return The lines that matched, for Type.RESULTS; null otherwise.
+	 */
+	public ArrayList<Hit> getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return true if more lines matched than were sent; false otherwise.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return Why the search failed, for Type.FAILED; null otherwise.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
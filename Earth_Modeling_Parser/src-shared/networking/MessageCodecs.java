@@ -0,0 +1,461 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Utility class that writes the most common messages in a compact binary form, instead of with Java serialization, which is slow, reflective, and writes every class description again in every frame. Each message starts with a tag byte naming its class and a byte with the version of
+ *         its layout, followed by its fields. Strings are written as a length and UTF-8 bytes, byte arrays as a length and the bytes, enums by ordinal, and MapProperties by packed key.
+ * 
+ *         A Java serialization stream always starts with 0xAC, which isn't a tag, so the reader can tell the two apart. Messages without a codec are still serialized, as are all messages to a peer that logged in with a protocol version before CODECS_VERSION. A CorrelatedMessage writes its
+ *         ID, followed by the message it wraps in whichever form that message would have had on its own.
+ * 
+ *         A layout can only be changed by writing a new version of it and still reading the old ones.
+ */
+
+package networking;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import utils.MapProperties;
+
+public class MessageCodecs {
+
+	public static final int SERIALIZED_VERSION = 1; // Every message is serialized.
+	public static final int CODECS_VERSION = 2; // The messages below are written by their codecs.
+	public static final int CORRELATION_VERSION = 3; // Requests can be wrapped in a CorrelatedMessage.
+	public static final int LOG_RANGE_VERSION = 4; // Logs can be read a range at a time, and followed, with a LogRangeMessage.
+	public static final int LOG_SEARCH_VERSION = 5; // Logs can be searched with a LogSearchMessage.
+	public static final int CATALOG_VERSION = 6; // The server keeps the client's copy of its catalog up to date with CatalogMessages.
+	public static final int DIGEST_VERSION = 7; // An upload's BEGIN can carry a digest, so the server can skip content it already holds.
+	public static final int PROTOCOL_VERSION = DIGEST_VERSION; // The newest version that this version of VEMS can read.
+
+	private static final int CONNECTION_MESSAGE = 1;
+	private static final int ASCII_FILE_MESSAGE = 2;
+	private static final int DELETE_MAP_MESSAGE = 3;
+	private static final int LOG_MESSAGE = 4;
+	private static final int STRING_MESSAGE = 5;
+	private static final int CORRELATED_MESSAGE = 6;
+	private static final int LOG_RANGE_MESSAGE = 7;
+	private static final int CATALOG_MESSAGE = 8;
+
+	private static final int LAYOUT_VERSION = 1;
+	private static final int INITIAL_ARRAY_BYTES = 64 * 1024;
+
+	private static final ConnectionMessage.Type[] CONNECTION_TYPES = ConnectionMessage.Type.values();
+	private static final LogMessage.Type[] LOG_TYPES = LogMessage.Type.values();
+	private static final StringMessage.Type[] STRING_TYPES = StringMessage.Type.values();
+	private static final LogRangeMessage.Type[] LOG_RANGE_TYPES = LogRangeMessage.Type.values();
+	private static final CatalogMessage.Type[] CATALOG_TYPES = CatalogMessage.Type.values();
+
+	private MessageCodecs() {
+	}
+
+	/**
+	 * @param message
+	 *           A message formatted as a src-shared.networking.
+	 * @return true if the message has a codec; false if it has to be serialized.
+	 */
+	public static boolean hasCodec(Object message) {
+		return message instanceof ConnectionMessage || message instanceof AsciiFileMessage || message instanceof DeleteMapMessage || message instanceof LogMessage || message instanceof StringMessage
+				|| message instanceof CorrelatedMessage || message instanceof LogRangeMessage || message instanceof CatalogMessage;
+	}
+
+	/**
+	 * @param firstByte
+	 *           The first byte of a frame's (uncompressed) body.
+	 * @return true if the body was written by a codec; false if it was serialized.
+	 */
+	public static boolean isTag(int firstByte) {
+		return firstByte >= CONNECTION_MESSAGE && firstByte <= CATALOG_MESSAGE;
+	}
+
+	/**
+	 * Writes a message with its codec.
+	 * 
+	 * @param message
+	 *           A message for which hasCodec() is true.
+	 * @param out
+	 *           Where to write the message.
+	 * @throws IOException
+	 *            The message couldn't be written.
+	 * @throws IllegalArgumentException
+	 *            If the message doesn't have a codec.
+	 */
+	public static void write(Object message, DataOutputStream out) throws IOException {
+		if (message instanceof ConnectionMessage) {
+			ConnectionMessage cm = (ConnectionMessage) message;
+			out.writeByte(CONNECTION_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeByte(cm.getMessageType().ordinal());
+			writeString(cm.getUsername(), out);
+			writeString(cm.getPassword(), out);
+
+			Compression[] compressions = cm.getCompressions();
+			out.writeInt(compressions == null ? -1 : compressions.length);
+			if (compressions != null)
+				for (Compression c : compressions)
+					out.writeByte(c.getId());
+
+			FrameFormat format = cm.getFrameFormat();
+			out.writeByte(format.getCompression().getId());
+			out.writeInt(format.getCompressionThreshold());
+			out.writeInt(cm.getProtocolVersion());
+		} else if (message instanceof AsciiFileMessage) {
+			AsciiFileMessage afm = (AsciiFileMessage) message;
+			out.writeByte(ASCII_FILE_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeInt(afm.getMapProperties().toPackedKey());
+			out.writeBoolean(afm.getOverwriteExisting());
+			writeBytes(afm.getFile(), out);
+		} else if (message instanceof DeleteMapMessage) {
+			out.writeByte(DELETE_MAP_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeInt(((DeleteMapMessage) message).getMapProperties().toPackedKey());
+		} else if (message instanceof LogMessage) {
+			LogMessage lm = (LogMessage) message;
+			out.writeByte(LOG_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeByte(lm.getType().ordinal());
+
+			if (lm.isLogRequest())
+				writeString(lm.getRequestedLogName(), out);
+			else if (lm.isListOfLogsResponse()) {
+				out.writeInt(lm.getListOfLogsResponse().size());
+				for (String log : lm.getListOfLogsResponse())
+					writeString(log, out);
+			} else if (lm.isLogResponse())
+				writeBytes(lm.getLogResponseBytes(), out);
+		} else if (message instanceof StringMessage) {
+			StringMessage sm = (StringMessage) message;
+			out.writeByte(STRING_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeByte(sm.getMessageType().ordinal());
+			writeString(sm.getMsgHeader(), out);
+			writeString(sm.getMsgContent(), out);
+		} else if (message instanceof CorrelatedMessage) {
+			CorrelatedMessage cm = (CorrelatedMessage) message;
+			out.writeByte(CORRELATED_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeLong(cm.getCorrelationId());
+			MessageFrames.writeBody(cm.getMessage(), true, out);
+		} else if (message instanceof LogRangeMessage) {
+			LogRangeMessage lrm = (LogRangeMessage) message;
+			out.writeByte(LOG_RANGE_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeByte(lrm.getType().ordinal());
+			writeString(lrm.getLogName(), out);
+			out.writeLong(lrm.getOffset());
+			out.writeInt(lrm.getLength());
+			out.writeLong(lrm.getFirstLine());
+			out.writeInt(lrm.getLineCount());
+			writeBytes(lrm.getData(), out);
+			out.writeLong(lrm.getLogLength());
+			out.writeLong(lrm.getTotalLines());
+			writeString(lrm.getError(), out);
+		} else if (message instanceof CatalogMessage) {
+			CatalogMessage cm = (CatalogMessage) message;
+			out.writeByte(CATALOG_MESSAGE);
+			out.writeByte(LAYOUT_VERSION);
+			out.writeByte(cm.getType().ordinal());
+			out.writeLong(cm.getVersion());
+			writeSortedKeys(cm.getKeys(), out);
+			writeSortedKeys(cm.getAdded(), out);
+			writeSortedKeys(cm.getRemoved(), out);
+		} else
+			throw new IllegalArgumentException(message.getClass().getName() + " doesn't have a codec.");
+	}
+
+	/**
+	 * Reads a message written by write().
+	 * 
+	 * @param in
+	 *           The frame's (uncompressed) body.
+	 * @return The message.
+	 * @throws IOException
+	 *            The body couldn't be read, or isn't a message that this version of VEMS can read.
+	 * @throws ClassNotFoundException
+	 *            The body wraps a serialized message whose class isn't defined.
+	 */
+	public static Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+		int tag = in.readUnsignedByte();
+		int version = in.readUnsignedByte();
+		if (version != LAYOUT_VERSION)
+			throw new StreamCorruptedException("Message " + tag + " was written with layout " + version + ", which this version of VEMS can't read.");
+
+		try {
+			switch (tag) {
+			case CONNECTION_MESSAGE:
+				return readConnectionMessage(in);
+			case ASCII_FILE_MESSAGE:
+				MapProperties properties = readMapProperties(in);
+				boolean overwriteExisting = in.readBoolean();
+				return new AsciiFileMessage(properties, readBytes(in), overwriteExisting);
+			case DELETE_MAP_MESSAGE:
+				return new DeleteMapMessage(readMapProperties(in));
+			case LOG_MESSAGE:
+				return readLogMessage(in);
+			case STRING_MESSAGE:
+				return new StringMessage(readEnum(STRING_TYPES, in), readString(in), readString(in));
+			case CORRELATED_MESSAGE:
+				long correlationId = in.readLong();
+				return new CorrelatedMessage(correlationId, MessageFrames.readBody(in));
+			case LOG_RANGE_MESSAGE:
+				return readLogRangeMessage(in);
+			case CATALOG_MESSAGE:
+				return readCatalogMessage(in);
+			default:
+				throw new StreamCorruptedException("Unknown message tag: " + tag);
+			}
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			StreamCorruptedException sce = new StreamCorruptedException("Message " + tag + " holds invalid values: " + e.getMessage());
+			sce.initCause(e);
+			throw sce;
+		}
+	}
+
+	/**
+	 * Helper to read the fields of a ConnectionMessage with the constructor for its type.
+	 */
+	private static ConnectionMessage readConnectionMessage(DataInputStream in) throws IOException, IllegalAccessException {
+		ConnectionMessage.Type type = readEnum(CONNECTION_TYPES, in);
+		String username = readString(in);
+		String password = readString(in);
+
+		int count = in.readInt();
+		Compression[] compressions = null;
+		if (count >= 0) {
+			compressions = new Compression[Math.min(count, Compression.values().length)];
+			for (int i = 0; i < count; i++) {
+				Compression c = Compression.fromId(in.readUnsignedByte());
+				if (i < compressions.length)
+					compressions[i] = c; // negotiate() skips the ones this version doesn't know.
+			}
+		}
+
+		Compression compression = Compression.fromId(in.readUnsignedByte());
+		int compressionThreshold = in.readInt();
+		int protocolVersion = in.readInt();
+
+		if (type == ConnectionMessage.Type.CONNECT && compressions != null)
+			return new ConnectionMessage(type, username, password, compressions, protocolVersion);
+		if (type == ConnectionMessage.Type.SUCCESSFUL_CONNECTION && compression != null && (compression != Compression.NONE || protocolVersion > SERIALIZED_VERSION))
+			return new ConnectionMessage(type, username, password, new FrameFormat(protocolVersion, compression, compressionThreshold));
+
+		return new ConnectionMessage(type, username, password);
+	}
+
+	/**
+	 * Helper to read the fields of a LogMessage with the constructor for its type.
+	 */
+	private static LogMessage readLogMessage(DataInputStream in) throws IOException, IllegalAccessException {
+		LogMessage.Type type = readEnum(LOG_TYPES, in);
+
+		switch (type) {
+		case LOG_REQUEST:
+			return new LogMessage(type, readString(in));
+		case LIST_OF_LOGS_RESPONSE:
+			int count = in.readInt();
+			if (count < 0)
+				throw new StreamCorruptedException("Invalid list length: " + count);
+
+			ArrayList<String> logs = new ArrayList<String>(Math.min(count, 1024));
+			for (int i = 0; i < count; i++)
+				logs.add(readString(in));
+			return new LogMessage(type, logs);
+		case LOG_RESPONSE:
+			return new LogMessage(type, readBytes(in));
+		default:
+			return new LogMessage(type);
+		}
+	}
+
+	/**
+	 * Helper to read the fields of a LogRangeMessage with the factory method for its type.
+	 */
+	private static LogRangeMessage readLogRangeMessage(DataInputStream in) throws IOException, IllegalAccessException {
+		LogRangeMessage.Type type = readEnum(LOG_RANGE_TYPES, in);
+		String logName = readString(in);
+		long offset = in.readLong();
+		int length = in.readInt();
+		long firstLine = in.readLong();
+		int lineCount = in.readInt();
+		byte[] data = readBytes(in);
+		long logLength = in.readLong();
+		long totalLines = in.readLong();
+		String error = readString(in);
+
+		switch (type) {
+		case BYTES:
+			return LogRangeMessage.bytes(logName, offset, length);
+		case LINES:
+			return LogRangeMessage.lines(logName, firstLine, lineCount);
+		case RANGE:
+			return LogRangeMessage.range(logName, offset, data, firstLine, lineCount, logLength, totalLines);
+		case FOLLOW:
+			return LogRangeMessage.follow(logName, offset);
+		case UNFOLLOW:
+			return LogRangeMessage.unfollow(logName);
+		case APPENDED:
+			return LogRangeMessage.appended(logName, offset, data, logLength);
+		default:
+			return LogRangeMessage.failed(logName, error);
+		}
+	}
+
+	/**
+	 * Helper to read the fields of a CatalogMessage with the factory method for its type.
+	 */
+	private static CatalogMessage readCatalogMessage(DataInputStream in) throws IOException, IllegalAccessException {
+		CatalogMessage.Type type = readEnum(CATALOG_TYPES, in);
+		long version = in.readLong();
+		int[] keys = readSortedKeys(in);
+		int[] added = readSortedKeys(in);
+		int[] removed = readSortedKeys(in);
+
+		switch (type) {
+		case SNAPSHOT:
+			return CatalogMessage.snapshot(version, keys);
+		case DELTA:
+			return CatalogMessage.delta(version, added, removed);
+		default:
+			return CatalogMessage.subscribe();
+		}
+	}
+
+	/**
+	 * Helper to write an ascending array of packed keys as a count followed by the gap from each key to the one before it, 7 bits to a byte. Neighboring maps have nearby keys, so most keys take a byte or two instead of four.
+	 */
+	private static void writeSortedKeys(int[] keys, DataOutputStream out) throws IOException {
+		out.writeInt(keys.length);
+
+		int previous = 0;
+		for (int key : keys) {
+			int gap = key - previous;
+			while ((gap & ~0x7F) != 0) {
+				out.writeByte((gap & 0x7F) | 0x80);
+				gap >>>= 7;
+			}
+			out.writeByte(gap);
+			previous = key;
+		}
+	}
+
+	/**
+	 * Helper to read an array written by writeSortedKeys(). Like readBytes(), the array grows as the keys arrive.
+	 */
+	private static int[] readSortedKeys(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MessageFrames.MAX_FRAME_BYTES)
+			throw new StreamCorruptedException("Invalid key count: " + count);
+
+		int[] keys = new int[Math.min(count, INITIAL_ARRAY_BYTES)];
+		int previous = 0;
+		for (int i = 0; i < count; i++) {
+			int gap = 0;
+			for (int shift = 0;; shift += 7) {
+				if (shift > 28)
+					throw new StreamCorruptedException("A key gap is longer than an int.");
+
+				int b = in.readUnsignedByte();
+				gap |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+
+			if (i == keys.length)
+				keys = Arrays.copyOf(keys, (int) Math.min(count, 2L * keys.length));
+			previous += gap;
+			keys[i] = previous;
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Helper to write a String that may be null.
+	 */
+	private static void writeString(String s, DataOutputStream out) throws IOException {
+		writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8), out);
+	}
+
+	/**
+	 * Helper to read a String written by writeString().
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Helper to write a byte array that may be null.
+	 */
+	private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+		if (bytes == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Helper to read a byte array written by writeBytes(). The array grows as the bytes arrive, so a damaged (or hostile) length can't make the reader allocate much more than the frame holds.
+	 */
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > MessageFrames.MAX_FRAME_BYTES)
+			throw new StreamCorruptedException("Invalid array length: " + length);
+
+		byte[] bytes = new byte[Math.min(length, INITIAL_ARRAY_BYTES)];
+		int filled = 0;
+		while (filled < length) {
+			if (filled == bytes.length)
+				bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+
+			int read = in.read(bytes, filled, bytes.length - filled);
+			if (read < 0)
+				throw new EOFException("The frame ended inside an array of " + length + " bytes.");
+			filled += read;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Helper to read a MapProperties from its packed key.
+	 */
+	private static MapProperties readMapProperties(DataInputStream in) throws IOException {
+		return MapProperties.fromPackedKey(in.readInt());
+	}
+
+	/**
+	 * Helper to read an enum by ordinal.
+	 */
+	private static <E extends Enum<E>> E readEnum(E[] values, DataInputStream in) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= values.length)
+			throw new StreamCorruptedException("Unknown " + values.getClass().getComponentType().getSimpleName() + ": " + ordinal);
+
+		return values[ordinal];
+	}
+}
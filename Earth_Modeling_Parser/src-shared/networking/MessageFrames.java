@@ -0,0 +1,326 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Utility class that defines how messages are sent between the client and the server. Each message is sent as a frame: a 4 byte big-endian length, followed by that many bytes holding the message serialized on its own. Since the length comes first, the receiver knows how much memory a message
+ *         needs before reading it, and can read it without blocking a thread on the stream.
+ * 
+ *         The top 2 bits of the header hold the id of the Compression that the body was compressed with, and the rest hold the length. A message is only compressed if it serializes to at least the threshold that was agreed on at login, and only sent compressed if that made it smaller.
+ *         A compressed body starts with the 4 byte big-endian length of the message once it is decompressed, so the receiver can set aside memory for that, and refuses to decompress any more than it.
+ * 
+ *         The (uncompressed) body is either written by MessageCodecs or by Java serialization, depending on the message and the protocol version agreed on at login (see FrameFormat). Each frame is read on its own, so nothing holds on to a message once it has been handled.
+ */
+
+package networking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+public class MessageFrames {
+
+	public static final int HEADER_BYTES = 4;
+	public static final int DECODED_LENGTH_BYTES = 4; // At the start of a compressed body.
+	public static final int MAX_FRAME_BYTES = (1 << 30) - 1; // Larger than any ASCII file that VEMS is given.
+
+	private static final int COMPRESSION_SHIFT = 30;
+
+	private MessageFrames() {
+	}
+
+	/**
+	 * Serializes a message into a frame, without compressing it.
+	 * 
+	 * @param message
+	 *           The message formatted as a src-shared.networking.
+	 * @return A buffer holding the header and the message, ready to be read.
+	 * @throws IOException
+	 *            The message couldn't be serialized, or is larger than MAX_FRAME_BYTES.
+	 */
+	public static ByteBuffer encode(Object message) throws IOException {
+		return encode(message, FrameFormat.LOGIN);
+	}
+
+	/**
+	 * Writes a message into a frame, with its codec if the receiver can read it, and compressed if it is large enough.
+	 * 
+	 * @param message
+	 *           The message formatted as a src-shared.networking.
+	 * @param format
+	 *           The FrameFormat agreed on with the receiver.
+	 * @return A buffer holding the header and the message, ready to be read.
+	 * @throws IOException
+	 *            The message couldn't be serialized, or is larger than MAX_FRAME_BYTES.
+	 */
+	public static ByteBuffer encode(Object message, FrameFormat format) throws IOException {
+		ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+		bytes.write(new byte[HEADER_BYTES]); // Filled in once the length is known.
+
+		writeBody(message, format.getProtocolVersion() >= MessageCodecs.CODECS_VERSION, bytes);
+
+		int length = bytes.size() - HEADER_BYTES;
+		Compression compression = format.getCompression();
+		if (compression != Compression.NONE && length >= format.getCompressionThreshold()) {
+			ExposedByteArrayOutputStream compressed = new ExposedByteArrayOutputStream(length / 2 + HEADER_BYTES + DECODED_LENGTH_BYTES);
+			compressed.write(new byte[HEADER_BYTES]);
+			new DataOutputStream(compressed).writeInt(length);
+			compression.compress(bytes.buffer(), HEADER_BYTES, length, compressed);
+
+			if (compressed.size() < bytes.size())
+				return frame(compressed, compression);
+		}
+
+		return frame(bytes, Compression.NONE);
+	}
+
+	/**
+	 * Reads the message in the body of a frame.
+	 * 
+	 * @param body
+	 *           The bytes that followed the frame's header.
+	 * @param compression
+	 *           The Compression from the frame's header.
+	 * @return The message.
+	 * @throws IOException
+	 *            The body isn't a serialized message, or decompresses to more than the length it declared.
+	 * @throws ClassNotFoundException
+	 *            The message's class isn't defined.
+	 */
+	public static Object decode(byte[] body, Compression compression) throws IOException, ClassNotFoundException {
+		if (compression == Compression.NONE)
+			return readBody(new ByteArrayInputStream(body));
+
+		if (body.length < DECODED_LENGTH_BYTES)
+			throw new StreamCorruptedException("A compressed frame of " + body.length + " bytes is too short to declare its length.");
+		int decodedLength = decodedLength(ByteBuffer.wrap(body).getInt());
+
+		try (InputStream in = new BoundedInputStream(compression.decompress(new ByteArrayInputStream(body, DECODED_LENGTH_BYTES, body.length - DECODED_LENGTH_BYTES)), decodedLength)) {
+			return readBody(in);
+		}
+	}
+
+	/**
+	 * Writes a message in the form of a frame's (uncompressed) body.
+	 * 
+	 * @param message
+	 *           The message formatted as a src-shared.networking.
+	 * @param codecs
+	 *           true if the receiver can read messages written by MessageCodecs; false if the message must be serialized.
+	 * @param out
+	 *           Where to write the message.
+	 * @throws IOException
+	 *            The message couldn't be written.
+	 */
+	static void writeBody(Object message, boolean codecs, OutputStream out) throws IOException {
+		if (codecs && MessageCodecs.hasCodec(message)) {
+			DataOutputStream dos = new DataOutputStream(out);
+			MessageCodecs.write(message, dos);
+			dos.flush();
+		} else {
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(message);
+			oos.flush(); // Not closed, since a CorrelatedMessage's body goes on in the same stream.
+		}
+	}
+
+	/**
+	 * Reads a message written by writeBody(), which must be the rest of the stream.
+	 * 
+	 * @param in
+	 *           The (uncompressed) body.
+	 * @return The message.
+	 * @throws IOException
+	 *            The body isn't a message.
+	 * @throws ClassNotFoundException
+	 *            The message's class isn't defined.
+	 */
+	static Object readBody(InputStream in) throws IOException, ClassNotFoundException {
+		PushbackInputStream pis = new PushbackInputStream(in);
+		int first = pis.read();
+		if (first == -1)
+			throw new EOFException("The frame is empty.");
+		pis.unread(first);
+
+		if (MessageCodecs.isTag(first))
+			return MessageCodecs.read(new DataInputStream(pis));
+
+		return new ObjectInputStream(pis).readObject();
+	}
+
+	/**
+	 * Finds the length of a frame's body from its header.
+	 * 
+	 * @param header
+	 *           The header.
+	 * @return The length; never more than MAX_FRAME_BYTES.
+	 */
+	public static int bodyLength(int header) {
+		return header & MAX_FRAME_BYTES;
+	}
+
+	/**
+	 * Checks the length that a compressed frame's body declares it will decompress to.
+	 * 
+	 * @param prefix
+	 *           The first DECODED_LENGTH_BYTES of the body, read as a big-endian int.
+	 * @return The length.
+	 * @throws StreamCorruptedException
+	 *            The length is negative or more than MAX_FRAME_BYTES, so the stream can't be a stream of frames.
+	 */
+	public static int decodedLength(int prefix) throws StreamCorruptedException {
+		if (prefix < 0 || prefix > MAX_FRAME_BYTES)
+			throw new StreamCorruptedException("Invalid decompressed length: " + prefix);
+
+		return prefix;
+	}
+
+	/**
+	 * Finds the Compression of a frame's body from its header.
+	 * 
+	 * @param header
+	 *           The header.
+	 * @return The Compression.
+	 * @throws StreamCorruptedException
+	 *            The header doesn't name a Compression, so the stream can't be a stream of frames.
+	 */
+	public static Compression compression(int header) throws StreamCorruptedException {
+		Compression compression = Compression.fromId(header >>> COMPRESSION_SHIFT);
+		if (compression == null)
+			throw new StreamCorruptedException("Invalid frame header: " + Integer.toHexString(header));
+
+		return compression;
+	}
+
+	/**
+	 * Writes a message to a blocking stream as a frame.
+	 * 
+	 * @param output
+	 *           The stream.
+	 * @param message
+	 *           The message formatted as a src-shared.networking.
+	 * @param format
+	 *           The FrameFormat agreed on with the receiver.
+	 * @throws IOException
+	 *            The message couldn't be serialized or written.
+	 */
+	public static void write(DataOutputStream output, Object message, FrameFormat format) throws IOException {
+		ByteBuffer frame = encode(message, format);
+		output.write(frame.array(), frame.arrayOffset(), frame.limit());
+		output.flush();
+	}
+
+	/**
+	 * Reads the next frame from a blocking stream.
+	 * 
+	 * @param input
+	 *           The stream.
+	 * @return The message.
+	 * @throws IOException
+	 *            The frame couldn't be read.
+	 * @throws ClassNotFoundException
+	 *            The message's class isn't defined.
+	 */
+	public static Object read(DataInputStream input) throws IOException, ClassNotFoundException {
+		int header = input.readInt();
+		Compression compression = compression(header);
+
+		byte[] body = new byte[bodyLength(header)];
+		input.readFully(body);
+		return decode(body, compression);
+	}
+
+	/**
+	 * Helper to turn the bytes that encode() has written into a frame.
+	 */
+	private static ByteBuffer frame(ExposedByteArrayOutputStream bytes, Compression compression) throws IOException {
+		int length = bytes.size() - HEADER_BYTES;
+		if (length > MAX_FRAME_BYTES)
+			throw new IOException("A message of " + length + " bytes is larger than the largest frame.");
+
+		ByteBuffer frame = ByteBuffer.wrap(bytes.buffer(), 0, bytes.size());
+		frame.putInt(0, compression.getId() << COMPRESSION_SHIFT | length);
+		return frame;
+	}
+
+	/**
+	 * Lets decode() stop a body that decompresses to more than it declared, instead of inflating it without limit.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, int limit) {
+			super(in);
+			remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0)
+				count(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(long bytes) throws StreamCorruptedException {
+			remaining -= bytes;
+			if (remaining < 0)
+				throw new StreamCorruptedException("The frame decompressed to more than the length it declared.");
+		}
+	}
+
+	/**
+	 * Lets encode() wrap the bytes it has written without copying them.
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+		private ExposedByteArrayOutputStream() {
+		}
+
+		private ExposedByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		private byte[] buffer() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines a message that requests the metadata of converted maps from the server, or carries the server's response.
+ */
+
+package networking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import utils.MapCompoundType;
+import utils.MapMetadata;
+import utils.MapRegionType;
+
+public class MetadataMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		METADATA_REQUEST, METADATA_RESPONSE;
+	};
+
+	private Type type;
+	private MapRegionType region;
+	private MapCompoundType compound;
+	private ArrayList<MapMetadata> metadataResponse;
+
+	/**
+	 * Constructs a metadata request from the client to the server. Only maps matching both filters are returned.
+	 * 
+	 * @param region
+	 *           The region of the maps you want metadata for; null for all regions.
+	 * @param compound
+	 *           The compound of the maps you want metadata for; null for all compounds.
+	 */
+	public MetadataMessage(MapRegionType region, MapCompoundType compound) {
+		type = Type.METADATA_REQUEST;
+		this.region = region;
+		this.compound = compound;
+	}
+
+	/**
+	 * Constructs a metadata response from the server to the client.
+	 * 
+	 * @param metadataResponse
+	 *           The metadata of every map that matched the request.
+	 * @throws IllegalAccessException
+	 *            If metadataResponse is null.
+	 */
+	public MetadataMessage(ArrayList<MapMetadata> metadataResponse) throws IllegalAccessException {
+		if (metadataResponse == null)
+			throw new IllegalAccessException("metadataResponse must be set.");
+
+		type = Type.METADATA_RESPONSE;
+		this.metadataResponse = metadataResponse;
+	}
+
+	/**
+	 * @return true if this message is a request for the server; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.METADATA_REQUEST;
+	}
+
+	/**
+	 * @return The region filter of this request; null if all regions were requested.
+	 */
+	public MapRegionType getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return The compound filter of this request; null if all compounds were requested.
+	 */
+	public MapCompoundType getCompound() {
+		return compound;
+	}
+
+	/**
+	 * @return The metadata of every map that matched the request. Will return null if type is not Type.METADATA_RESPONSE.
+	 */
+	public ArrayList<MapMetadata> getMetadataResponse() {
+		return metadataResponse;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         This class defines the messages of a chunked upload, which sends an ASCII file to the server a piece at a time instead of as one AsciiFileMessage:
+ * 
+ *         1. The client sends BEGIN with the map, the file's size, and the CRC32 of the whole file. The server answers READY with the ID of its staging file and how much of the file it already has (more than 0 if an earlier upload of the same file by the same user was cut off).
+ * 
+ *         Clients that logged in with MessageCodecs.DIGEST_VERSION or later also send the DIGEST_ALGORITHM digest of the file with BEGIN, as a request (see CorrelatedMessage). If the server already holds identical content, nothing has to be sent, and it answers the BEGIN like it would the COMMIT
+ *         instead of with READY: with a StringMessage of StringMessage.Type.INFORMATION_MESSAGE if the map itself already holds the content, or with a JobMessage of Type.JOB_ACCEPTED if the map is being created from what another map holds.
+ * 
+ *         2. The client sends CHUNKs from that offset, each with its own CRC32. The server appends each chunk that starts where its staging file ends and passes its check, and answers each with an ACK of how much of the file it now has. A chunk that is refused is sent again from the offset in its
+ *         ACK.
+ * 
+ *         3. Once every byte is acknowledged, the client sends COMMIT. The server checks the whole file against its CRC32 and answers like it does for an AsciiFileMessage: with a JobMessage of Type.JOB_ACCEPTED, or a StringMessage if the map couldn't be queued.
+ * 
+ *         The server answers FAILED if the upload can't go on at all. Every response carries the transferId of the client's BEGIN, so the client can tell its uploads apart.
+ */
+
+package networking;
+
+import java.io.Serializable;
+
+import utils.MapProperties;
+
+public class UploadMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int CHUNK_BYTES = 256 * 1024; // Small enough that a chunk never has to reserve memory on the server.
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	public enum Type {
+		BEGIN, READY, CHUNK, ACK, COMMIT, FAILED;
+	};
+
+	private Type type;
+	private long transferId;
+	private String uploadId;
+	private MapProperties properties;
+	private boolean overwriteExisting;
+	private long totalBytes;
+	private long checksum;
+	private byte[] digest;
+	private long offset;
+	private byte[] data;
+	private String error;
+
+	/**
+	 * Helper for the factory methods.
+	 */
+	private UploadMessage(Type type, long transferId, String uploadId) {
+		this.type = type;
+		this.transferId = transferId;
+		this.uploadId = uploadId;
+	}
+
+	/**
+	 * Constructs a client request to start (or resume) an upload.
+	 * 
+	 * @param transferId
+	 *           A number the client picks to tell this upload's responses apart from others.
+	 * @param properties
+	 *           The properties of the map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 * @param totalBytes
+	 *           The size of the file.
+	 * @param checksum
+	 *           The CRC32 of the whole file.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If properties is null.
+	 */
+	public static UploadMessage begin(long transferId, MapProperties properties, boolean overwriteExisting, long totalBytes, long checksum) throws IllegalAccessException {
+		return begin(transferId, properties, overwriteExisting, totalBytes, checksum, null);
+	}
+
+	/**
+	 * Constructs a client request to start (or resume) an upload, which the server can skip if it already holds identical content.
+	 * 
+	 * @param transferId
+	 *           A number the client picks to tell this upload's responses apart from others.
+	 * @param properties
+	 *           The properties of the map that the file is for.
+	 * @param overwriteExisting
+	 *           true if an existing map should be overwritten; false otherwise.
+	 * @param totalBytes
+	 *           The size of the file.
+	 * @param checksum
+	 *           The CRC32 of the whole file.
+	 * @param digest
+	 *           The DIGEST_ALGORITHM digest of the whole file; null to always send the file.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If properties is null.
+	 */
+	public static UploadMessage begin(long transferId, MapProperties properties, boolean overwriteExisting, long totalBytes, long checksum, byte[] digest) throws IllegalAccessException {
+		if (properties == null)
+			throw new IllegalAccessException("properties must be set.");
+		if (totalBytes < 1)
+			throw new IllegalArgumentException("The file is empty. It must not represent a valid file.");
+
+		UploadMessage um = new UploadMessage(Type.BEGIN, transferId, null);
+		um.properties = properties;
+		um.overwriteExisting = overwriteExisting;
+		um.totalBytes = totalBytes;
+		um.checksum = checksum;
+		um.digest = digest;
+		return um;
+	}
+
+	/**
+	 * Constructs the server's answer to BEGIN.
+	 * 
+	 * @param transferId
+	 *           The transferId of the BEGIN.
+	 * @param uploadId
+	 *           The ID of the server's staging file, which the client sends back with each CHUNK and the COMMIT.
+	 * @param offset
+	 *           How many bytes of the file the server already has. The client sends the rest.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If uploadId is null.
+	 */
+	public static UploadMessage ready(long transferId, String uploadId, long offset) throws IllegalAccessException {
+		if (uploadId == null)
+			throw new IllegalAccessException("uploadId must be set.");
+
+		UploadMessage um = new UploadMessage(Type.READY, transferId, uploadId);
+		um.offset = offset;
+		return um;
+	}
+
+	/**
+	 * Constructs a piece of the file from the client.
+	 * 
+	 * @param transferId
+	 *           The transferId of the BEGIN.
+	 * @param uploadId
+	 *           The uploadId from READY.
+	 * @param offset
+	 *           Where in the file data starts.
+	 * @param data
+	 *           The piece of the file; no more than CHUNK_BYTES.
+	 * @param checksum
+	 *           The CRC32 of data.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If uploadId or data is null.
+	 */
+	public static UploadMessage chunk(long transferId, String uploadId, long offset, byte[] data, long checksum) throws IllegalAccessException {
+		if (uploadId == null || data == null)
+			throw new IllegalAccessException("uploadId and data must be set.");
+		if (data.length > CHUNK_BYTES)
+			throw new IllegalArgumentException("A chunk can't be larger than " + CHUNK_BYTES + " bytes.");
+
+		UploadMessage um = new UploadMessage(Type.CHUNK, transferId, uploadId);
+		um.offset = offset;
+		um.data = data;
+		um.checksum = checksum;
+		return um;
+	}
+
+	/**
+	 * Constructs the server's answer to a CHUNK.
+	 * 
+	 * @param transferId
+	 *           The transferId of the BEGIN.
+	 * @param uploadId
+	 *           The uploadId from READY.
+	 * @param offset
+	 *           How many bytes of the file the server has now.
+	 * @param error
+	 *           Why the chunk was refused; null if it was stored (or had already been).
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If uploadId is null.
+	 */
+	public static UploadMessage ack(long transferId, String uploadId, long offset, String error) throws IllegalAccessException {
+		if (uploadId == null)
+			throw new IllegalAccessException("uploadId must be set.");
+
+		UploadMessage um = new UploadMessage(Type.ACK, transferId, uploadId);
+		um.offset = offset;
+		um.error = error;
+		return um;
+	}
+
+	/**
+	 * Constructs the client's request to finish an upload and queue its map.
+	 * 
+	 * @param transferId
+	 *           The transferId of the BEGIN.
+	 * @param uploadId
+	 *           The uploadId from READY.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If uploadId is null.
+	 */
+	public static UploadMessage commit(long transferId, String uploadId) throws IllegalAccessException {
+		if (uploadId == null)
+			throw new IllegalAccessException("uploadId must be set.");
+
+		return new UploadMessage(Type.COMMIT, transferId, uploadId);
+	}
+
+	/**
+	 * Constructs the server's answer to a request that can't be carried out.
+	 * 
+	 * @param transferId
+	 *           The transferId of the BEGIN.
+	 * @param error
+	 *           Why the upload can't go on.
+	 * @return The message.
+	 * @throws IllegalAccessException
+	 *            If error is null.
+	 */
+	public static UploadMessage failed(long transferId, String error) throws IllegalAccessException {
+		if (error == null)
+			throw new IllegalAccessException("error must be set.");
+
+		UploadMessage um = new UploadMessage(Type.FAILED, transferId, null);
+		um.error = error;
+		return um;
+	}
+
+	/**
+	 * @return true if this message is from the client; false otherwise.
+	 */
+	public boolean isRequest() {
+		return type == Type.BEGIN || type == Type.CHUNK || type == Type.COMMIT;
+	}
+
+	/**
+	 * @return The number the client picked for this upload.
+	 */
+	public long getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * @return The ID of the server's staging file. Will return null for Type.BEGIN and Type.FAILED.
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * @return The map that the file is for. Only set for Type.BEGIN.
+	 */
+	public MapProperties getMapProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return true if an existing map should be overwritten; false otherwise. Only set for Type.BEGIN.
+	 */
+	public boolean getOverwriteExisting() {
+		return overwriteExisting;
+	}
+
+	/**
+	 * @return The size of the file. Only set for Type.BEGIN.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return The CRC32 of the whole file (for Type.BEGIN) or of the chunk's data (for Type.CHUNK).
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return The DIGEST_ALGORITHM digest of the whole file. Only set for Type.BEGIN, and not always then.
+	 */
+	public byte[] getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return Where a CHUNK starts, or how many bytes the server has (for Type.READY and Type.ACK).
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return The piece of the file. Only set for Type.CHUNK.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return Why a chunk was refused (for Type.ACK) or the upload failed (for Type.FAILED); null otherwise.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Accessor for this message's type.
+	 * 
+	 * @return A Type.messageType
+	 */
+	public Type getType() {
+		return type;
+	}
+}
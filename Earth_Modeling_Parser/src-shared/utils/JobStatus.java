@@ -0,0 +1,165 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         An immutable view of a job (a map upload or removal that the daemon processes in the background) at one point in time. A new JobStatus is created every time a job changes state. Sent to clients in a JobMessage.
+ */
+
+package utils;
+
+import java.io.Serializable;
+
+public class JobStatus implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Operation {
+		CREATE_MAP, REPLACE_MAP, DELETE_MAP;
+	};
+
+	public enum State {
+		QUEUED, PARSING, PUBLISHING, DONE, FAILED;
+
+		/**
+		 * @return true if a job in this state will never change state again; false otherwise.
+		 */
+		public boolean isFinished() {
+			return this == DONE || this == FAILED;
+		}
+	};
+
+	private long jobId;
+	private Operation operation;
+	private MapProperties properties;
+	private String username;
+	private State state;
+	private String message;
+	private long submittedAt;
+	private long updatedAt;
+
+	/**
+	 * Creates the status of a job.
+	 * 
+	 * @param jobId
+	 *           The ID the server gave the job.
+	 * @param operation
+	 *           What the job does.
+	 * @param properties
+	 *           The map the job works on.
+	 * @param username
+	 *           The user that submitted the job.
+	 * @param state
+	 *           The state the job is in.
+	 * @param message
+	 *           Details about the state (such as the error a job failed with); null if there are none.
+	 * @param submittedAt
+	 *           When the job was submitted, in milliseconds since the epoch.
+	 * @param updatedAt
+	 *           When the job entered this state, in milliseconds since the epoch.
+	 * @throws IllegalAccessException
+	 *            If operation, properties, username, or state is null.
+	 */
+	public JobStatus(long jobId, Operation operation, MapProperties properties, String username, State state, String message, long submittedAt, long updatedAt) throws IllegalAccessException {
+		if (operation == null || properties == null || username == null || state == null)
+			throw new IllegalAccessException("operation, properties, username, and state must be set.");
+
+		this.jobId = jobId;
+		this.operation = operation;
+		this.properties = properties;
+		this.username = username;
+		this.state = state;
+		this.message = message;
+		this.submittedAt = submittedAt;
+		this.updatedAt = updatedAt;
+	}
+
+	/**
+	 * Creates the status of this job after it changed state.
+	 * 
+	 * @param newState
+	 *           The state the job is now in.
+	 * @param newMessage
+	 *           Details about the new state; null if there are none.
+	 * @return A new JobStatus for the same job.
+	 */
+	public JobStatus withState(State newState, String newMessage) {
+		try {
+			return new JobStatus(jobId, operation, properties, username, newState, newMessage, submittedAt, System.currentTimeMillis());
+		} catch (IllegalAccessException iae) {
+			throw new IllegalArgumentException("newState must be set.", iae);
+		}
+	}
+
+	/**
+	 * @return The ID the server gave the job.
+	 */
+	public long getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * @return What the job does.
+	 */
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return The map the job works on.
+	 */
+	public MapProperties getMapProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return The user that submitted the job.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return The state the job is in.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return Details about the state (such as the error a job failed with); null if there are none.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return When the job was submitted, in milliseconds since the epoch.
+	 */
+	public long getSubmittedAt() {
+		return submittedAt;
+	}
+
+	/**
+	 * @return When the job entered its current state, in milliseconds since the epoch.
+	 */
+	public long getUpdatedAt() {
+		return updatedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "Job " + jobId + " (" + operation + " " + properties + "): " + state + (message == null ? "" : " - " + message);
+	}
+}
@@ -15,11 +15,45 @@
  * @author Anish Kunduru
  * 
  *         Handy enum to define all the map compound types that our server will be able to handle. Should be defined in alphabetical order.
+ * 
+ *         Each compound has a code that is stored in packed keys (see MapProperties.toPackedKey()), which are persisted and sent to clients. A code must never change or be reused, so a new compound gets the next unused code wherever it is defined.
  */
 
 package utils;
 
-// REMINDER: DEFINE IN ALPHABETICAL ORDER.
+// REMINDER: DEFINE IN ALPHABETICAL ORDER, BUT NEVER CHANGE A CODE.
 public enum MapCompoundType {
-	CH4, ET, LEACHNO3, N2O, NPP, NUPTAKE, RH, SOC
+	CH4(0), ET(1), LEACHNO3(2), N2O(3), NPP(4), NUPTAKE(5), RH(6), SOC(7);
+
+	private static final MapCompoundType[] BY_CODE = new MapCompoundType[256];
+
+	static {
+		for (MapCompoundType mc : values()) {
+			if (BY_CODE[mc.code] != null)
+				throw new ExceptionInInitializerError("The code of " + mc + " is already used by " + BY_CODE[mc.code] + ".");
+			BY_CODE[mc.code] = mc;
+		}
+	}
+
+	private final int code;
+
+	private MapCompoundType(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return The stable code of this compound, between 0 and 255.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code
+	 *           A code returned by getCode().
+	 * @return The compound with the given code; null if no compound has it.
+	 */
+	public static MapCompoundType fromCode(int code) {
+		return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+	}
 }
@@ -0,0 +1,234 @@
+/*
+ * 
+ * Copyright (C) 2017 Anish Kunduru
+ * 
+ * This file is part the Visual Earth Modeling System (VEMS).
+ * 
+ * VEMS is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * VEMS is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with VEMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * @author Anish Kunduru
+ * 
+ *         Describes one converted map: where it came from, what its grid held, and how long each step of its creation took. Filled in by the daemon as a map moves through creation, and sent to clients in a MetadataMessage.
+ */
+
+package utils;
+
+import java.io.Serializable;
+
+public class MapMetadata implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private MapProperties properties;
+	private String uploadedBy;
+	private long uploadSizeBytes;
+	private byte[] uploadDigest;
+	private long uploadedAt;
+	private long completedAt;
+
+	private long cellCount;
+	private long validCellCount;
+	private double minValue;
+	private double maxValue;
+
+	private long conversionMillis;
+	private long publishMillis;
+	private long paramsMillis;
+
+	/**
+	 * Creates the metadata for a map that was just uploaded. Statistics and timings are set as the map is created.
+	 * 
+	 * @param properties
+	 *           The properties of the map.
+	 * @param uploadedBy
+	 *           The username of the client that uploaded the map.
+	 * @param uploadSizeBytes
+	 *           The size of the uploaded ASCII file, in bytes.
+	 * @param uploadedAt
+	 *           When the upload was received, in milliseconds since the epoch.
+	 * @throws IllegalAccessException
+	 *            If properties or uploadedBy is null.
+	 */
+	public MapMetadata(MapProperties properties, String uploadedBy, long uploadSizeBytes, long uploadedAt) throws IllegalAccessException {
+		if (properties == null || uploadedBy == null)
+			throw new IllegalAccessException("properties and uploadedBy must be set.");
+
+		this.properties = properties;
+		this.uploadedBy = uploadedBy;
+		this.uploadSizeBytes = uploadSizeBytes;
+		this.uploadedAt = uploadedAt;
+		minValue = Double.NaN;
+		maxValue = Double.NaN;
+	}
+
+	/**
+	 * Sets the statistics of the map's grid, as found by the parser.
+	 * 
+	 * @param cellCount
+	 *           The number of cells in the grid.
+	 * @param validCellCount
+	 *           The number of cells that didn't hold the NODATA value.
+	 * @param minValue
+	 *           The smallest valid value; NaN if there were no valid cells.
+	 * @param maxValue
+	 *           The largest valid value; NaN if there were no valid cells.
+	 */
+	public void setCellStatistics(long cellCount, long validCellCount, double minValue, double maxValue) {
+		this.cellCount = cellCount;
+		this.validCellCount = validCellCount;
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+	}
+
+	/**
+	 * @param conversionMillis
+	 *           How long the ASCII to CSV conversion took, in milliseconds.
+	 */
+	public void setConversionMillis(long conversionMillis) {
+		this.conversionMillis = conversionMillis;
+	}
+
+	/**
+	 * @param publishMillis
+	 *           How long the map generation and publishing script took, in milliseconds.
+	 */
+	public void setPublishMillis(long publishMillis) {
+		this.publishMillis = publishMillis;
+	}
+
+	/**
+	 * @param paramsMillis
+	 *           How long the publishing parameters script took, in milliseconds.
+	 */
+	public void setParamsMillis(long paramsMillis) {
+		this.paramsMillis = paramsMillis;
+	}
+
+	/**
+	 * @param uploadDigest
+	 *           The SHA-256 digest of the uploaded ASCII file, so that the same content can be recognized when it is uploaded again.
+	 */
+	public void setUploadDigest(byte[] uploadDigest) {
+		this.uploadDigest = uploadDigest;
+	}
+
+	/**
+	 * @param completedAt
+	 *           When the map finished being created, in milliseconds since the epoch.
+	 */
+	public void setCompletedAt(long completedAt) {
+		this.completedAt = completedAt;
+	}
+
+	/**
+	 * @return The properties of the map this metadata describes.
+	 */
+	public MapProperties getMapProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return The username of the client that uploaded the map.
+	 */
+	public String getUploadedBy() {
+		return uploadedBy;
+	}
+
+	/**
+	 * @return The size of the uploaded ASCII file, in bytes.
+	 */
+	public long getUploadSizeBytes() {
+		return uploadSizeBytes;
+	}
+
+	/**
+	 * @return The SHA-256 digest of the uploaded ASCII file; null if it isn't known (for maps created before digests were kept).
+	 */
+	public byte[] getUploadDigest() {
+		return uploadDigest;
+	}
+
+	/**
+	 * @return When the upload was received, in milliseconds since the epoch.
+	 */
+	public long getUploadedAt() {
+		return uploadedAt;
+	}
+
+	/**
+	 * @return When the map finished being created, in milliseconds since the epoch; 0 if it hasn't finished.
+	 */
+	public long getCompletedAt() {
+		return completedAt;
+	}
+
+	/**
+	 * @return The number of cells in the grid.
+	 */
+	public long getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * @return The number of cells that didn't hold the NODATA value.
+	 */
+	public long getValidCellCount() {
+		return validCellCount;
+	}
+
+	/**
+	 * @return The smallest valid value in the grid; NaN if unknown.
+	 */
+	public double getMinValue() {
+		return minValue;
+	}
+
+	/**
+	 * @return The largest valid value in the grid; NaN if unknown.
+	 */
+	public double getMaxValue() {
+		return maxValue;
+	}
+
+	/**
+	 * @return How long the ASCII to CSV conversion took, in milliseconds.
+	 */
+	public long getConversionMillis() {
+		return conversionMillis;
+	}
+
+	/**
+	 * @return How long the map generation and publishing script took, in milliseconds.
+	 */
+	public long getPublishMillis() {
+		return publishMillis;
+	}
+
+	/**
+	 * @return How long the publishing parameters script took, in milliseconds.
+	 */
+	public long getParamsMillis() {
+		return paramsMillis;
+	}
+
+	/**
+	 * @return The total processing time of the map (conversion, publishing, and parameters), in milliseconds.
+	 */
+	public long getTotalMillis() {
+		return conversionMillis + publishMillis + paramsMillis;
+	}
+
+	/**
+	 * Returns a one line summary of this metadata.
+	 */
+	@Override
+	public String toString() {
+		return properties.toString() + " by " + uploadedBy + ": " + uploadSizeBytes + " bytes, " + validCellCount + "/" + cellCount + " valid cells in [" + minValue + ", " + maxValue + "], convert " + conversionMillis + " ms, publish " + publishMillis + " ms, params " + paramsMillis + " ms";
+	}
+}
@@ -19,12 +19,31 @@
 
 package utils;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 public class MapProperties implements Serializable {
 
 	private static final long serialVersionUID = 2L;
 
+	public static final int MIN_YEAR = 1500;
+	public static final int MAX_YEAR = 2100;
+
+	// Layout of a packed key (low bit to high bit): 4 bits month + 1, 10 bits year - MIN_YEAR, 8 bits compound code, 8 bits region code (see MapCompoundType.getCode() and MapRegionType.getCode(), which unlike ordinals don't change when a type is added). Always non-negative.
+	private static final int MONTH_BITS = 4;
+	private static final int YEAR_BITS = 10;
+	private static final int TYPE_BITS = 8;
+	private static final int YEAR_SHIFT = MONTH_BITS;
+	private static final int COMPOUND_SHIFT = YEAR_SHIFT + YEAR_BITS;
+	private static final int REGION_SHIFT = COMPOUND_SHIFT + TYPE_BITS;
+	private static final int MONTH_MASK = (1 << MONTH_BITS) - 1;
+	private static final int YEAR_MASK = (1 << YEAR_BITS) - 1;
+	private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+	private static final MapRegionType[] REGIONS = MapRegionType.values();
+	private static final MapCompoundType[] COMPOUNDS = MapCompoundType.values();
+
 	private MapCompoundType compound;
 	private MapRegionType region;
 	private int year;
@@ -70,10 +89,10 @@ public class MapProperties implements Serializable {
 		this.region = region;
 		this.compound = compound;
 
-		if (year < 1500)
-			throw new IllegalArgumentException("Are you sure you set the correct year? It is less than 1500.");
-		else if (year > 2100)
-			throw new IllegalArgumentException("Are you sure you set the correct year? It is greater than 2100.");
+		if (year < MIN_YEAR)
+			throw new IllegalArgumentException("Are you sure you set the correct year? It is less than " + MIN_YEAR + ".");
+		else if (year > MAX_YEAR)
+			throw new IllegalArgumentException("Are you sure you set the correct year? It is greater than " + MAX_YEAR + ".");
 
 		this.year = year;
 		this.month = -1;
@@ -88,6 +107,42 @@ public class MapProperties implements Serializable {
 		return region.name() + compound.name() + "y" + year + "m" + month;
 	}
 
+	/**
+	 * Parses a "Stringized" map name, as created by toString(), back into a MapProperties. Also accepts the ESRI-safe form of the name used for local map files, where the "-1" month of a yearly map is written as "_1".
+	 * 
+	 * @param name
+	 *           The name to parse, without any file extension. Example: MISSISSIPPI_RIVER_BASINCH4y2000m11 or GLOBALN2Oy1980m_1.
+	 * @return The MapProperties that the name represents; null if the name doesn't represent a valid map.
+	 */
+	public static MapProperties fromString(String name) {
+		if (name == null)
+			return null;
+
+		if (name.endsWith("m_1"))
+			name = name.substring(0, name.length() - 2) + "-1";
+
+		int indexOfM = name.lastIndexOf('m');
+		int indexOfY = indexOfM == -1 ? -1 : name.lastIndexOf('y', indexOfM);
+		if (indexOfY == -1)
+			return null;
+
+		String prefix = name.substring(0, indexOfY);
+		try {
+			int year = Integer.parseInt(name.substring(indexOfY + 1, indexOfM));
+			int month = Integer.parseInt(name.substring(indexOfM + 1));
+
+			for (MapRegionType mr : REGIONS)
+				if (prefix.startsWith(mr.name()))
+					for (MapCompoundType mc : COMPOUNDS)
+						if (prefix.length() == mr.name().length() + mc.name().length() && prefix.endsWith(mc.name()))
+							return month == -1 ? new MapProperties(mr, mc, year) : new MapProperties(mr, mc, year, month);
+		} catch (IllegalArgumentException | IllegalAccessException e) {
+			// NumberFormatException is an IllegalArgumentException. Either way, the name isn't a valid map.
+		}
+
+		return null;
+	}
+
 	/**
 	 * @return The MapRegion that represents the extent of this map.
 	 */
@@ -132,10 +187,129 @@ public class MapProperties implements Serializable {
 	}
 
 	/**
-	 * Generates a consistent and unique hashcode using this.toString().
+	 * Returns the packed key of this map, which is unique to its region, compound, year, and month.
 	 */
 	@Override
 	public int hashCode() {
-		return this.toString().hashCode();
+		return toPackedKey();
+	}
+
+	/**
+	 * Packs this map's properties into a single int. Two MapProperties are equal if and only if their packed keys are equal.
+	 * 
+	 * @return A non-negative int that can be turned back into an equal MapProperties via fromPackedKey().
+	 */
+	public int toPackedKey() {
+		return packKey(region, compound, year, month);
+	}
+
+	/**
+	 * Packs map properties into a single int without creating a MapProperties. Keys sort by region code, then compound code, then year, then month (yearly maps first).
+	 * 
+	 * @param region
+	 *           The extent of the map.
+	 * @param compound
+	 *           The type of molecule the map represents.
+	 * @param year
+	 *           The year the map represents. Must be between MIN_YEAR and MAX_YEAR, inclusive.
+	 * @param month
+	 *           The month the map represents (0 to 11); -1 for a yearly map.
+	 * @return The same key that toPackedKey() would return for an equal MapProperties.
+	 */
+	public static int packKey(MapRegionType region, MapCompoundType compound, int year, int month) {
+		return (region.getCode() << REGION_SHIFT) | (compound.getCode() << COMPOUND_SHIFT) | ((year - MIN_YEAR) << YEAR_SHIFT) | (month + 1);
+	}
+
+	/**
+	 * Unpacks a key created by toPackedKey().
+	 * 
+	 * @param key
+	 *           The packed key of the map.
+	 * @return A MapProperties equal to the one that created the key.
+	 * @throws IllegalArgumentException
+	 *            If the key doesn't represent a valid map.
+	 */
+	public static MapProperties fromPackedKey(int key) {
+		try {
+			int month = packedMonth(key);
+			if (month == -1)
+				return new MapProperties(packedRegion(key), packedCompound(key), packedYear(key));
+			else
+				return new MapProperties(packedRegion(key), packedCompound(key), packedYear(key), month);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalArgumentException("The packed key " + key + " doesn't represent a valid map.");
+		}
+	}
+
+	/**
+	 * @param key
+	 *           A key created by toPackedKey().
+	 * @return The MapRegionType stored in the key; null if the key holds an unknown region.
+	 */
+	public static MapRegionType packedRegion(int key) {
+		return MapRegionType.fromCode((key >>> REGION_SHIFT) & TYPE_MASK);
+	}
+
+	/**
+	 * @param key
+	 *           A key created by toPackedKey().
+	 * @return The MapCompoundType stored in the key; null if the key holds an unknown compound.
+	 */
+	public static MapCompoundType packedCompound(int key) {
+		return MapCompoundType.fromCode((key >>> COMPOUND_SHIFT) & TYPE_MASK);
+	}
+
+	/**
+	 * @param key
+	 *           A key created by toPackedKey().
+	 * @return The year stored in the key.
+	 */
+	public static int packedYear(int key) {
+		return ((key >>> YEAR_SHIFT) & YEAR_MASK) + MIN_YEAR;
+	}
+
+	/**
+	 * @param key
+	 *           A key created by toPackedKey().
+	 * @return The month stored in the key; -1 if the key represents a yearly map.
+	 */
+	public static int packedMonth(int key) {
+		return (key & MONTH_MASK) - 1;
+	}
+
+	/**
+	 * Serializes this object as its packed key. Streams written before the packed form existed are still read through the default field layout.
+	 * 
+	 * @return The PackedForm that stands in for this object in the stream.
+	 */
+	private Object writeReplace() {
+		return new PackedForm(toPackedKey());
+	}
+
+	/**
+	 * Serialized form of a MapProperties: the packed key and nothing else.
+	 */
+	private static class PackedForm implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int key;
+
+		private PackedForm(int key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return The MapProperties represented by the key.
+		 * @throws ObjectStreamException
+		 *            If the key doesn't represent a valid map.
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				return fromPackedKey(key);
+			} catch (IllegalArgumentException iae) {
+				throw new InvalidObjectException(iae.getMessage());
+			}
+		}
 	}
 }
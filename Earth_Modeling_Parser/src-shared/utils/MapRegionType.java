@@ -15,11 +15,45 @@
  * @author Anish Kunduru
  * 
  *         Handy enum to define all the map regions that our server will be able to handle. This will be needed if multiple compounds can be defined in different regions. Should be defined in alphabetical order.
+ * 
+ *         Each region has a code that is stored in packed keys (see MapProperties.toPackedKey()), which are persisted and sent to clients. A code must never change or be reused, so a new region gets the next unused code wherever it is defined.
  */
 
 package utils;
 
-// REMINDER: DEFINE IN ALPHABETICAL ORDER.
+// REMINDER: DEFINE IN ALPHABETICAL ORDER, BUT NEVER CHANGE A CODE.
 public enum MapRegionType {
-	GLOBAL, MIDWESTERN_US, MISSISSIPPI_RIVER_BASIN;
+	GLOBAL(0), MIDWESTERN_US(1), MISSISSIPPI_RIVER_BASIN(2);
+
+	private static final MapRegionType[] BY_CODE = new MapRegionType[256];
+
+	static {
+		for (MapRegionType mr : values()) {
+			if (BY_CODE[mr.code] != null)
+				throw new ExceptionInInitializerError("The code of " + mr + " is already used by " + BY_CODE[mr.code] + ".");
+			BY_CODE[mr.code] = mr;
+		}
+	}
+
+	private final int code;
+
+	private MapRegionType(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return The stable code of this region, between 0 and 255.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code
+	 *           A code returned by getCode().
+	 * @return The region with the given code; null if no region has it.
+	 */
+	public static MapRegionType fromCode(int code) {
+		return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+	}
 }